@@ -50,6 +50,7 @@ import org.thoughtcrime.securesms.components.TypingStatusSender;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.session.libsession.utilities.preferences.ProfileKeyUtil;
 import org.session.libsession.messaging.threads.Address;
+import org.session.libsession.snode.SnodeConfiguration;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
@@ -69,10 +70,11 @@ import org.thoughtcrime.securesms.loki.api.BackgroundPollWorker;
 import org.thoughtcrime.securesms.loki.api.ClosedGroupPoller;
 import org.thoughtcrime.securesms.loki.api.LokiPushNotificationManager;
 import org.thoughtcrime.securesms.loki.api.PublicChatManager;
-import org.thoughtcrime.securesms.loki.database.LokiAPIDatabase;
+import org.thoughtcrime.securesms.loki.database.SnodeStorage;
 import org.thoughtcrime.securesms.loki.database.LokiThreadDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiUserDatabase;
 import org.thoughtcrime.securesms.loki.protocol.MultiDeviceProtocol;
+import org.thoughtcrime.securesms.loki.protocol.SessionMetaProtocol;
 import org.thoughtcrime.securesms.loki.utilities.Broadcaster;
 import org.thoughtcrime.securesms.loki.utilities.UiModeUtilities;
 import org.thoughtcrime.securesms.notifications.DefaultMessageNotifier;
@@ -97,6 +99,7 @@ import org.session.libsignal.service.loki.api.SnodeAPI;
 import org.session.libsignal.service.loki.api.SwarmAPI;
 import org.session.libsignal.service.loki.api.fileserver.FileServerAPI;
 import org.session.libsignal.service.loki.api.opengroups.PublicChatAPI;
+import org.session.libsignal.service.loki.api.utilities.HTTP;
 import org.session.libsignal.service.loki.database.LokiAPIDatabaseProtocol;
 import org.session.libsignal.service.loki.utilities.mentions.MentionsManager;
 
@@ -168,7 +171,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     // ========
     messageNotifier = new OptimizedMessageNotifier(new DefaultMessageNotifier());
     broadcaster = new Broadcaster(this);
-    LokiAPIDatabase apiDB = DatabaseFactory.getLokiAPIDatabase(this);
+    LokiAPIDatabaseProtocol apiDB = DatabaseFactory.getLokiAPIDatabaseCache(this);
     LokiThreadDatabase threadDB = DatabaseFactory.getLokiThreadDatabase(this);
     LokiUserDatabase userDB = DatabaseFactory.getLokiUserDatabase(this);
     String userPublicKey = TextSecurePreferences.getLocalNumber(this);
@@ -176,6 +179,8 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
                                                 DatabaseFactory.getStorage(this),
                                                 DatabaseFactory.getAttachmentProvider(this),
                                                 new SessionProtocolImpl(this));
+    SnodeConfiguration.Companion.configure(new SnodeStorage(apiDB), broadcaster);
+    SessionMetaProtocol.configure(DatabaseFactory.getLokiAPIDatabase(this));
     if (userPublicKey != null) {
       SwarmAPI.Companion.configureIfNeeded(apiDB);
       SnodeAPI.Companion.configureIfNeeded(userPublicKey, apiDB, broadcaster);
@@ -210,6 +215,9 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     Log.i(TAG, "App is now visible.");
     KeyCachingService.onAppForegrounded(this);
     // Loki
+    HTTP.INSTANCE.setKeepAliveEnabled(true);
+    org.session.libsession.messaging.sending_receiving.pollers.Poller.Companion.setAppIdle(false);
+    org.session.libsession.messaging.sending_receiving.pollers.Poller.Companion.onUserActivity();
     if (poller != null) { poller.setCaughtUp(false); }
     startPollingIfNeeded();
     publicChatManager.markAllAsNotCaughtUp();
@@ -224,6 +232,8 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     KeyCachingService.onAppBackgrounded(this);
     messageNotifier.setVisibleThread(-1);
     // Loki
+    HTTP.INSTANCE.setKeepAliveEnabled(false);
+    org.session.libsession.messaging.sending_receiving.pollers.Poller.Companion.setAppIdle(true);
     if (poller != null) { poller.stopIfNeeded(); }
     if (closedGroupPoller != null) { closedGroupPoller.stopIfNeeded(); }
     if (publicChatManager != null) { publicChatManager.stopPollers(); }
@@ -280,7 +290,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     String userPublicKey = TextSecurePreferences.getLocalNumber(this);
     if (userPublicKey== null) { return publicChatAPI; }
     byte[] userPrivateKey = IdentityKeyUtil.getIdentityKeyPair(this).getPrivateKey().serialize();
-    LokiAPIDatabase apiDB = DatabaseFactory.getLokiAPIDatabase(this);
+    LokiAPIDatabaseProtocol apiDB = DatabaseFactory.getLokiAPIDatabaseCache(this);
     LokiUserDatabase userDB = DatabaseFactory.getLokiUserDatabase(this);
     GroupDatabase groupDB = DatabaseFactory.getGroupDatabase(this);
     publicChatAPI = new PublicChatAPI(userPublicKey, userPrivateKey, apiDB, userDB, groupDB);
@@ -421,8 +431,10 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     String userPublicKey = TextSecurePreferences.getLocalNumber(this);
     if (userPublicKey == null || !IdentityKeyUtil.hasIdentityKey(this)) { return false; }
     byte[] userPrivateKey = IdentityKeyUtil.getIdentityKeyPair(this).getPrivateKey().serialize();
-    LokiAPIDatabaseProtocol apiDB = DatabaseFactory.getLokiAPIDatabase(this);
+    LokiAPIDatabaseProtocol apiDB = DatabaseFactory.getLokiAPIDatabaseCache(this);
     FileServerAPI.Companion.configure(userPublicKey, userPrivateKey, apiDB);
+    // Attachments are downloaded through libsession
+    org.session.libsession.messaging.fileserver.FileServerAPI.Companion.configure(userPublicKey, userPrivateKey, apiDB);
     return true;
   }
 
@@ -452,7 +464,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
       poller.setUserPublicKey(userPublicKey);
       return;
     }
-    LokiAPIDatabase apiDB = DatabaseFactory.getLokiAPIDatabase(this);
+    LokiAPIDatabaseProtocol apiDB = DatabaseFactory.getLokiAPIDatabaseCache(this);
     Context context = this;
     SwarmAPI.Companion.configureIfNeeded(apiDB);
     SnodeAPI.Companion.configureIfNeeded(userPublicKey, apiDB, broadcaster);
@@ -8,6 +8,7 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
+import org.session.libsignal.utilities.ThreadUtils;
 import org.session.libsignal.utilities.logging.Log;
 
 import org.session.libsession.utilities.Util;
@@ -15,6 +16,7 @@ import org.session.libsession.utilities.Util;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 public class AudioCodec {
@@ -26,6 +28,9 @@ public class AudioCodec {
   private static final int    CHANNELS          = 1;
   private static final int    BIT_RATE          = 32000;
 
+  // Recordings never overlap, since stop() waits for the encoding loop to finish
+  private static final ExecutorService executor = ThreadUtils.newDynamicSingleThreadedExecutor();
+
   private final int         bufferSize;
   private final MediaCodec  mediaCodec;
   private final AudioRecord audioRecord;
@@ -55,7 +60,7 @@ public class AudioCodec {
   }
 
   public void start(final OutputStream outputStream) {
-    new Thread(new Runnable() {
+    executor.execute(new Runnable() {
       @Override
       public void run() {
         MediaCodec.BufferInfo bufferInfo         = new MediaCodec.BufferInfo();
@@ -85,7 +90,7 @@ public class AudioCodec {
           setFinished();
         }
       }
-    }, AudioCodec.class.getSimpleName()).start();
+    });
   }
 
   private synchronized boolean isRunning() {
@@ -4,6 +4,7 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.constraintlayout.widget.ConstraintLayout;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.TextView;
@@ -20,6 +21,7 @@ public class ConversationSearchBottomBar extends ConstraintLayout {
   private View     searchDown;
   private View     searchUp;
   private TextView searchPositionText;
+  private TextView searchSnippetText;
   private View     progressWheel;
 
   private EventListener eventListener;
@@ -40,10 +42,19 @@ public class ConversationSearchBottomBar extends ConstraintLayout {
     this.searchUp           = findViewById(R.id.conversation_search_up);
     this.searchDown         = findViewById(R.id.conversation_search_down);
     this.searchPositionText = findViewById(R.id.conversation_search_position);
+    this.searchSnippetText  = findViewById(R.id.conversation_search_snippet);
     this.progressWheel      = findViewById(R.id.conversation_search_progress_wheel);
   }
 
   public void setData(int position, int count) {
+    setData(position, count, false, null);
+  }
+
+  /**
+   * @param hasMore Whether there are more results than the {@code count} that have been loaded so far.
+   * @param snippet The part of the current result that matched, if any.
+   */
+  public void setData(int position, int count, boolean hasMore, @Nullable CharSequence snippet) {
     progressWheel.setVisibility(GONE);
 
     searchUp.setOnClickListener(v -> {
@@ -59,12 +70,16 @@ public class ConversationSearchBottomBar extends ConstraintLayout {
     });
 
     if (count > 0) {
-      searchPositionText.setText(getResources().getString(R.string.ConversationActivity_search_position, position + 1, count));
+      int positionText = hasMore ? R.string.ConversationActivity_search_position_more : R.string.ConversationActivity_search_position;
+      searchPositionText.setText(getResources().getString(positionText, position + 1, count));
     } else {
       searchPositionText.setText(R.string.ConversationActivity_no_results);
     }
 
-    setViewEnabled(searchUp, position < (count - 1));
+    searchSnippetText.setText(snippet);
+    searchSnippetText.setVisibility(TextUtils.isEmpty(snippet) ? GONE : VISIBLE);
+
+    setViewEnabled(searchUp, position < (count - 1) || hasMore);
     setViewEnabled(searchDown, position > 0);
   }
 
@@ -32,6 +32,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
+import android.graphics.Typeface;
 import android.hardware.Camera;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -44,6 +45,7 @@ import android.provider.Telephony;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.style.StyleSpan;
 import android.util.Pair;
 import android.util.TypedValue;
 import android.view.KeyEvent;
@@ -175,6 +177,7 @@ import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.DateUtils;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.PushCharacterCalculator;
+import org.thoughtcrime.securesms.util.SearchUtil;
 import org.session.libsession.utilities.ServiceUtil;
 import org.session.libsession.utilities.Util;
 
@@ -1370,12 +1373,15 @@ public class ConversationActivity extends PassphraseRequiredActionBarActivity
     searchViewModel.getSearchResults().observe(this, result -> {
       if (result == null) return;
 
+      CharSequence snippet = null;
+
       if (!result.getResults().isEmpty()) {
         MessageResult messageResult = result.getResults().get(result.getPosition());
         fragment.jumpToMessage(messageResult.messageRecipient.getAddress(), messageResult.receivedTimestampMs, searchViewModel::onMissingResult);
+        snippet = SearchUtil.getHighlightedSpan(() -> new StyleSpan(Typeface.BOLD), messageResult.bodySnippet, messageResult.bodyHighlights);
       }
 
-      searchNav.setData(result.getPosition(), result.getResults().size());
+      searchNav.setData(result.getPosition(), result.getResults().size(), result.hasMore(), snippet);
     });
   }
 
@@ -69,6 +69,7 @@ import org.thoughtcrime.securesms.conversation.ConversationAdapter.ItemClickList
 import org.session.libsession.messaging.threads.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.MessageKey;
 import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -89,6 +90,7 @@ import org.thoughtcrime.securesms.util.SaveAttachmentTask;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration;
 import org.session.libsession.utilities.task.ProgressDialogAsyncTask;
 import org.session.libsignal.libsignal.util.guava.Optional;
+import org.session.libsignal.libsignal.util.Pair;
 import org.session.libsignal.service.loki.api.opengroups.PublicChat;
 import org.session.libsignal.service.loki.api.opengroups.PublicChatAPI;
 
@@ -132,6 +134,7 @@ public class ConversationFragment extends Fragment
   private long                        threadId;
   private long                        lastSeen;
   private int                         startingPosition;
+  private MessageKey                  startingKey;
   private int                         previousOffset;
   private int                         activeOffset;
   private boolean                     firstLoad;
@@ -743,14 +746,18 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
-      offset = Math.max(startingPosition - (limit / 2) + 1, 0);
+    int        limit      = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
+    int        offset     = 0;
+    int        newerCount = 0;
+    MessageKey key        = null;
+    if (limit != 0 && startingKey != null && startingPosition >= limit) {
+      key              = startingKey;
+      newerCount       = (limit / 2) - 1;
+      offset           = startingPosition - newerCount;
       startingPosition -= offset - 1;
     }
 
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, key, newerCount, offset, limit, lastSeen);
   }
 
   @Override
@@ -899,12 +906,16 @@ public class ConversationFragment extends Fragment
 
   public void jumpToMessage(@NonNull Address author, long timestamp, @Nullable Runnable onMessageNotFound) {
     SimpleTask.run(getLifecycle(), () -> {
-      return DatabaseFactory.getMmsSmsDatabase(getContext())
-                            .getMessagePositionInConversation(threadId, timestamp, author);
-    }, p -> moveToMessagePosition(p, onMessageNotFound));
+      MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(getContext());
+      return getMessagePosition(database, database.getMessageKeyInConversation(threadId, timestamp, author));
+    }, p -> moveToMessagePosition(p.first(), p.second(), onMessageNotFound));
   }
 
-  private void moveToMessagePosition(int position, @Nullable Runnable onMessageNotFound) {
+  private Pair<MessageKey, Integer> getMessagePosition(@NonNull MmsSmsDatabase database, @Nullable MessageKey key) {
+    return new Pair<>(key, key != null ? database.getConversationPosition(threadId, key) : -1);
+  }
+
+  private void moveToMessagePosition(@Nullable MessageKey key, int position, @Nullable Runnable onMessageNotFound) {
     Log.d(TAG, "Moving to message position: " + position + "  activeOffset: " + activeOffset + "  cursorCount: " + getListAdapter().getCursorCount());
 
     if (position >= activeOffset && position >= 0 && position < getListAdapter().getCursorCount()) {
@@ -920,6 +931,7 @@ public class ConversationFragment extends Fragment
       Log.i(TAG, "Message was outside of the loaded range. Need to restart the loader.");
 
       firstLoad        = true;
+      startingKey      = key;
       startingPosition = position;
       getLoaderManager().restartLoader(0, Bundle.EMPTY, ConversationFragment.this);
     }
@@ -1051,11 +1063,11 @@ public class ConversationFragment extends Fragment
       }
 
       SimpleTask.run(getLifecycle(), () -> {
-        return DatabaseFactory.getMmsSmsDatabase(getContext())
-                              .getQuotedMessagePosition(threadId,
-                                                        messageRecord.getQuote().getId(),
-                                                        messageRecord.getQuote().getAuthor());
-      }, p -> moveToMessagePosition(p, () -> {
+        MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(getContext());
+        return getMessagePosition(database, database.getQuotedMessageKey(threadId,
+                                                                         messageRecord.getQuote().getId(),
+                                                                         messageRecord.getQuote().getAuthor()));
+      }, p -> moveToMessagePosition(p.first(), p.second(), () -> {
         Toast.makeText(getContext(), R.string.ConversationFragment_quoted_message_no_longer_available, Toast.LENGTH_SHORT).show();
       }));
     }
@@ -17,6 +17,9 @@ import org.session.libsession.utilities.Util;
 import org.session.libsession.utilities.concurrent.SignalExecutors;
 
 import java.io.Closeable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ConversationSearchViewModel extends AndroidViewModel {
@@ -27,6 +30,7 @@ public class ConversationSearchViewModel extends AndroidViewModel {
 
   private boolean firstSearch;
   private boolean searchOpen;
+  private boolean loadingNextPage;
   private String  activeQuery;
   private long    activeThreadId;
 
@@ -68,19 +72,23 @@ public class ConversationSearchViewModel extends AndroidViewModel {
   void onMoveUp() {
     debouncer.clear();
 
-    CursorList<MessageResult> messages = (CursorList<MessageResult>) result.getValue().getResults();
-    int                       position = Math.min(result.getValue().getPosition() + 1, messages.size() - 1);
+    SearchResult current  = result.getValue();
+    int          position = current.getPosition() + 1;
 
-    result.setValue(new SearchResult(messages, position), false);
+    if (position < current.getResults().size()) {
+      result.setValue(current.withPosition(position), false);
+    } else if (current.hasMore()) {
+      loadNextPage(current);
+    }
   }
 
   void onMoveDown() {
     debouncer.clear();
 
-    CursorList<MessageResult> messages = (CursorList<MessageResult>) result.getValue().getResults();
-    int                       position = Math.max(result.getValue().getPosition() - 1, 0);
+    SearchResult current  = result.getValue();
+    int          position = Math.max(current.getPosition() - 1, 0);
 
-    result.setValue(new SearchResult(messages, position), false);
+    result.setValue(current.withPosition(position), false);
   }
 
 
@@ -120,14 +128,49 @@ public class ConversationSearchViewModel extends AndroidViewModel {
     });
   }
 
+  /**
+   * Loads the page of results after the ones in {@code current}, and moves to the first of them.
+   */
+  private void loadNextPage(@NonNull SearchResult current) {
+    if (loadingNextPage) return;
+
+    String query    = activeQuery;
+    long   threadId = activeThreadId;
+
+    loadingNextPage = true;
+
+    searchRepository.query(query, threadId, current.getResults().size(), messages -> {
+      Util.runOnMain(() -> {
+        loadingNextPage = false;
+
+        if (searchOpen && query.equals(activeQuery) && result.getValue() == current) {
+          result.setValue(current.withNextPage(messages), false);
+        } else {
+          messages.close();
+        }
+      });
+    });
+  }
+
+  /**
+   * The pages of results loaded so far for the active query, and the one that's currently shown.
+   */
   static class SearchResult implements Closeable {
 
-    private final CursorList<MessageResult> results;
-    private final int                       position;
+    private final List<CursorList<MessageResult>> pages;
+    private final List<MessageResult>             results;
+    private final int                             position;
+    private final boolean                         hasMore;
 
     SearchResult(CursorList<MessageResult> results, int position) {
-      this.results  = results;
+      this(Collections.singletonList(results), position, results.size() == SearchRepository.THREAD_PAGE_SIZE);
+    }
+
+    private SearchResult(List<CursorList<MessageResult>> pages, int position, boolean hasMore) {
+      this.pages    = pages;
+      this.results  = new PagedList(pages);
       this.position = position;
+      this.hasMore  = hasMore;
     }
 
     public List<MessageResult> getResults() {
@@ -138,9 +181,61 @@ public class ConversationSearchViewModel extends AndroidViewModel {
       return position;
     }
 
+    /**
+     * Whether there may be more results than the ones that have been loaded so far.
+     */
+    public boolean hasMore() {
+      return hasMore;
+    }
+
+    SearchResult withPosition(int position) {
+      return new SearchResult(pages, position, hasMore);
+    }
+
+    SearchResult withNextPage(CursorList<MessageResult> page) {
+      List<CursorList<MessageResult>> pages = new ArrayList<>(this.pages);
+      pages.add(page);
+
+      int position = Math.min(results.size(), results.size() + page.size() - 1);
+
+      return new SearchResult(pages, position, page.size() == SearchRepository.THREAD_PAGE_SIZE);
+    }
+
     @Override
     public void close() {
-      results.close();
+      for (CursorList<MessageResult> page : pages) {
+        page.close();
+      }
+    }
+  }
+
+  private static class PagedList extends AbstractList<MessageResult> {
+
+    private final List<CursorList<MessageResult>> pages;
+
+    private PagedList(List<CursorList<MessageResult>> pages) {
+      this.pages = pages;
+    }
+
+    @Override
+    public MessageResult get(int index) {
+      for (CursorList<MessageResult> page : pages) {
+        if (index < page.size()) return page.get(index);
+        index -= page.size();
+      }
+
+      throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public int size() {
+      int size = 0;
+
+      for (CursorList<MessageResult> page : pages) {
+        size += page.size();
+      }
+
+      return size;
     }
   }
 }
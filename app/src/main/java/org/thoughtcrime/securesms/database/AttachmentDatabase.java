@@ -35,8 +35,6 @@ import com.bumptech.glide.Glide;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 
 import org.session.libsession.utilities.MediaTypes;
 import org.session.libsignal.utilities.logging.Log;
@@ -52,7 +50,6 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachmentAudioExtras;
 
-import org.session.libsignal.utilities.JsonUtil;
 import org.session.libsession.utilities.Util;
 
 import org.thoughtcrime.securesms.mms.MediaStream;
@@ -88,7 +85,6 @@ public class AttachmentDatabase extends Database {
 
   public  static final String TABLE_NAME             = "part";
   public  static final String ROW_ID                 = "_id";
-          static final String ATTACHMENT_JSON_ALIAS  = "attachment_json";
   public  static final String MMS_ID                 = "mid";
           static final String CONTENT_TYPE           = "ct";
           static final String NAME                   = "name";
@@ -216,6 +212,7 @@ public class AttachmentDatabase extends Database {
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_FAILED);
 
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+    updateAttachmentSummary(mmsId);
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
   }
 
@@ -297,6 +294,7 @@ public class AttachmentDatabase extends Database {
     }
 
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+    updateAttachmentSummary(mmsId);
     notifyAttachmentListeners();
   }
 
@@ -304,7 +302,7 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
     try (Cursor cursor = database.query(TABLE_NAME,
-                                        new String[]{DATA, THUMBNAIL, CONTENT_TYPE},
+                                        new String[]{DATA, THUMBNAIL, CONTENT_TYPE, MMS_ID},
                                         PART_ID_WHERE,
                                         id.toStrings(),
                                         null,
@@ -318,8 +316,10 @@ public class AttachmentDatabase extends Database {
       String data        = cursor.getString(0);
       String thumbnail   = cursor.getString(1);
       String contentType = cursor.getString(2);
+      long   mmsId       = cursor.getLong(3);
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
+      updateAttachmentSummary(mmsId);
       deleteAttachmentOnDisk(data, thumbnail, contentType);
       notifyAttachmentListeners();
     }
@@ -330,6 +330,10 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
 
+    ContentValues values = new ContentValues(1);
+    values.putNull(MmsDatabase.ATTACHMENT_SUMMARY);
+    database.update(MmsDatabase.TABLE_NAME, values, null, null);
+
     File   attachmentsDirectory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
     File[] attachments          = attachmentsDirectory.listFiles();
 
@@ -384,6 +388,7 @@ public class AttachmentDatabase extends Database {
       //noinspection ResultOfMethodCallIgnored
       dataInfo.file.delete();
     } else {
+      updateAttachmentSummary(mmsId);
       notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
@@ -405,6 +410,7 @@ public class AttachmentDatabase extends Database {
     values.put(URL, attachment.getUrl());
 
     database.update(TABLE_NAME, values, PART_ID_WHERE, id.toStrings());
+    updateAttachmentSummary(id);
   }
 
   public void updateAttachmentAfterUploadFailed(@NonNull AttachmentId id) {
@@ -414,6 +420,7 @@ public class AttachmentDatabase extends Database {
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_FAILED);
 
     database.update(TABLE_NAME, values, PART_ID_WHERE, id.toStrings());
+    updateAttachmentSummary(id);
   }
 
   @NonNull Map<Attachment, AttachmentId> insertAttachmentsForMessage(long mmsId, @NonNull List<Attachment> attachments, @NonNull List<Attachment> quoteAttachment)
@@ -435,6 +442,8 @@ public class AttachmentDatabase extends Database {
       Log.i(TAG, "Inserted quoted attachment at ID: " + attachmentId);
     }
 
+    updateAttachmentSummary(mmsId);
+
     return insertedAttachments;
   }
 
@@ -459,6 +468,8 @@ public class AttachmentDatabase extends Database {
       Log.i(TAG, "Inserted attachment at ID: " + attachmentId);
     }
 
+    updateAttachmentSummary(mmsId);
+
     return insertedAttachmentsIDs;
   }
 
@@ -484,6 +495,7 @@ public class AttachmentDatabase extends Database {
     contentValues.put(DATA_RANDOM, dataInfo.random);
 
     database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+    updateAttachmentSummary(databaseAttachment.getMmsId());
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -516,6 +528,7 @@ public class AttachmentDatabase extends Database {
     contentValues.put(FILE_NAME, ExternalStorageUtil.getCleanFileName(fileName));
 
     database.update(TABLE_NAME, contentValues, PART_ID_WHERE, attachmentId.toStrings());
+    updateAttachmentSummary(attachmentId);
   }
 
   public void markAttachmentUploaded(long messageId, Attachment attachment) {
@@ -524,6 +537,7 @@ public class AttachmentDatabase extends Database {
 
     values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
     database.update(TABLE_NAME, values, PART_ID_WHERE, ((DatabaseAttachment)attachment).getAttachmentId().toStrings());
+    updateAttachmentSummary(messageId);
 
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
     ((DatabaseAttachment) attachment).setUploaded(true);
@@ -543,6 +557,7 @@ public class AttachmentDatabase extends Database {
 
     values.put(TRANSFER_STATE, transferState);
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+    updateAttachmentSummary(messageId);
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
   }
 
@@ -656,70 +671,78 @@ public class AttachmentDatabase extends Database {
   }
 
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
-    try {
-      if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
-        if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
-          return new LinkedList<>();
-        }
+    int summaryIndex = cursor.getColumnIndex(MmsDatabase.ATTACHMENT_SUMMARY);
 
-        List<DatabaseAttachment> result = new LinkedList<>();
-        JSONArray                array  = new JSONArray(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
-
-        for (int i=0;i<array.length();i++) {
-          JsonUtil.SaneJSONObject object = new JsonUtil.SaneJSONObject(array.getJSONObject(i));
-
-          if (!object.isNull(ROW_ID)) {
-            result.add(new DatabaseAttachment(new AttachmentId(object.getLong(ROW_ID), object.getLong(UNIQUE_ID)),
-                                              object.getLong(MMS_ID),
-                                              !TextUtils.isEmpty(object.getString(DATA)),
-                                              !TextUtils.isEmpty(object.getString(THUMBNAIL)),
-                                              object.getString(CONTENT_TYPE),
-                                              object.getInt(TRANSFER_STATE),
-                                              object.getLong(SIZE),
-                                              object.getString(FILE_NAME),
-                                              object.getString(CONTENT_LOCATION),
-                                              object.getString(CONTENT_DISPOSITION),
-                                              object.getString(NAME),
-                                              null,
-                                              object.getString(FAST_PREFLIGHT_ID),
-                                              object.getInt(VOICE_NOTE) == 1,
-                                              object.getInt(WIDTH),
-                                              object.getInt(HEIGHT),
-                                              object.getInt(QUOTE) == 1,
-                                              object.getString(CAPTION),
-                                              "")); // TODO: Not sure if this will break something
-          }
-        }
+    if (summaryIndex != -1) {
+      return AttachmentSummary.deserialize(cursor.getBlob(summaryIndex), cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+    } else {
+      return Collections.singletonList(getPart(cursor));
+    }
+  }
+
+  private static @NonNull DatabaseAttachment getPart(@NonNull Cursor cursor) {
+    int urlIndex = cursor.getColumnIndex(URL);
+    return new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
+                                                   cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
+                                  !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
+                                  !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
+                                  cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
+                                  cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
+                                  cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
+                                  cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
+                                  cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
+                                  cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
+                                  cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
+                                  cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
+                                  cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
+                                  urlIndex > 0 ? cursor.getString(urlIndex) : "");
+  }
 
-        return result;
-      } else {
-        int urlIndex = cursor.getColumnIndex(URL);
-        return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
-                                                                                 cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
-                                                                cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
-                                                                urlIndex > 0 ? cursor.getString(urlIndex) : ""));
+  /**
+   * Rewrites the attachment summary of the given message from its parts. Must be called whenever the parts of a
+   * message are inserted, updated or deleted, as conversation queries read attachments from the summary only.
+   */
+  private void updateAttachmentSummary(long mmsId) {
+    updateAttachmentSummary(databaseHelper.getWritableDatabase(), mmsId);
+  }
+
+  private void updateAttachmentSummary(@NonNull AttachmentId attachmentId) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {MMS_ID}, PART_ID_WHERE, attachmentId.toStrings(), null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        updateAttachmentSummary(database, cursor.getLong(0));
       }
-    } catch (JSONException e) {
-      throw new AssertionError(e);
     }
   }
 
+  private static void updateAttachmentSummary(@NonNull SQLiteDatabase database, long mmsId) {
+    List<DatabaseAttachment> attachments = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, MMS_ID + " = ?", new String[] {String.valueOf(mmsId)}, null, null, ROW_ID)) {
+      while (cursor != null && cursor.moveToNext()) {
+        attachments.add(getPart(cursor));
+      }
+    }
+
+    ContentValues values = new ContentValues(1);
+    values.put(MmsDatabase.ATTACHMENT_SUMMARY, AttachmentSummary.serialize(attachments));
+    database.update(MmsDatabase.TABLE_NAME, values, MmsSmsColumns.ID + " = ?", new String[] {String.valueOf(mmsId)});
+  }
+
+  public static void migrateAttachmentSummaries(@NonNull SQLiteDatabase database) {
+    try (Cursor cursor = database.query(true, TABLE_NAME, new String[] {MMS_ID}, null, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        updateAttachmentSummary(database, cursor.getLong(0));
+      }
+    }
+  }
 
   private AttachmentId insertAttachment(long mmsId, Attachment attachment, boolean quote)
       throws MmsException
@@ -824,7 +847,9 @@ public class AttachmentDatabase extends Database {
 
     try {
       if (cursor != null && cursor.moveToFirst()) {
-        notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID))));
+        long mmsId = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        updateAttachmentSummary(mmsId);
+        notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       }
     } finally {
       if (cursor != null) cursor.close();
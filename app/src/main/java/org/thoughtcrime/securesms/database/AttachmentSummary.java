@@ -0,0 +1,161 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId;
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary encoding of the attachments of a message, stored with the message itself so that conversation
+ * queries don't have to join and aggregate the part table.
+ */
+public final class AttachmentSummary {
+
+  private static final int     VERSION = 1;
+  private static final Charset UTF_8   = Charset.forName("UTF-8");
+
+  private static final int FLAG_HAS_DATA      = 1;
+  private static final int FLAG_HAS_THUMBNAIL = 1 << 1;
+  private static final int FLAG_VOICE_NOTE    = 1 << 2;
+  private static final int FLAG_QUOTE         = 1 << 3;
+
+  private AttachmentSummary() {}
+
+  /**
+   * Returns {@code null} if there are no attachments.
+   */
+  public static @Nullable byte[] serialize(@NonNull List<DatabaseAttachment> attachments) {
+    if (attachments.isEmpty()) return null;
+
+    try {
+      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(64 * attachments.size());
+      DataOutputStream      out                   = new DataOutputStream(byteArrayOutputStream);
+
+      out.writeByte(VERSION);
+      out.writeInt(attachments.size());
+
+      for (DatabaseAttachment attachment : attachments) {
+        int flags = (attachment.hasData()      ? FLAG_HAS_DATA      : 0) |
+                    (attachment.hasThumbnail() ? FLAG_HAS_THUMBNAIL : 0) |
+                    (attachment.isVoiceNote()  ? FLAG_VOICE_NOTE    : 0) |
+                    (attachment.isQuote()      ? FLAG_QUOTE         : 0);
+
+        out.writeLong(attachment.getAttachmentId().getRowId());
+        out.writeLong(attachment.getAttachmentId().getUniqueId());
+        out.writeByte(flags);
+        out.writeInt(attachment.getTransferState());
+        out.writeLong(attachment.getSize());
+        out.writeInt(attachment.getWidth());
+        out.writeInt(attachment.getHeight());
+        writeString(out, attachment.getContentType());
+        writeString(out, attachment.getFileName());
+        writeString(out, attachment.getLocation());
+        writeString(out, attachment.getKey());
+        writeString(out, attachment.getRelay());
+        writeString(out, attachment.getFastPreflightId());
+        writeString(out, attachment.getCaption());
+        writeString(out, attachment.getUrl());
+        writeBytes(out, attachment.getDigest());
+      }
+
+      out.flush();
+      return byteArrayOutputStream.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static @NonNull List<DatabaseAttachment> deserialize(@Nullable byte[] summary, long mmsId) {
+    if (summary == null || summary.length == 0) return new ArrayList<>(0);
+
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(summary));
+
+      int version = in.readUnsignedByte();
+      if (version != VERSION) throw new IOException("Unknown attachment summary version: " + version);
+
+      int                      count  = in.readInt();
+      List<DatabaseAttachment> result = new ArrayList<>(count);
+
+      for (int i = 0; i < count; i++) {
+        long   rowId           = in.readLong();
+        long   uniqueId        = in.readLong();
+        int    flags           = in.readUnsignedByte();
+        int    transferState   = in.readInt();
+        long   size            = in.readLong();
+        int    width           = in.readInt();
+        int    height          = in.readInt();
+        String contentType     = readString(in);
+        String fileName        = readString(in);
+        String location        = readString(in);
+        String key             = readString(in);
+        String relay           = readString(in);
+        String fastPreflightId = readString(in);
+        String caption         = readString(in);
+        String url             = readString(in);
+        byte[] digest          = readBytes(in);
+
+        result.add(new DatabaseAttachment(new AttachmentId(rowId, uniqueId),
+                                          mmsId,
+                                          (flags & FLAG_HAS_DATA) != 0,
+                                          (flags & FLAG_HAS_THUMBNAIL) != 0,
+                                          contentType,
+                                          transferState,
+                                          size,
+                                          fileName,
+                                          location,
+                                          key,
+                                          relay,
+                                          digest,
+                                          fastPreflightId,
+                                          (flags & FLAG_VOICE_NOTE) != 0,
+                                          width,
+                                          height,
+                                          (flags & FLAG_QUOTE) != 0,
+                                          caption,
+                                          url != null ? url : ""));
+      }
+
+      return result;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void writeString(@NonNull DataOutputStream out, @Nullable String value) throws IOException {
+    writeBytes(out, value != null ? value.getBytes(UTF_8) : null);
+  }
+
+  private static @Nullable String readString(@NonNull DataInputStream in) throws IOException {
+    byte[] bytes = readBytes(in);
+    return bytes != null ? new String(bytes, UTF_8) : null;
+  }
+
+  private static void writeBytes(@NonNull DataOutputStream out, @Nullable byte[] value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+
+  private static @Nullable byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -34,6 +34,8 @@ import org.thoughtcrime.securesms.loki.database.LokiMessageDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiThreadDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiUserDatabase;
 import org.thoughtcrime.securesms.loki.database.SessionJobDatabase;
+import org.session.libsignal.service.loki.database.LokiAPIDatabaseCache;
+import org.session.libsignal.service.loki.database.LokiAPIDatabaseProtocol;
 
 public class DatabaseFactory {
 
@@ -58,6 +60,7 @@ public class DatabaseFactory {
 
   // Loki
   private final LokiAPIDatabase lokiAPIDatabase;
+  private final LokiAPIDatabaseCache lokiAPIDatabaseCache;
   private final LokiMessageDatabase lokiMessageDatabase;
   private final LokiThreadDatabase lokiThreadDatabase;
   private final LokiUserDatabase lokiUserDatabase;
@@ -138,6 +141,14 @@ public class DatabaseFactory {
     return getInstance(context).lokiAPIDatabase;
   }
 
+  /**
+   * Returns an in-memory cache in front of the Loki API database. The snode pool, onion request paths
+   * and swarms should always be accessed through this.
+   */
+  public static LokiAPIDatabaseProtocol getLokiAPIDatabaseCache(Context context) {
+    return getInstance(context).lokiAPIDatabaseCache;
+  }
+
   public static LokiMessageDatabase getLokiMessageDatabase(Context context) {
     return getInstance(context).lokiMessageDatabase;
   }
@@ -195,6 +206,7 @@ public class DatabaseFactory {
     this.searchDatabase            = new SearchDatabase(context, databaseHelper);
     this.jobDatabase               = new JobDatabase(context, databaseHelper);
     this.lokiAPIDatabase           = new LokiAPIDatabase(context, databaseHelper);
+    this.lokiAPIDatabaseCache      = new LokiAPIDatabaseCache(lokiAPIDatabase);
     this.lokiMessageDatabase       = new LokiMessageDatabase(context, databaseHelper);
     this.lokiThreadDatabase        = new LokiThreadDatabase(context, databaseHelper);
     this.lokiUserDatabase          = new LokiUserDatabase(context, databaseHelper);
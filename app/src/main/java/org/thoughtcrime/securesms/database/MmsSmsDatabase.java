@@ -23,15 +23,19 @@ import androidx.annotation.Nullable;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
+import net.sqlcipher.database.SQLiteTransactionListener;
 
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.util.LRUCache;
 
 import org.session.libsession.messaging.threads.Address;
 import org.session.libsession.utilities.Util;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -65,7 +69,7 @@ public class MmsSmsDatabase extends Database {
                                               MmsSmsColumns.EXPIRE_STARTED,
                                               MmsSmsColumns.NOTIFIED,
                                               TRANSPORT,
-                                              AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                                              MmsDatabase.ATTACHMENT_SUMMARY,
                                               MmsDatabase.QUOTE_ID,
                                               MmsDatabase.QUOTE_AUTHOR,
                                               MmsDatabase.QUOTE_BODY,
@@ -74,10 +78,123 @@ public class MmsSmsDatabase extends Database {
                                               MmsDatabase.SHARED_CONTACTS,
                                               MmsDatabase.LINK_PREVIEWS};
 
+  /**
+   * Conversations are ordered by date sent. Messages sent at the same time are ordered by transport and id, so that
+   * every message has a unique key to page from.
+   */
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
+  private static final int MESSAGE_IDENTITY_CACHE_SIZE = 1000;
+
+  /**
+   * The (sender, direction) pairs of all messages sent at a given timestamp, used to answer duplicate checks on receive
+   * without touching the database. Entries are dropped whenever a message with that timestamp is inserted, and the whole
+   * cache is dropped whenever messages are deleted or a transaction started with {@link #beginTransaction(SQLiteDatabase)}
+   * is rolled back.
+   */
+  private final LRUCache<Long, List<MessageIdentity>> messageIdentityCache = new LRUCache<>(MESSAGE_IDENTITY_CACHE_SIZE);
+  private long messageIdentityCacheGeneration = 0;
+
+  private final SQLiteTransactionListener messageIdentityCacheInvalidator = new SQLiteTransactionListener() {
+    @Override
+    public void onBegin() { }
+
+    @Override
+    public void onCommit() { }
+
+    @Override
+    public void onRollback() {
+      invalidateMessageIdentityCache();
+    }
+  };
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
+  /**
+   * Returns whether a message sent at {@code timestamp} by {@code serializedAuthor} exists. Matches any author if
+   * {@code serializedAuthor} is empty, and any outgoing message if it's the user's own number.
+   *
+   * Unlike {@link #getMessageFor(long, String)} this only reads the sms and mms date sent indexes, so its cost doesn't
+   * depend on the size of the conversation.
+   */
+  public boolean messageExists(long timestamp, @NonNull String serializedAuthor) {
+    List<MessageIdentity> identities = getMessageIdentities(timestamp);
+    if (identities.isEmpty()) return false;
+    if (serializedAuthor.isEmpty()) return true;
+
+    boolean isOwnNumber = Util.isOwnNumber(context, serializedAuthor);
+
+    for (MessageIdentity identity : identities) {
+      if (isOwnNumber ? identity.isOutgoing : serializedAuthor.equals(identity.address)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private @NonNull List<MessageIdentity> getMessageIdentities(long timestamp) {
+    long generation;
+
+    synchronized (messageIdentityCache) {
+      List<MessageIdentity> cached = messageIdentityCache.get(timestamp);
+      if (cached != null) return cached;
+      generation = messageIdentityCacheGeneration;
+    }
+
+    List<MessageIdentity> identities = new ArrayList<>(1);
+    String                query      = "SELECT " + SmsDatabase.ADDRESS + ", " + SmsDatabase.TYPE + " FROM " + SmsDatabase.TABLE_NAME +
+                                       " WHERE " + SmsDatabase.DATE_SENT + " = ?" +
+                                       " UNION ALL " +
+                                       "SELECT " + MmsDatabase.ADDRESS + ", " + MmsDatabase.MESSAGE_BOX + " FROM " + MmsDatabase.TABLE_NAME +
+                                       " WHERE " + MmsDatabase.DATE_SENT + " = ?";
+    String[]              args       = new String[] { String.valueOf(timestamp), String.valueOf(timestamp) };
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      while (cursor != null && cursor.moveToNext()) {
+        identities.add(new MessageIdentity(cursor.getString(0), MmsSmsColumns.Types.isOutgoingMessageType(cursor.getLong(1))));
+      }
+    }
+
+    synchronized (messageIdentityCache) {
+      // Don't cache the result if a message was inserted or deleted while querying
+      if (generation == messageIdentityCacheGeneration) {
+        messageIdentityCache.put(timestamp, identities);
+      }
+    }
+
+    return identities;
+  }
+
+  /*package*/ void onMessageInserted(long timestamp) {
+    synchronized (messageIdentityCache) {
+      messageIdentityCacheGeneration++;
+      messageIdentityCache.remove(timestamp);
+    }
+  }
+
+  /*package*/ void onMessagesDeleted() {
+    invalidateMessageIdentityCache();
+  }
+
+  /**
+   * Begins a transaction on {@code db} for writing messages. Reads made inside it can cache rows that aren't committed
+   * yet, so the message identity cache is dropped if it's rolled back. Only the outermost transaction's listener is
+   * notified, so transactions that other message writes may be nested in should be started this way too.
+   */
+  /*package*/ void beginTransaction(@NonNull SQLiteDatabase db) {
+    db.beginTransactionWithListener(messageIdentityCacheInvalidator);
+  }
+
+  private void invalidateMessageIdentityCache() {
+    synchronized (messageIdentityCache) {
+      messageIdentityCacheGeneration++;
+      messageIdentityCache.clear();
+    }
+  }
+
   public @Nullable MessageRecord getMessageForTimestamp(long timestamp) {
     MmsSmsDatabase db = DatabaseFactory.getMmsSmsDatabase(context);
     try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp, null, null)) {
@@ -121,26 +238,132 @@ public class MmsSmsDatabase extends Database {
     return getMessageFor(timestamp, author.serialize());
   }
 
-  public Cursor getConversation(long threadId, long offset, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
+  /**
+   * Returns up to {@code limit} messages (or all of them if {@code limit} is 0) that are older than {@code key} in
+   * conversation order, most recent first. Passing {@code null} starts at the most recent message. Each table only reads the
+   * rows of the page from its (thread id, date sent) index, so the cost doesn't depend on how far back the page is.
+   */
+  public Cursor getConversationBefore(long threadId, @Nullable MessageKey key, long limit) {
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    if (key != null || limit > 0) {
+      smsSelection += " AND " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " IN (" + getPageKeysQuery(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_SENT, SMS_TRANSPORT, threadId, key, limit) + ")";
+      mmsSelection += " AND " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " IN (" + getPageKeysQuery(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_SENT, MMS_TRANSPORT, threadId, key, limit) + ")";
+    }
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, CONVERSATION_ORDER, limit > 0 ? String.valueOf(limit) : null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
+  /**
+   * Returns the page of up to {@code limit} messages that has the message with {@code key} in it, with up to
+   * {@code newerCount} newer messages above it, most recent first. The page is read like
+   * {@link #getConversationBefore(long, MessageKey, long)}, starting from the key of the first message above it.
+   */
+  public Cursor getConversationAround(long threadId, @NonNull MessageKey key, int newerCount, long limit) {
+    return getConversationBefore(threadId, getNewerConversationKey(threadId, key, newerCount + 1), limit);
+  }
+
+  /**
+   * Returns the key of the message {@code count} messages newer than the one with {@code key}, or {@code null} if there
+   * aren't that many. Each table reads at most {@code count} keys from its (thread id, date sent) index.
+   */
+  private @Nullable MessageKey getNewerConversationKey(long threadId, @NonNull MessageKey key, int count) {
+    String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " ASC, " + TRANSPORT + " ASC, " + MmsSmsColumns.ID + " ASC";
+    String query = "SELECT * FROM (SELECT " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                   " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeySelection(SmsDatabase.DATE_SENT, SMS_TRANSPORT, key, true) +
+                   " ORDER BY " + SmsDatabase.DATE_SENT + " ASC, " + MmsSmsColumns.ID + " ASC LIMIT " + count + ")" +
+                   " UNION ALL " +
+                   "SELECT * FROM (SELECT " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + ", '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                   " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeySelection(MmsDatabase.DATE_SENT, MMS_TRANSPORT, key, true) +
+                   " ORDER BY " + MmsDatabase.DATE_SENT + " ASC, " + MmsSmsColumns.ID + " ASC LIMIT " + count + ")" +
+                   " ORDER BY " + order + " LIMIT " + count;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
+      if (cursor != null && cursor.getCount() == count && cursor.moveToLast()) {
+        return new MessageKey(cursor.getLong(0), cursor.getString(1), cursor.getLong(2));
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the position of the message with {@code key} in the conversation, i.e. the number of messages that are
+   * newer than it. Counts are answered from the thread's date sent indexes.
+   */
+  public int getConversationPosition(long threadId, @NonNull MessageKey key) {
+    String query = "SELECT " +
+                   "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId +
+                   " AND " + getKeySelection(SmsDatabase.DATE_SENT, SMS_TRANSPORT, key, true) + ") + " +
+                   "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId +
+                   " AND " + getKeySelection(MmsDatabase.DATE_SENT, MMS_TRANSPORT, key, true) + ")";
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
+      return cursor != null && cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    }
+  }
+
+  private static String getPageKeysQuery(String table, String dateSentColumn, String transport, long threadId, @Nullable MessageKey key, long limit) {
+    String query = "SELECT " + MmsSmsColumns.ID + " FROM " + table + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    if (key != null) {
+      query += " AND " + getKeySelection(dateSentColumn, transport, key, false);
+    }
+
+    query += " ORDER BY " + dateSentColumn + " DESC, " + MmsSmsColumns.ID + " DESC";
+
+    if (limit > 0) {
+      query += " LIMIT " + limit;
+    }
+
+    return query;
+  }
+
+  /**
+   * Selects the rows of a single table that are newer (if {@code isNewer}) or older than {@code key} in conversation order.
+   * Messages with the same date sent are ordered by transport and then by id.
+   */
+  private static String getKeySelection(String dateSentColumn, String transport, @NonNull MessageKey key, boolean isNewer) {
+    String operator       = isNewer ? " > " : " < ";
+    int    transportOrder = isNewer ? transport.compareTo(key.transport) : key.transport.compareTo(transport);
+    String tieBreak;
+
+    if      (transportOrder > 0) tieBreak = "1";
+    else if (transportOrder < 0) tieBreak = "0";
+    else                         tieBreak = MmsSmsColumns.ID + operator + key.id;
+
+    return "(" + dateSentColumn + operator + key.dateSent + " OR (" + dateSentColumn + " = " + key.dateSent + " AND " + tieBreak + "))";
+  }
+
   public Cursor getConversation(long threadId) {
-    return getConversation(threadId, 0, 0);
+    return getConversationBefore(threadId, null, 0);
   }
 
+  /**
+   * Returns the most recently received message of the thread. Each table only reads its latest message from its
+   * (thread id, date received) index.
+   */
   public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String smsSelection = SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " IN (SELECT " + MmsSmsColumns.ID + " FROM " + SmsDatabase.TABLE_NAME +
+                          " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC LIMIT 1)";
+    String mmsSelection = MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " IN (SELECT " + MmsSmsColumns.ID + " FROM " + MmsDatabase.TABLE_NAME +
+                          " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC LIMIT 1)";
+
+    return queryTables(PROJECTION, smsSelection, mmsSelection, order, "1");
+  }
+
+  public @Nullable MessageRecord getMessage(long messageId, boolean isMms) {
+    String smsSelection = isMms ? "0" : SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " = " + messageId;
+    String mmsSelection = isMms ? MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " = " + messageId : "0";
 
-    return  queryTables(PROJECTION, selection, order, "1");
+    try (Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, null, null)) {
+      return readerFor(cursor).getNext();
+    }
   }
 
   public Cursor getUnread() {
@@ -178,76 +401,48 @@ public class MmsSmsDatabase extends Database {
     DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address.serialize());
-
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
+  public @Nullable MessageKey getQuotedMessageKey(long threadId, long quoteId, @NonNull Address address) {
+    return findMessageKey(threadId, SmsDatabase.DATE_SENT, MmsDatabase.DATE_SENT, quoteId, address);
+  }
 
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
-    }
-    return -1;
+  public @Nullable MessageKey getMessageKeyInConversation(long threadId, long receivedTimestamp, @NonNull Address address) {
+    return findMessageKey(threadId, SmsDatabase.DATE_RECEIVED, MmsDatabase.DATE_RECEIVED, receivedTimestamp, address);
   }
 
-  public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  private @Nullable MessageKey findMessageKey(long threadId, String smsTimestampColumn, String mmsTimestampColumn, long timestamp, @NonNull Address address) {
+    String query = "SELECT " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID + ", " + SmsDatabase.ADDRESS +
+                   " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + smsTimestampColumn + " = " + timestamp +
+                   " UNION ALL " +
+                   "SELECT " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + ", '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID + ", " + MmsDatabase.ADDRESS +
+                   " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + mmsTimestampColumn + " = " + timestamp +
+                   " ORDER BY " + CONVERSATION_ORDER;
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.ADDRESS }, selection, order, null)) {
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
       String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address.serialize());
+      boolean isOwnNumber       = Util.isOwnNumber(context, serializedAddress);
 
       while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches = cursor.getLong(0) == receivedTimestamp;
-        boolean addressMatches   = serializedAddress.equals(cursor.getString(1));
-
-        if (timestampMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
+        if (isOwnNumber || serializedAddress.equals(cursor.getString(3))) {
+          return new MessageKey(cursor.getLong(0), cursor.getString(1), cursor.getLong(2));
         }
       }
     }
-    return -1;
+
+    return null;
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, limit);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String limit) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                                  "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
-                                  "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              MmsDatabase.ATTACHMENT_SUMMARY,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -273,7 +468,7 @@ public class MmsSmsDatabase extends Database {
                               "'SMS::' || " + MmsSmsColumns.ID
                                   + " || '::' || " + SmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              "NULL AS " + MmsDatabase.ATTACHMENT_SUMMARY,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -296,13 +491,8 @@ public class MmsSmsDatabase extends Database {
     SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
     SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -332,29 +522,7 @@ public class MmsSmsDatabase extends Database {
     mmsColumnsPresent.add(MmsDatabase.UNIDENTIFIED);
     mmsColumnsPresent.add(MmsDatabase.NETWORK_FAILURE);
 
-    mmsColumnsPresent.add(AttachmentDatabase.ROW_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.UNIQUE_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.MMS_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.SIZE);
-    mmsColumnsPresent.add(AttachmentDatabase.FILE_NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.DATA);
-    mmsColumnsPresent.add(AttachmentDatabase.THUMBNAIL);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_TYPE);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(AttachmentDatabase.DIGEST);
-    mmsColumnsPresent.add(AttachmentDatabase.FAST_PREFLIGHT_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.VOICE_NOTE);
-    mmsColumnsPresent.add(AttachmentDatabase.WIDTH);
-    mmsColumnsPresent.add(AttachmentDatabase.HEIGHT);
-    mmsColumnsPresent.add(AttachmentDatabase.QUOTE);
-    mmsColumnsPresent.add(AttachmentDatabase.STICKER_PACK_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.STICKER_PACK_KEY);
-    mmsColumnsPresent.add(AttachmentDatabase.STICKER_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.CAPTION);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_DISPOSITION);
-    mmsColumnsPresent.add(AttachmentDatabase.NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.TRANSFER_STATE);
-    mmsColumnsPresent.add(AttachmentDatabase.ATTACHMENT_JSON_ALIAS);
+    mmsColumnsPresent.add(MmsDatabase.ATTACHMENT_SUMMARY);
     mmsColumnsPresent.add(MmsDatabase.QUOTE_ID);
     mmsColumnsPresent.add(MmsDatabase.QUOTE_AUTHOR);
     mmsColumnsPresent.add(MmsDatabase.QUOTE_BODY);
@@ -385,9 +553,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.UNIDENTIFIED);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -406,6 +574,49 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  /**
+   * The position of a message in conversation order, which can be used to page through a conversation without offsets.
+   */
+  public static class MessageKey {
+    private final long   dateSent;
+    private final String transport;
+    private final long   id;
+
+    public MessageKey(long dateSent, @NonNull String transport, long id) {
+      this.dateSent  = dateSent;
+      this.transport = transport;
+      this.id        = id;
+    }
+
+    public static @NonNull MessageKey fromCursor(@NonNull Cursor cursor) {
+      return new MessageKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_SENT)),
+                            cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT)),
+                            cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+    }
+
+    public long getDateSent() {
+      return dateSent;
+    }
+
+    public @NonNull String getTransport() {
+      return transport;
+    }
+
+    public long getId() {
+      return id;
+    }
+  }
+
+  private static class MessageIdentity {
+    private final @Nullable String  address;
+    private final           boolean isOutgoing;
+
+    private MessageIdentity(@Nullable String address, boolean isOutgoing) {
+      this.address    = address;
+      this.isOutgoing = isOutgoing;
+    }
+  }
+
   public class Reader {
 
     private final Cursor                 cursor;
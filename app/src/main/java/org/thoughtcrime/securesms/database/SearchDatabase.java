@@ -2,16 +2,12 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
-
-import com.annimon.stream.Stream;
+import androidx.annotation.Nullable;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
-import org.session.libsession.utilities.Util;
-
-import java.util.List;
 
 /**
  * Contains all databases necessary for full-text search (FTS).
@@ -27,6 +23,7 @@ public class SearchDatabase extends Database {
   public static final String SNIPPET              = "snippet";
   public static final String CONVERSATION_ADDRESS = "conversation_address";
   public static final String MESSAGE_ADDRESS      = "message_address";
+  public static final String MESSAGE_ID           = "message_id";
 
   public static final String[] CREATE_TABLE = {
       "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
@@ -57,86 +54,103 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-      "UNION ALL " +
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-        MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
-
-  private static final String MESSAGES_FOR_THREAD_QUERY =
-      "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-          "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-          SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          SMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-        "FROM " + SmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "UNION ALL " +
-        "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
-          MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
-          "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-          MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
-        "FROM " + MmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-        "LIMIT 500";
+  /**
+   * Matched terms in snippets are wrapped in these, so that they can be highlighted without searching the snippet again.
+   */
+  public static final String HIGHLIGHT_START = "\u0002";
+  public static final String HIGHLIGHT_END   = "\u0003";
+
+  public static final String RANK = "search_rank";
 
   public SearchDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
-    SQLiteDatabase db          = databaseHelper.getReadableDatabase();
-    String         prefixQuery = adjustQuery(query);
-
-    Cursor cursor = db.rawQuery(MESSAGES_QUERY, new String[] { prefixQuery, prefixQuery });
+  /**
+   * Returns a page of messages matching {@code matchExpression}, most relevant first (by bm25, then by date).
+   *
+   * @param candidates If not null, only these messages are considered. They must include every message that matches.
+   */
+  public Cursor queryMessages(@NonNull String matchExpression, @Nullable MessageIds candidates, int limit, int offset) {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    String         query = getMessagesQuery(SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME, SmsDatabase.ID, SmsDatabase.DATE_RECEIVED, MmsSmsDatabase.SMS_TRANSPORT, candidates != null ? candidates.smsIds : null, false) +
+                           " UNION ALL " +
+                           getMessagesQuery(MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME, MmsDatabase.ID, MmsDatabase.DATE_RECEIVED, MmsSmsDatabase.MMS_TRANSPORT, candidates != null ? candidates.mmsIds : null, false) +
+                           " ORDER BY " + RANK + ", " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC" +
+                           " LIMIT " + limit + " OFFSET " + offset;
+
+    Cursor cursor = db.rawQuery(query, new String[] { matchExpression, matchExpression });
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
 
-  public Cursor queryMessages(@NonNull String query, long threadId) {
-    SQLiteDatabase db          = databaseHelper.getReadableDatabase();
-    String         prefixQuery = adjustQuery(query);
-
-    Cursor cursor = db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { prefixQuery, String.valueOf(threadId), prefixQuery, String.valueOf(threadId) });
+  /**
+   * Returns a page of messages in {@code threadId} matching {@code matchExpression}, newest first, so that they can be
+   * stepped through in the order they appear in the conversation.
+   *
+   * @param candidates If not null, only these messages are considered. They must include every message that matches.
+   */
+  public Cursor queryMessages(@NonNull String matchExpression, long threadId, @Nullable MessageIds candidates, int limit, int offset) {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    String         query = getMessagesQuery(SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME, SmsDatabase.ID, SmsDatabase.DATE_RECEIVED, MmsSmsDatabase.SMS_TRANSPORT, candidates != null ? candidates.smsIds : null, true) +
+                           " UNION ALL " +
+                           getMessagesQuery(MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME, MmsDatabase.ID, MmsDatabase.DATE_RECEIVED, MmsSmsDatabase.MMS_TRANSPORT, candidates != null ? candidates.mmsIds : null, true) +
+                           " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC" +
+                           " LIMIT " + limit + " OFFSET " + offset;
+    String         thread = String.valueOf(threadId);
+
+    Cursor cursor = db.rawQuery(query, new String[] { matchExpression, thread, matchExpression, thread });
     setNotifyConverationListListeners(cursor);
     return cursor;
+  }
 
+  private static String getMessagesQuery(@NonNull String ftsTable, @NonNull String messageTable, @NonNull String messageId, @NonNull String dateReceived, @NonNull String transport, @Nullable long[] candidates, boolean isThreadQuery) {
+    return "SELECT " +
+             ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
+             MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
+             "snippet(" + ftsTable + ", -1, char(2), char(3), '...', 7) AS " + SNIPPET + ", " +
+             messageTable + "." + dateReceived + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+             ftsTable + "." + THREAD_ID + ", " +
+             messageTable + "." + messageId + " AS " + MESSAGE_ID + ", " +
+             "'" + transport + "' AS " + MmsSmsDatabase.TRANSPORT + ", " +
+             "bm25(" + ftsTable + ") AS " + RANK + " " +
+           "FROM " + messageTable + " " +
+           "INNER JOIN " + ftsTable + " ON " + ftsTable + "." + ID + " = " + messageTable + "." + messageId + " " +
+           "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + ftsTable + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
+           "WHERE " + ftsTable + " MATCH ?" +
+           (isThreadQuery ? " AND " + messageTable + "." + MmsSmsColumns.THREAD_ID + " = ?" : "") +
+           getRestriction(ftsTable, candidates);
   }
 
-  private String adjustQuery(@NonNull String query) {
-    List<String> tokens      = Stream.of(query.split(" ")).filter(s -> s.trim().length() > 0).toList();
-    String       prefixQuery = Util.join(tokens, "* ");
+  private static String getRestriction(@NonNull String ftsTable, @Nullable long[] candidates) {
+    if (candidates == null) return "";
+
+    StringBuilder restriction = new StringBuilder(" AND " + ftsTable + "." + ID + " IN (");
+
+    for (int i = 0; i < candidates.length; i++) {
+      if (i > 0) restriction.append(',');
+      restriction.append(candidates[i]);
+    }
+
+    return restriction.append(')').toString();
+  }
+
+  /**
+   * The IDs of a set of messages in the sms and mms tables.
+   */
+  public static class MessageIds {
+
+    public final long[] smsIds;
+    public final long[] mmsIds;
 
-    prefixQuery += "*";
+    public MessageIds(@NonNull long[] smsIds, @NonNull long[] mmsIds) {
+      this.smsIds = smsIds;
+      this.mmsIds = mmsIds;
+    }
 
-    return prefixQuery;
+    public int size() {
+      return smsIds.length + mmsIds.length;
+    }
   }
 }
 
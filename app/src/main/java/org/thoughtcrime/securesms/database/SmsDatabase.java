@@ -91,8 +91,9 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
-    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_date_sent_address_type_index ON " + TABLE_NAME + " (" + DATE_SENT + ", " + ADDRESS + ", " + TYPE + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_sent_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_SENT + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -126,7 +127,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId, id, false, false);
     notifyConversationListeners(threadId);
   }
 
@@ -204,7 +205,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId, id, false, false);
     notifyConversationListeners(threadId);
   }
 
@@ -260,14 +261,15 @@ public class SmsDatabase extends MessagingDatabase {
           String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
 
           if (ourAddress.equals(theirAddress)) {
+            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
             long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
             database.execSQL("UPDATE " + TABLE_NAME +
                              " SET " + columnName + " = " + columnName + " + 1 WHERE " +
                              ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                             new String[] {String.valueOf(id)});
 
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+            DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId, id, false, false);
             notifyConversationListeners(threadId);
             foundMessage = true;
           }
@@ -338,7 +340,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).onMessageUpdated(threadId, messageId, false, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -401,14 +403,19 @@ public class SmsDatabase extends MessagingDatabase {
       Log.w(TAG, "Duplicate message (" + message.getSentTimestampMillis() + "), ignoring...");
       return Optional.absent();
     } else {
-      SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-      long           messageId = db.insert(TABLE_NAME, null, values);
+      SQLiteDatabase db = databaseHelper.getWritableDatabase();
+      long           messageId;
 
-      if (unread) {
-        DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
+      DatabaseFactory.getMmsSmsDatabase(context).beginTransaction(db);
+      try {
+        messageId = db.insert(TABLE_NAME, null, values);
+        DatabaseFactory.getThreadDatabase(context).onMessageInserted(threadId, messageId, false, unread, true);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
       }
 
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+      DatabaseFactory.getMmsSmsDatabase(context).onMessageInserted(message.getSentTimestampMillis());
 
       if (message.getSubscriptionId() != -1) {
         DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient, message.getSubscriptionId());
@@ -467,13 +474,23 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(DELIVERY_RECEIPT_COUNT, Stream.of(earlyDeliveryReceipts.values()).mapToLong(Long::longValue).sum());
     contentValues.put(READ_RECEIPT_COUNT, Stream.of(earlyReadReceipts.values()).mapToLong(Long::longValue).sum());
 
-    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
-    long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long           messageId;
+
+    DatabaseFactory.getMmsSmsDatabase(context).beginTransaction(db);
+    try {
+      messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
+      DatabaseFactory.getThreadDatabase(context).onMessageInserted(threadId, messageId, false, false, true);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    DatabaseFactory.getMmsSmsDatabase(context).onMessageInserted(date);
     if (insertListener != null) {
       insertListener.onComplete();
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
 
     DatabaseFactory.getThreadDatabase(context).setHasSent(threadId, true);
@@ -514,8 +531,18 @@ public class SmsDatabase extends MessagingDatabase {
     Log.i("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted;
+
+    db.beginTransaction();
+    try {
+      db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      threadDeleted = DatabaseFactory.getThreadDatabase(context).onMessageDeleted(threadId, messageId, false);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    DatabaseFactory.getMmsSmsDatabase(context).onMessagesDeleted();
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -536,6 +563,7 @@ public class SmsDatabase extends MessagingDatabase {
   /*package */void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
+    DatabaseFactory.getMmsSmsDatabase(context).onMessagesDeleted();
   }
 
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
@@ -549,6 +577,7 @@ public class SmsDatabase extends MessagingDatabase {
     where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
     db.delete(TABLE_NAME, where, new String[] {threadId + ""});
+    DatabaseFactory.getMmsSmsDatabase(context).onMessagesDeleted();
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -562,16 +591,18 @@ public class SmsDatabase extends MessagingDatabase {
     where = where.substring(0, where.length() - 4);
 
     db.delete(TABLE_NAME, where, null);
+    DatabaseFactory.getMmsSmsDatabase(context).onMessagesDeleted();
   }
 
   /*package */ void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    DatabaseFactory.getMmsSmsDatabase(context).onMessagesDeleted();
   }
 
   /*package*/ SQLiteDatabase beginTransaction() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.beginTransaction();
+    DatabaseFactory.getMmsSmsDatabase(context).beginTransaction(database);
     return database;
   }
 
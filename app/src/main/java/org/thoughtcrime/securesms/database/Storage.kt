@@ -104,60 +104,58 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         } else if (groupPublicKey != null) {
             group = Optional.of(SignalServiceGroup(groupPublicKey.toByteArray(), SignalServiceGroup.GroupType.SIGNAL))
         }
+        val isUserSender = message.sender == getUserPublicKey()
+        // Work out where messages sent by the user should go before opening any transactions
+        val targetAddress = if (message.syncTarget != null) {
+            Address.fromSerialized(message.syncTarget!!)
+        } else if (group.isPresent) {
+            Address.fromSerialized(GroupUtil.getEncodedId(group.get()))
+        } else {
+            null
+        }
+        if (isUserSender && targetAddress == null) {
+            Log.d("Loki", "Cannot handle message from self.")
+            return null
+        }
         if (message.isMediaMessage()) {
             val quote: Optional<QuoteModel> = if (quotes != null) Optional.of(quotes) else Optional.absent()
             val linkPreviews: Optional<List<LinkPreview>> = if (linkPreview.isEmpty()) Optional.absent() else Optional.of(linkPreview.mapNotNull { it!! })
             val mmsDatabase = DatabaseFactory.getMmsDatabase(context)
             mmsDatabase.beginTransaction()
-            val insertResult = if (message.sender == getUserPublicKey()) {
-                val targetAddress = if (message.syncTarget != null) {
-                    Address.fromSerialized(message.syncTarget!!)
+            try {
+                val insertResult = if (isUserSender) {
+                    val attachments = message.attachmentIDs.mapNotNull {
+                        DatabaseFactory.getAttachmentProvider(context).getSignalAttachmentPointer(it)
+                    }.mapNotNull {
+                        PointerAttachment.forPointer(Optional.of(it)).orNull()
+                    }
+                    val mediaMessage = OutgoingMediaMessage.from(message, Recipient.from(context, targetAddress!!, false), attachments, quote.orNull(), linkPreviews.orNull())
+                    mmsDatabase.insertSecureDecryptedMessageOutbox(mediaMessage, message.threadID ?: -1, message.sentTimestamp!!)
                 } else {
+                    // It seems like we have replaced SignalServiceAttachment with SessionServiceAttachment
+                    val attachments: Optional<List<SignalServiceAttachment>> = Optional.of(message.attachmentIDs.mapNotNull {
+                        DatabaseFactory.getAttachmentProvider(context).getSignalAttachmentPointer(it)
+                    })
+                    val mediaMessage = IncomingMediaMessage.from(message, senderAddress, senderRecipient.expireMessages * 1000L, group, attachments, quote, linkPreviews)
                     if (group.isPresent) {
-                        Address.fromSerialized(GroupUtil.getEncodedId(group.get()))
+                        mmsDatabase.insertSecureDecryptedMessageInbox(mediaMessage, message.threadID ?: -1, message.sentTimestamp!!)
                     } else {
-                        Log.d("Loki", "Cannot handle message from self.")
-                        return null
+                        mmsDatabase.insertSecureDecryptedMessageInbox(mediaMessage, message.threadID ?: -1)
                     }
                 }
-                val attachments = message.attachmentIDs.mapNotNull {
-                    DatabaseFactory.getAttachmentProvider(context).getSignalAttachmentPointer(it)
-                }.mapNotNull {
-                    PointerAttachment.forPointer(Optional.of(it)).orNull()
-                }
-                val mediaMessage = OutgoingMediaMessage.from(message, Recipient.from(context, targetAddress, false), attachments, quote.orNull(), linkPreviews.orNull())
-                mmsDatabase.insertSecureDecryptedMessageOutbox(mediaMessage, message.threadID ?: -1, message.sentTimestamp!!)
-            } else {
-                // It seems like we have replaced SignalServiceAttachment with SessionServiceAttachment
-                val attachments: Optional<List<SignalServiceAttachment>> = Optional.of(message.attachmentIDs.mapNotNull {
-                    DatabaseFactory.getAttachmentProvider(context).getSignalAttachmentPointer(it)
-                })
-                val mediaMessage = IncomingMediaMessage.from(message, senderAddress, senderRecipient.expireMessages * 1000L, group, attachments, quote, linkPreviews)
-                if (group.isPresent) {
-                    mmsDatabase.insertSecureDecryptedMessageInbox(mediaMessage, message.threadID ?: -1, message.sentTimestamp!!)
-                } else {
-                    mmsDatabase.insertSecureDecryptedMessageInbox(mediaMessage, message.threadID ?: -1)
+                if (insertResult.isPresent) {
+                    messageID = insertResult.get().messageId
                 }
-            }
-            if (insertResult.isPresent) {
+                // Nothing is written if the insert didn't go through. Ending this transaction without marking it as
+                // successful would also roll back any transaction it's nested in (e.g. a batch of received messages).
                 mmsDatabase.setTransactionSuccessful()
-                messageID = insertResult.get().messageId
+            } finally {
+                mmsDatabase.endTransaction()
             }
-            mmsDatabase.endTransaction()
         } else {
             val smsDatabase = DatabaseFactory.getSmsDatabase(context)
-            val insertResult = if (message.sender == getUserPublicKey()) {
-                val targetAddress = if (message.syncTarget != null) {
-                    Address.fromSerialized(message.syncTarget!!)
-                } else {
-                    if (group.isPresent) {
-                        Address.fromSerialized(GroupUtil.getEncodedId(group.get()))
-                    } else {
-                        Log.d("Loki", "Cannot handle message from self.")
-                        return null
-                    }
-                }
-                val textMessage = OutgoingTextMessage.from(message, Recipient.from(context, targetAddress, false))
+            val insertResult = if (isUserSender) {
+                val textMessage = OutgoingTextMessage.from(message, Recipient.from(context, targetAddress!!, false))
                 smsDatabase.insertMessageOutbox(message.threadID ?: -1, textMessage, message.sentTimestamp!!)
             } else {
                 val textMessage = IncomingTextMessage.from(message, senderAddress, group, senderRecipient.expireMessages * 1000L)
@@ -175,6 +173,17 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
     }
 
     // JOBS
+    override fun runInTransaction(block: () -> Unit) {
+        val database = databaseHelper.writableDatabase
+        DatabaseFactory.getMmsSmsDatabase(context).beginTransaction(database)
+        try {
+            block()
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+    }
+
     override fun persistJob(job: Job) {
         DatabaseFactory.getSessionJobDatabase(context).persistJob(job)
     }
@@ -195,6 +204,10 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
         return DatabaseFactory.getSessionJobDatabase(context).getAttachmentUploadJob(attachmentID)
     }
 
+    override fun hasAttachmentUploadJob(attachmentID: Long): Boolean {
+        return DatabaseFactory.getSessionJobDatabase(context).hasAttachmentUploadJob(attachmentID)
+    }
+
     override fun getMessageSendJob(messageSendJobID: String): MessageSendJob? {
         return DatabaseFactory.getSessionJobDatabase(context).getMessageSendJob(messageSendJobID)
     }
@@ -281,12 +294,7 @@ class Storage(context: Context, helper: SQLCipherOpenHelper) : Database(context,
     }
 
     override fun isMessageDuplicated(timestamp: Long, sender: String): Boolean {
-        val database = DatabaseFactory.getMmsSmsDatabase(context)
-        return if (sender.isEmpty()) {
-            database.getMessageForTimestamp(timestamp) != null
-        } else {
-            database.getMessageFor(timestamp, sender) != null
-        }
+        return DatabaseFactory.getMmsSmsDatabase(context).messageExists(timestamp, sender)
     }
 
     override fun setUserCount(group: Long, server: String, newValue: Int) {
@@ -88,6 +88,9 @@ public class ThreadDatabase extends Database {
   public  static final String EXPIRES_IN             = "expires_in";
   public  static final String LAST_SEEN              = "last_seen";
   private static final String HAS_SENT               = "has_sent";
+  private static final String SNIPPET_MESSAGE_ID     = "snippet_message_id";
+  private static final String SNIPPET_MESSAGE_MMS    = "snippet_message_mms";
+  private static final String SNIPPET_DATE_RECEIVED  = "snippet_date_received";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("                    +
     ID + " INTEGER PRIMARY KEY, " + DATE + " INTEGER DEFAULT 0, "                                  +
@@ -98,7 +101,15 @@ public class ThreadDatabase extends Database {
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
     DELIVERY_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + EXPIRES_IN + " INTEGER DEFAULT 0, "          +
     LAST_SEEN + " INTEGER DEFAULT 0, " + HAS_SENT + " INTEGER DEFAULT 0, "                         +
-    READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0);";
+    READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0, "            +
+    SNIPPET_MESSAGE_ID + " INTEGER DEFAULT -1, " + SNIPPET_MESSAGE_MMS + " INTEGER DEFAULT 0, "    +
+    SNIPPET_DATE_RECEIVED + " INTEGER DEFAULT 0);";
+
+  public static final String[] ADD_SNIPPET_MESSAGE_COLUMNS = {
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_MESSAGE_ID + " INTEGER DEFAULT -1;",
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_MESSAGE_MMS + " INTEGER DEFAULT 0;",
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_DATE_RECEIVED + " INTEGER DEFAULT 0;"
+  };
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + ADDRESS + ");",
@@ -139,30 +150,40 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
-  {
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(DATE, date - date % 1000);
+  private void updateThread(long threadId, long count, @NonNull MessageRecord record, boolean unarchive) {
+    ContentValues contentValues = getSummaryValues(record, unarchive);
     contentValues.put(MESSAGE_COUNT, count);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  private @NonNull ContentValues getSummaryValues(@NonNull MessageRecord record, boolean unarchive) {
+    String body       = getFormattedBodyFor(record);
+    Uri    attachment = getAttachmentUriFor(record);
+    long   date       = record.getTimestamp();
+
+    ContentValues contentValues = new ContentValues(11);
+    contentValues.put(DATE, date - date % 1000);
     if (!body.isEmpty()) {
       contentValues.put(SNIPPET, body);
     }
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(STATUS, status);
-    contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
-    contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
-    contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, record.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, record.getReadReceiptCount());
+    contentValues.put(EXPIRES_IN, record.getExpiresIn());
+    contentValues.put(SNIPPET_MESSAGE_ID, record.getId());
+    contentValues.put(SNIPPET_MESSAGE_MMS, record.isMms() ? 1 : 0);
+    contentValues.put(SNIPPET_DATE_RECEIVED, record.getDateReceived());
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
     }
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    return contentValues;
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -506,6 +527,11 @@ public class ThreadDatabase extends Database {
     notifyConversationListeners(threadId);
   }
 
+  /**
+   * Recomputes the thread's summary from its messages. The summary is normally kept up to date incrementally (see
+   * {@link #onMessageInserted(long, long, boolean, boolean, boolean)} and friends), so this is only needed after bulk
+   * changes, and to repair summaries that aren't tracked incrementally yet.
+   */
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
@@ -523,9 +549,7 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+        updateThread(threadId, count, record, unarchive);
         notifyConversationListListeners();
         return false;
       } else {
@@ -539,6 +563,131 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Applies a newly inserted message to the thread's summary, without re-scanning the thread. Should be called in the
+   * transaction that inserted the message.
+   */
+  public void onMessageInserted(long threadId, long messageId, boolean isMms, boolean unread, boolean unarchive) {
+    Summary summary = getSummary(threadId);
+
+    if (summary == null || !summary.isTracked()) {
+      if (unread) incrementUnread(threadId, 1);
+      update(threadId, unarchive);
+      return;
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1" +
+                   (unread ? ", " + READ + " = 0, " + UNREAD_COUNT + " = " + UNREAD_COUNT + " + 1" : "") +
+                   " WHERE " + ID + " = ?",
+               new String[] {String.valueOf(threadId)});
+
+    MessageRecord record = DatabaseFactory.getMmsSmsDatabase(context).getMessage(messageId, isMms);
+
+    if (record == null) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    if (record.getDateReceived() >= summary.snippetDateReceived) {
+      db.update(TABLE_NAME, getSummaryValues(record, unarchive), ID_WHERE, new String[] {String.valueOf(threadId)});
+    } else if (unarchive) {
+      setUnarchived(threadId);
+    }
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies a change to a message (e.g. its status or receipts) to the thread's summary. This only touches the
+   * database if the message is the thread's snippet.
+   */
+  public void onMessageUpdated(long threadId, long messageId, boolean isMms, boolean unarchive) {
+    Summary summary = getSummary(threadId);
+
+    if (summary == null || !summary.isTracked()) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    if (!summary.isSnippet(messageId, isMms)) {
+      if (unarchive) {
+        setUnarchived(threadId);
+        notifyConversationListListeners();
+      }
+      return;
+    }
+
+    MessageRecord record = DatabaseFactory.getMmsSmsDatabase(context).getMessage(messageId, isMms);
+
+    if (record == null) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, getSummaryValues(record, unarchive), ID_WHERE, new String[] {String.valueOf(threadId)});
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies the deletion of a message to the thread's summary, and deletes the thread if it was the last message.
+   * Only reads the thread's latest message if the deleted message was its snippet. Returns whether the thread was
+   * deleted.
+   */
+  public boolean onMessageDeleted(long threadId, long messageId, boolean isMms) {
+    Summary summary = getSummary(threadId);
+
+    // Let a full recompute confirm that the thread is really empty before deleting it
+    if (summary == null || !summary.isTracked() || summary.messageCount <= 1) {
+      return update(threadId, false);
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = ?",
+               new String[] {String.valueOf(threadId)});
+
+    if (summary.isSnippet(messageId, isMms)) {
+      MmsSmsDatabase        mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+      MmsSmsDatabase.Reader reader         = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
+
+      try {
+        MessageRecord record = reader.getNext();
+
+        if (record == null) {
+          return update(threadId, false);
+        }
+
+        db.update(TABLE_NAME, getSummaryValues(record, false), ID_WHERE, new String[] {String.valueOf(threadId)});
+      } finally {
+        reader.close();
+      }
+    }
+
+    notifyConversationListListeners();
+    return false;
+  }
+
+  private void setUnarchived(long threadId) {
+    ContentValues contentValues = new ContentValues(1);
+    contentValues.put(ARCHIVED, 0);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(threadId)});
+  }
+
+  private @Nullable Summary getSummary(long threadId) {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    String[]       columns = new String[] {MESSAGE_COUNT, SNIPPET_MESSAGE_ID, SNIPPET_MESSAGE_MMS, SNIPPET_DATE_RECEIVED};
+
+    try (Cursor cursor = db.query(TABLE_NAME, columns, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Summary(cursor.getLong(0), cursor.getLong(1), cursor.getInt(2) == 1, cursor.getLong(3));
+      }
+    }
+
+    return null;
+  }
+
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms()) {
       MmsMessageRecord record = (MmsMessageRecord) messageRecord;
@@ -588,6 +737,31 @@ public class ThreadDatabase extends Database {
     return query;
   }
 
+  private static class Summary {
+    private final long    messageCount;
+    private final long    snippetMessageId;
+    private final boolean snippetIsMms;
+    private final long    snippetDateReceived;
+
+    private Summary(long messageCount, long snippetMessageId, boolean snippetIsMms, long snippetDateReceived) {
+      this.messageCount        = messageCount;
+      this.snippetMessageId    = snippetMessageId;
+      this.snippetIsMms        = snippetIsMms;
+      this.snippetDateReceived = snippetDateReceived;
+    }
+
+    /**
+     * Threads whose summary was last computed before the snippet message was tracked need a full recompute first.
+     */
+    private boolean isTracked() {
+      return snippetMessageId >= 0;
+    }
+
+    private boolean isSnippet(long messageId, boolean isMms) {
+      return snippetMessageId == messageId && snippetIsMms == isMms;
+    }
+  }
+
   public interface ProgressListener {
     void onProgress(int complete, int total);
   }
@@ -28,6 +28,7 @@ import org.thoughtcrime.securesms.loki.database.LokiBackupFilesDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiMessageDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiThreadDatabase;
 import org.thoughtcrime.securesms.loki.database.LokiUserDatabase;
+import org.thoughtcrime.securesms.loki.database.SessionJobDatabase;
 import org.thoughtcrime.securesms.loki.protocol.ClosedGroupsMigration;
 
 public class SQLCipherOpenHelper extends SQLiteOpenHelper {
@@ -52,9 +53,17 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV19                          = 40;
   private static final int lokiV20                          = 41;
   private static final int lokiV21                          = 42;
+  private static final int lokiV22                          = 43;
+  private static final int lokiV23                          = 44;
+  private static final int lokiV24                          = 45;
+  private static final int lokiV25                          = 46;
+  private static final int lokiV26                          = 47;
+  private static final int lokiV27                          = 48;
+  private static final int lokiV28                          = 49;
+  private static final int lokiV29                          = 50;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION = lokiV21;
+  private static final int    DATABASE_VERSION = lokiV29;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -100,7 +109,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateSwarmTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastMessageHashValueTable2Command());
-    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesTable3Command());
+    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesTable4Command());
+    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageTimestampTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateOpenGroupAuthTokenTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastMessageServerIDTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastDeletionServerIDTableCommand());
@@ -120,6 +130,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiThreadDatabase.getCreatePublicChatTableCommand());
     db.execSQL(LokiUserDatabase.getCreateDisplayNameTableCommand());
     db.execSQL(LokiUserDatabase.getCreateServerDisplayNameTableCommand());
+    db.execSQL(SessionJobDatabase.getCreateSessionJobTableCommand());
+    executeStatements(db, SessionJobDatabase.getAddAttachmentIDColumnCommands());
     db.execSQL(LokiBackupFilesDatabase.getCreateTableCommand());
 
     executeStatements(db, SmsDatabase.CREATE_INDEXS);
@@ -129,6 +141,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     executeStatements(db, DraftDatabase.CREATE_INDEXS);
     executeStatements(db, GroupDatabase.CREATE_INDEXS);
     executeStatements(db, GroupReceiptDatabase.CREATE_INDEXES);
+    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesExpirationIndexCommand());
+    db.execSQL(LokiAPIDatabase.getCreateReceivedMessageTimestampReceivedAtIndexCommand());
   }
 
   @Override
@@ -255,6 +269,46 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
                 "ResetThreadSessionJob");
       }
 
+      if (oldVersion < lokiV22) {
+        db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesTable4Command());
+        db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesExpirationIndexCommand());
+        LokiAPIDatabase.migrateReceivedMessageHashValues(db);
+      }
+
+      if (oldVersion < lokiV23) {
+        db.execSQL("DROP INDEX IF EXISTS sms_date_sent_index");
+        db.execSQL("DROP INDEX IF EXISTS mms_date_sent_index");
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_date_sent_address_type_index ON sms (date_sent, address, type)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_date_sent_address_message_box_index ON mms (date, address, msg_box)");
+      }
+
+      if (oldVersion < lokiV24) {
+        db.execSQL(LokiAPIDatabase.getCreateReceivedMessageTimestampTableCommand());
+        db.execSQL(LokiAPIDatabase.getCreateReceivedMessageTimestampReceivedAtIndexCommand());
+      }
+
+      if (oldVersion < lokiV25) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_date_sent_index ON sms (thread_id, date_sent)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_date_sent_index ON mms (thread_id, date)");
+      }
+
+      if (oldVersion < lokiV26) {
+        executeStatements(db, ThreadDatabase.ADD_SNIPPET_MESSAGE_COLUMNS);
+      }
+
+      if (oldVersion < lokiV27) {
+        db.execSQL(MmsDatabase.ADD_ATTACHMENT_SUMMARY_COLUMN);
+        AttachmentDatabase.migrateAttachmentSummaries(db);
+      }
+
+      if (oldVersion < lokiV28) {
+        db.execSQL(SessionJobDatabase.getCreateSessionJobTableCommand());
+      }
+
+      if (oldVersion < lokiV29) {
+        executeStatements(db, SessionJobDatabase.getAddAttachmentIDColumnCommands());
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -3,24 +3,37 @@ package org.thoughtcrime.securesms.database.loaders;
 import android.content.Context;
 import android.database.Cursor;
 
+import androidx.annotation.Nullable;
+
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.MessageKey;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 import org.session.libsignal.libsignal.util.Pair;
 
+/**
+ * Loads a page of a conversation. Without a {@code key} the page starts at the most recent message. With one it's the
+ * page around that message, which has {@code newerCount} newer messages above it and skips the {@code offset} messages
+ * above those.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long    threadId;
-  private       int     offset;
-  private       int     limit;
-  private       long    lastSeen;
-  private       boolean hasSent;
+  private final           long       threadId;
+  private final @Nullable MessageKey key;
+  private final           int        newerCount;
+  private                 int        offset;
+  private                 int        limit;
+  private                 long       lastSeen;
+  private                 boolean    hasSent;
 
-  public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
+  public ConversationLoader(Context context, long threadId, @Nullable MessageKey key, int newerCount, int offset, int limit, long lastSeen) {
     super(context);
-    this.threadId = threadId;
-    this.offset   = offset;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
-    this.hasSent  = true;
+    this.threadId   = threadId;
+    this.key        = key;
+    this.newerCount = newerCount;
+    this.offset     = offset;
+    this.limit      = limit;
+    this.lastSeen   = lastSeen;
+    this.hasSent    = true;
   }
 
   public boolean hasLimit() {
@@ -53,6 +66,12 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (key != null) {
+      return database.getConversationAround(threadId, key, newerCount, limit);
+    } else {
+      return database.getConversationBefore(threadId, null, limit);
+    }
   }
 }
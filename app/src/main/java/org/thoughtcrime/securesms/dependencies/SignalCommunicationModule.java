@@ -58,7 +58,7 @@ public class SignalCommunicationModule {
     if (this.messageSender == null) {
       this.messageSender = new SignalServiceMessageSender(new SignalProtocolStoreImpl(context),
                                                           TextSecurePreferences.getLocalNumber(context),
-                                                          DatabaseFactory.getLokiAPIDatabase(context),
+                                                          DatabaseFactory.getLokiAPIDatabaseCache(context),
                                                           DatabaseFactory.getLokiThreadDatabase(context),
                                                           DatabaseFactory.getLokiMessageDatabase(context),
                                                           new SessionProtocolImpl(context),
@@ -13,7 +13,7 @@ import org.session.libsignal.service.api.crypto.AttachmentCipherInputStream;
 import org.session.libsignal.service.api.messages.SignalServiceAttachmentPointer;
 import org.session.libsignal.service.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.session.libsignal.service.api.push.exceptions.PushNetworkException;
-import org.session.libsignal.service.loki.utilities.DownloadUtilities;
+import org.session.libsession.messaging.fileserver.FileServerAPI;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment;
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId;
@@ -169,7 +169,7 @@ public class AttachmentDownloadJob extends BaseJob implements InjectableType {
 
       if (pointer.getUrl().isEmpty()) throw new InvalidMessageException("Missing attachment URL.");
 
-      DownloadUtilities.downloadFile(attachmentFile, pointer.getUrl(), MAX_ATTACHMENT_SIZE, (total, progress) -> {
+      FileServerAPI.shared.downloadFile(attachmentFile, pointer.getUrl(), MAX_ATTACHMENT_SIZE, (total, progress) -> {
         EventBus.getDefault().postSticky(new PartProgressEvent(attachment, total, progress));
       });
 
@@ -248,7 +248,7 @@ class HomeActivity : PassphraseRequiredActionBarActivity, ConversationClickListe
             .setMessage(R.string.RecipientPreferenceActivity_you_will_no_longer_receive_messages_and_calls_from_this_contact)
             .setNegativeButton(android.R.string.cancel, null)
             .setPositiveButton(R.string.RecipientPreferenceActivity_block) { dialog, _ ->
-                ThreadUtils.queue {
+                ThreadUtils.queue(ThreadUtils.diskExecutor) {
                     DatabaseFactory.getRecipientDatabase(this).setBlocked(thread.recipient, true)
                     Util.runOnMain {
                         recyclerView.adapter!!.notifyDataSetChanged()
@@ -264,7 +264,7 @@ class HomeActivity : PassphraseRequiredActionBarActivity, ConversationClickListe
             .setMessage(R.string.RecipientPreferenceActivity_you_will_once_again_be_able_to_receive_messages_and_calls_from_this_contact)
             .setNegativeButton(android.R.string.cancel, null)
             .setPositiveButton(R.string.RecipientPreferenceActivity_unblock) { dialog, _ ->
-                ThreadUtils.queue {
+                ThreadUtils.queue(ThreadUtils.diskExecutor) {
                     DatabaseFactory.getRecipientDatabase(this).setBlocked(thread.recipient, false)
                     Util.runOnMain {
                         recyclerView.adapter!!.notifyDataSetChanged()
@@ -9,74 +9,106 @@ import com.goterl.lazycode.lazysodium.interfaces.Sign
 
 import org.session.libsignal.utilities.Hex
 
+import org.session.libsignal.libsignal.ecc.DjbECPublicKey
 import org.session.libsignal.libsignal.ecc.ECKeyPair
 import org.session.libsignal.service.loki.api.crypto.SessionProtocol
-import org.session.libsignal.service.loki.utilities.hexEncodedPublicKey
 import org.session.libsignal.service.loki.utilities.removing05PrefixIfNeeded
 import org.session.libsignal.service.loki.utilities.toHexString
 import org.thoughtcrime.securesms.loki.utilities.KeyPairUtilities
 
 class SessionProtocolImpl(private val context: Context) : SessionProtocol {
 
-    private val sodium by lazy { LazySodiumAndroid(SodiumAndroid()) }
-
     override fun encrypt(plaintext: ByteArray, recipientHexEncodedX25519PublicKey: String): ByteArray {
         val userED25519KeyPair = KeyPairUtilities.getUserED25519KeyPair(context) ?: throw SessionProtocol.Exception.NoUserED25519KeyPair
         val recipientX25519PublicKey = Hex.fromStringCondensed(recipientHexEncodedX25519PublicKey.removing05PrefixIfNeeded())
-
-        val verificationData = plaintext + userED25519KeyPair.publicKey.asBytes + recipientX25519PublicKey
-        val signature = ByteArray(Sign.BYTES)
-        try {
-            sodium.cryptoSignDetached(signature, verificationData, verificationData.size.toLong(), userED25519KeyPair.secretKey.asBytes)
-        } catch (exception: Exception) {
-            Log.d("Loki", "Couldn't sign message due to error: $exception.")
-            throw SessionProtocol.Exception.SigningFailed
-        }
-        val plaintextWithMetadata = plaintext + userED25519KeyPair.publicKey.asBytes + signature
-        val ciphertext = ByteArray(plaintextWithMetadata.size + Box.SEALBYTES)
-        try {
-            sodium.cryptoBoxSeal(ciphertext, plaintextWithMetadata, plaintextWithMetadata.size.toLong(), recipientX25519PublicKey)
-        } catch (exception: Exception) {
-            Log.d("Loki", "Couldn't encrypt message due to error: $exception.")
-            throw SessionProtocol.Exception.EncryptionFailed
-        }
-
-        return ciphertext
+        return encrypt(plaintext, recipientX25519PublicKey, userED25519KeyPair.publicKey.asBytes, userED25519KeyPair.secretKey.asBytes)
     }
 
     override fun decrypt(ciphertext: ByteArray, x25519KeyPair: ECKeyPair): Pair<ByteArray, String> {
         val recipientX25519PrivateKey = x25519KeyPair.privateKey.serialize()
-        val recipientX25519PublicKey = Hex.fromStringCondensed(x25519KeyPair.hexEncodedPublicKey.removing05PrefixIfNeeded())
-        Log.d("Test", "recipientX25519PublicKey: $recipientX25519PublicKey")
-        val signatureSize = Sign.BYTES
-        val ed25519PublicKeySize = Sign.PUBLICKEYBYTES
+        val recipientX25519PublicKey = (x25519KeyPair.publicKey as DjbECPublicKey).publicKey
+        return decrypt(ciphertext, recipientX25519PublicKey, recipientX25519PrivateKey)
+    }
 
-        // 1. ) Decrypt the message
-        val plaintextWithMetadata = ByteArray(ciphertext.size - Box.SEALBYTES)
-        try {
-            sodium.cryptoBoxSealOpen(plaintextWithMetadata, ciphertext, ciphertext.size.toLong(), recipientX25519PublicKey, recipientX25519PrivateKey)
-        } catch (exception: Exception) {
-            Log.d("Loki", "Couldn't decrypt message due to error: $exception.")
-            throw SessionProtocol.Exception.DecryptionFailed
+    /**
+     * The plaintext is sealed together with the sender's ED25519 public key and a signature over the plaintext, the
+     * sender's ED25519 public key and the recipient's X25519 public key:
+     *
+     * plaintext | sender ED25519 public key | signature
+     *
+     * Both directions build this layout in a single buffer. The recipient's X25519 public key is temporarily written
+     * to where the signature goes, so that the signed data is a prefix of that buffer rather than a separate copy.
+     */
+    companion object {
+        private val sodium by lazy { LazySodiumAndroid(SodiumAndroid()) }
+        private val signatureBuffer = object : ThreadLocal<ByteArray>() {
+            override fun initialValue() = ByteArray(Sign.BYTES)
+        }
+        private val publicKeyBuffer = object : ThreadLocal<ByteArray>() {
+            override fun initialValue() = ByteArray(Sign.PUBLICKEYBYTES)
         }
-        if (plaintextWithMetadata.size <= (signatureSize + ed25519PublicKeySize)) { throw SessionProtocol.Exception.DecryptionFailed }
-        // 2. ) Get the message parts
-        val signature = plaintextWithMetadata.sliceArray(plaintextWithMetadata.size - signatureSize until plaintextWithMetadata.size)
-        val senderED25519PublicKey = plaintextWithMetadata.sliceArray(plaintextWithMetadata.size - (signatureSize + ed25519PublicKeySize) until plaintextWithMetadata.size - signatureSize)
-        val plaintext = plaintextWithMetadata.sliceArray(0 until plaintextWithMetadata.size - (signatureSize + ed25519PublicKeySize))
-        // 3. ) Verify the signature
-        val verificationData = (plaintext + senderED25519PublicKey + recipientX25519PublicKey)
-        try {
-            val isValid = sodium.cryptoSignVerifyDetached(signature, verificationData, verificationData.size, senderED25519PublicKey)
-            if (!isValid) { throw SessionProtocol.Exception.InvalidSignature }
-        } catch (exception: Exception) {
-            Log.d("Loki", "Couldn't verify message signature due to error: $exception.")
-            throw SessionProtocol.Exception.InvalidSignature
+        private val metadataSize = Sign.PUBLICKEYBYTES + Sign.BYTES
+        private val verificationMetadataSize = Sign.PUBLICKEYBYTES + Box.PUBLICKEYBYTES
+
+        @JvmStatic
+        fun encrypt(plaintext: ByteArray, recipientX25519PublicKey: ByteArray, senderED25519PublicKey: ByteArray, senderED25519SecretKey: ByteArray): ByteArray {
+            val size = plaintext.size
+            val plaintextWithMetadata = ByteArray(size + metadataSize)
+            System.arraycopy(plaintext, 0, plaintextWithMetadata, 0, size)
+            System.arraycopy(senderED25519PublicKey, 0, plaintextWithMetadata, size, Sign.PUBLICKEYBYTES)
+            System.arraycopy(recipientX25519PublicKey, 0, plaintextWithMetadata, size + Sign.PUBLICKEYBYTES, Box.PUBLICKEYBYTES)
+            val signature = signatureBuffer.get()!!
+            try {
+                val isSigned = sodium.cryptoSignDetached(signature, plaintextWithMetadata, (size + verificationMetadataSize).toLong(), senderED25519SecretKey)
+                if (!isSigned) { throw SessionProtocol.Exception.SigningFailed }
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't sign message due to error: $exception.")
+                throw SessionProtocol.Exception.SigningFailed
+            }
+            System.arraycopy(signature, 0, plaintextWithMetadata, size + Sign.PUBLICKEYBYTES, Sign.BYTES)
+            val ciphertext = ByteArray(plaintextWithMetadata.size + Box.SEALBYTES)
+            try {
+                val isEncrypted = sodium.cryptoBoxSeal(ciphertext, plaintextWithMetadata, plaintextWithMetadata.size.toLong(), recipientX25519PublicKey)
+                if (!isEncrypted) { throw SessionProtocol.Exception.EncryptionFailed }
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't encrypt message due to error: $exception.")
+                throw SessionProtocol.Exception.EncryptionFailed
+            }
+            return ciphertext
         }
-        // 4. ) Get the sender's X25519 public key
-        val senderX25519PublicKey = ByteArray(Sign.CURVE25519_PUBLICKEYBYTES)
-        sodium.convertPublicKeyEd25519ToCurve25519(senderX25519PublicKey, senderED25519PublicKey)
 
-        return Pair(plaintext, "05" + senderX25519PublicKey.toHexString())
+        @JvmStatic
+        fun decrypt(ciphertext: ByteArray, recipientX25519PublicKey: ByteArray, recipientX25519PrivateKey: ByteArray): Pair<ByteArray, String> {
+            // 1. ) Decrypt the message
+            if (ciphertext.size <= Box.SEALBYTES + metadataSize) { throw SessionProtocol.Exception.DecryptionFailed }
+            val plaintextWithMetadata = ByteArray(ciphertext.size - Box.SEALBYTES)
+            try {
+                val isDecrypted = sodium.cryptoBoxSealOpen(plaintextWithMetadata, ciphertext, ciphertext.size.toLong(), recipientX25519PublicKey, recipientX25519PrivateKey)
+                if (!isDecrypted) { throw SessionProtocol.Exception.DecryptionFailed }
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't decrypt message due to error: $exception.")
+                throw SessionProtocol.Exception.DecryptionFailed
+            }
+            // 2. ) Get the message parts
+            val size = plaintextWithMetadata.size - metadataSize
+            val senderED25519PublicKey = publicKeyBuffer.get()!!
+            System.arraycopy(plaintextWithMetadata, size, senderED25519PublicKey, 0, Sign.PUBLICKEYBYTES)
+            val signature = signatureBuffer.get()!!
+            System.arraycopy(plaintextWithMetadata, size + Sign.PUBLICKEYBYTES, signature, 0, Sign.BYTES)
+            // 3. ) Verify the signature
+            System.arraycopy(recipientX25519PublicKey, 0, plaintextWithMetadata, size + Sign.PUBLICKEYBYTES, Box.PUBLICKEYBYTES)
+            try {
+                val isValid = sodium.cryptoSignVerifyDetached(signature, plaintextWithMetadata, size + verificationMetadataSize, senderED25519PublicKey)
+                if (!isValid) { throw SessionProtocol.Exception.InvalidSignature }
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't verify message signature due to error: $exception.")
+                throw SessionProtocol.Exception.InvalidSignature
+            }
+            // 4. ) Get the sender's X25519 public key
+            val senderX25519PublicKey = ByteArray(Sign.CURVE25519_PUBLICKEYBYTES)
+            sodium.convertPublicKeyEd25519ToCurve25519(senderX25519PublicKey, senderED25519PublicKey)
+
+            return Pair(plaintextWithMetadata.copyOf(size), "05" + senderX25519PublicKey.toHexString())
+        }
     }
-}
\ No newline at end of file
+}
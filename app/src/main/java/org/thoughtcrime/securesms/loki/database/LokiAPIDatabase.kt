@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.loki.database
 
 import android.content.ContentValues
 import android.content.Context
+import net.sqlcipher.database.SQLiteDatabase
 import org.session.libsignal.libsignal.ecc.DjbECPrivateKey
 import org.session.libsignal.libsignal.ecc.DjbECPublicKey
 import org.session.libsignal.libsignal.ecc.ECKeyPair
@@ -9,12 +10,14 @@ import org.session.libsignal.utilities.logging.Log
 import org.thoughtcrime.securesms.database.Database
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.loki.utilities.*
+import org.session.libsignal.service.loki.api.ReceivedMessageHashValueCache
 import org.session.libsignal.service.loki.api.Snode
 import org.session.libsignal.service.loki.database.LokiAPIDatabaseProtocol
 import org.session.libsignal.service.loki.utilities.removing05PrefixIfNeeded
 import org.session.libsignal.service.loki.utilities.toHexString
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil
 import org.session.libsignal.utilities.Hex
+import org.session.libsession.messaging.sending_receiving.ClosedGroupKeyRing
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.service.loki.utilities.PublicKeyValidation
 import java.util.*
@@ -50,6 +53,20 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         private val receivedMessageHashValues = "received_message_hash_values"
         @JvmStatic val createReceivedMessageHashValuesTable3Command
             = "CREATE TABLE $receivedMessageHashValuesTable3 ($publicKey STRING PRIMARY KEY, $receivedMessageHashValues TEXT);"
+        private val receivedMessageHashValuesTable4 = "received_message_hash_values_table_4"
+        private val hashValue = "hash_value"
+        private val expiration = "expiration"
+        @JvmStatic val createReceivedMessageHashValuesTable4Command
+            = "CREATE TABLE $receivedMessageHashValuesTable4 ($publicKey TEXT, $hashValue TEXT, $expiration INTEGER, PRIMARY KEY ($publicKey, $hashValue));"
+        @JvmStatic val createReceivedMessageHashValuesExpirationIndexCommand
+            = "CREATE INDEX IF NOT EXISTS received_message_hash_values_expiration_index ON $receivedMessageHashValuesTable4 ($expiration);"
+        // Received message timestamps
+        private val receivedMessageTimestampTable = "received_message_timestamps"
+        private val receivedAt = "received_at"
+        @JvmStatic val createReceivedMessageTimestampTableCommand
+            = "CREATE TABLE $receivedMessageTimestampTable ($timestamp INTEGER PRIMARY KEY, $receivedAt INTEGER);"
+        @JvmStatic val createReceivedMessageTimestampReceivedAtIndexCommand
+            = "CREATE INDEX IF NOT EXISTS received_message_timestamps_received_at_index ON $receivedMessageTimestampTable ($receivedAt);"
         // Open group auth tokens
         private val openGroupAuthTokenTable = "loki_api_group_chat_auth_token_database"
         private val server = "server"
@@ -106,6 +123,25 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         private val sessionRequestTimestampCache = "session_request_timestamp_cache"
         @JvmStatic val createSessionRequestTimestampCacheCommand = "CREATE TABLE $sessionRequestTimestampCache ($publicKey STRING PRIMARY KEY, $timestamp STRING);"
         // endregion
+
+        /**
+         * Moves the `-` joined hash values in `received_message_hash_values_table_3` over to one row per hash value.
+         * The old table doesn't record expiration dates, so the maximum TTL is assumed.
+         */
+        @JvmStatic
+        fun migrateReceivedMessageHashValues(database: SQLiteDatabase) {
+            val expiration = System.currentTimeMillis() + ReceivedMessageHashValueCache.defaultExpiration
+            val rows = database.getAll(receivedMessageHashValuesTable3, null, null) { cursor ->
+                Pair(cursor.getString(publicKey), cursor.getString(receivedMessageHashValues))
+            }
+            for ((publicKey, receivedMessageHashValuesAsString) in rows) {
+                for (hashValue in receivedMessageHashValuesAsString.split("-").filter { it.isNotEmpty() }.toSet()) {
+                    val row = wrap(mapOf( Companion.publicKey to publicKey, Companion.hashValue to hashValue, Companion.expiration to expiration.toString() ))
+                    database.insertWithOnConflict(receivedMessageHashValuesTable4, null, row, SQLiteDatabase.CONFLICT_IGNORE)
+                }
+            }
+            database.execSQL("DROP TABLE $receivedMessageHashValuesTable3")
+        }
     }
 
     override fun getSnodePool(): Set<Snode> {
@@ -247,18 +283,89 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
     override fun getReceivedMessageHashValues(publicKey: String): Set<String>? {
         val database = databaseHelper.readableDatabase
         val query = "${Companion.publicKey} = ?"
-        return database.get(receivedMessageHashValuesTable3, query, arrayOf( publicKey )) { cursor ->
-            val receivedMessageHashValuesAsString = cursor.getString(cursor.getColumnIndexOrThrow(Companion.receivedMessageHashValues))
-            receivedMessageHashValuesAsString.split("-").toSet()
+        val result = database.getAll(receivedMessageHashValuesTable4, query, arrayOf( publicKey )) { cursor ->
+            cursor.getString(hashValue)
+        }
+        return if (result.isNotEmpty()) result.toSet() else null
+    }
+
+    override fun getReceivedMessageHashValues(publicKey: String, hashValues: Collection<String>): Set<String> {
+        val database = databaseHelper.readableDatabase
+        val result = mutableSetOf<String>()
+        // Stay well below SQLite's limit on the number of host parameters
+        for (chunk in hashValues.chunked(500)) {
+            val query = "${Companion.publicKey} = ? AND $hashValue IN (${chunk.joinToString(", ") { "?" }})"
+            result.addAll(database.getAll(receivedMessageHashValuesTable4, query, arrayOf( publicKey ) + chunk) { cursor ->
+                cursor.getString(hashValue)
+            })
         }
+        return result
     }
 
-    override fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>) {
+    override fun addReceivedMessageHashValues(publicKey: String, newValues: Map<String, Long>) {
         val database = databaseHelper.writableDatabase
-        val receivedMessageHashValuesAsString = newValue.joinToString("-")
-        val row = wrap(mapOf( Companion.publicKey to publicKey, Companion.receivedMessageHashValues to receivedMessageHashValuesAsString ))
-        val query = "${Companion.publicKey} = ?"
-        database.insertOrUpdate(receivedMessageHashValuesTable3, row, query, arrayOf( publicKey ))
+        val statement = database.compileStatement("INSERT OR REPLACE INTO $receivedMessageHashValuesTable4 (${Companion.publicKey}, $hashValue, $expiration) VALUES (?, ?, ?)")
+        database.beginTransaction()
+        try {
+            for ((hashValue, expiration) in newValues) {
+                statement.clearBindings()
+                statement.bindString(1, publicKey)
+                statement.bindString(2, hashValue)
+                statement.bindLong(3, expiration)
+                statement.execute()
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+            statement.close()
+        }
+    }
+
+    override fun pruneReceivedMessageHashValues(now: Long) {
+        val database = databaseHelper.writableDatabase
+        database.delete(receivedMessageHashValuesTable4, "$expiration <= ?", wrap(now.toString()))
+    }
+
+    /**
+     * Returns the timestamps of messages received after `since`, mapped to when they were received.
+     */
+    fun getReceivedMessageTimestamps(since: Long): Map<Long, Long> {
+        val database = databaseHelper.readableDatabase
+        return database.getAll(receivedMessageTimestampTable, "$receivedAt > ?", wrap(since.toString())) { cursor ->
+            Pair(cursor.getLong(timestamp), cursor.getLong(receivedAt))
+        }.toMap()
+    }
+
+    /**
+     * `newValues` maps message timestamps to when the messages were received. Timestamps that are already known keep
+     * their original receipt date.
+     */
+    fun addReceivedMessageTimestamps(newValues: Map<Long, Long>) {
+        val database = databaseHelper.writableDatabase
+        val statement = database.compileStatement("INSERT OR IGNORE INTO $receivedMessageTimestampTable ($timestamp, $receivedAt) VALUES (?, ?)")
+        database.beginTransaction()
+        try {
+            for ((messageTimestamp, receivedDate) in newValues) {
+                statement.clearBindings()
+                statement.bindLong(1, messageTimestamp)
+                statement.bindLong(2, receivedDate)
+                statement.execute()
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+            statement.close()
+        }
+    }
+
+    /**
+     * Deletes timestamps received at or before `before`, and all but the `maxCount` most recently received ones.
+     */
+    fun pruneReceivedMessageTimestamps(before: Long, maxCount: Int) {
+        val database = databaseHelper.writableDatabase
+        database.delete(receivedMessageTimestampTable, "$receivedAt <= ?", wrap(before.toString()))
+        database.execSQL("DELETE FROM $receivedMessageTimestampTable WHERE $timestamp NOT IN " +
+            "(SELECT $timestamp FROM $receivedMessageTimestampTable ORDER BY $receivedAt DESC LIMIT $maxCount)")
     }
 
     override fun getAuthToken(server: String): String? {
@@ -419,6 +526,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         val row = wrap(mapOf( Companion.closedGroupsEncryptionKeyPairIndex to index, Companion.encryptionKeyPairPublicKey to encryptionKeyPairPublicKey,
                 Companion.encryptionKeyPairPrivateKey to encryptionKeyPairPrivateKey ))
         database.insertOrUpdate(closedGroupEncryptionKeyPairsTable, row, "${Companion.closedGroupsEncryptionKeyPairIndex} = ?", wrap(index))
+        ClosedGroupKeyRing.invalidate(groupPublicKey)
     }
 
     override fun getClosedGroupEncryptionKeyPairs(groupPublicKey: String): List<ECKeyPair> {
@@ -440,6 +548,7 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
     fun removeAllClosedGroupEncryptionKeyPairs(groupPublicKey: String) {
         val database = databaseHelper.writableDatabase
         database.delete(closedGroupEncryptionKeyPairsTable, "${Companion.closedGroupsEncryptionKeyPairIndex} LIKE ?", wrap("$groupPublicKey%"))
+        ClosedGroupKeyRing.invalidate(groupPublicKey)
     }
 
     fun addClosedGroupPublicKey(groupPublicKey: String) {
@@ -3,7 +3,9 @@ package org.thoughtcrime.securesms.loki.database
 import android.content.ContentValues
 import android.content.Context
 import net.sqlcipher.Cursor
+import net.sqlcipher.database.SQLiteDatabase
 import org.session.libsession.messaging.jobs.*
+import org.session.libsignal.utilities.logging.Log
 import org.thoughtcrime.securesms.database.Database
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer
@@ -12,22 +14,30 @@ import org.thoughtcrime.securesms.loki.utilities.*
 class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(context, helper) {
 
     companion object {
-        private val sessionJobTable = "loki_thread_session_reset_database"
+        private val sessionJobTable = "session_job_database"
         val jobID = "job_id"
         val jobType = "job_type"
         val failureCount = "failure_count"
         val serializedData = "serialized_data"
-        @JvmStatic val createSessionJobTableCommand = "CREATE TABLE $sessionJobTable ($jobID INTEGER PRIMARY KEY, $jobType STRING, $failureCount INTEGER DEFAULT 0, $serializedData TEXT);"
+        // Only set for attachment upload jobs, so that they can be looked up without deserializing every job
+        val attachmentID = "attachment_id"
+        @JvmStatic val createSessionJobTableCommand = "CREATE TABLE $sessionJobTable ($jobID INTEGER PRIMARY KEY, $jobType STRING, $failureCount INTEGER DEFAULT 0, $serializedData BLOB);"
+        @JvmStatic val addAttachmentIDColumnCommands = arrayOf(
+            "ALTER TABLE $sessionJobTable ADD COLUMN $attachmentID INTEGER DEFAULT NULL;",
+            "CREATE INDEX IF NOT EXISTS session_job_type_index ON $sessionJobTable ($jobType);",
+            "CREATE INDEX IF NOT EXISTS session_job_attachment_id_index ON $sessionJobTable ($attachmentID);"
+        )
     }
 
     fun persistJob(job: Job) {
         val database = databaseHelper.writableDatabase
-        val contentValues = ContentValues(2)
+        val contentValues = ContentValues(5)
         contentValues.put(jobID, job.id)
         contentValues.put(jobType, job.getFactoryKey())
         contentValues.put(failureCount, job.failureCount)
         contentValues.put(serializedData, SessionJobHelper.dataSerializer.serialize(job.serialize()))
-        database.insertOrUpdate(sessionJobTable, contentValues, "$jobID = ?", arrayOf(jobID.toString()))
+        if (job is AttachmentUploadJob) { contentValues.put(attachmentID, job.attachmentID) }
+        database.insertOrUpdate(sessionJobTable, contentValues, "$jobID = ?", arrayOf(job.id!!))
     }
 
     fun markJobAsSucceeded(job: Job) {
@@ -47,11 +57,13 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     fun getAttachmentUploadJob(attachmentID: Long): AttachmentUploadJob? {
         val database = databaseHelper.readableDatabase
-        var result = mutableListOf<AttachmentUploadJob>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf(AttachmentUploadJob.KEY)) { cursor ->
-            result.add(jobFromCursor(cursor) as AttachmentUploadJob)
+        return database.get(sessionJobTable, "$jobType = ? AND ${Companion.attachmentID} = ?", arrayOf(AttachmentUploadJob.KEY, attachmentID.toString())) { cursor ->
+            jobFromCursor(cursor) as? AttachmentUploadJob
         }
-        return result.first { job -> job.attachmentID == attachmentID }
+    }
+
+    fun hasAttachmentUploadJob(attachmentID: Long): Boolean {
+        return exists("$jobType = ? AND ${Companion.attachmentID} = ?", arrayOf(AttachmentUploadJob.KEY, attachmentID.toString()))
     }
 
     fun getMessageSendJob(messageSendJobID: String): MessageSendJob? {
@@ -62,22 +74,31 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
     }
 
     fun isJobCanceled(job: Job): Boolean {
+        // Jobs are deleted from the database when they're canceled. If the lookup fails the job is treated as canceled,
+        // rather than being retried with no way to stop it.
+        return try {
+            !exists("$jobID = ?", arrayOf(job.id!!))
+        } catch (e: Exception) {
+            Log.d("Loki", "Couldn't check whether job with ID: ${job.id} was canceled due to error: $e.")
+            true
+        }
+    }
+
+    private fun exists(query: String, arguments: Array<String>): Boolean {
         val database = databaseHelper.readableDatabase
-        var cursor: android.database.Cursor? = null
-        try {
-            cursor = database.rawQuery("SELECT * FROM $sessionJobTable WHERE $jobID = ?", arrayOf(job.id))
+        database.rawQuery("SELECT 1 FROM $sessionJobTable WHERE $query LIMIT 1", arguments).use { cursor ->
             return cursor != null && cursor.moveToFirst()
-        } catch (e: Exception) {
-            // Do nothing
-        }  finally {
-            cursor?.close()
         }
-        return false
     }
 
     private fun jobFromCursor(cursor: Cursor): Job {
         val type = cursor.getString(jobType)
-        val data = SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
+        val index = cursor.getColumnIndexOrThrow(serializedData)
+        val data = if (cursor.getType(index) == android.database.Cursor.FIELD_TYPE_STRING) {
+            SessionJobHelper.legacyDataSerializer.deserialize(cursor.getString(index))
+        } else {
+            SessionJobHelper.dataSerializer.deserialize(cursor.getBlob(index))
+        }
         val job = SessionJobHelper.sessionJobInstantiator.instantiate(type, data)
         job.id = cursor.getString(jobID)
         job.failureCount = cursor.getInt(failureCount)
@@ -88,7 +109,8 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 class SessionJobHelper() {
 
     companion object {
-        val dataSerializer: Data.Serializer = JsonDataSerializer()
+        val dataSerializer: Data.BinarySerializer = BinaryDataSerializer()
+        val legacyDataSerializer: Data.Serializer = JsonDataSerializer()
         val sessionJobInstantiator: SessionJobInstantiator = SessionJobInstantiator(SessionJobManagerFactories.getSessionJobFactories())
     }
 }
\ No newline at end of file
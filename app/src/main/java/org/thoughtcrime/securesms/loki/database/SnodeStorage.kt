@@ -0,0 +1,77 @@
+package org.thoughtcrime.securesms.loki.database
+
+import org.session.libsession.snode.Snode
+import org.session.libsession.snode.SnodeStorageProtocol
+import org.session.libsignal.service.loki.database.LokiAPIDatabaseProtocol
+import org.session.libsignal.service.loki.api.Snode as LokiSnode
+
+/**
+ * Exposes the snode data in `database` (which should be the write-through cache) to libsession, so that libsession
+ * and libsignal share the same snapshots of the snode pool, onion request paths and swarms.
+ */
+class SnodeStorage(private val database: LokiAPIDatabaseProtocol) : SnodeStorageProtocol {
+
+    override fun getSnodePool(): Set<Snode> {
+        return database.getSnodePool().map { it.toSnode() }.toSet()
+    }
+
+    override fun setSnodePool(newValue: Set<Snode>) {
+        database.setSnodePool(newValue.map { it.toLokiSnode() }.toSet())
+    }
+
+    override fun getOnionRequestPaths(): List<List<Snode>> {
+        return database.getOnionRequestPaths().map { path -> path.map { it.toSnode() } }
+    }
+
+    override fun clearOnionRequestPaths() {
+        database.clearOnionRequestPaths()
+    }
+
+    override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
+        database.setOnionRequestPaths(newValue.map { path -> path.map { it.toLokiSnode() } })
+    }
+
+    override fun getSwarm(publicKey: String): Set<Snode>? {
+        return database.getSwarm(publicKey)?.map { it.toSnode() }?.toSet()
+    }
+
+    override fun setSwarm(publicKey: String, newValue: Set<Snode>) {
+        database.setSwarm(publicKey, newValue.map { it.toLokiSnode() }.toSet())
+    }
+
+    override fun getLastMessageHashValue(snode: Snode, publicKey: String): String? {
+        return database.getLastMessageHashValue(snode.toLokiSnode(), publicKey)
+    }
+
+    override fun setLastMessageHashValue(snode: Snode, publicKey: String, newValue: String) {
+        database.setLastMessageHashValue(snode.toLokiSnode(), publicKey, newValue)
+    }
+
+    override fun getReceivedMessageHashValues(publicKey: String): Set<String>? {
+        return database.getReceivedMessageHashValues(publicKey)
+    }
+
+    override fun getReceivedMessageHashValues(publicKey: String, hashValues: Collection<String>): Set<String> {
+        return database.getReceivedMessageHashValues(publicKey, hashValues)
+    }
+
+    override fun addReceivedMessageHashValues(publicKey: String, newValues: Map<String, Long>) {
+        database.addReceivedMessageHashValues(publicKey, newValues)
+    }
+
+    override fun pruneReceivedMessageHashValues(now: Long) {
+        database.pruneReceivedMessageHashValues(now)
+    }
+
+    // region Convenience
+    private fun LokiSnode.toSnode(): Snode {
+        val keySet = publicKeySet?.let { Snode.KeySet(it.ed25519Key, it.x25519Key) }
+        return Snode(address, port, keySet)
+    }
+
+    private fun Snode.toLokiSnode(): LokiSnode {
+        val keySet = publicKeySet?.let { LokiSnode.KeySet(it.ed25519Key, it.x25519Key) }
+        return LokiSnode(address, port, keySet)
+    }
+    // endregion
+}
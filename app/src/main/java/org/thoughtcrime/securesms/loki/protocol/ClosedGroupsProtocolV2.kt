@@ -52,7 +52,7 @@ object ClosedGroupsProtocolV2 {
 
     fun createClosedGroup(context: Context, name: String, members: Collection<String>): Promise<String, Exception> {
         val deferred = deferred<String, Exception>()
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.diskExecutor) {
             // Prepare
             val userPublicKey = TextSecurePreferences.getLocalNumber(context)!!
             val membersAsData = members.map { Hex.fromStringCondensed(it) }
@@ -100,7 +100,7 @@ object ClosedGroupsProtocolV2 {
     @JvmStatic @JvmOverloads
     fun explicitLeave(context: Context, groupPublicKey: String, notifyUser: Boolean = true): Promise<Unit, Exception> {
         val deferred = deferred<Unit, Exception>()
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.diskExecutor) {
             val userPublicKey = TextSecurePreferences.getLocalNumber(context)!!
             val apiDB = DatabaseFactory.getLokiAPIDatabase(context)
             val groupDB = DatabaseFactory.getGroupDatabase(context)
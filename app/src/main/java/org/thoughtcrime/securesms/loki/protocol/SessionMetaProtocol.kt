@@ -10,25 +10,117 @@ import org.session.libsession.messaging.threads.recipients.Recipient
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.service.api.messages.SignalServiceContent
 import org.session.libsignal.service.api.messages.SignalServiceDataMessage
+import org.session.libsession.utilities.ExpiringLongSet
+import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
+import org.thoughtcrime.securesms.loki.database.LokiAPIDatabase
 import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
 
 object SessionMetaProtocol {
 
-    private val timestamps = mutableSetOf<Long>()
+    // region Settings
+    /**
+     * The maximum TTL the storage server accepts (4 days). A message can't be delivered again after that, so there's no
+     * need to remember its timestamp for longer.
+     */
+    private const val defaultTimestampRetention: Long = 4 * 24 * 60 * 60 * 1000
+    /**
+     * How long the timestamps of received messages are remembered for, which bounds how far back a replayed message
+     * is detected.
+     */
+    @JvmStatic
+    var timestampRetention: Long = defaultTimestampRetention
+        set(newValue) { field = newValue; timestamps.retention = newValue }
+    private val maxTimestampCount = 32 * 1024
+    private val timestampPersistenceDelay: Long = 5 * 1000
+    private val timestampPruneInterval: Long = 60 * 60 * 1000
+    // endregion
+
+    private val timestamps = ExpiringLongSet(timestampRetention, maxTimestampCount)
+    @Volatile private var database: LokiAPIDatabase? = null
+    @Volatile private var hasLoadedTimestamps = false
+    /**
+     * Timestamps that haven't been persisted yet, mapped to when they were received.
+     */
+    private val pendingTimestamps = mutableMapOf<Long, Long>()
+    @Volatile private var lastTimestampPruneDate = 0L
+
+    /**
+     * Makes received message timestamps persist across restarts. They're loaded from `database` the first time
+     * they're needed.
+     */
+    @JvmStatic
+    fun configure(database: LokiAPIDatabase) {
+        this.database = database
+    }
 
     fun getTimestamps(): Set<Long> {
-        return timestamps
+        loadTimestampsIfNeeded()
+        return timestamps.toSet()
     }
 
     fun addTimestamp(timestamp: Long) {
-        timestamps.add(timestamp)
+        loadTimestampsIfNeeded()
+        if (timestamps.add(timestamp)) { persist(timestamp) }
     }
 
     @JvmStatic
     fun shouldIgnoreMessage(timestamp: Long): Boolean {
-        val shouldIgnoreMessage = timestamps.contains(timestamp)
-        timestamps.add(timestamp)
-        return shouldIgnoreMessage
+        loadTimestampsIfNeeded()
+        val isNew = timestamps.add(timestamp)
+        if (isNew) { persist(timestamp) }
+        return !isNew
+    }
+
+    private fun loadTimestampsIfNeeded() {
+        if (hasLoadedTimestamps) { return }
+        val database = database ?: return
+        synchronized(timestamps) {
+            if (hasLoadedTimestamps) { return }
+            try {
+                val persistedTimestamps = database.getReceivedMessageTimestamps(System.currentTimeMillis() - timestampRetention)
+                persistedTimestamps.forEach { (timestamp, receivedAt) -> timestamps.add(timestamp, receivedAt) }
+            } catch (e: Exception) {
+                Log.d("Loki", "Couldn't load received message timestamps due to error: $e.")
+            }
+            hasLoadedTimestamps = true
+        }
+    }
+
+    /**
+     * Queues `timestamp` to be persisted. Timestamps are written in batches so that receiving a burst of messages
+     * doesn't cause a database write per message.
+     */
+    private fun persist(timestamp: Long) {
+        val database = database ?: return
+        val isFirstPendingTimestamp = synchronized(pendingTimestamps) {
+            pendingTimestamps[timestamp] = System.currentTimeMillis()
+            pendingTimestamps.size == 1
+        }
+        if (isFirstPendingTimestamp) {
+            ThreadUtils.scheduler.schedule(ThreadUtils.diskExecutor, timestampPersistenceDelay, TimeUnit.MILLISECONDS) {
+                persistPendingTimestamps(database)
+            }
+        }
+    }
+
+    private fun persistPendingTimestamps(database: LokiAPIDatabase) {
+        val newValues = synchronized(pendingTimestamps) {
+            val result = pendingTimestamps.toMap()
+            pendingTimestamps.clear()
+            result
+        }
+        try {
+            database.addReceivedMessageTimestamps(newValues)
+            val now = System.currentTimeMillis()
+            if (now - lastTimestampPruneDate >= timestampPruneInterval) {
+                database.pruneReceivedMessageTimestamps(now - timestampRetention, maxTimestampCount)
+                lastTimestampPruneDate = now
+            }
+        } catch (e: Exception) {
+            Log.d("Loki", "Couldn't persist received message timestamps due to error: $e.")
+        }
     }
 
     @JvmStatic
@@ -115,7 +115,7 @@ class IP2Country private constructor(private val context: Context) {
     }
 
     private fun populateCacheIfNeeded() {
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.diskExecutor) {
             OnionRequestAPI.paths.forEach { path ->
                 path.forEach { snode ->
                     cacheCountryForIP(snode.ip) // Preload if needed
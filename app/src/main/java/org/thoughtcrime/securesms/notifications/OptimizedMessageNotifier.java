@@ -126,7 +126,7 @@ public class OptimizedMessageNotifier implements MessageNotifier {
 
   private void performOnBackgroundThreadIfNeeded(Runnable r) {
     if (Looper.myLooper() == Looper.getMainLooper()) {
-      ThreadUtils.queue(r);
+      ThreadUtils.queue(ThreadUtils.getDiskExecutor(), r);
     } else {
       r.run();
     }
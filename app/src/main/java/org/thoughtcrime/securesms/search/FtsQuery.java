@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.search;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A sanitized search query, split into tokens that are each matched as a prefix.
+ */
+public class FtsQuery {
+
+  private final List<String> tokens;
+
+  private FtsQuery(@NonNull List<String> tokens) {
+    this.tokens = tokens;
+  }
+
+  /**
+   * @param sanitizedQuery A query that has already had characters FTS can't handle removed.
+   */
+  public static @NonNull FtsQuery parse(@NonNull String sanitizedQuery) {
+    List<String> tokens = new ArrayList<>();
+
+    for (String token : sanitizedQuery.split("\\s+")) {
+      if (token.length() > 0) {
+        tokens.add(token.toLowerCase(Locale.ROOT));
+      }
+    }
+
+    return new FtsQuery(Collections.unmodifiableList(tokens));
+  }
+
+  public boolean isEmpty() {
+    return tokens.isEmpty();
+  }
+
+  public @NonNull List<String> getTokens() {
+    return tokens;
+  }
+
+  /**
+   * Returns an FTS5 MATCH expression that requires every token to appear as a prefix of a word. Tokens are quoted so
+   * that words like "and" or "near" aren't interpreted as operators.
+   */
+  public @NonNull String toMatchExpression() {
+    StringBuilder expression = new StringBuilder();
+
+    for (String token : tokens) {
+      if (expression.length() > 0) expression.append(' ');
+      expression.append('"').append(token.replace("\"", "\"\"")).append("\"*");
+    }
+
+    return expression.toString();
+  }
+
+  /**
+   * Whether everything this query matches is also matched by {@code previous}, which is the case when each of
+   * {@code previous}'s tokens is a prefix of one of this query's tokens. This is what typing more characters or adding
+   * more words does.
+   */
+  public boolean narrows(@NonNull FtsQuery previous) {
+    if (previous.isEmpty()) return false;
+
+    for (String previousToken : previous.tokens) {
+      boolean found = false;
+
+      for (String token : tokens) {
+        if (token.startsWith(previousToken)) {
+          found = true;
+          break;
+        }
+      }
+
+      if (!found) return false;
+    }
+
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof FtsQuery && tokens.equals(((FtsQuery) other).tokens);
+  }
+
+  @Override
+  public int hashCode() {
+    return tokens.hashCode();
+  }
+}
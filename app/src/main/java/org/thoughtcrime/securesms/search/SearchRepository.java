@@ -4,6 +4,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.annimon.stream.Stream;
@@ -12,6 +13,7 @@ import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.session.libsession.messaging.threads.Address;
 import org.thoughtcrime.securesms.database.CursorList;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
@@ -21,6 +23,8 @@ import org.thoughtcrime.securesms.search.model.MessageResult;
 import org.thoughtcrime.securesms.search.model.SearchResult;
 import org.thoughtcrime.securesms.util.Stopwatch;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -33,6 +37,23 @@ public class SearchRepository {
 
   private static final String TAG = SearchRepository.class.getSimpleName();
 
+  /**
+   * The number of messages per page of results when searching all threads.
+   */
+  public static final int PAGE_SIZE        = 50;
+  /**
+   * The number of messages per page of results when searching a single thread. Conversation search steps through
+   * results one at a time and can only narrow a query by its results when they all fit in the first page, so its pages
+   * are much bigger.
+   */
+  public static final int THREAD_PAGE_SIZE = 500;
+
+  /**
+   * Messages that arrive after a query was run won't be found by queries that narrow it, so narrowing is only done for
+   * a short while, which is enough to cover someone typing.
+   */
+  private static final long CANDIDATE_LIFETIME_MS = 10_000;
+
   private static final Set<Character> BANNED_CHARACTERS = new HashSet<>();
   static {
     // Several ranges of invalid ASCII characters
@@ -56,6 +77,8 @@ public class SearchRepository {
   private final ContactAccessor  contactAccessor;
   private final Executor         executor;
 
+  private @Nullable Candidates candidates;
+
   public SearchRepository(@NonNull Context context,
                           @NonNull SearchDatabase searchDatabase,
                           @NonNull ThreadDatabase threadDatabase,
@@ -87,7 +110,7 @@ public class SearchRepository {
       CursorList<ThreadRecord> conversations = queryConversations(cleanQuery);
       timer.split("conversations");
 
-      CursorList<MessageResult> messages = queryMessages(cleanQuery);
+      CursorList<MessageResult> messages = queryMessages(FtsQuery.parse(cleanQuery), -1, 0);
       timer.split("messages");
 
       timer.stop(TAG);
@@ -97,6 +120,14 @@ public class SearchRepository {
   }
 
   public void query(@NonNull String query, long threadId, @NonNull Callback<CursorList<MessageResult>> callback) {
+    query(query, threadId, 0, callback);
+  }
+
+  /**
+   * Loads the page of messages in {@code threadId} matching {@code query} that starts at {@code offset}. Results are
+   * ordered newest first.
+   */
+  public void query(@NonNull String query, long threadId, int offset, @NonNull Callback<CursorList<MessageResult>> callback) {
     if (TextUtils.isEmpty(query)) {
       callback.onResult(CursorList.emptyList());
       return;
@@ -104,13 +135,26 @@ public class SearchRepository {
 
     executor.execute(() -> {
       long startTime = System.currentTimeMillis();
-      CursorList<MessageResult> messages = queryMessages(sanitizeQuery(query), threadId);
+      CursorList<MessageResult> messages = queryMessages(FtsQuery.parse(sanitizeQuery(query)), threadId, offset);
       Log.d(TAG, "[ConversationQuery] " + (System.currentTimeMillis() - startTime) + " ms");
 
       callback.onResult(messages);
     });
   }
 
+  /**
+   * Loads the next page of messages for a query previously passed to {@link #query(String, Callback)}, starting at
+   * {@code offset}. Results are ordered by relevance.
+   */
+  public void queryMessages(@NonNull String query, int offset, @NonNull Callback<CursorList<MessageResult>> callback) {
+    if (TextUtils.isEmpty(query)) {
+      callback.onResult(CursorList.emptyList());
+      return;
+    }
+
+    executor.execute(() -> callback.onResult(queryMessages(FtsQuery.parse(sanitizeQuery(query)), -1, offset)));
+  }
+
   private CursorList<Recipient> queryContacts(String query) {
     return CursorList.emptyList();
     /* Loki - We don't need contacts permission
@@ -135,16 +179,78 @@ public class SearchRepository {
                                  : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query) {
-    Cursor messages = searchDatabase.queryMessages(query);
+  /**
+   * Returns the page of messages matching {@code query} that starts at {@code offset}, in {@code threadId} or in all
+   * threads if it's -1.
+   *
+   * If {@code query} narrows the previous query for the same thread (e.g. because another character was typed), only
+   * the messages that matched that one are checked. When all of the messages matching {@code query} fit in the first
+   * page, they're kept around so that the next query can do the same.
+   */
+  private CursorList<MessageResult> queryMessages(@NonNull FtsQuery query, long threadId, int offset) {
+    if (query.isEmpty()) return CursorList.emptyList();
+
+    Candidates previous = getCandidates(query, threadId);
+
+    if (previous != null && previous.ids.size() == 0) {
+      if (offset == 0) setCandidates(new Candidates(query, threadId, previous.ids, previous.timestamp));
+      return CursorList.emptyList();
+    }
+
+    String                    matchExpression = query.toMatchExpression();
+    SearchDatabase.MessageIds ids             = previous != null ? previous.ids : null;
+    int                       pageSize        = threadId == -1 ? PAGE_SIZE : THREAD_PAGE_SIZE;
+    Cursor                    messages        = threadId == -1 ? searchDatabase.queryMessages(matchExpression, ids, pageSize, offset)
+                                                               : searchDatabase.queryMessages(matchExpression, threadId, ids, pageSize, offset);
+
+    if (offset == 0) {
+      if (messages != null && messages.getCount() < pageSize) {
+        long timestamp = previous != null ? previous.timestamp : System.currentTimeMillis();
+        setCandidates(new Candidates(query, threadId, getMessageIds(messages), timestamp));
+      } else {
+        setCandidates(null);
+      }
+    }
+
     return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
                             : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query, long threadId) {
-    Cursor messages = searchDatabase.queryMessages(query, threadId);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
+  /**
+   * Returns the messages that matched the previous query, if {@code query} can only match a subset of them.
+   */
+  private synchronized @Nullable Candidates getCandidates(@NonNull FtsQuery query, long threadId) {
+    if (candidates == null || candidates.threadId != threadId) return null;
+    if (System.currentTimeMillis() - candidates.timestamp >= CANDIDATE_LIFETIME_MS) return null;
+    if (!query.equals(candidates.query) && !query.narrows(candidates.query)) return null;
+
+    return candidates;
+  }
+
+  private synchronized void setCandidates(@Nullable Candidates candidates) {
+    this.candidates = candidates;
+  }
+
+  private static @NonNull SearchDatabase.MessageIds getMessageIds(@NonNull Cursor messages) {
+    long[] smsIds   = new long[messages.getCount()];
+    long[] mmsIds   = new long[messages.getCount()];
+    int    smsCount = 0;
+    int    mmsCount = 0;
+
+    int idColumn        = messages.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ID);
+    int transportColumn = messages.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+
+    while (messages.moveToNext()) {
+      if (MmsSmsDatabase.MMS_TRANSPORT.equals(messages.getString(transportColumn))) {
+        mmsIds[mmsCount++] = messages.getLong(idColumn);
+      } else {
+        smsIds[smsCount++] = messages.getLong(idColumn);
+      }
+    }
+
+    messages.moveToPosition(-1);
+
+    return new SearchDatabase.MessageIds(Arrays.copyOf(smsIds, smsCount), Arrays.copyOf(mmsIds, mmsCount));
   }
 
   /**
@@ -212,11 +318,44 @@ public class SearchRepository {
       Address   messageAddress        = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ADDRESS)));
       Recipient conversationRecipient = Recipient.from(context, conversationAddress, false);
       Recipient messageRecipient      = Recipient.from(context, messageAddress, false);
-      String    body                  = cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
+      String    snippet               = cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
       long      receivedMs            = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
       long      threadId              = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID));
 
-      return new MessageResult(conversationRecipient, messageRecipient, body, threadId, receivedMs);
+      StringBuilder body       = new StringBuilder(snippet.length());
+      List<Integer> highlights = new ArrayList<>();
+
+      for (int i = 0; i < snippet.length(); i++) {
+        char c = snippet.charAt(i);
+
+        if (c == SearchDatabase.HIGHLIGHT_START.charAt(0) || c == SearchDatabase.HIGHLIGHT_END.charAt(0)) {
+          highlights.add(body.length());
+        } else {
+          body.append(c);
+        }
+      }
+
+      int[] highlightRanges = new int[highlights.size()];
+      for (int i = 0; i < highlightRanges.length; i++) {
+        highlightRanges[i] = highlights.get(i);
+      }
+
+      return new MessageResult(conversationRecipient, messageRecipient, body.toString(), highlightRanges, threadId, receivedMs);
+    }
+  }
+
+  private static class Candidates {
+
+    private final FtsQuery                  query;
+    private final long                      threadId;
+    private final SearchDatabase.MessageIds ids;
+    private final long                      timestamp;
+
+    private Candidates(@NonNull FtsQuery query, long threadId, @NonNull SearchDatabase.MessageIds ids, long timestamp) {
+      this.query     = query;
+      this.threadId  = threadId;
+      this.ids       = ids;
+      this.timestamp = timestamp;
     }
   }
 
@@ -12,18 +12,24 @@ public class MessageResult {
   public final Recipient conversationRecipient;
   public final Recipient messageRecipient;
   public final String    bodySnippet;
+  /**
+   * The start and end offsets of the parts of {@link #bodySnippet} that matched the query, in pairs.
+   */
+  public final int[]     bodyHighlights;
   public final long      threadId;
   public final long      receivedTimestampMs;
 
   public MessageResult(@NonNull Recipient conversationRecipient,
                        @NonNull Recipient messageRecipient,
                        @NonNull String bodySnippet,
+                       @NonNull int[] bodyHighlights,
                        long threadId,
                        long receivedTimestampMs)
   {
     this.conversationRecipient = conversationRecipient;
     this.messageRecipient      = messageRecipient;
     this.bodySnippet           = bodySnippet;
+    this.bodyHighlights        = bodyHighlights;
     this.threadId              = threadId;
     this.receivedTimestampMs   = receivedTimestampMs;
   }
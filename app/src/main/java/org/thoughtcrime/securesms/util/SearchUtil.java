@@ -56,6 +56,27 @@ public class SearchUtil {
     return spanned;
   }
 
+  /**
+   * Highlights the parts of {@code text} given by {@code ranges}, which holds their start and end offsets in pairs.
+   */
+  public static Spannable getHighlightedSpan(@NonNull StyleFactory styleFactory,
+                                             @NonNull String text,
+                                             @NonNull int[] ranges)
+  {
+    SpannableString spanned = new SpannableString(text);
+
+    for (int i = 0; i + 1 < ranges.length; i += 2) {
+      int start = Math.min(ranges[i], text.length());
+      int end   = Math.min(ranges[i + 1], text.length());
+
+      if (start < end) {
+        spanned.setSpan(styleFactory.create(), start, end, Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+      }
+    }
+
+    return spanned;
+  }
+
   static List<Pair<Integer, Integer>> getHighlightRanges(@NonNull Locale locale,
                                                          @NonNull String text,
                                                          @NonNull String highlight)
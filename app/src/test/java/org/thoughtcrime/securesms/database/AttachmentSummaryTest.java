@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId;
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AttachmentSummaryTest {
+
+  @Test
+  public void testEmptySummary() {
+    assertNull(AttachmentSummary.serialize(Collections.<DatabaseAttachment>emptyList()));
+    assertTrue(AttachmentSummary.deserialize(null, 1).isEmpty());
+  }
+
+  @Test
+  public void testRoundTrip() {
+    DatabaseAttachment first  = new DatabaseAttachment(new AttachmentId(1, 100), 7, true, false, "image/jpeg", 0, 1024,
+                                                       "cat.jpg", "location", "key", null, new byte[] { 1, 2, 3 }, null,
+                                                       false, 640, 480, false, "caption ☃", "https://example.com/1");
+    DatabaseAttachment second = new DatabaseAttachment(new AttachmentId(2, 200), 7, false, true, "audio/aac", 2, 0,
+                                                       null, null, null, null, null, "preflight", true, 0, 0, true, null, "");
+
+    List<DatabaseAttachment> result = AttachmentSummary.deserialize(AttachmentSummary.serialize(Arrays.asList(first, second)), 7);
+
+    assertEquals(2, result.size());
+    assertEquals(first, result.get(0));
+    assertEquals(second, result.get(1));
+
+    DatabaseAttachment decoded = result.get(0);
+    assertEquals(7, decoded.getMmsId());
+    assertTrue(decoded.hasData());
+    assertFalse(decoded.hasThumbnail());
+    assertEquals("image/jpeg", decoded.getContentType());
+    assertEquals(1024, decoded.getSize());
+    assertEquals("cat.jpg", decoded.getFileName());
+    assertEquals("location", decoded.getLocation());
+    assertEquals("key", decoded.getKey());
+    assertNull(decoded.getRelay());
+    assertArrayEquals(new byte[] { 1, 2, 3 }, decoded.getDigest());
+    assertEquals(640, decoded.getWidth());
+    assertEquals(480, decoded.getHeight());
+    assertEquals("caption ☃", decoded.getCaption());
+    assertEquals("https://example.com/1", decoded.getUrl());
+
+    decoded = result.get(1);
+    assertTrue(decoded.hasThumbnail());
+    assertTrue(decoded.isVoiceNote());
+    assertTrue(decoded.isQuote());
+    assertEquals(2, decoded.getTransferState());
+    assertEquals("preflight", decoded.getFastPreflightId());
+    assertNull(decoded.getFileName());
+    assertNull(decoded.getDigest());
+    assertNull(decoded.getCaption());
+  }
+}
@@ -0,0 +1,167 @@
+package org.thoughtcrime.securesms.loki.api;
+
+import android.app.Application;
+
+import com.goterl.lazycode.lazysodium.LazySodiumAndroid;
+import com.goterl.lazycode.lazysodium.SodiumAndroid;
+import com.goterl.lazycode.lazysodium.interfaces.Box;
+import com.goterl.lazycode.lazysodium.interfaces.Sign;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.session.libsignal.service.loki.api.crypto.SessionProtocol;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import kotlin.Pair;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Checks that {@link SessionProtocolImpl} round trips payloads of 100 B up to 64 KB and stays compatible with the
+ * previous copy based implementation, and has an ignored benchmark comparing the two. Skipped if libsodium isn't
+ * available on the host.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class SessionProtocolImplTest {
+
+  private static final int[] PAYLOAD_SIZES = { 100, 1024, 4 * 1024, 16 * 1024, 64 * 1024 };
+
+  private LazySodiumAndroid sodium;
+
+  private final byte[] senderED25519PublicKey    = new byte[Sign.PUBLICKEYBYTES];
+  private final byte[] senderED25519SecretKey    = new byte[Sign.SECRETKEYBYTES];
+  private final byte[] recipientX25519PublicKey  = new byte[Box.PUBLICKEYBYTES];
+  private final byte[] recipientX25519PrivateKey = new byte[Box.SECRETKEYBYTES];
+
+  @Before
+  public void setUp() {
+    try {
+      sodium = new LazySodiumAndroid(new SodiumAndroid());
+    } catch (Throwable e) {
+      assumeNoException(e);
+    }
+    assertTrue(sodium.cryptoSignKeypair(senderED25519PublicKey, senderED25519SecretKey));
+    assertTrue(sodium.cryptoBoxKeypair(recipientX25519PublicKey, recipientX25519PrivateKey));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    byte[] senderX25519PublicKey = new byte[Sign.CURVE25519_PUBLICKEYBYTES];
+    assertTrue(sodium.convertPublicKeyEd25519ToCurve25519(senderX25519PublicKey, senderED25519PublicKey));
+
+    for (int size : PAYLOAD_SIZES) {
+      byte[] plaintext = getPayload(size);
+
+      byte[]               ciphertext = SessionProtocolImpl.encrypt(plaintext, recipientX25519PublicKey, senderED25519PublicKey, senderED25519SecretKey);
+      Pair<byte[], String> result     = SessionProtocolImpl.decrypt(ciphertext, recipientX25519PublicKey, recipientX25519PrivateKey);
+
+      assertArrayEquals(plaintext, result.getFirst());
+      assertEquals("05" + toHex(senderX25519PublicKey), result.getSecond());
+      assertArrayEquals(plaintext, legacyDecrypt(ciphertext));
+      assertArrayEquals(plaintext, SessionProtocolImpl.decrypt(legacyEncrypt(plaintext), recipientX25519PublicKey, recipientX25519PrivateKey).getFirst());
+    }
+  }
+
+  @Test(expected = SessionProtocol.Exception.InvalidSignature.class)
+  public void testTamperedSignature() {
+    byte[] otherPublicKey = new byte[Sign.PUBLICKEYBYTES];
+    byte[] otherSecretKey = new byte[Sign.SECRETKEYBYTES];
+    assertTrue(sodium.cryptoSignKeypair(otherPublicKey, otherSecretKey));
+
+    // Signed by a different key than the one included in the message
+    byte[] ciphertext = SessionProtocolImpl.encrypt(getPayload(100), recipientX25519PublicKey, senderED25519PublicKey, otherSecretKey);
+    SessionProtocolImpl.decrypt(ciphertext, recipientX25519PublicKey, recipientX25519PrivateKey);
+  }
+
+  @Test(expected = SessionProtocol.Exception.DecryptionFailed.class)
+  public void testTruncatedCiphertext() {
+    byte[] ciphertext = SessionProtocolImpl.encrypt(getPayload(100), recipientX25519PublicKey, senderED25519PublicKey, senderED25519SecretKey);
+    SessionProtocolImpl.decrypt(Arrays.copyOf(ciphertext, Box.SEALBYTES + 10), recipientX25519PublicKey, recipientX25519PrivateKey);
+  }
+
+  @Ignore("Benchmark; run manually")
+  @Test
+  public void benchmark() {
+    for (int size : PAYLOAD_SIZES) {
+      byte[] plaintext  = getPayload(size);
+      byte[] ciphertext = SessionProtocolImpl.encrypt(plaintext, recipientX25519PublicKey, senderED25519PublicKey, senderED25519SecretKey);
+      int    iterations = Math.max(50, 2_000_000 / (size + 1024));
+
+      long legacyEncrypt = measure(iterations, () -> legacyEncrypt(plaintext));
+      long encrypt       = measure(iterations, () -> SessionProtocolImpl.encrypt(plaintext, recipientX25519PublicKey, senderED25519PublicKey, senderED25519SecretKey));
+      long legacyDecrypt = measure(iterations, () -> legacyDecrypt(ciphertext));
+      long decrypt       = measure(iterations, () -> SessionProtocolImpl.decrypt(ciphertext, recipientX25519PublicKey, recipientX25519PrivateKey));
+
+      System.out.println(String.format("%6d B: encrypt %.1f -> %.1f µs/op, decrypt %.1f -> %.1f µs/op",
+                                       size, legacyEncrypt / 1000.0, encrypt / 1000.0, legacyDecrypt / 1000.0, decrypt / 1000.0));
+    }
+  }
+
+  private long measure(int iterations, Runnable runnable) {
+    for (int i = 0; i < iterations / 10; i++) runnable.run();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) runnable.run();
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  private byte[] legacyEncrypt(byte[] plaintext) {
+    byte[] verificationData = concat(plaintext, senderED25519PublicKey, recipientX25519PublicKey);
+    byte[] signature        = new byte[Sign.BYTES];
+    sodium.cryptoSignDetached(signature, verificationData, verificationData.length, senderED25519SecretKey);
+
+    byte[] plaintextWithMetadata = concat(plaintext, senderED25519PublicKey, signature);
+    byte[] ciphertext            = new byte[plaintextWithMetadata.length + Box.SEALBYTES];
+    sodium.cryptoBoxSeal(ciphertext, plaintextWithMetadata, plaintextWithMetadata.length, recipientX25519PublicKey);
+    return ciphertext;
+  }
+
+  private byte[] legacyDecrypt(byte[] ciphertext) {
+    byte[] plaintextWithMetadata = new byte[ciphertext.length - Box.SEALBYTES];
+    sodium.cryptoBoxSealOpen(plaintextWithMetadata, ciphertext, ciphertext.length, recipientX25519PublicKey, recipientX25519PrivateKey);
+
+    int    size                  = plaintextWithMetadata.length - Sign.BYTES - Sign.PUBLICKEYBYTES;
+    byte[] signature             = Arrays.copyOfRange(plaintextWithMetadata, size + Sign.PUBLICKEYBYTES, plaintextWithMetadata.length);
+    byte[] senderED25519Key      = Arrays.copyOfRange(plaintextWithMetadata, size, size + Sign.PUBLICKEYBYTES);
+    byte[] plaintext             = Arrays.copyOfRange(plaintextWithMetadata, 0, size);
+    byte[] verificationData      = concat(plaintext, senderED25519Key, recipientX25519PublicKey);
+    assertTrue(sodium.cryptoSignVerifyDetached(signature, verificationData, verificationData.length, senderED25519Key));
+
+    byte[] senderX25519PublicKey = new byte[Sign.CURVE25519_PUBLICKEYBYTES];
+    sodium.convertPublicKeyEd25519ToCurve25519(senderX25519PublicKey, senderED25519Key);
+    return plaintext;
+  }
+
+  private static byte[] getPayload(int size) {
+    byte[] payload = new byte[size];
+    new Random(size).nextBytes(payload);
+    return payload;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) length += part.length;
+
+    byte[] result = new byte[length];
+    int    offset = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, result, offset, part.length);
+      offset += part.length;
+    }
+    return result;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder();
+    for (byte b : bytes) builder.append(String.format("%02x", b));
+    return builder.toString();
+  }
+}
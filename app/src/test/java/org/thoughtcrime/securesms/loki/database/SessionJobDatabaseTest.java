@@ -0,0 +1,60 @@
+package org.thoughtcrime.securesms.loki.database;
+
+import android.content.Context;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.session.libsession.messaging.jobs.Job;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SessionJobDatabaseTest {
+
+  private SQLiteDatabase     database;
+  private SessionJobDatabase sessionJobDatabase;
+  private Job                job;
+
+  @Before
+  public void setUp() {
+    SQLCipherOpenHelper helper = mock(SQLCipherOpenHelper.class);
+    database           = mock(SQLiteDatabase.class);
+    sessionJobDatabase = new SessionJobDatabase(mock(Context.class), helper);
+    job                = mock(Job.class);
+
+    when(helper.getReadableDatabase()).thenReturn(database);
+    when(job.getId()).thenReturn("1");
+  }
+
+  @Test
+  public void testJobIsCanceledWhenLookupFails() {
+    when(database.rawQuery(anyString(), any(String[].class))).thenThrow(new IllegalStateException("database is locked"));
+
+    assertTrue(sessionJobDatabase.isJobCanceled(job));
+  }
+
+  @Test
+  public void testJobIsCanceledWhenRowIsMissing() {
+    net.sqlcipher.Cursor cursor = mock(net.sqlcipher.Cursor.class);
+    when(cursor.moveToFirst()).thenReturn(false);
+    when(database.rawQuery(anyString(), any(String[].class))).thenReturn(cursor);
+
+    assertTrue(sessionJobDatabase.isJobCanceled(job));
+  }
+
+  @Test
+  public void testJobIsLiveWhenRowExists() {
+    net.sqlcipher.Cursor cursor = mock(net.sqlcipher.Cursor.class);
+    when(cursor.moveToFirst()).thenReturn(true);
+    when(database.rawQuery(anyString(), any(String[].class))).thenReturn(cursor);
+
+    assertFalse(sessionJobDatabase.isJobCanceled(job));
+  }
+}
@@ -0,0 +1,38 @@
+package org.thoughtcrime.securesms.search;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FtsQueryTest {
+
+  @Test
+  public void testParse() {
+    assertTrue(FtsQuery.parse("").isEmpty());
+    assertTrue(FtsQuery.parse("   ").isEmpty());
+    assertEquals(Arrays.asList("hello", "world"), FtsQuery.parse("  Hello   WORLD ").getTokens());
+  }
+
+  @Test
+  public void testMatchExpression() {
+    assertEquals("\"hello\"*", FtsQuery.parse("hello").toMatchExpression());
+    assertEquals("\"cats\"* \"and\"* \"dogs\"*", FtsQuery.parse("cats AND dogs").toMatchExpression());
+  }
+
+  @Test
+  public void testNarrows() {
+    FtsQuery query = FtsQuery.parse("hel");
+
+    assertTrue(FtsQuery.parse("hell").narrows(query));
+    assertTrue(FtsQuery.parse("hel world").narrows(query));
+    assertTrue(FtsQuery.parse("world hello").narrows(query));
+    assertTrue(FtsQuery.parse("hello wor").narrows(FtsQuery.parse("hello wo")));
+
+    assertFalse(FtsQuery.parse("he").narrows(query));
+    assertFalse(FtsQuery.parse("help").narrows(FtsQuery.parse("hello")));
+    assertFalse(FtsQuery.parse("hello").narrows(FtsQuery.parse("hello world")));
+    assertFalse(FtsQuery.parse("hello").narrows(FtsQuery.parse("")));
+  }
+}
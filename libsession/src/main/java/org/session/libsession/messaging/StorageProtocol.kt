@@ -39,12 +39,19 @@ interface StorageProtocol {
 
     fun getOrGenerateRegistrationID(): Int
 
+    // Transactions
+    /**
+     * Runs `block` in a single database transaction, which is rolled back if `block` throws.
+     */
+    fun runInTransaction(block: () -> Unit)
+
     // Jobs
     fun persistJob(job: Job)
     fun markJobAsSucceeded(job: Job)
     fun markJobAsFailed(job: Job)
     fun getAllPendingJobs(type: String): List<Job>
     fun getAttachmentUploadJob(attachmentID: Long): AttachmentUploadJob?
+    fun hasAttachmentUploadJob(attachmentID: Long): Boolean
     fun getMessageSendJob(messageSendJobID: String): MessageSendJob?
     fun resumeMessageSendJobIfNeeded(messageSendJobID: String)
     fun isJobCanceled(job: Job): Boolean
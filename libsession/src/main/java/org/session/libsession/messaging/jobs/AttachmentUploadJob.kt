@@ -107,10 +107,11 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
         //serialize Message property
         val kryo = Kryo()
         kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val output = Output(serializedMessage)
+        // Only keep the bytes that were actually written, rather than the whole buffer
+        val output = Output(4096, -1)
         kryo.writeObject(output, message)
         output.close()
+        val serializedMessage = output.toBytes()
         return Data.Builder().putLong(KEY_ATTACHMENT_ID, attachmentID)
                 .putString(KEY_THREAD_ID, threadID)
                 .putByteArray(KEY_MESSAGE, serializedMessage)
@@ -119,7 +120,7 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
     }
 
     override fun getFactoryKey(): String {
-        return AttachmentDownloadJob.KEY
+        return KEY
     }
 
     class Factory: Job.Factory<AttachmentUploadJob> {
@@ -0,0 +1,158 @@
+package org.session.libsession.messaging.jobs
+
+import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsession.messaging.messages.Message
+import org.session.libsession.messaging.sending_receiving.MessageReceiver
+import org.session.libsession.messaging.sending_receiving.ReceivedMessageSideEffects
+import org.session.libsession.messaging.sending_receiving.handle
+import org.session.libsignal.service.internal.push.SignalServiceProtos
+import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+
+/**
+ * Receives all messages from a single poll response as one job. Envelopes are decrypted in parallel, after which all
+ * messages are handled in a single database transaction. Side effects that shouldn't happen while the transaction is
+ * open or that can't be rolled back with it (e.g. notifications, enqueueing jobs and sending messages) are performed once
+ * it has ended, so that they only happen once even if the batch has to be handled again one message at a time.
+ *
+ * If any messages fail with a retryable error, the job is retried with just those messages.
+ */
+class BatchMessageReceiveJob(messages: List<Parameters>, val openGroupID: String? = null) : Job {
+
+    class Parameters(val data: ByteArray, val openGroupMessageServerID: Long? = null)
+
+    @Volatile var messages: List<Parameters> = messages
+        private set
+
+    override var delegate: JobDelegate? = null
+    override var id: String? = null
+    override var failureCount: Int = 0
+
+    // Settings
+    override val maxFailureCount: Int = 10
+    companion object {
+        val TAG = BatchMessageReceiveJob::class.qualifiedName
+        val KEY: String = "BatchMessageReceiveJob"
+
+        //keys used for database storage purpose
+        private val KEY_MESSAGES = "messages" // Base64 encoded; only read for jobs persisted by older versions
+        private val KEY_MESSAGE_COUNT = "message_count"
+        private val KEY_MESSAGE = "message_"
+        private val KEY_OPEN_GROUP_MESSAGE_SERVER_IDS = "open_group_message_server_ids"
+        private val KEY_OPEN_GROUP_ID = "open_group_id"
+    }
+
+    private class ParsedMessage(val parameters: Parameters, val message: Message, val proto: SignalServiceProtos.Content)
+
+    override fun execute() {
+        val isRetry = failureCount != 0
+        // Decrypt and parse in parallel on the crypto threads
+        val futures = messages.map { parameters ->
+            ThreadUtils.cryptoExecutor.submit(Callable { MessageReceiver.parse(parameters.data, parameters.openGroupMessageServerID, isRetry) })
+        }
+        val parsedMessages = mutableListOf<ParsedMessage>()
+        val failedMessages = mutableListOf<Parameters>()
+        var lastError: Exception? = null
+        fun handleError(parameters: Parameters, exception: Exception) {
+            val error = exception as? MessageReceiver.Error
+            if (error != null && !error.isRetryable) {
+                Log.d("Loki", "Couldn't receive message due to error: $error.")
+            } else {
+                Log.d("Loki", "Couldn't receive message due to error: $exception.")
+                failedMessages.add(parameters)
+                lastError = exception
+            }
+        }
+        messages.forEachIndexed { index, parameters ->
+            try {
+                val (message, proto) = futures[index].get()
+                parsedMessages.add(ParsedMessage(parameters, message, proto))
+            } catch (exception: ExecutionException) {
+                handleError(parameters, exception.cause as? Exception ?: exception)
+            }
+        }
+        // Handle all messages in a single transaction, in the order they were received. If anything goes wrong the whole
+        // transaction is rolled back and the messages are handled one by one instead, so that a single bad message
+        // doesn't hold up the rest of the batch.
+        var sideEffects = ReceivedMessageSideEffects()
+        try {
+            MessagingConfiguration.shared.storage.runInTransaction {
+                handleMessages(parsedMessages, sideEffects) { _, exception -> throw exception }
+            }
+        } catch (exception: Exception) {
+            Log.d("Loki", "Couldn't receive messages in a single transaction due to error: $exception.")
+            sideEffects = ReceivedMessageSideEffects()
+            handleMessages(parsedMessages, sideEffects) { parsedMessage, exception -> handleError(parsedMessage.parameters, exception) }
+        }
+        sideEffects.perform()
+        val error = lastError
+        if (error == null) {
+            handleSuccess()
+        } else {
+            Log.d("Loki", "Couldn't receive ${failedMessages.size} of ${messages.size} message(s); scheduling retry.")
+            messages = failedMessages
+            handleFailure(error)
+        }
+    }
+
+    private fun handleMessages(parsedMessages: List<ParsedMessage>, sideEffects: ReceivedMessageSideEffects, onError: (ParsedMessage, Exception) -> Unit) {
+        // Envelopes in the same batch hadn't been persisted yet when they were checked for duplicates while parsing
+        val handledMessages = mutableSetOf<Pair<Long?, String?>>()
+        parsedMessages.forEach { parsedMessage ->
+            val message = parsedMessage.message
+            if (!handledMessages.add(Pair(message.sentTimestamp, message.sender))) {
+                return@forEach Log.d("Loki", "Ignoring duplicate message in batch.")
+            }
+            try {
+                MessageReceiver.handle(message, parsedMessage.proto, openGroupID, sideEffects)
+            } catch (exception: Exception) {
+                onError(parsedMessage, exception)
+            }
+        }
+    }
+
+    private fun handleSuccess() {
+        delegate?.handleJobSucceeded(this)
+    }
+
+    private fun handleFailure(e: Exception) {
+        delegate?.handleJobFailed(this, e)
+    }
+
+    //database functions
+
+    override fun serialize(): Data {
+        val messages = this.messages
+        val builder = Data.Builder().putInt(KEY_MESSAGE_COUNT, messages.size)
+        messages.forEachIndexed { index, parameters -> builder.putByteArray("$KEY_MESSAGE$index", parameters.data) }
+        if (openGroupID != null) {
+            builder.putLongArray(KEY_OPEN_GROUP_MESSAGE_SERVER_IDS, messages.map { it.openGroupMessageServerID ?: -1 }.toLongArray())
+            builder.putString(KEY_OPEN_GROUP_ID, openGroupID)
+        }
+        return builder.build()
+    }
+
+    override fun getFactoryKey(): String {
+        return KEY
+    }
+
+    class Factory: Job.Factory<BatchMessageReceiveJob> {
+        override fun create(data: Data): BatchMessageReceiveJob {
+            val messages = if (data.hasInt(KEY_MESSAGE_COUNT)) {
+                (0 until data.getInt(KEY_MESSAGE_COUNT)).map { data.getByteArray("$KEY_MESSAGE$it") }
+            } else {
+                data.getStringArray(KEY_MESSAGES).map { Base64.decode(it) }
+            }
+            val openGroupID = if (data.hasString(KEY_OPEN_GROUP_ID)) data.getString(KEY_OPEN_GROUP_ID) else null
+            val openGroupMessageServerIDs = if (openGroupID != null) data.getLongArray(KEY_OPEN_GROUP_MESSAGE_SERVER_IDS) else null
+            val parameters = messages.mapIndexed { index, message ->
+                val openGroupMessageServerID = openGroupMessageServerIDs?.get(index)?.takeIf { it >= 0 }
+                Parameters(message, openGroupMessageServerID)
+            }
+            return BatchMessageReceiveJob(parameters, openGroupID)
+        }
+    }
+}
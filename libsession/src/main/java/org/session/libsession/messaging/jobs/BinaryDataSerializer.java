@@ -0,0 +1,268 @@
+package org.session.libsession.messaging.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes {@link Data} into a compact binary form. Byte arrays (e.g. message envelopes) are stored as is rather
+ * than as base64 inside JSON.
+ *
+ * The format is a version byte followed by one section per non-empty value map. Each section consists of a type tag,
+ * the number of entries and then the entries themselves, with strings and arrays length prefixed.
+ */
+public final class BinaryDataSerializer implements Data.BinarySerializer {
+
+    private static final int     VERSION = 1;
+    private static final Charset UTF_8   = Charset.forName("UTF-8");
+
+    private static final int TYPE_STRING        = 1;
+    private static final int TYPE_STRING_ARRAY  = 2;
+    private static final int TYPE_INT           = 3;
+    private static final int TYPE_INT_ARRAY     = 4;
+    private static final int TYPE_LONG          = 5;
+    private static final int TYPE_LONG_ARRAY    = 6;
+    private static final int TYPE_FLOAT         = 7;
+    private static final int TYPE_FLOAT_ARRAY   = 8;
+    private static final int TYPE_DOUBLE        = 9;
+    private static final int TYPE_DOUBLE_ARRAY  = 10;
+    private static final int TYPE_BOOLEAN       = 11;
+    private static final int TYPE_BOOLEAN_ARRAY = 12;
+    private static final int TYPE_BYTE_ARRAY    = 13;
+
+    @Override
+    public @NonNull byte[] serialize(@NonNull Data data) {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(getSizeEstimate(data));
+            DataOutputStream      out                   = new DataOutputStream(byteArrayOutputStream);
+
+            out.writeByte(VERSION);
+
+            if (writeHeader(out, TYPE_STRING, data.strings)) {
+                for (Map.Entry<String, String> entry : data.strings.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+            }
+            if (writeHeader(out, TYPE_STRING_ARRAY, data.stringArrays)) {
+                for (Map.Entry<String, String[]> entry : data.stringArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (String value : entry.getValue()) writeString(out, value);
+                }
+            }
+            if (writeHeader(out, TYPE_INT, data.integers)) {
+                for (Map.Entry<String, Integer> entry : data.integers.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+            }
+            if (writeHeader(out, TYPE_INT_ARRAY, data.integerArrays)) {
+                for (Map.Entry<String, int[]> entry : data.integerArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (int value : entry.getValue()) out.writeInt(value);
+                }
+            }
+            if (writeHeader(out, TYPE_LONG, data.longs)) {
+                for (Map.Entry<String, Long> entry : data.longs.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            if (writeHeader(out, TYPE_LONG_ARRAY, data.longArrays)) {
+                for (Map.Entry<String, long[]> entry : data.longArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (long value : entry.getValue()) out.writeLong(value);
+                }
+            }
+            if (writeHeader(out, TYPE_FLOAT, data.floats)) {
+                for (Map.Entry<String, Float> entry : data.floats.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeFloat(entry.getValue());
+                }
+            }
+            if (writeHeader(out, TYPE_FLOAT_ARRAY, data.floatArrays)) {
+                for (Map.Entry<String, float[]> entry : data.floatArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (float value : entry.getValue()) out.writeFloat(value);
+                }
+            }
+            if (writeHeader(out, TYPE_DOUBLE, data.doubles)) {
+                for (Map.Entry<String, Double> entry : data.doubles.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeDouble(entry.getValue());
+                }
+            }
+            if (writeHeader(out, TYPE_DOUBLE_ARRAY, data.doubleArrays)) {
+                for (Map.Entry<String, double[]> entry : data.doubleArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (double value : entry.getValue()) out.writeDouble(value);
+                }
+            }
+            if (writeHeader(out, TYPE_BOOLEAN, data.booleans)) {
+                for (Map.Entry<String, Boolean> entry : data.booleans.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeBoolean(entry.getValue());
+                }
+            }
+            if (writeHeader(out, TYPE_BOOLEAN_ARRAY, data.booleanArrays)) {
+                for (Map.Entry<String, boolean[]> entry : data.booleanArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (boolean value : entry.getValue()) out.writeBoolean(value);
+                }
+            }
+            if (writeHeader(out, TYPE_BYTE_ARRAY, data.byteArrays)) {
+                for (Map.Entry<String, byte[]> entry : data.byteArrays.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeBytes(out, entry.getValue());
+                }
+            }
+
+            out.flush();
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public @NonNull Data deserialize(@NonNull byte[] serialized) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+            int version = in.readUnsignedByte();
+            if (version != VERSION) throw new IOException("Unknown version: " + version);
+
+            Data.Builder builder = new Data.Builder();
+
+            while (in.available() > 0) {
+                int type  = in.readUnsignedByte();
+                int count = in.readInt();
+
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in);
+
+                    switch (type) {
+                        case TYPE_STRING:
+                            builder.putString(key, readString(in));
+                            break;
+                        case TYPE_STRING_ARRAY: {
+                            String[] value = new String[in.readInt()];
+                            for (int j = 0; j < value.length; j++) value[j] = readString(in);
+                            builder.putStringArray(key, value);
+                            break;
+                        }
+                        case TYPE_INT:
+                            builder.putInt(key, in.readInt());
+                            break;
+                        case TYPE_INT_ARRAY: {
+                            int[] value = new int[in.readInt()];
+                            for (int j = 0; j < value.length; j++) value[j] = in.readInt();
+                            builder.putIntArray(key, value);
+                            break;
+                        }
+                        case TYPE_LONG:
+                            builder.putLong(key, in.readLong());
+                            break;
+                        case TYPE_LONG_ARRAY: {
+                            long[] value = new long[in.readInt()];
+                            for (int j = 0; j < value.length; j++) value[j] = in.readLong();
+                            builder.putLongArray(key, value);
+                            break;
+                        }
+                        case TYPE_FLOAT:
+                            builder.putFloat(key, in.readFloat());
+                            break;
+                        case TYPE_FLOAT_ARRAY: {
+                            float[] value = new float[in.readInt()];
+                            for (int j = 0; j < value.length; j++) value[j] = in.readFloat();
+                            builder.putFloatArray(key, value);
+                            break;
+                        }
+                        case TYPE_DOUBLE:
+                            builder.putDouble(key, in.readDouble());
+                            break;
+                        case TYPE_DOUBLE_ARRAY: {
+                            double[] value = new double[in.readInt()];
+                            for (int j = 0; j < value.length; j++) value[j] = in.readDouble();
+                            builder.putDoubleArray(key, value);
+                            break;
+                        }
+                        case TYPE_BOOLEAN:
+                            builder.putBoolean(key, in.readBoolean());
+                            break;
+                        case TYPE_BOOLEAN_ARRAY: {
+                            boolean[] value = new boolean[in.readInt()];
+                            for (int j = 0; j < value.length; j++) value[j] = in.readBoolean();
+                            builder.putBooleanArray(key, value);
+                            break;
+                        }
+                        case TYPE_BYTE_ARRAY:
+                            builder.putByteArray(key, readBytes(in));
+                            break;
+                        default:
+                            throw new IOException("Unknown type: " + type);
+                    }
+                }
+            }
+
+            return builder.build();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean writeHeader(@NonNull DataOutputStream out, int type, @NonNull Map<String, ?> values) throws IOException {
+        if (values.isEmpty()) return false;
+        out.writeByte(type);
+        out.writeInt(values.size());
+        return true;
+    }
+
+    private static int getSizeEstimate(@NonNull Data data) {
+        int result = 64;
+        for (byte[] value : data.byteArrays.values()) result += value.length;
+        return result;
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            writeBytes(out, value.getBytes(UTF_8));
+        }
+    }
+
+    private static @Nullable String readString(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeBytes(@NonNull DataOutputStream out, @NonNull byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static @NonNull byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
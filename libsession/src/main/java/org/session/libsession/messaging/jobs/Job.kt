@@ -7,6 +7,12 @@ interface Job {
 
     val maxFailureCount: Int
 
+    /**
+     * Whether the job has handed its work off and will report the outcome to its delegate after `execute()` returns.
+     * The job queue holds on to the job's slot until the outcome is reported.
+     */
+    val isAwaitingOutcome: Boolean get() = false
+
     companion object {
         //keys used for database storage purpose
         private val KEY_ID = "id"
@@ -2,29 +2,66 @@ package org.session.libsession.messaging.jobs
 
 import kotlin.math.min
 import kotlin.math.pow
-import java.util.Timer
 
 import org.session.libsession.messaging.MessagingConfiguration
 
+import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.utilities.logging.Log
-import kotlin.concurrent.schedule
+import java.util.ArrayDeque
+import java.util.IdentityHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.roundToLong
 
-
+/**
+ * Runs jobs on `ThreadUtils.executorPool`, since they often block on the network or on other promises. Jobs of the same
+ * type start in the order they were added, and only a limited number of jobs of each type execute at the same time, so
+ * that e.g. a burst of attachment downloads can't hold up message processing. Failed jobs are retried with exponential
+ * backoff from the shared scheduler.
+ */
 class JobQueue : JobDelegate {
     private var hasResumedPendingJobs = false // Just for debugging
+    private var lastJobID = 0L
+    private val lanes = mutableMapOf<String, Lane>()
+    private val executingJobs = IdentityHashMap<Job, ExecutingJob>()
+    private val scheduledRetryCount = AtomicInteger(0)
+    val metrics = JobQueueMetrics()
 
     companion object {
         val shared: JobQueue by lazy { JobQueue() }
+
+        // region Settings
+        private const val defaultMaxConcurrentJobCount = 4
+        private val maxConcurrentJobCounts = mapOf(
+            // Received messages need to be handled in order
+            MessageReceiveJob.KEY to 1,
+            BatchMessageReceiveJob.KEY to 1,
+            AttachmentDownloadJob.KEY to 2,
+            AttachmentUploadJob.KEY to 2
+        )
+        // endregion
+    }
+
+    private class QueuedJob(val job: Job, val queueTime: Long)
+
+    private class ExecutingJob(val queueTime: Long, val startTime: Long)
+
+    /**
+     * The jobs of a single type that are waiting to execute, and the number of them that are currently executing.
+     */
+    private class Lane(val maxConcurrentJobCount: Int) {
+        val queuedJobs = ArrayDeque<QueuedJob>()
+        var executingJobCount = 0
     }
 
+    // region Public API
     fun add(job: Job) {
         addWithoutExecuting(job)
-        job.execute()
+        enqueue(job)
     }
 
     fun addWithoutExecuting(job: Job) {
-        job.id = System.currentTimeMillis().toString()
+        job.id = getNextJobID()
         MessagingConfiguration.shared.storage.persistJob(job)
         job.delegate = this
     }
@@ -35,45 +72,136 @@ class JobQueue : JobDelegate {
             return
         }
         hasResumedPendingJobs = true
-        val allJobTypes = listOf(AttachmentDownloadJob.KEY, AttachmentDownloadJob.KEY, MessageReceiveJob.KEY, MessageSendJob.KEY, NotifyPNServerJob.KEY)
-        allJobTypes.forEach { type ->
-            val allPendingJobs = MessagingConfiguration.shared.storage.getAllPendingJobs(type)
-            allPendingJobs.sortedBy { it.id }.forEach { job ->
-                Log.i("Jobs", "Resuming pending job of type: ${job::class.simpleName}.")
-                job.delegate = this
-                job.execute()
-            }
+        val allJobTypes = SessionJobManagerFactories.getSessionJobKeys()
+        val allPendingJobs = allJobTypes.flatMap { MessagingConfiguration.shared.storage.getAllPendingJobs(it) }
+        val maxJobID = allPendingJobs.mapNotNull { it.id?.toLongOrNull() }.maxOrNull()
+        if (maxJobID != null) { synchronized(this) { lastJobID = Math.max(lastJobID, maxJobID) } }
+        allPendingJobs.sortedBy { it.id?.toLongOrNull() ?: 0L }.forEach { job ->
+            Log.i("Jobs", "Resuming pending job of type: ${job::class.simpleName}.")
+            job.delegate = this
+            enqueue(job)
         }
     }
 
+    /**
+     * The number of jobs that are waiting to execute, not counting the ones waiting for a retry.
+     */
+    val queuedJobCount: Int get() = synchronized(this) { lanes.values.sumBy { it.queuedJobs.size } }
+
+    fun getQueuedJobCount(type: String): Int {
+        return synchronized(this) { lanes[type]?.queuedJobs?.size ?: 0 }
+    }
+
+    val executingJobCount: Int get() = synchronized(this) { lanes.values.sumBy { it.executingJobCount } }
+
+    /**
+     * The number of failed jobs that are waiting for their next attempt.
+     */
+    val retryingJobCount: Int get() = scheduledRetryCount.get()
+
     override fun handleJobSucceeded(job: Job) {
+        finishExecution(job)
         MessagingConfiguration.shared.storage.markJobAsSucceeded(job)
     }
 
     override fun handleJobFailed(job: Job, error: Exception) {
+        finishExecution(job)
         job.failureCount += 1
+        metrics.recordFailure()
         val storage = MessagingConfiguration.shared.storage
         if (storage.isJobCanceled(job)) { return Log.i("Jobs", "${job::class.simpleName} canceled.")}
         storage.persistJob(job)
-        if (job.failureCount == job.maxFailureCount) {
+        if (job.failureCount >= job.maxFailureCount) {
             storage.markJobAsFailed(job)
         } else {
             val retryInterval = getRetryInterval(job)
             Log.i("Jobs", "${job::class.simpleName} failed; scheduling retry (failure count is ${job.failureCount}).")
-            Timer().schedule(delay = retryInterval) {
+            scheduledRetryCount.incrementAndGet()
+            ThreadUtils.scheduler.schedule({
+                scheduledRetryCount.decrementAndGet()
                 Log.i("Jobs", "Retrying ${job::class.simpleName}.")
-                job.execute()
-            }
+                enqueue(job)
+            }, retryInterval, TimeUnit.MILLISECONDS)
         }
     }
 
     override fun handleJobFailedPermanently(job: Job, error: Exception) {
+        finishExecution(job)
         job.failureCount += 1
+        metrics.recordFailure()
         val storage = MessagingConfiguration.shared.storage
         storage.persistJob(job)
         storage.markJobAsFailed(job)
     }
 
+    override fun toString(): String {
+        return "queued: $queuedJobCount, executing: $executingJobCount, retrying: $retryingJobCount, $metrics"
+    }
+    // endregion
+
+    // region Private API
+    /**
+     * Returns a unique ID that's greater than all previous ones, even if several jobs are added in the same millisecond.
+     * Jobs are resumed in ID order.
+     */
+    private fun getNextJobID(): String {
+        synchronized(this) {
+            lastJobID = Math.max(System.currentTimeMillis(), lastJobID + 1)
+            return lastJobID.toString()
+        }
+    }
+
+    private fun enqueue(job: Job) {
+        val type = job.getFactoryKey()
+        synchronized(this) {
+            val lane = lanes.getOrPut(type) { Lane(maxConcurrentJobCounts[type] ?: defaultMaxConcurrentJobCount) }
+            lane.queuedJobs.addLast(QueuedJob(job, System.currentTimeMillis()))
+        }
+        dispatch(type)
+    }
+
+    private fun dispatch(type: String) {
+        val jobsToExecute = mutableListOf<QueuedJob>()
+        synchronized(this) {
+            val lane = lanes[type] ?: return
+            while (lane.executingJobCount < lane.maxConcurrentJobCount) {
+                val queuedJob = lane.queuedJobs.pollFirst() ?: break
+                lane.executingJobCount += 1
+                jobsToExecute.add(queuedJob)
+            }
+        }
+        jobsToExecute.forEach { queuedJob -> ThreadUtils.executorPool.execute { execute(queuedJob) } }
+    }
+
+    private fun execute(queuedJob: QueuedJob) {
+        val job = queuedJob.job
+        synchronized(this) { executingJobs[job] = ExecutingJob(queuedJob.queueTime, System.currentTimeMillis()) }
+        try {
+            job.execute()
+            if (!job.isAwaitingOutcome) { finishExecution(job) }
+        } catch (exception: Exception) {
+            Log.d("Loki", "Couldn't execute ${job::class.simpleName} due to error: $exception.")
+            handleJobFailed(job, exception)
+        }
+    }
+
+    /**
+     * Frees up the slot of a job that was started by this queue. Called once the job has reported its outcome, or once
+     * `execute()` returns if the job doesn't report one later. Does nothing if the job's slot was already freed, or if
+     * the job was executed outside of the queue.
+     */
+    private fun finishExecution(job: Job) {
+        val type = job.getFactoryKey()
+        val executingJob = synchronized(this) {
+            val executingJob = executingJobs.remove(job) ?: return
+            lanes[type]?.let { it.executingJobCount -= 1 }
+            executingJob
+        }
+        val end = System.currentTimeMillis()
+        metrics.recordExecution(executingJob.startTime - executingJob.queueTime, end - executingJob.startTime)
+        dispatch(type)
+    }
+
     private fun getRetryInterval(job: Job): Long {
         // Arbitrary backoff factor...
         // try  1 delay: 0.5s
@@ -85,4 +213,5 @@ class JobQueue : JobDelegate {
         val maxBackoff = (10 * 60).toDouble() // 10 minutes
         return (1000 * 0.25 * min(maxBackoff, (2.0).pow(job.failureCount))).roundToLong()
     }
-}
\ No newline at end of file
+    // endregion
+}
@@ -0,0 +1,50 @@
+package org.session.libsession.messaging.jobs
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps track of how long jobs wait before they start executing, how long `Job.execute()` takes and how often jobs fail.
+ */
+class JobQueueMetrics {
+    private val executionCount = AtomicLong(0)
+    private val failureCount = AtomicLong(0)
+    private val totalWaitTime = AtomicLong(0)
+    private val maxWaitTime = AtomicLong(0)
+    private val totalExecutionTime = AtomicLong(0)
+
+    /**
+     * The average time in milliseconds between a job being queued (or becoming due for a retry) and it starting to
+     * execute.
+     */
+    val averageWaitTime: Long get() {
+        val executionCount = executionCount.get()
+        return if (executionCount > 0) totalWaitTime.get() / executionCount else 0
+    }
+
+    /**
+     * The average duration of `Job.execute()` in milliseconds. Asynchronous work started by a job isn't included.
+     */
+    val averageExecutionTime: Long get() {
+        val executionCount = executionCount.get()
+        return if (executionCount > 0) totalExecutionTime.get() / executionCount else 0
+    }
+
+    fun recordExecution(waitTime: Long, executionTime: Long) {
+        executionCount.incrementAndGet()
+        totalWaitTime.addAndGet(waitTime)
+        totalExecutionTime.addAndGet(executionTime)
+        while (true) {
+            val maxWaitTime = maxWaitTime.get()
+            if (waitTime <= maxWaitTime || this.maxWaitTime.compareAndSet(maxWaitTime, waitTime)) { break }
+        }
+    }
+
+    fun recordFailure() {
+        failureCount.incrementAndGet()
+    }
+
+    override fun toString(): String {
+        return String.format("executions: %d, failures: %d, average wait: %d ms, max wait: %d ms, average execution: %d ms",
+            executionCount.get(), failureCount.get(), averageWaitTime, maxWaitTime.get(), averageExecutionTime)
+    }
+}
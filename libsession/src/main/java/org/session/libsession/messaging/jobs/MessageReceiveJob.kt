@@ -16,7 +16,7 @@ class MessageReceiveJob(val data: ByteArray, val isBackgroundPoll: Boolean, val
     override val maxFailureCount: Int = 10
     companion object {
         val TAG = MessageReceiveJob::class.qualifiedName
-        val KEY: String = "AttachmentUploadJob"
+        val KEY: String = "MessageReceiveJob"
 
         //keys used for database storage purpose
         private val KEY_DATA = "data"
@@ -75,7 +75,7 @@ class MessageReceiveJob(val data: ByteArray, val isBackgroundPoll: Boolean, val
     }
 
     override fun getFactoryKey(): String {
-        return AttachmentDownloadJob.KEY
+        return KEY
     }
 
     class Factory: Job.Factory<MessageReceiveJob> {
@@ -15,6 +15,8 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
     override var delegate: JobDelegate? = null
     override var id: String? = null
     override var failureCount: Int = 0
+    override var isAwaitingOutcome: Boolean = false
+        private set
 
     // Settings
     override val maxFailureCount: Int = 10
@@ -28,6 +30,7 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
     }
 
     override fun execute() {
+        isAwaitingOutcome = false
         val messageDataProvider = MessagingConfiguration.shared.messageDataProvider
         val message = message as? VisibleMessage
         message?.let {
@@ -35,7 +38,7 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
             val attachments = message.attachmentIDs.map { messageDataProvider.getAttachmentStream(it) }.filterNotNull()
             val attachmentsToUpload = attachments.filter { !it.isUploaded }
             attachmentsToUpload.forEach {
-                if(MessagingConfiguration.shared.storage.getAttachmentUploadJob(it.attachmentId) != null) {
+                if(MessagingConfiguration.shared.storage.hasAttachmentUploadJob(it.attachmentId)) {
                     // Wait for it to finish
                 } else {
                     val job = AttachmentUploadJob(it.attachmentId, message.threadID!!.toString(), message, id!!)
@@ -44,6 +47,7 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
             }
             if (attachmentsToUpload.isNotEmpty()) return // Wait for all attachments to upload before continuing
         }
+        isAwaitingOutcome = true
         MessageSender.send(this.message, this.destination).success {
             this.handleSuccess()
         }.fail { exception ->
@@ -68,7 +72,7 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
         Log.w(TAG, "Failed to send $message::class.simpleName.")
         val message = message as? VisibleMessage
         message?.let {
-            if(!MessagingConfiguration.shared.messageDataProvider.isOutgoingMessage(message.sentTimestamp!!)) return // The message has been deleted
+            if(!MessagingConfiguration.shared.messageDataProvider.isOutgoingMessage(message.sentTimestamp!!)) return handleSuccess() // The message has been deleted; there's nothing left to send
         }
         delegate?.handleJobFailed(this, error)
     }
@@ -79,21 +83,22 @@ class MessageSendJob(val message: Message, val destination: Destination) : Job {
         //serialize Message and Destination properties
         val kryo = Kryo()
         kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val serializedDestination = ByteArray(4096)
-        var output = Output(serializedMessage)
+        // Only keep the bytes that were actually written, rather than the whole buffer
+        var output = Output(4096, -1)
         kryo.writeObject(output, message)
         output.close()
-        output = Output(serializedDestination)
+        val serializedMessage = output.toBytes()
+        output = Output(1024, -1)
         kryo.writeObject(output, destination)
         output.close()
+        val serializedDestination = output.toBytes()
         return Data.Builder().putByteArray(KEY_MESSAGE, serializedMessage)
                 .putByteArray(KEY_DESTINATION, serializedDestination)
                 .build();
     }
 
     override fun getFactoryKey(): String {
-        return AttachmentDownloadJob.KEY
+        return KEY
     }
 
     class Factory: Job.Factory<MessageSendJob> {
@@ -23,6 +23,7 @@ class NotifyPNServerJob(val message: SnodeMessage) : Job {
 
     // Settings
     override val maxFailureCount: Int = 20
+    override val isAwaitingOutcome: Boolean = true
     companion object {
         val KEY: String = "NotifyPNServerJob"
 
@@ -67,16 +68,17 @@ class NotifyPNServerJob(val message: SnodeMessage) : Job {
         //serialize SnodeMessage property
         val kryo = Kryo()
         kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val output = Output(serializedMessage)
+        // Only keep the bytes that were actually written, rather than the whole buffer
+        val output = Output(4096, -1)
         kryo.writeObject(output, message)
         output.close()
+        val serializedMessage = output.toBytes()
         return Data.Builder().putByteArray(KEY_MESSAGE, serializedMessage)
                 .build();
     }
 
     override fun getFactoryKey(): String {
-        return AttachmentDownloadJob.KEY
+        return KEY
     }
 
     class Factory: Job.Factory<NotifyPNServerJob> {
@@ -1,18 +1,26 @@
 package org.session.libsession.messaging.jobs
 
-import java.util.*
-
 class SessionJobManagerFactories {
 
     companion object {
+        private val factories: List<Pair<String, Job.Factory<out Job>>> = listOf(
+            AttachmentDownloadJob.KEY to AttachmentDownloadJob.Factory(),
+            AttachmentUploadJob.KEY to AttachmentUploadJob.Factory(),
+            MessageReceiveJob.KEY to MessageReceiveJob.Factory(),
+            BatchMessageReceiveJob.KEY to BatchMessageReceiveJob.Factory(),
+            MessageSendJob.KEY to MessageSendJob.Factory(),
+            NotifyPNServerJob.KEY to NotifyPNServerJob.Factory()
+        )
+
         fun getSessionJobFactories(): Map<String, Job.Factory<out Job>> {
-            return mapOf(
-                AttachmentDownloadJob.KEY to AttachmentDownloadJob.Factory(),
-                AttachmentUploadJob.KEY to AttachmentUploadJob.Factory(),
-                MessageReceiveJob.KEY to MessageReceiveJob.Factory(),
-                MessageSendJob.KEY to MessageSendJob.Factory(),
-                NotifyPNServerJob.KEY to NotifyPNServerJob.Factory()
-            )
+            return factories.toMap()
+        }
+
+        /**
+         * The keys of all registered job types, in registration order. Each key identifies exactly one job type.
+         */
+        fun getSessionJobKeys(): List<String> {
+            return factories.map { it.first }
         }
     }
 }
\ No newline at end of file
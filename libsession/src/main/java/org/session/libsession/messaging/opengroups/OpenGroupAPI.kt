@@ -12,7 +12,6 @@ import org.session.libsession.messaging.fileserver.FileServerAPI
 
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.*
-import org.session.libsignal.service.loki.utilities.DownloadUtilities
 import org.session.libsignal.service.loki.utilities.retryIfNeeded
 import org.session.libsignal.utilities.Base64
 import java.io.ByteArrayOutputStream
@@ -192,7 +191,7 @@ object OpenGroupAPI: DotNetAPI() {
         val storage = MessagingConfiguration.shared.storage
         val userKeyPair = storage.getUserKeyPair() ?: throw Error.Generic
         val userDisplayName = storage.getUserDisplayName() ?: throw Error.Generic
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.cryptoExecutor) {
             val signedMessage = message.sign(userKeyPair.second)
             if (signedMessage == null) {
                 deferred.reject(Error.SigningFailed)
@@ -311,7 +310,7 @@ object OpenGroupAPI: DotNetAPI() {
         Log.d("Loki", "Downloading open group profile picture from \"$url\".")
         val outputStream = ByteArrayOutputStream()
         try {
-            DownloadUtilities.downloadFile(outputStream, url, FileServerAPI.maxFileSize, null)
+            FileServerAPI.shared.downloadFile(outputStream, url, FileServerAPI.maxFileSize, null)
             Log.d("Loki", "Open group profile picture was successfully loaded from \"$url\"")
             return outputStream.toByteArray()
         } catch (e: Exception) {
@@ -0,0 +1,112 @@
+package org.session.libsession.messaging.sending_receiving
+
+import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsignal.libsignal.ecc.ECKeyPair
+import org.session.libsignal.utilities.ThreadUtils
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+
+/**
+ * Caches the encryption key pairs of closed groups (newest first) so that they don't have to be loaded from the
+ * database for every message, along with the key pair that most recently decrypted a message for each group.
+ *
+ * Messages are decrypted with that key pair first. If that fails the remaining key pairs are tried in parallel, which
+ * matters for groups that have gone through many key rotations. Those run on `ThreadUtils.cryptoExecutor`.
+ */
+object ClosedGroupKeyRing {
+
+    private class Entry(val keyPairs: List<ECKeyPair>) {
+        @Volatile var lastUsedKeyPair: ECKeyPair? = null
+    }
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private var generation = 0L
+
+    // region Public API
+    /**
+     * Returns the plaintext and sender of `ciphertext`, or throws the error of the last key pair that was tried.
+     */
+    fun decrypt(ciphertext: ByteArray, groupPublicKey: String): Pair<ByteArray, String> {
+        val entry = getEntry(groupPublicKey)
+        if (entry.keyPairs.isEmpty()) { throw MessageReceiver.Error.NoGroupKeyPair }
+        val preferredKeyPair = entry.lastUsedKeyPair ?: entry.keyPairs.first()
+        var lastError: Exception
+        try {
+            return MessageReceiverDecryption.decryptWithSessionProtocol(ciphertext, preferredKeyPair)
+        } catch (exception: Exception) {
+            lastError = exception
+        }
+        val otherKeyPairs = entry.keyPairs.filter { it !== preferredKeyPair }
+        if (otherKeyPairs.size < 2) {
+            otherKeyPairs.forEach { keyPair ->
+                try {
+                    val result = MessageReceiverDecryption.decryptWithSessionProtocol(ciphertext, keyPair)
+                    entry.lastUsedKeyPair = keyPair
+                    return result
+                } catch (exception: Exception) {
+                    lastError = exception
+                }
+            }
+            throw lastError
+        }
+        val tasks = otherKeyPairs.map { keyPair ->
+            FutureTask(Callable { Pair(keyPair, MessageReceiverDecryption.decryptWithSessionProtocol(ciphertext, keyPair)) })
+        }
+        tasks.forEach { ThreadUtils.cryptoExecutor.execute(it) }
+        try {
+            // This is usually called from a crypto thread itself, so rather than wait for the tasks to get a free thread,
+            // run the ones that haven't started yet here (running a task that has already started does nothing)
+            for (task in tasks) {
+                task.run()
+                if (!task.isDone) { continue }
+                try {
+                    val (keyPair, result) = task.get()
+                    entry.lastUsedKeyPair = keyPair
+                    return result
+                } catch (exception: ExecutionException) {
+                    lastError = exception.cause as? Exception ?: exception
+                }
+            }
+            // Wait for the ones that were running elsewhere
+            for (task in tasks) {
+                try {
+                    val (keyPair, result) = task.get()
+                    entry.lastUsedKeyPair = keyPair
+                    return result
+                } catch (exception: ExecutionException) {
+                    lastError = exception.cause as? Exception ?: exception
+                }
+            }
+        } finally {
+            tasks.forEach { it.cancel(false) }
+        }
+        throw lastError
+    }
+
+    /**
+     * Should be called whenever the key pairs of `groupPublicKey` change.
+     */
+    fun invalidate(groupPublicKey: String) {
+        synchronized(this) {
+            generation += 1
+            entries.remove(groupPublicKey)
+        }
+    }
+    // endregion
+
+    // region Private API
+    private fun getEntry(groupPublicKey: String): Entry {
+        entries[groupPublicKey]?.let { return it }
+        val generation = synchronized(this) { this.generation }
+        val keyPairs = MessagingConfiguration.shared.storage.getClosedGroupEncryptionKeyPairs(groupPublicKey).asReversed().toList()
+        val entry = Entry(keyPairs)
+        synchronized(this) {
+            // Don't cache key pairs that were loaded before the group's key pairs last changed
+            if (this.generation == generation) { return entries.putIfAbsent(groupPublicKey, entry) ?: entry }
+        }
+        return entry
+    }
+    // endregion
+}
@@ -73,27 +73,11 @@ object MessageReceiver {
                     if (hexEncodedGroupPublicKey == null || MessagingConfiguration.shared.storage.isClosedGroup(hexEncodedGroupPublicKey)) {
                         throw Error.InvalidGroupPublicKey
                     }
-                    val encryptionKeyPairs = MessagingConfiguration.shared.storage.getClosedGroupEncryptionKeyPairs(hexEncodedGroupPublicKey)
-                    if (encryptionKeyPairs.isEmpty()) { throw Error.NoGroupKeyPair }
-                    // Loop through all known group key pairs in reverse order (i.e. try the latest key pair first (which'll more than
-                    // likely be the one we want) but try older ones in case that didn't work)
-                    var encryptionKeyPair = encryptionKeyPairs.removeLast()
-                    fun decrypt() {
-                        try {
-                            val decryptionResult = MessageReceiverDecryption.decryptWithSessionProtocol(ciphertext.toByteArray(), encryptionKeyPair)
-                            plaintext = decryptionResult.first
-                            sender = decryptionResult.second
-                        } catch (e: Exception) {
-                            if (encryptionKeyPairs.isNotEmpty()) {
-                                encryptionKeyPair = encryptionKeyPairs.removeLast()
-                                decrypt()
-                            } else {
-                                throw e
-                            }
-                        }
-                    }
+                    // Try the key pair that last worked for this group (usually the latest one) first, and the others after that
+                    val decryptionResult = ClosedGroupKeyRing.decrypt(ciphertext.toByteArray(), hexEncodedGroupPublicKey)
+                    plaintext = decryptionResult.first
+                    sender = decryptionResult.second
                     groupPublicKey = envelope.source
-                    decrypt()
 //                    try {
 //                        decrypt()
 //                    } catch(error: Exception) {
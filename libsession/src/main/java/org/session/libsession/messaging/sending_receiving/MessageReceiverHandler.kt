@@ -37,14 +37,55 @@ internal fun MessageReceiver.isBlock(publicKey: String): Boolean {
     return recipient.isBlocked
 }
 
-fun MessageReceiver.handle(message: Message, proto: SignalServiceProtos.Content, openGroupID: String?) {
+/**
+ * Collects side effects of handling messages that shouldn't run while a batch of messages is being committed to the
+ * database, so that they can be performed once the batch's transaction has ended. Anything that can't be rolled back
+ * along with the transaction (sending messages, (un)subscribing from push notifications, writing preferences and
+ * enqueueing jobs) belongs here, as a batch that's rolled back is handled again one message at a time.
+ */
+class ReceivedMessageSideEffects {
+    private val threadIDsToNotify = mutableSetOf<Long>()
+    private val attachmentDownloadJobs = mutableListOf<AttachmentDownloadJob>()
+    private val actions = mutableListOf<() -> Unit>()
+
+    internal fun updateNotification(threadID: Long) { threadIDsToNotify.add(threadID) }
+
+    internal fun addAttachmentDownloadJob(job: AttachmentDownloadJob) { attachmentDownloadJobs.add(job) }
+
+    internal fun add(action: () -> Unit) { actions.add(action) }
+
+    fun perform() {
+        val context = MessagingConfiguration.shared.context
+        actions.forEach { action ->
+            try {
+                action()
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't perform side effect of received message due to error: $exception.")
+            }
+        }
+        threadIDsToNotify.forEach { SSKEnvironment.shared.notificationManager.updateNotification(context, it) }
+        attachmentDownloadJobs.forEach { JobQueue.shared.add(it) }
+        actions.clear()
+        threadIDsToNotify.clear()
+        attachmentDownloadJobs.clear()
+    }
+}
+
+/**
+ * Performs `action` right away, or once the batch's transaction has ended if `sideEffects` is given.
+ */
+private fun ReceivedMessageSideEffects?.performOrDefer(action: () -> Unit) {
+    if (this != null) add(action) else action()
+}
+
+fun MessageReceiver.handle(message: Message, proto: SignalServiceProtos.Content, openGroupID: String?, sideEffects: ReceivedMessageSideEffects? = null) {
     when (message) {
         is ReadReceipt -> handleReadReceipt(message)
         is TypingIndicator -> handleTypingIndicator(message)
-        is ClosedGroupControlMessage -> handleClosedGroupControlMessage(message)
+        is ClosedGroupControlMessage -> handleClosedGroupControlMessage(message, sideEffects)
         is ExpirationTimerUpdate -> handleExpirationTimerUpdate(message, proto)
-        is ConfigurationMessage -> handleConfigurationMessage(message)
-        is VisibleMessage -> handleVisibleMessage(message, proto, openGroupID)
+        is ConfigurationMessage -> handleConfigurationMessage(message, sideEffects)
+        is VisibleMessage -> handleVisibleMessage(message, proto, openGroupID, sideEffects)
     }
 }
 
@@ -102,7 +143,7 @@ fun MessageReceiver.disableExpirationTimer(message: ExpirationTimerUpdate, proto
     SSKEnvironment.shared.messageExpirationManager.disableExpirationTimer(id, senderPublicKey, proto)
 }
 
-private fun MessageReceiver.handleConfigurationMessage(message: ConfigurationMessage) {
+private fun MessageReceiver.handleConfigurationMessage(message: ConfigurationMessage, sideEffects: ReceivedMessageSideEffects?) {
     val context = MessagingConfiguration.shared.context
     val storage = MessagingConfiguration.shared.storage
     if (TextSecurePreferences.getConfigurationMessageSynced(context)) return
@@ -110,7 +151,7 @@ private fun MessageReceiver.handleConfigurationMessage(message: ConfigurationMes
     val allClosedGroupPublicKeys = storage.getAllClosedGroupPublicKeys()
     for (closeGroup in message.closedGroups) {
         if (allClosedGroupPublicKeys.contains(closeGroup.publicKey)) continue
-        handleNewClosedGroup(message.sender!!, closeGroup.publicKey, closeGroup.name, closeGroup.encryptionKeyPair, closeGroup.members, closeGroup.admins, message.sentTimestamp!!)
+        handleNewClosedGroup(message.sender!!, closeGroup.publicKey, closeGroup.name, closeGroup.encryptionKeyPair, closeGroup.members, closeGroup.admins, message.sentTimestamp!!, sideEffects)
     }
     val allOpenGroups = storage.getAllOpenGroups().map { it.value.server }
     for (openGroup in message.openGroups) {
@@ -118,10 +159,10 @@ private fun MessageReceiver.handleConfigurationMessage(message: ConfigurationMes
         storage.addOpenGroup(openGroup, 1)
     }
     // TODO: in future handle the latest in config messages
-    TextSecurePreferences.setConfigurationMessageSynced(context, true)
+    sideEffects.performOrDefer { TextSecurePreferences.setConfigurationMessageSynced(context, true) }
 }
 
-fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalServiceProtos.Content, openGroupID: String?) {
+fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalServiceProtos.Content, openGroupID: String?, sideEffects: ReceivedMessageSideEffects? = null) {
     val storage = MessagingConfiguration.shared.storage
     val context = MessagingConfiguration.shared.context
     // Parse & persist attachments
@@ -145,16 +186,16 @@ fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalS
         val userPublicKey = storage.getUserPublicKey()
         if (userPublicKey == message.sender) {
             // Update the user's local name if the message came from their master device
-            TextSecurePreferences.setProfileName(context, displayName)
+            sideEffects.performOrDefer { TextSecurePreferences.setProfileName(context, displayName) }
         }
         profileManager.setDisplayName(context, recipient, displayName)
         if (recipient.profileKey == null || !MessageDigest.isEqual(recipient.profileKey, newProfile.profileKey)) {
             profileManager.setProfileKey(context, recipient, newProfile.profileKey!!)
             profileManager.setUnidentifiedAccessMode(context, recipient, Recipient.UnidentifiedAccessMode.UNKNOWN)
             val url = newProfile.profilePictureURL.orEmpty()
-            profileManager.setProfilePictureURL(context, recipient, url)
+            sideEffects.performOrDefer { profileManager.setProfilePictureURL(context, recipient, url) }
             if (userPublicKey == message.sender) {
-                profileManager.updateOpenGroupProfilePicturesIfNeeded(context)
+                sideEffects.performOrDefer { profileManager.updateOpenGroupProfilePicturesIfNeeded(context) }
             }
         }
     }
@@ -196,37 +237,45 @@ fun MessageReceiver.handleVisibleMessage(message: VisibleMessage, proto: SignalS
     // Start attachment downloads if needed
     attachmentsToDownload.forEach { attachmentID ->
         val downloadJob = AttachmentDownloadJob(attachmentID, messageID)
-        JobQueue.shared.add(downloadJob)
+        if (sideEffects != null) {
+            sideEffects.addAttachmentDownloadJob(downloadJob)
+        } else {
+            JobQueue.shared.add(downloadJob)
+        }
     }
     // Cancel any typing indicators if needed
     cancelTypingIndicatorsIfNeeded(message.sender!!)
     //Notify the user if needed
-    SSKEnvironment.shared.notificationManager.updateNotification(context, threadID)
+    if (sideEffects != null) {
+        sideEffects.updateNotification(threadID)
+    } else {
+        SSKEnvironment.shared.notificationManager.updateNotification(context, threadID)
+    }
 }
 
-private fun MessageReceiver.handleClosedGroupControlMessage(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleClosedGroupControlMessage(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     when (message.kind!!) {
-        is ClosedGroupControlMessage.Kind.New -> handleNewClosedGroup(message)
-        is ClosedGroupControlMessage.Kind.Update -> handleClosedGroupUpdated(message)
+        is ClosedGroupControlMessage.Kind.New -> handleNewClosedGroup(message, sideEffects)
+        is ClosedGroupControlMessage.Kind.Update -> handleClosedGroupUpdated(message, sideEffects)
         is ClosedGroupControlMessage.Kind.EncryptionKeyPair -> handleClosedGroupEncryptionKeyPair(message)
         is ClosedGroupControlMessage.Kind.NameChange -> handleClosedGroupNameChanged(message)
-        is ClosedGroupControlMessage.Kind.MembersAdded -> handleClosedGroupMembersAdded(message)
-        is ClosedGroupControlMessage.Kind.MembersRemoved -> handleClosedGroupMembersRemoved(message)
-        ClosedGroupControlMessage.Kind.MemberLeft -> handleClosedGroupMemberLeft(message)
-        ClosedGroupControlMessage.Kind.EncryptionKeyPairRequest -> handleClosedGroupEncryptionKeyPairRequest(message)
+        is ClosedGroupControlMessage.Kind.MembersAdded -> handleClosedGroupMembersAdded(message, sideEffects)
+        is ClosedGroupControlMessage.Kind.MembersRemoved -> handleClosedGroupMembersRemoved(message, sideEffects)
+        ClosedGroupControlMessage.Kind.MemberLeft -> handleClosedGroupMemberLeft(message, sideEffects)
+        ClosedGroupControlMessage.Kind.EncryptionKeyPairRequest -> handleClosedGroupEncryptionKeyPairRequest(message, sideEffects)
     }
 }
 
-private fun MessageReceiver.handleNewClosedGroup(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleNewClosedGroup(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     val kind = message.kind!! as? ClosedGroupControlMessage.Kind.New ?: return
     val groupPublicKey = kind.publicKey.toByteArray().toHexString()
     val members = kind.members.map { it.toByteArray().toHexString() }
     val admins = kind.admins.map { it.toByteArray().toHexString() }
-    handleNewClosedGroup(message.sender!!, groupPublicKey, kind.name, kind.encryptionKeyPair, members, admins, message.sentTimestamp!!)
+    handleNewClosedGroup(message.sender!!, groupPublicKey, kind.name, kind.encryptionKeyPair, members, admins, message.sentTimestamp!!, sideEffects)
 }
 
 // Parameter @sender:String is just for inserting incoming info message
-private fun handleNewClosedGroup(sender: String, groupPublicKey: String, name: String, encryptionKeyPair: ECKeyPair, members: List<String>, admins: List<String>, formationTimestamp: Long) {
+private fun handleNewClosedGroup(sender: String, groupPublicKey: String, name: String, encryptionKeyPair: ECKeyPair, members: List<String>, admins: List<String>, formationTimestamp: Long, sideEffects: ReceivedMessageSideEffects?) {
     val context = MessagingConfiguration.shared.context
     val storage = MessagingConfiguration.shared.storage
     // Create the group
@@ -247,10 +296,13 @@ private fun handleNewClosedGroup(sender: String, groupPublicKey: String, name: S
     // Store the encryption key pair
     storage.addClosedGroupEncryptionKeyPair(encryptionKeyPair, groupPublicKey)
     // Notify the PN server
-    PushNotificationAPI.performOperation(PushNotificationAPI.ClosedGroupOperation.Subscribe, groupPublicKey, storage.getUserPublicKey()!!)
+    val userPublicKey = storage.getUserPublicKey()!!
+    sideEffects.performOrDefer {
+        PushNotificationAPI.performOperation(PushNotificationAPI.ClosedGroupOperation.Subscribe, groupPublicKey, userPublicKey)
+    }
 }
 
-private fun MessageReceiver.handleClosedGroupUpdated(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleClosedGroupUpdated(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     // Prepare
     val context = MessagingConfiguration.shared.context
     val storage = MessagingConfiguration.shared.storage
@@ -279,13 +331,13 @@ private fun MessageReceiver.handleClosedGroupUpdated(message: ClosedGroupControl
     // Remove the group from the user's set of public keys to poll for if the current user was removed
     val wasCurrentUserRemoved = !members.contains(userPublicKey)
     if (wasCurrentUserRemoved) {
-        disableLocalGroupAndUnsubscribe(groupPublicKey, groupID, userPublicKey)
+        disableLocalGroupAndUnsubscribe(groupPublicKey, groupID, userPublicKey, sideEffects)
     }
     // Generate and distribute a new encryption key pair if needed
     val wasAnyUserRemoved = (members.toSet().intersect(oldMembers) != oldMembers.toSet())
     val isCurrentUserAdmin = group.admins.map { it.toString() }.contains(userPublicKey)
     if (wasAnyUserRemoved && isCurrentUserAdmin) {
-        MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey, members)
+        sideEffects.performOrDefer { MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey, members) }
     }
     // Update the group
     storage.updateTitle(groupID, name)
@@ -359,7 +411,7 @@ private fun MessageReceiver.handleClosedGroupNameChanged(message: ClosedGroupCon
     storage.insertIncomingInfoMessage(context, senderPublicKey, groupID, SignalServiceProtos.GroupContext.Type.UPDATE, SignalServiceGroup.Type.UPDATE, name, members, admins)
 }
 
-private fun MessageReceiver.handleClosedGroupMembersAdded(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleClosedGroupMembersAdded(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     val context = MessagingConfiguration.shared.context
     val storage = MessagingConfiguration.shared.storage
     val senderPublicKey = message.sender ?: return
@@ -385,13 +437,13 @@ private fun MessageReceiver.handleClosedGroupMembersAdded(message: ClosedGroupCo
     val isCurrentUserAdmin = admins.contains(storage.getUserPublicKey()!!)
     if (isCurrentUserAdmin) {
         for (member in updateMembers) {
-            MessageSender.sendLatestEncryptionKeyPair(member, groupPublicKey)
+            sideEffects.performOrDefer { MessageSender.sendLatestEncryptionKeyPair(member, groupPublicKey) }
         }
     }
     storage.insertIncomingInfoMessage(context, senderPublicKey, groupID, SignalServiceProtos.GroupContext.Type.UPDATE, SignalServiceGroup.Type.UPDATE, name, members, admins)
 }
 
-private fun MessageReceiver.handleClosedGroupMembersRemoved(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleClosedGroupMembersRemoved(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     val context = MessagingConfiguration.shared.context
     val storage = MessagingConfiguration.shared.storage
     val userPublicKey = storage.getUserPublicKey()!!
@@ -425,12 +477,12 @@ private fun MessageReceiver.handleClosedGroupMembersRemoved(message: ClosedGroup
 
     // admin should send a MEMBERS_LEFT message but handled here in case
     if (didAdminLeave || wasCurrentUserRemoved) {
-        disableLocalGroupAndUnsubscribe(groupPublicKey, groupID, userPublicKey)
+        disableLocalGroupAndUnsubscribe(groupPublicKey, groupID, userPublicKey, sideEffects)
     } else {
         val isCurrentUserAdmin = admins.contains(userPublicKey)
         storage.updateMembers(groupID, newMembers.map { Address.fromSerialized(it) })
         if (isCurrentUserAdmin) {
-            MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey, newMembers)
+            sideEffects.performOrDefer { MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey, newMembers) }
         }
     }
     val (contextType, signalType) =
@@ -440,7 +492,7 @@ private fun MessageReceiver.handleClosedGroupMembersRemoved(message: ClosedGroup
     storage.insertIncomingInfoMessage(context, senderPublicKey, groupID, contextType, signalType, name, members, admins)
 }
 
-private fun MessageReceiver.handleClosedGroupMemberLeft(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleClosedGroupMemberLeft(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     val context = MessagingConfiguration.shared.context
     val storage = MessagingConfiguration.shared.storage
     val senderPublicKey = message.sender ?: return
@@ -464,18 +516,18 @@ private fun MessageReceiver.handleClosedGroupMemberLeft(message: ClosedGroupCont
     val updatedMemberList = members - senderPublicKey
 
     if (didAdminLeave) {
-        disableLocalGroupAndUnsubscribe(groupPublicKey, groupID, userPublicKey)
+        disableLocalGroupAndUnsubscribe(groupPublicKey, groupID, userPublicKey, sideEffects)
     } else {
         val isCurrentUserAdmin = admins.contains(userPublicKey)
         storage.updateMembers(groupID, updatedMemberList.map { Address.fromSerialized(it) })
         if (isCurrentUserAdmin) {
-            MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey, updatedMemberList)
+            sideEffects.performOrDefer { MessageSender.generateAndSendNewEncryptionKeyPair(groupPublicKey, updatedMemberList) }
         }
     }
     storage.insertIncomingInfoMessage(context, senderPublicKey, groupID, SignalServiceProtos.GroupContext.Type.QUIT, SignalServiceGroup.Type.QUIT, name, members, admins)
 }
 
-private fun MessageReceiver.handleClosedGroupEncryptionKeyPairRequest(message: ClosedGroupControlMessage) {
+private fun MessageReceiver.handleClosedGroupEncryptionKeyPairRequest(message: ClosedGroupControlMessage, sideEffects: ReceivedMessageSideEffects?) {
     val storage = MessagingConfiguration.shared.storage
     val senderPublicKey = message.sender ?: return
     val userPublicKey = storage.getUserPublicKey()!!
@@ -491,7 +543,7 @@ private fun MessageReceiver.handleClosedGroupEncryptionKeyPairRequest(message: C
         return
     }
     if (!isValidGroupUpdate(group, message.sentTimestamp!!, senderPublicKey)) { return }
-    MessageSender.sendLatestEncryptionKeyPair(senderPublicKey, groupPublicKey)
+    sideEffects.performOrDefer { MessageSender.sendLatestEncryptionKeyPair(senderPublicKey, groupPublicKey) }
 }
 
 private fun isValidGroupUpdate(group: GroupRecord,
@@ -511,7 +563,7 @@ private fun isValidGroupUpdate(group: GroupRecord,
     return true
 }
 
-fun MessageReceiver.disableLocalGroupAndUnsubscribe(groupPublicKey: String, groupID: String, userPublicKey: String) {
+fun MessageReceiver.disableLocalGroupAndUnsubscribe(groupPublicKey: String, groupID: String, userPublicKey: String, sideEffects: ReceivedMessageSideEffects? = null) {
     val storage = MessagingConfiguration.shared.storage
     storage.removeClosedGroupPublicKey(groupPublicKey)
     // Remove the key pairs
@@ -520,5 +572,7 @@ fun MessageReceiver.disableLocalGroupAndUnsubscribe(groupPublicKey: String, grou
     storage.setActive(groupID, false)
     storage.removeMember(groupID, Address.fromSerialized(userPublicKey))
     // Notify the PN server
-    PushNotificationAPI.performOperation(PushNotificationAPI.ClosedGroupOperation.Unsubscribe, groupPublicKey, userPublicKey)
+    sideEffects.performOrDefer {
+        PushNotificationAPI.performOperation(PushNotificationAPI.ClosedGroupOperation.Unsubscribe, groupPublicKey, userPublicKey)
+    }
 }
\ No newline at end of file
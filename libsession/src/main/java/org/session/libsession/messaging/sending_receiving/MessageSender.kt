@@ -15,6 +15,7 @@ import org.session.libsession.messaging.messages.visible.Profile
 import org.session.libsession.messaging.messages.visible.VisibleMessage
 import org.session.libsession.messaging.opengroups.OpenGroupAPI
 import org.session.libsession.messaging.opengroups.OpenGroupMessage
+import org.session.libsession.messaging.sending_receiving.pollers.Poller
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.snode.RawResponsePromise
 import org.session.libsession.snode.SnodeAPI
@@ -80,6 +81,8 @@ object MessageSender {
 
     // Convenience
     fun send(message: Message, destination: Destination): Promise<Unit, Exception> {
+        // A reply is likely, so poll more often for a while
+        if (message is VisibleMessage) { Poller.onUserActivity() }
         if (destination is Destination.OpenGroup) {
             return sendToOpenGroupDestination(destination, message)
         }
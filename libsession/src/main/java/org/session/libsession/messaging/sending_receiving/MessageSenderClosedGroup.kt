@@ -29,7 +29,7 @@ private val pendingKeyPair = ConcurrentHashMap<String, Optional<ECKeyPair>>()
 
 fun MessageSender.createClosedGroup(name: String, members: Collection<String>): Promise<String, Exception> {
     val deferred = deferred<String, Exception>()
-    ThreadUtils.queue {
+    ThreadUtils.queue(ThreadUtils.diskExecutor) {
         // Prepare
         val context = MessagingConfiguration.shared.context
         val storage = MessagingConfiguration.shared.storage
@@ -0,0 +1,59 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+/**
+ * Decides how long to wait before the next poll. The interval backs off exponentially while polls come back empty
+ * (or fail), and drops back to `minInterval` as soon as messages arrive or the user is active.
+ */
+class AdaptivePollInterval(
+    private val minInterval: Long,
+    private val maxInterval: Long,
+    /**
+     * The maximum interval while the app is idle (e.g. in the background).
+     */
+    private val idleMaxInterval: Long,
+    private val backoffFactor: Double = 2.0
+) {
+    @Volatile private var currentInterval = minInterval
+    @Volatile private var lastActivity: Long = 0
+    @Volatile var isIdle = false
+
+    // region Settings
+    companion object {
+        /**
+         * How long the user is considered active after the last call to `onActivity()`.
+         */
+        private val activityWindow: Long = 2 * 60 * 1000
+    }
+    // endregion
+
+    val isActive: Boolean get() = System.currentTimeMillis() - lastActivity < activityWindow
+
+    /**
+     * The interval to wait before the next poll.
+     */
+    val nextInterval: Long get() {
+        if (isActive) { return minInterval }
+        return Math.min(currentInterval, if (isIdle) idleMaxInterval else maxInterval)
+    }
+
+    fun onMessagesReceived() {
+        currentInterval = minInterval
+    }
+
+    fun onEmptyPoll() {
+        val maxInterval = if (isIdle) idleMaxInterval else maxInterval
+        currentInterval = Math.min((currentInterval * backoffFactor).toLong(), maxInterval)
+    }
+
+    /**
+     * Call this when the user is in an active conversation (e.g. when they send a message).
+     */
+    fun onActivity() {
+        lastActivity = System.currentTimeMillis()
+        currentInterval = minInterval
+    }
+
+    fun reset() {
+        currentInterval = minInterval
+    }
+}
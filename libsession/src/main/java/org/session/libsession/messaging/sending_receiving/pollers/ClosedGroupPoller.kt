@@ -1,13 +1,12 @@
 package org.session.libsession.messaging.sending_receiving.pollers
 
-import android.os.Handler
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 
 import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
 import org.session.libsession.messaging.jobs.JobQueue
-import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsignal.utilities.successBackground
@@ -16,17 +15,12 @@ import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.service.loki.utilities.getRandomElementOrNull
 
-class ClosedGroupPoller {
-    private var isPolling = false
-    private val handler: Handler by lazy { Handler() }
-
-    private val task = object : Runnable {
+import java.util.concurrent.ConcurrentHashMap
 
-        override fun run() {
-            poll()
-            handler.postDelayed(this, ClosedGroupPoller.pollInterval)
-        }
-    }
+class ClosedGroupPoller {
+    @Volatile private var isPolling = false
+    private val tasks = ConcurrentHashMap<String, PollScheduler.Task>()
+    private var updateTask: PollScheduler.Task? = null
 
     // region Settings
     companion object {
@@ -43,7 +37,10 @@ class ClosedGroupPoller {
     public fun startIfNeeded() {
         if (isPolling) { return }
         isPolling = true
-        task.run()
+        updateTasks()
+        // Check for closed groups that were joined or left once per poll cycle, so that they're picked up as quickly as
+        // their messages would be. This is a single cheap query, regardless of the number of groups.
+        updateTask = PollScheduler.schedule("closed groups", pollInterval, pollInterval) { updateTasks(); Promise.of(Unit) }
     }
 
     public fun pollOnce(): List<Promise<Unit, Exception>> {
@@ -54,7 +51,26 @@ class ClosedGroupPoller {
 
     public fun stopIfNeeded() {
         isPolling = false
-        handler.removeCallbacks(task)
+        updateTask?.cancel()
+        updateTask = null
+        tasks.values.forEach { it.cancel() }
+        tasks.clear()
+    }
+
+    /**
+     * Starts polling closed groups that were joined and stops polling the ones that were left since the last update.
+     */
+    @Synchronized
+    fun updateTasks() {
+        if (!isPolling) { return }
+        val publicKeys = MessagingConfiguration.shared.storage.getAllClosedGroupPublicKeys()
+        tasks.keys.minus(publicKeys).forEach { tasks.remove(it)?.cancel() }
+        val newPublicKeys = publicKeys.minus(tasks.keys)
+        newPublicKeys.forEachIndexed { index, publicKey ->
+            // Spread out the first polls so that they don't all go out at once
+            val initialDelay = pollInterval * index / newPublicKeys.size
+            tasks[publicKey] = PollScheduler.schedule("closed group", initialDelay, pollInterval) { poll(publicKey) }
+        }
     }
     // endregion
 
@@ -62,29 +78,33 @@ class ClosedGroupPoller {
     private fun poll(): List<Promise<Unit, Exception>> {
         if (!isPolling) { return listOf() }
         val publicKeys = MessagingConfiguration.shared.storage.getAllClosedGroupPublicKeys()
-        return publicKeys.map { publicKey ->
-            val promise = SnodeAPI.getSwarm(publicKey).bind { swarm ->
-                val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
-                if (!isPolling) { throw PollingCanceledException() }
-                SnodeAPI.getRawMessages(snode, publicKey).map {SnodeAPI.parseRawMessagesResponse(it, snode, publicKey) }
+        return publicKeys.map { poll(it) }
+    }
+
+    private fun poll(publicKey: String): Promise<Unit, Exception> {
+        val promise = SnodeAPI.getSwarm(publicKey).bind { swarm ->
+            val snode = swarm.getRandomElementOrNull() ?: throw InsufficientSnodesException() // Should be cryptographically secure
+            if (!isPolling) { throw PollingCanceledException() }
+            SnodeAPI.getRawMessages(snode, publicKey).map {SnodeAPI.parseRawMessagesResponse(it, snode, publicKey) }
+        }
+        promise.successBackground { messages ->
+            if (messages.isNotEmpty()) {
+                Log.d("Loki", "Received ${messages.count()} new message(s) in closed group with public key: $publicKey.")
             }
-            promise.successBackground { messages ->
-                if (messages.isNotEmpty()) {
-                    Log.d("Loki", "Received ${messages.count()} new message(s) in closed group with public key: $publicKey.")
-                }
-                messages.forEach { message ->
-                    val rawMessageAsJSON = message as? Map<*, *>
-                    val base64EncodedData = rawMessageAsJSON?.get("data") as? String
-                    val data = base64EncodedData?.let { Base64.decode(it) } ?: return@forEach
-                    val job = MessageReceiveJob(MessageWrapper.unwrap(data), false)
-                    JobQueue.shared.add(job)
-                }
+            val parameters = messages.mapNotNull { message ->
+                val rawMessageAsJSON = message as? Map<*, *>
+                val base64EncodedData = rawMessageAsJSON?.get("data") as? String
+                val data = base64EncodedData?.let { Base64.decode(it) } ?: return@mapNotNull null
+                BatchMessageReceiveJob.Parameters(MessageWrapper.unwrap(data))
             }
-            promise.fail {
-                Log.d("Loki", "Polling failed for closed group with public key: $publicKey due to error: $it.")
+            if (parameters.isNotEmpty()) {
+                JobQueue.shared.add(BatchMessageReceiveJob(parameters))
             }
-            promise.map { Unit }
         }
+        promise.fail {
+            Log.d("Loki", "Polling failed for closed group with public key: $publicKey due to error: $it.")
+        }
+        return promise.map { Unit }
     }
     // endregion
 }
@@ -0,0 +1,53 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps track of how often a poller polls, how often that turns up nothing and how long polls take.
+ */
+class PollMetrics {
+    private val startTime = System.currentTimeMillis()
+    private val pollCount = AtomicLong(0)
+    private val emptyPollCount = AtomicLong(0)
+    private val failureCount = AtomicLong(0)
+    private val totalLatency = AtomicLong(0)
+
+    /**
+     * The number of polls per minute since the poller was created.
+     */
+    val pollRate: Double get() {
+        val elapsedMinutes = (System.currentTimeMillis() - startTime).toDouble() / (60 * 1000).toDouble()
+        return if (elapsedMinutes > 0) (pollCount.get() + failureCount.get()).toDouble() / elapsedMinutes else 0.0
+    }
+
+    /**
+     * The fraction of successful polls that didn't return any messages.
+     */
+    val emptyPollRatio: Double get() {
+        val pollCount = pollCount.get()
+        return if (pollCount > 0) emptyPollCount.get().toDouble() / pollCount.toDouble() else 0.0
+    }
+
+    /**
+     * The average duration of a successful poll in milliseconds.
+     */
+    val averageLatency: Long get() {
+        val pollCount = pollCount.get()
+        return if (pollCount > 0) totalLatency.get() / pollCount else 0
+    }
+
+    fun recordPoll(messageCount: Int, latency: Long) {
+        pollCount.incrementAndGet()
+        if (messageCount == 0) { emptyPollCount.incrementAndGet() }
+        totalLatency.addAndGet(latency)
+    }
+
+    fun recordFailure() {
+        failureCount.incrementAndGet()
+    }
+
+    override fun toString(): String {
+        return String.format("poll rate: %.1f/min, empty polls: %.0f%%, failures: %d, average latency: %d ms",
+            pollRate, emptyPollRatio * 100, failureCount.get(), averageLatency)
+    }
+}
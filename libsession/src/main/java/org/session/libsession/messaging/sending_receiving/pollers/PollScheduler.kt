@@ -0,0 +1,163 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import nl.komponents.kovenant.Promise
+import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
+import java.util.PriorityQueue
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Runs all polling (the user's own swarm, closed groups and open groups) from a single queue ordered by when each
+ * target is next due, driven by the shared scheduler rather than the main thread. At most `maxConcurrentPollCount` polls are
+ * in flight at any time, so that users with many groups don't fire dozens of requests at once. A poll that hasn't
+ * completed after `maxPollDuration` gives up its slot, so that a poll that never completes can't stall the others.
+ */
+object PollScheduler {
+
+    class Task internal constructor(
+        val name: String,
+        private val getNextInterval: () -> Long,
+        internal val poll: () -> Promise<*, Exception>
+    ) {
+        @Volatile internal var nextDueTime: Long = 0
+        @Volatile internal var isCancelled = false
+
+        internal val nextInterval: Long get() = getNextInterval()
+
+        fun cancel() { PollScheduler.cancel(this) }
+
+        /**
+         * Makes sure this task runs within `delay` milliseconds, unless it's already due sooner.
+         */
+        fun pollWithin(delay: Long) { PollScheduler.pollWithin(this, delay) }
+    }
+
+    // region Settings
+    private const val maxConcurrentPollCount = 4
+    private const val maxPollDuration: Long = 60 * 1000
+    // endregion
+
+    private val queue = PriorityQueue<Task>(16) { lhs, rhs -> lhs.nextDueTime.compareTo(rhs.nextDueTime) }
+    private var runningPollCount = 0
+    private var nextDispatch: ScheduledFuture<*>? = null
+    private var nextDispatchTime = Long.MAX_VALUE
+
+    // region Public API
+    /**
+     * Schedules `poll` to run after `initialDelay` and then repeatedly, waiting `getNextInterval()` milliseconds after
+     * each poll completes.
+     */
+    fun schedule(name: String, initialDelay: Long, getNextInterval: () -> Long, poll: () -> Promise<*, Exception>): Task {
+        val task = Task(name, getNextInterval, poll)
+        synchronized(this) {
+            task.nextDueTime = System.currentTimeMillis() + initialDelay
+            queue.add(task)
+        }
+        scheduleDispatch()
+        return task
+    }
+
+    fun schedule(name: String, initialDelay: Long, interval: Long, poll: () -> Promise<*, Exception>): Task {
+        return schedule(name, initialDelay, { interval }, poll)
+    }
+
+    /**
+     * The number of scheduled tasks, including the ones that are currently polling.
+     */
+    val taskCount: Int get() = synchronized(this) { queue.size + runningPollCount }
+    // endregion
+
+    // region Private API
+    private fun cancel(task: Task) {
+        synchronized(this) {
+            task.isCancelled = true
+            queue.remove(task)
+        }
+    }
+
+    private fun pollWithin(task: Task, delay: Long) {
+        val dueTime = System.currentTimeMillis() + delay
+        synchronized(this) {
+            if (task.isCancelled || task.nextDueTime <= dueTime) { return }
+            // Only reschedule tasks that are waiting; a running task is re-queued once it completes
+            if (!queue.remove(task)) { return }
+            task.nextDueTime = dueTime
+            queue.add(task)
+        }
+        scheduleDispatch()
+    }
+
+    /**
+     * Makes sure `dispatch()` runs when the next task is due.
+     */
+    private fun scheduleDispatch() {
+        synchronized(this) {
+            val nextTask = queue.peek() ?: return
+            val dueTime = nextTask.nextDueTime
+            if (nextDispatch != null && nextDispatchTime <= dueTime) { return }
+            nextDispatch?.cancel(false)
+            nextDispatchTime = dueTime
+            val delay = Math.max(dueTime - System.currentTimeMillis(), 0)
+            nextDispatch = ThreadUtils.scheduler.schedule(ThreadUtils.executorPool, delay, TimeUnit.MILLISECONDS) { dispatch() }
+        }
+    }
+
+    private fun dispatch() {
+        val dueTasks = mutableListOf<Task>()
+        synchronized(this) {
+            nextDispatch = null
+            nextDispatchTime = Long.MAX_VALUE
+            val now = System.currentTimeMillis()
+            while (runningPollCount < maxConcurrentPollCount) {
+                val task = queue.peek() ?: break
+                if (task.nextDueTime > now) { break }
+                queue.poll()
+                runningPollCount += 1
+                dueTasks.add(task)
+            }
+        }
+        dueTasks.forEach { run(it) }
+        // If all slots are taken, the next dispatch is triggered when a poll completes
+        if (synchronized(this) { runningPollCount < maxConcurrentPollCount }) { scheduleDispatch() }
+    }
+
+    private fun run(task: Task) {
+        val isComplete = AtomicBoolean(false)
+        val timeout = ThreadUtils.scheduler.schedule({
+            if (isComplete.compareAndSet(false, true)) {
+                Log.d("Loki", "Poll: ${task.name} didn't complete within $maxPollDuration ms; releasing its slot.")
+                didComplete(task)
+            }
+        }, maxPollDuration, TimeUnit.MILLISECONDS)
+        fun complete() {
+            timeout.cancel(false)
+            if (isComplete.compareAndSet(false, true)) { didComplete(task) }
+        }
+        val promise = try {
+            task.poll()
+        } catch (exception: Exception) {
+            Log.d("Loki", "Couldn't start poll: ${task.name} due to error: $exception.")
+            null
+        }
+        if (promise != null) {
+            promise.always { complete() }
+        } else {
+            complete()
+        }
+    }
+
+    private fun didComplete(task: Task) {
+        val nextInterval = try { task.nextInterval } catch (exception: Exception) { 0L }
+        synchronized(this) {
+            runningPollCount -= 1
+            if (!task.isCancelled) {
+                task.nextDueTime = System.currentTimeMillis() + nextInterval
+                queue.add(task)
+            }
+        }
+        scheduleDispatch()
+    }
+    // endregion
+}
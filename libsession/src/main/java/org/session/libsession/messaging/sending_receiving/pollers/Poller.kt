@@ -2,32 +2,56 @@ package org.session.libsession.messaging.sending_receiving.pollers
 
 import nl.komponents.kovenant.*
 import nl.komponents.kovenant.functional.bind
+import nl.komponents.kovenant.functional.map
 
 import org.session.libsession.messaging.MessagingConfiguration
+import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
 import org.session.libsession.messaging.jobs.JobQueue
-import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.snode.Snode
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.snode.SnodeConfiguration
+import org.session.libsession.snode.SnodeHealth
 
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
-
-import java.security.SecureRandom
-import java.util.*
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
 
 private class PromiseCanceledException : Exception("Promise canceled.")
 
 class Poller {
     private val userPublicKey = MessagingConfiguration.shared.storage.getUserPublicKey() ?: ""
-    private var hasStarted: Boolean = false
-    private val usedSnodes: MutableSet<Snode> = mutableSetOf()
+    @Volatile private var hasStarted: Boolean = false
+    private var task: PollScheduler.Task? = null
+    private val interval = AdaptivePollInterval(minPollInterval, maxPollInterval, idleMaxPollInterval)
+    val metrics = PollMetrics()
     public var isCaughtUp = false
 
     // region Settings
     companion object {
-        private val retryInterval: Long = 1 * 1000
+        private val minPollInterval: Long = 1 * 1000
+        private val maxPollInterval: Long = 16 * 1000
+        private val idleMaxPollInterval: Long = 2 * 60 * 1000
+
+        private val runningPollers = Collections.newSetFromMap(ConcurrentHashMap<Poller, Boolean>())
+
+        /**
+         * Set this while the app is in the background so that polling backs off further.
+         */
+        @Volatile var isAppIdle = false
+            set(newValue) {
+                field = newValue
+                runningPollers.forEach { it.interval.isIdle = newValue }
+            }
+
+        /**
+         * Call this when the user does something that makes a reply likely (e.g. sends a message or opens the app), so
+         * that running pollers pick replies up quickly.
+         */
+        fun onUserActivity() {
+            runningPollers.forEach { it.onActivity() }
+        }
     }
     // endregion
 
@@ -36,75 +60,90 @@ class Poller {
         if (hasStarted) { return }
         Log.d("Loki", "Started polling.")
         hasStarted = true
-        setUpPolling()
+        interval.reset()
+        interval.isIdle = isAppIdle
+        runningPollers.add(this)
+        task = PollScheduler.schedule("user swarm", 0, { interval.nextInterval }) { poll() }
     }
 
     fun stopIfNeeded() {
-        Log.d("Loki", "Stopped polling.")
+        Log.d("Loki", "Stopped polling; $metrics.")
         hasStarted = false
-        usedSnodes.clear()
+        runningPollers.remove(this)
+        task?.cancel()
+        task = null
+    }
+
+    /**
+     * See `onUserActivity()`.
+     */
+    fun onActivity() {
+        interval.onActivity()
+        // Poll soon rather than waiting out the backed off interval
+        task?.pollWithin(minPollInterval)
     }
     // endregion
 
     // region Private API
-    private fun setUpPolling() {
-        if (!hasStarted) { return; }
-        val thread = Thread.currentThread()
+    private fun poll(): Promise<Int, Exception> {
+        if (!hasStarted) { return Promise.ofFail(PromiseCanceledException()) }
+        // Update the interval before the returned promise completes, since that's when the scheduler reads it
+        val deferred = deferred<Int, Exception>(SnodeAPI.messagePollingContext)
         SnodeAPI.getSwarm(userPublicKey).bind(SnodeAPI.messagePollingContext) {
-            usedSnodes.clear()
-            val deferred = deferred<Unit, Exception>(SnodeAPI.messagePollingContext)
-            pollNextSnode(deferred)
-            deferred.promise
-        }.always {
-            Timer().schedule(object : TimerTask() {
-
-                override fun run() {
-                    thread.run { setUpPolling() }
-                }
-            }, retryInterval)
+            pollNextSnode(setOf())
+        }.success { messageCount ->
+            if (messageCount > 0) interval.onMessagesReceived() else interval.onEmptyPoll()
+            deferred.resolve(messageCount)
+        }.fail { exception ->
+            interval.onEmptyPoll()
+            deferred.reject(exception)
         }
+        return deferred.promise
     }
 
-    private fun pollNextSnode(deferred: Deferred<Unit, Exception>) {
+    private fun pollNextSnode(failedSnodes: Set<Snode>): Promise<Int, Exception> {
         val swarm = SnodeConfiguration.shared.storage.getSwarm(userPublicKey) ?: setOf()
-        val unusedSnodes = swarm.subtract(usedSnodes)
-        if (unusedSnodes.isNotEmpty()) {
-            val index = SecureRandom().nextInt(unusedSnodes.size)
-            val nextSnode = unusedSnodes.elementAt(index)
-            usedSnodes.add(nextSnode)
-            Log.d("Loki", "Polling $nextSnode.")
-            poll(nextSnode, deferred).fail { exception ->
-                if (exception is PromiseCanceledException) {
-                    Log.d("Loki", "Polling $nextSnode canceled.")
-                } else {
-                    Log.d("Loki", "Polling $nextSnode failed; dropping it and switching to next snode.")
-                    SnodeAPI.dropSnodeFromSwarmIfNeeded(nextSnode, userPublicKey)
-                    pollNextSnode(deferred)
-                }
-            }
-        } else {
+        val unusedSnodes = swarm.subtract(failedSnodes)
+        if (unusedSnodes.isEmpty()) {
             isCaughtUp = true
-            deferred.resolve()
+            return Promise.of(0)
+        }
+        val nextSnode = SnodeHealth.pickSnode(unusedSnodes)
+        Log.d("Loki", "Polling $nextSnode.")
+        val deferred = deferred<Int, Exception>(SnodeAPI.messagePollingContext)
+        poll(nextSnode).success {
+            deferred.resolve(it)
+        }.fail { exception ->
+            if (exception is PromiseCanceledException) {
+                Log.d("Loki", "Polling $nextSnode canceled.")
+                deferred.reject(exception)
+            } else {
+                Log.d("Loki", "Polling $nextSnode failed; dropping it and switching to next snode.")
+                metrics.recordFailure()
+                SnodeAPI.dropSnodeFromSwarmIfNeeded(nextSnode, userPublicKey)
+                pollNextSnode(failedSnodes + nextSnode).success { deferred.resolve(it) }.fail { deferred.reject(it) }
+            }
         }
+        return deferred.promise
     }
 
-    private fun poll(snode: Snode, deferred: Deferred<Unit, Exception>): Promise<Unit, Exception> {
+    private fun poll(snode: Snode): Promise<Int, Exception> {
         if (!hasStarted) { return Promise.ofFail(PromiseCanceledException()) }
-        return SnodeAPI.getRawMessages(snode, userPublicKey).bind(SnodeAPI.messagePollingContext) { rawResponse ->
+        val start = System.currentTimeMillis()
+        return SnodeAPI.getRawMessages(snode, userPublicKey).map(SnodeAPI.messagePollingContext) { rawResponse ->
             isCaughtUp = true
-            if (deferred.promise.isDone()) {
-                task { Unit } // The long polling connection has been canceled; don't recurse
-            } else {
-                val messages = SnodeAPI.parseRawMessagesResponse(rawResponse, snode, userPublicKey)
-                messages.forEach { message ->
-                    val rawMessageAsJSON = message as? Map<*, *>
-                    val base64EncodedData = rawMessageAsJSON?.get("data") as? String
-                    val data = base64EncodedData?.let { Base64.decode(it) } ?: return@forEach
-                    val job = MessageReceiveJob(MessageWrapper.unwrap(data), false)
-                    JobQueue.shared.add(job)
-                }
-                poll(snode, deferred)
+            val messages = SnodeAPI.parseRawMessagesResponse(rawResponse, snode, userPublicKey)
+            metrics.recordPoll(messages.size, System.currentTimeMillis() - start)
+            val parameters = messages.mapNotNull { message ->
+                val rawMessageAsJSON = message as? Map<*, *>
+                val base64EncodedData = rawMessageAsJSON?.get("data") as? String
+                val data = base64EncodedData?.let { Base64.decode(it) } ?: return@mapNotNull null
+                BatchMessageReceiveJob.Parameters(MessageWrapper.unwrap(data))
+            }
+            if (parameters.isNotEmpty()) {
+                JobQueue.shared.add(BatchMessageReceiveJob(parameters))
             }
+            messages.size
         }
     }
     // endregion
@@ -31,6 +31,7 @@ import org.session.libsignal.utilities.Base64
 
 import java.io.File
 import java.io.FileOutputStream
+import java.io.FilterOutputStream
 import java.io.OutputStream
 import java.util.*
 
@@ -183,29 +184,56 @@ open class DotNetAPI {
     // DOWNLOAD
 
     /**
+     * Downloads the file at `url` to `destination`. The file is only moved into place once it has been authenticated,
+     * so `destination` never contains unauthenticated data.
+     *
      * Blocks the calling thread.
      */
     fun downloadFile(destination: File, url: String, maxSize: Int, listener: SignalServiceAttachment.ProgressListener?) {
-        val outputStream = FileOutputStream(destination) // Throws
+        val temporaryFile = File(destination.parentFile, "${destination.name}.download")
         var remainingAttempts = 4
         var exception: Exception? = null
-        while (remainingAttempts > 0) {
-            remainingAttempts -= 1
-            try {
-                downloadFile(outputStream, url, maxSize, listener)
-                exception = null
-                break
-            } catch (e: Exception) {
-                exception = e
+        try {
+            while (remainingAttempts > 0) {
+                remainingAttempts -= 1
+                try {
+                    // Start from scratch on each attempt, since a failed attempt may have written part of the file
+                    FileOutputStream(temporaryFile).use { downloadFileUnauthenticated(it, url, maxSize, listener) } // Throws
+                    if (destination.exists()) { destination.delete() }
+                    if (!temporaryFile.renameTo(destination)) { throw PushNetworkException("Couldn't move downloaded file into place.") }
+                    exception = null
+                    break
+                } catch (e: Exception) {
+                    exception = e
+                }
             }
+        } finally {
+            temporaryFile.delete()
         }
         if (exception != null) { throw exception }
     }
 
     /**
+     * Downloads the file at `url` and writes it to `outputStream`. Nothing is written to `outputStream` until the file
+     * has been authenticated.
+     *
      * Blocks the calling thread.
      */
     fun downloadFile(outputStream: OutputStream, url: String, maxSize: Int, listener: SignalServiceAttachment.ProgressListener?) {
+        val temporaryFile = File.createTempFile("download", null)
+        try {
+            FileOutputStream(temporaryFile).use { downloadFileUnauthenticated(it, url, maxSize, listener) } // Throws
+            temporaryFile.inputStream().use { it.copyTo(outputStream) }
+        } finally {
+            temporaryFile.delete()
+        }
+    }
+
+    /**
+     * Writes the file at `url` to `outputStream` while it's being received. If this throws, whatever was written to
+     * `outputStream` must be discarded.
+     */
+    private fun downloadFileUnauthenticated(outputStream: OutputStream, url: String, maxSize: Int, listener: SignalServiceAttachment.ProgressListener?) {
         // We need to throw a PushNetworkException or NonSuccessfulResponseCodeException
         // because the underlying Signal logic requires these to work correctly
         val oldPrefixedHost = "https://" + HttpUrl.get(url).host()
@@ -221,31 +249,29 @@ open class DotNetAPI {
         try {
             val serverPublicKey = if (newPrefixedHost.contains(FileServerAPI.shared.server)) FileServerAPI.fileServerPublicKey
             else FileServerAPI.shared.getPublicKeyForOpenGroupServer(newPrefixedHost).get()
-            val json = OnionRequestAPI.sendOnionRequest(request.build(), newPrefixedHost, serverPublicKey, isJSONRequired = false).get()
-            val result = json["result"] as? String
-            if (result == null) {
-                Log.d("Loki", "Couldn't parse attachment from: $json.")
-                throw PushNetworkException("Missing response body.")
-            }
-            val body = Base64.decode(result)
-            if (body.size > maxSize) {
-                Log.d("Loki", "Attachment size limit exceeded.")
-                throw PushNetworkException("Max response size exceeded.")
-            }
-            val input = body.inputStream()
-            val buffer = ByteArray(32768)
-            var count = 0
-            var bytes = input.read(buffer)
-            while (bytes >= 0) {
-                outputStream.write(buffer, 0, bytes)
-                count += bytes
-                if (count > maxSize) {
-                    Log.d("Loki", "Attachment size limit exceeded.")
-                    throw PushNetworkException("Max response size exceeded.")
+            // The attachment is decrypted and decoded while it's being received, rather than after the whole response
+            // has been loaded into memory
+            val limitedOutputStream = object : FilterOutputStream(outputStream) {
+                private var count: Long = 0
+
+                override fun write(byte: Int) {
+                    write(byteArrayOf( byte.toByte() ), 0, 1)
+                }
+
+                override fun write(bytes: ByteArray, offset: Int, length: Int) {
+                    count += length
+                    if (count > maxSize) {
+                        Log.d("Loki", "Attachment size limit exceeded.")
+                        throw PushNetworkException("Max response size exceeded.")
+                    }
+                    out.write(bytes, offset, length)
                 }
-                listener?.onAttachmentProgress(body.size.toLong(), count.toLong())
-                bytes = input.read(buffer)
             }
+            OnionRequestAPI.sendOnionRequest(request.build(), newPrefixedHost, serverPublicKey, limitedOutputStream) { progress, total ->
+                // The response is base64 encoded (twice) and encrypted, so its size is only an estimate of the attachment's
+                val estimatedTotal = if (total > 0) total else maxSize.toLong()
+                listener?.onAttachmentProgress(estimatedTotal, Math.min(progress, estimatedTotal))
+            }.get()
         } catch (e: Exception) {
             Log.d("Loki", "Couldn't download attachment due to error: $e.")
             throw if (e is NonSuccessfulResponseCodeException) e else PushNetworkException(e)
@@ -7,8 +7,8 @@ import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 import okhttp3.Request
 import org.session.libsession.utilities.AESGCM
+import org.session.libsession.utilities.AESGCMDecryptingOutputStream
 import org.session.libsignal.utilities.logging.Log
-import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.*
 import org.session.libsignal.service.loki.api.*
 import org.session.libsignal.service.loki.api.fileserver.FileServerAPI
@@ -18,6 +18,7 @@ import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsession.utilities.getBodyForOnionRequest
 import org.session.libsession.utilities.getHeadersForOnionRequest
 import org.session.libsignal.service.loki.utilities.*
+import java.io.OutputStream
 
 private typealias Path = List<Snode>
 
@@ -25,18 +26,25 @@ private typealias Path = List<Snode>
  * See the "Onion Requests" section of [The Session Whitepaper](https://arxiv.org/pdf/2002.04609.pdf) for more information.
  */
 object OnionRequestAPI {
-    private val pathFailureCount = mutableMapOf<Path, Int>()
-    private val snodeFailureCount = mutableMapOf<Snode, Int>()
-    var guardSnodes = setOf<Snode>()
-    var paths: List<Path> // Not a set to ensure we consistently show the same path to the user
-        get() = SnodeAPI.database.getOnionRequestPaths()
+    private val pathManager = OnionRequestPathManager(targetPathCount, { SnodeAPI.database.getOnionRequestPaths() }) { paths ->
+        if (paths.isEmpty()) {
+            SnodeAPI.database.clearOnionRequestPaths()
+        } else {
+            SnodeAPI.database.setOnionRequestPaths(paths)
+        }
+        OnionRequestEncryption.precomputeEphemeralKeys(paths, true)
+        SnodeHealth.retainPaths(paths)
+    }
+    var guardSnodes: Set<Snode>
+        get() = pathManager.getGuardSnodes()
         set(newValue) {
-            if (newValue.isEmpty()) {
-                SnodeAPI.database.clearOnionRequestPaths()
-            } else {
-                SnodeAPI.database.setOnionRequestPaths(newValue)
-            }
+            pathManager.setGuardSnodes(newValue)
+            updateKeepAliveHosts()
         }
+    var paths: List<Path> // Not a set to ensure we consistently show the same path to the user
+        get() = pathManager.getPaths()
+        set(newValue) { pathManager.setPaths(newValue) }
+    val pathState: OnionRequestPathManager.State get() = pathManager.currentState
 
     // region Settings
     /**
@@ -68,6 +76,7 @@ object OnionRequestAPI {
     class InsufficientSnodesException : Exception("Couldn't find enough snodes to build a path.")
 
     private data class OnionBuildingResult(
+        val path: Path,
         val guardSnode: Snode,
         val finalEncryptionResult: EncryptionResult,
         val destinationSymmetricKey: ByteArray
@@ -84,12 +93,15 @@ object OnionRequestAPI {
      */
     private fun testSnode(snode: Snode): Promise<Unit, Exception> {
         val deferred = deferred<Unit, Exception>()
-        ThreadUtils.queue { // No need to block the shared context for this
+        ThreadUtils.queue(ThreadUtils.networkExecutor) { // No need to block the shared context for this
             val url = "${snode.address}:${snode.port}/get_stats/v1"
             try {
+                val start = System.currentTimeMillis()
                 val json = HTTP.execute(HTTP.Verb.GET, url)
+                SnodeHealth.recordSuccess(snode, System.currentTimeMillis() - start)
                 val version = json["version"] as? String
                 if (version == null) { deferred.reject(Exception("Missing snode version.")); return@queue }
+                SnodeRequestBatcher.setVersion(snode, version)
                 if (version >= "2.0.7") {
                     deferred.resolve(Unit)
                 } else {
@@ -98,6 +110,7 @@ object OnionRequestAPI {
                     deferred.reject(Exception(message))
                 }
             } catch (exception: Exception) {
+                SnodeHealth.recordFailure(snode)
                 deferred.reject(exception)
             }
         }
@@ -118,8 +131,9 @@ object OnionRequestAPI {
                 val reusableGuardSnodeCount = reusableGuardSnodes.count()
                 if (unusedSnodes.count() < (targetGuardSnodeCount - reusableGuardSnodeCount)) { throw InsufficientSnodesException() }
                 fun getGuardSnode(): Promise<Snode, Exception> {
-                    val candidate = unusedSnodes.getRandomElementOrNull()
-                        ?: return Promise.ofFail(InsufficientSnodesException())
+                    if (unusedSnodes.isEmpty()) { return Promise.ofFail(InsufficientSnodesException()) }
+                    // The guard snode is the only snode we talk to directly, so its latency matters the most
+                    val candidate = SnodeHealth.pickSnode(unusedSnodes)
                     unusedSnodes = unusedSnodes.minus(candidate)
                     Log.d("Loki", "Testing guard snode: $candidate.")
                     // Loop until a reliable guard snode is found
@@ -152,6 +166,11 @@ object OnionRequestAPI {
      * enough (reliable) snodes are available.
      */
     private fun buildPaths(reusablePaths: List<Path>): Promise<List<Path>, Exception> {
+        // Concurrent callers share a single build
+        return pathManager.buildPaths { buildPathsNow(reusablePaths) }
+    }
+
+    private fun buildPathsNow(reusablePaths: List<Path>): Promise<List<Path>, Exception> {
         Log.d("Loki", "Building onion request paths.")
         SnodeAPI.broadcaster.broadcast("buildingPaths")
         return SnodeAPI.getRandomSnode().bind(SnodeAPI.sharedContext) { // Just used to populate the snode pool
@@ -194,10 +213,11 @@ object OnionRequestAPI {
         }
         OnionRequestAPI.guardSnodes = guardSnodes
         fun getPath(paths: List<Path>): Path {
+            // Prefer paths that have been fast and reliable, but keep the choice random
             if (snodeToExclude != null) {
-                return paths.filter { !it.contains(snodeToExclude) }.getRandomElement()
+                return SnodeHealth.pickPath(paths.filter { !it.contains(snodeToExclude) })
             } else {
-                return paths.getRandomElement()
+                return SnodeHealth.pickPath(paths)
             }
         }
         if (paths.count() >= targetPathCount) {
@@ -219,85 +239,86 @@ object OnionRequestAPI {
     }
 
     private fun dropGuardSnode(snode: Snode) {
-        guardSnodes = guardSnodes.filter { it != snode }.toSet()
+        pathManager.dropGuardSnode(snode)
+        updateKeepAliveHosts()
+    }
+
+    private fun updateKeepAliveHosts() {
+        // Every onion request goes through a guard snode, so keep the connections to them warm
+        HTTP.setKeepAliveHosts(guardSnodes.map { "${it.address}:${it.port}" }.toSet())
     }
 
     private fun dropSnode(snode: Snode) {
         // We repair the path here because we can do it sync. In the case where we drop a whole
         // path we leave the re-building up to getPath() because re-building the path in that case
         // is async.
-        snodeFailureCount[snode] = 0
-        val oldPaths = paths.toMutableList()
-        val pathIndex = oldPaths.indexOfFirst { it.contains(snode) }
-        if (pathIndex == -1) { return }
-        val path = oldPaths[pathIndex].toMutableList()
-        val snodeIndex = path.indexOf(snode)
-        if (snodeIndex == -1) { return }
-        path.removeAt(snodeIndex)
-        val unusedSnodes = SnodeAPI.snodePool.minus(oldPaths.flatten())
-        if (unusedSnodes.isEmpty()) { throw InsufficientSnodesException() }
-        path.add(unusedSnodes.getRandomElement())
-        // Don't test the new snode as this would reveal the user's IP
-        oldPaths.removeAt(pathIndex)
-        val newPaths = oldPaths + listOf( path )
-        paths = newPaths
+        val snodePool = SnodeAPI.snodePool
+        pathManager.updatePaths { paths ->
+            val oldPaths = paths.toMutableList()
+            val pathIndex = oldPaths.indexOfFirst { it.contains(snode) }
+            if (pathIndex == -1) { return@updatePaths null }
+            val path = oldPaths[pathIndex].toMutableList()
+            val snodeIndex = path.indexOf(snode)
+            if (snodeIndex == -1) { return@updatePaths null }
+            path.removeAt(snodeIndex)
+            val unusedSnodes = snodePool.minus(oldPaths.flatten())
+            if (unusedSnodes.isEmpty()) { throw InsufficientSnodesException() }
+            path.add(unusedSnodes.getRandomElement())
+            // Don't test the new snode as this would reveal the user's IP
+            oldPaths.removeAt(pathIndex)
+            oldPaths + listOf( path )
+        }
     }
 
     private fun dropPath(path: Path) {
-        pathFailureCount[path] = 0
-        val paths = OnionRequestAPI.paths.toMutableList()
-        val pathIndex = paths.indexOf(path)
-        if (pathIndex == -1) { return }
-        paths.removeAt(pathIndex)
-        OnionRequestAPI.paths = paths
+        pathManager.updatePaths { paths ->
+            if (!paths.contains(path)) { return@updatePaths null }
+            paths.minus(element = path)
+        }
     }
 
     /**
      * Builds an onion around `payload` and returns the result.
      */
     private fun buildOnionForDestination(payload: Map<*, *>, destination: Destination): Promise<OnionBuildingResult, Exception> {
-        lateinit var guardSnode: Snode
-        lateinit var destinationSymmetricKey: ByteArray // Needed by LokiAPI to decrypt the response sent back by the destination
-        lateinit var encryptionResult: EncryptionResult
         val snodeToExclude = when (destination) {
             is Destination.Snode -> destination.snode
             is Destination.Server -> null
         }
         return getPath(snodeToExclude).bind(SnodeAPI.sharedContext) { path ->
-            guardSnode = path.first()
             // Encrypt in reverse order, i.e. the destination first
-            OnionRequestEncryption.encryptPayloadForDestination(payload, destination).bind(SnodeAPI.sharedContext) { r ->
-                destinationSymmetricKey = r.symmetricKey
-                // Recursively encrypt the layers of the onion (again in reverse order)
-                encryptionResult = r
-                @Suppress("NAME_SHADOWING") var path = path
-                var rhs = destination
-                fun addLayer(): Promise<EncryptionResult, Exception> {
-                    if (path.isEmpty()) {
-                        return Promise.of(encryptionResult)
-                    } else {
-                        val lhs = Destination.Snode(path.last())
-                        path = path.dropLast(1)
-                        return OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult).bind(SnodeAPI.sharedContext) { r ->
-                            encryptionResult = r
-                            rhs = lhs
-                            addLayer()
-                        }
-                    }
-                }
-                addLayer()
+            OnionRequestEncryption.encryptOnion(payload, destination, path).map(SnodeAPI.sharedContext) { result ->
+                // The destination symmetric key is needed to decrypt the response sent back by the destination
+                OnionBuildingResult(path, path.first(), result.finalEncryptionResult, result.destinationSymmetricKey)
             }
-        }.map(SnodeAPI.sharedContext) { OnionBuildingResult(guardSnode, encryptionResult, destinationSymmetricKey) }
+        }
     }
 
     /**
      * Sends an onion request to `destination`. Builds new paths as needed.
      */
     private fun sendOnionRequest(destination: Destination, payload: Map<*, *>, isJSONRequired: Boolean = true): Promise<Map<*, *>, Exception> {
-        val deferred = deferred<Map<*, *>, Exception>()
+        return sendOnionRequest(destination, payload, true) { url, body, destinationSymmetricKey ->
+            val ivAndCiphertext = HTTP.executeAndDecodeResult(HTTP.Verb.POST, url, body)
+            val plaintext = AESGCM.decrypt(ivAndCiphertext, destinationSymmetricKey)
+            parseResponse(plaintext, isJSONRequired)
+        }
+    }
+
+    /**
+     * Sends an onion request to `destination` and uses `execute` to send it to the guard snode and handle the response.
+     * Builds new paths as needed.
+     *
+     * `execute` is invoked with the URL to send the onion to, the onion itself and the symmetric key needed to decrypt
+     * the response, and is called on a background thread. Set `measuresRTT` to `false` if `execute` does significant
+     * work beyond the request itself (e.g. streaming a download), so that it doesn't skew the path's latency stats.
+     */
+    private fun <T> sendOnionRequest(destination: Destination, payload: Map<*, *>, measuresRTT: Boolean, execute: (String, ByteArray, ByteArray) -> T): Promise<T, Exception> {
+        val deferred = deferred<T, Exception>()
         lateinit var guardSnode: Snode
         buildOnionForDestination(payload, destination).success { result ->
             guardSnode = result.guardSnode
+            val path = result.path
             val url = "${guardSnode.address}:${guardSnode.port}/onion_req/v2"
             val finalEncryptionResult = result.finalEncryptionResult
             val onion = finalEncryptionResult.ciphertext
@@ -314,50 +335,20 @@ object OnionRequestAPI {
                 return@success deferred.reject(exception)
             }
             val destinationSymmetricKey = result.destinationSymmetricKey
-            ThreadUtils.queue {
+            ThreadUtils.queue(ThreadUtils.networkExecutor) {
                 try {
-                    val json = HTTP.execute(HTTP.Verb.POST, url, body)
-                    val base64EncodedIVAndCiphertext = json["result"] as? String ?: return@queue deferred.reject(Exception("Invalid JSON"))
-                    val ivAndCiphertext = Base64.decode(base64EncodedIVAndCiphertext)
-                    try {
-                        val plaintext = AESGCM.decrypt(ivAndCiphertext, destinationSymmetricKey)
-                        try {
-                            @Suppress("NAME_SHADOWING") val json = JsonUtil.fromJson(plaintext.toString(Charsets.UTF_8), Map::class.java)
-                            val statusCode = json["status"] as Int
-                            if (statusCode == 406) {
-                                @Suppress("NAME_SHADOWING") val body = mapOf( "result" to "Your clock is out of sync with the service node network." )
-                                val exception = HTTPRequestFailedAtDestinationException(statusCode, body)
-                                return@queue deferred.reject(exception)
-                            } else if (json["body"] != null) {
-                                @Suppress("NAME_SHADOWING") val body: Map<*, *>
-                                if (json["body"] is Map<*, *>) {
-                                    body = json["body"] as Map<*, *>
-                                } else {
-                                    val bodyAsString = json["body"] as String
-                                    if (!isJSONRequired) {
-                                        body = mapOf( "result" to bodyAsString )
-                                    } else {
-                                        body = JsonUtil.fromJson(bodyAsString, Map::class.java)
-                                    }
-                                }
-                                if (statusCode != 200) {
-                                    val exception = HTTPRequestFailedAtDestinationException(statusCode, body)
-                                    return@queue deferred.reject(exception)
-                                }
-                                deferred.resolve(body)
-                            } else {
-                                if (statusCode != 200) {
-                                    val exception = HTTPRequestFailedAtDestinationException(statusCode, json)
-                                    return@queue deferred.reject(exception)
-                                }
-                                deferred.resolve(json)
-                            }
-                        } catch (exception: Exception) {
-                            deferred.reject(Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}."))
+                    val start = System.currentTimeMillis()
+                    val response = execute(url, body, destinationSymmetricKey)
+                    if (measuresRTT) {
+                        // The request made it through the path and back, regardless of what the destination had to say
+                        val rtt = System.currentTimeMillis() - start
+                        if (destination is Destination.Snode) {
+                            SnodeHealth.recordSuccess(path, destination.snode, rtt)
+                        } else {
+                            SnodeHealth.recordSuccess(path, rtt)
                         }
-                    } catch (exception: Exception) {
-                        deferred.reject(exception)
                     }
+                    deferred.resolve(response)
                 } catch (exception: Exception) {
                     deferred.reject(exception)
                 }
@@ -371,17 +362,14 @@ object OnionRequestAPI {
             if (exception is HTTP.HTTPRequestFailedException) {
                 fun handleUnspecificError() {
                     if (path == null) { return }
-                    var pathFailureCount = OnionRequestAPI.pathFailureCount[path] ?: 0
-                    pathFailureCount += 1
-                    if (pathFailureCount >= pathFailureThreshold) {
+                    SnodeHealth.recordFailure(path)
+                    if (pathManager.incrementFailureCount(path, pathFailureThreshold)) {
                         dropGuardSnode(guardSnode)
                         path.forEach { snode ->
                             @Suppress("ThrowableNotThrown")
                             SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, null) // Intentionally don't throw
                         }
                         dropPath(path)
-                    } else {
-                        OnionRequestAPI.pathFailureCount[path] = pathFailureCount
                     }
                 }
                 val json = exception.json
@@ -391,9 +379,7 @@ object OnionRequestAPI {
                     val ed25519PublicKey = message.substringAfter(prefix)
                     val snode = path?.firstOrNull { it.publicKeySet!!.ed25519Key == ed25519PublicKey }
                     if (snode != null) {
-                        var snodeFailureCount = OnionRequestAPI.snodeFailureCount[snode] ?: 0
-                        snodeFailureCount += 1
-                        if (snodeFailureCount >= snodeFailureThreshold) {
+                        if (pathManager.incrementFailureCount(snode, snodeFailureThreshold)) {
                             @Suppress("ThrowableNotThrown")
                             SnodeAPI.handleSnodeError(exception.statusCode, json, snode, null) // Intentionally don't throw
                             try {
@@ -401,8 +387,6 @@ object OnionRequestAPI {
                             } catch (exception: Exception) {
                                 handleUnspecificError()
                             }
-                        } else {
-                            OnionRequestAPI.snodeFailureCount[snode] = snodeFailureCount
                         }
                     } else {
                         handleUnspecificError()
@@ -418,6 +402,45 @@ object OnionRequestAPI {
         }
         return promise
     }
+
+    /**
+     * Parses the decrypted response to an onion request. Throws an `HTTPRequestFailedAtDestinationException` if the
+     * destination returned an error.
+     */
+    private fun parseResponse(plaintext: ByteArray, isJSONRequired: Boolean): Map<*, *> {
+        val json: Map<*, *>
+        try {
+            json = JsonUtil.fromJson(plaintext, Map::class.java)
+        } catch (exception: Exception) {
+            throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+        }
+        val statusCode = json["status"] as? Int ?: throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+        if (statusCode == 406) {
+            val body = mapOf( "result" to "Your clock is out of sync with the service node network." )
+            throw HTTPRequestFailedAtDestinationException(statusCode, body)
+        } else if (json["body"] != null) {
+            val body: Map<*, *>
+            if (json["body"] is Map<*, *>) {
+                body = json["body"] as Map<*, *>
+            } else {
+                val bodyAsString = json["body"] as String
+                if (!isJSONRequired) {
+                    body = mapOf( "result" to bodyAsString )
+                } else {
+                    try {
+                        body = JsonUtil.fromJson(bodyAsString, Map::class.java)
+                    } catch (exception: Exception) {
+                        throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+                    }
+                }
+            }
+            if (statusCode != 200) { throw HTTPRequestFailedAtDestinationException(statusCode, body) }
+            return body
+        } else {
+            if (statusCode != 200) { throw HTTPRequestFailedAtDestinationException(statusCode, json) }
+            return json
+        }
+    }
     // endregion
 
     // region Internal API
@@ -442,26 +465,50 @@ object OnionRequestAPI {
      * `publicKey` is the hex encoded public key of the user the call is associated with. This is needed for swarm cache maintenance.
      */
     fun sendOnionRequest(request: Request, server: String, x25519PublicKey: String, target: String = "/loki/v3/lsrpc", isJSONRequired: Boolean = true): Promise<Map<*, *>, Exception> {
+        val destination = Destination.Server(request.url().host(), target, x25519PublicKey)
+        return sendOnionRequest(destination, getPayload(request, server), isJSONRequired).recover { exception ->
+            Log.d("Loki", "Couldn't reach server: ${request.url()} due to error: $exception.")
+            throw exception
+        }
+    }
+
+    /**
+     * Sends an onion request to `server` and writes the base64 decoded body of the response to `outputStream` while
+     * it's being received, so that the response is never held in memory in full. Use this for file downloads.
+     *
+     * `onProgress` is called with the number of bytes received so far and the expected total (-1 if unknown). The
+     * returned promise errors out if the response couldn't be authenticated, in which case whatever was written to
+     * `outputStream` must be discarded.
+     */
+    fun sendOnionRequest(request: Request, server: String, x25519PublicKey: String, outputStream: OutputStream, target: String = "/loki/v3/lsrpc", onProgress: ((Long, Long) -> Unit)? = null): Promise<Unit, Exception> {
+        val destination = Destination.Server(request.url().host(), target, x25519PublicKey)
+        val payload = getPayload(request, server)
+        return sendOnionRequest(destination, payload, false) { url, body, destinationSymmetricKey ->
+            val bodyOutputStream = OnionResponseBodyOutputStream(outputStream)
+            val decryptingOutputStream = AESGCMDecryptingOutputStream(destinationSymmetricKey, bodyOutputStream)
+            HTTP.executeAndStreamResult(HTTP.Verb.POST, url, body, decryptingOutputStream, onProgress)
+            decryptingOutputStream.close() // Authenticates the response
+            bodyOutputStream.close() // Checks the status code
+        }.recover { exception ->
+            Log.d("Loki", "Couldn't reach server: ${request.url()} due to error: $exception.")
+            throw exception
+        }
+    }
+
+    private fun getPayload(request: Request, server: String): Map<*, *> {
         val headers = request.getHeadersForOnionRequest()
-        val url = request.url()
-        val urlAsString = url.toString()
-        val host = url.host()
+        val urlAsString = request.url().toString()
         val endpoint = when {
             server.count() < urlAsString.count() -> urlAsString.substringAfter("$server/")
             else -> ""
         }
         val body = request.getBodyForOnionRequest() ?: "null"
-        val payload = mapOf(
+        return mapOf(
             "body" to body,
             "endpoint" to endpoint,
             "method" to request.method(),
             "headers" to headers
         )
-        val destination = Destination.Server(host, target, x25519PublicKey)
-        return sendOnionRequest(destination, payload, isJSONRequired).recover { exception ->
-            Log.d("Loki", "Couldn't reach server: $urlAsString due to error: $exception.")
-            throw exception
-        }
     }
     // endregion
 }
@@ -5,91 +5,211 @@ import nl.komponents.kovenant.deferred
 import org.session.libsignal.utilities.JsonUtil
 import org.session.libsession.utilities.AESGCM.EncryptionResult
 import org.session.libsession.utilities.AESGCM
+import org.session.libsession.utilities.CryptoPool
+import org.session.libsignal.utilities.Hex
 import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.service.loki.utilities.toHexString
-import java.nio.Buffer
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
 
 object OnionRequestEncryption {
 
+    internal data class OnionEncryptionResult(
+        val finalEncryptionResult: EncryptionResult,
+        val destinationSymmetricKey: ByteArray
+    )
+
+    /**
+     * An ephemeral key pair's public key along with the symmetric key it yields for a given snode. Each of these must
+     * only ever be used for a single layer of a single onion request.
+     */
+    private class EphemeralKey(val publicKey: ByteArray, val symmetricKey: ByteArray)
+
+    // region Settings
+    /**
+     * The number of ephemeral keys to keep ready for each snode in the current onion request paths.
+     */
+    private const val ephemeralKeyCountPerSnode = 4
+    // endregion
+
+    private val ephemeralKeys = ConcurrentHashMap<String, ConcurrentLinkedQueue<EphemeralKey>>()
+    /**
+     * The number of ephemeral keys per snode that have been submitted for generation but aren't in `ephemeralKeys` yet.
+     */
+    private val pendingEphemeralKeyCounts = ConcurrentHashMap<String, AtomicInteger>()
+    private val encodingBuffer = object : ThreadLocal<ByteArray>() {
+
+        override fun initialValue(): ByteArray { return ByteArray(8 * 1024) }
+    }
+
     internal fun encode(ciphertext: ByteArray, json: Map<*, *>): ByteArray {
-        // The encoding of V2 onion requests looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |
         val jsonAsData = JsonUtil.toJson(json).toByteArray()
+        val result = ByteArray(Int.SIZE_BYTES + ciphertext.size + jsonAsData.size)
+        encode(ciphertext, jsonAsData, result)
+        return result
+    }
+
+    /**
+     * Encodes a layer into this thread's reusable buffer and returns the buffer, which may have been grown. Only the
+     * first `Int.SIZE_BYTES + ciphertext.size + jsonAsData.size` bytes of the returned buffer are meaningful.
+     */
+    private fun encodeIntoBuffer(ciphertext: ByteArray, jsonAsData: ByteArray): ByteArray {
+        val size = Int.SIZE_BYTES + ciphertext.size + jsonAsData.size
+        var buffer = encodingBuffer.get()!!
+        if (buffer.size < size) {
+            buffer = ByteArray(Integer.highestOneBit(size) shl 1)
+            encodingBuffer.set(buffer)
+        }
+        encode(ciphertext, jsonAsData, buffer)
+        return buffer
+    }
+
+    private fun encode(ciphertext: ByteArray, jsonAsData: ByteArray, buffer: ByteArray) {
+        // The encoding of V2 onion requests looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |
         val ciphertextSize = ciphertext.size
-        val buffer = ByteBuffer.allocate(Int.SIZE_BYTES)
-        buffer.order(ByteOrder.LITTLE_ENDIAN)
-        buffer.putInt(ciphertextSize)
-        val ciphertextSizeAsData = ByteArray(buffer.capacity())
-        // Casting here avoids an issue where this gets compiled down to incorrect byte code. See
-        // https://github.com/eclipse/jetty.project/issues/3244 for more info
-        (buffer as Buffer).position(0)
-        buffer.get(ciphertextSizeAsData)
-        return ciphertextSizeAsData + ciphertext + jsonAsData
+        buffer[0] = ciphertextSize.toByte()
+        buffer[1] = (ciphertextSize ushr 8).toByte()
+        buffer[2] = (ciphertextSize ushr 16).toByte()
+        buffer[3] = (ciphertextSize ushr 24).toByte()
+        System.arraycopy(ciphertext, 0, buffer, Int.SIZE_BYTES, ciphertextSize)
+        System.arraycopy(jsonAsData, 0, buffer, Int.SIZE_BYTES + ciphertextSize, jsonAsData.size)
     }
 
     /**
-     * Encrypts `payload` for `destination` and returns the result. Use this to build the core of an onion request.
+     * Encrypts `payload` for `destination` and then wraps the result in a layer for each snode in `path` (again in
+     * reverse order). Onion building is CPU bound, so the returned promise is fulfilled on
+     * `ThreadUtils.cryptoExecutor`.
      */
-    internal fun encryptPayloadForDestination(payload: Map<*, *>, destination: OnionRequestAPI.Destination): Promise<EncryptionResult, Exception> {
-        val deferred = deferred<EncryptionResult, Exception>()
-        ThreadUtils.queue {
+    internal fun encryptOnion(payload: Map<*, *>, destination: OnionRequestAPI.Destination, path: List<Snode>): Promise<OnionEncryptionResult, Exception> {
+        val deferred = deferred<OnionEncryptionResult, Exception>()
+        ThreadUtils.cryptoExecutor.execute {
             try {
-                // Wrapping isn't needed for file server or open group onion requests
-                when (destination) {
-                    is OnionRequestAPI.Destination.Snode -> {
-                        val snodeX25519PublicKey = destination.snode.publicKeySet!!.x25519Key
-                        val payloadAsData = JsonUtil.toJson(payload).toByteArray()
-                        val plaintext = encode(payloadAsData, mapOf( "headers" to "" ))
-                        val result = AESGCM.encrypt(plaintext, snodeX25519PublicKey)
-                        deferred.resolve(result)
-                    }
-                    is OnionRequestAPI.Destination.Server -> {
-                        val plaintext = JsonUtil.toJson(payload).toByteArray()
-                        val result = AESGCM.encrypt(plaintext, destination.x25519PublicKey)
-                        deferred.resolve(result)
-                    }
+                val encryptionResult = encryptPayloadForDestination(payload, destination)
+                val destinationSymmetricKey = encryptionResult.symmetricKey
+                var finalEncryptionResult = encryptionResult
+                var rhs = destination
+                for (snode in path.asReversed()) {
+                    val lhs = OnionRequestAPI.Destination.Snode(snode)
+                    finalEncryptionResult = encryptHop(lhs, rhs, finalEncryptionResult)
+                    rhs = lhs
                 }
+                deferred.resolve(OnionEncryptionResult(finalEncryptionResult, destinationSymmetricKey))
             } catch (exception: Exception) {
                 deferred.reject(exception)
             }
+            // Replace the ephemeral keys that were just used
+            precomputeEphemeralKeys(listOf( path ))
         }
         return deferred.promise
     }
 
     /**
-     * Encrypts the previous encryption result (i.e. that of the hop after this one) for this hop. Use this to build the layers of an onion request.
+     * Makes sure `ephemeralKeyCountPerSnode` ephemeral keys are ready for each snode in `paths`, so that building an
+     * onion only needs to do symmetric encryption. Keys for snodes that are no longer in any of `paths` are discarded.
      */
-    internal fun encryptHop(lhs: OnionRequestAPI.Destination, rhs: OnionRequestAPI.Destination, previousEncryptionResult: EncryptionResult): Promise<EncryptionResult, Exception> {
-        val deferred = deferred<EncryptionResult, Exception>()
-        Thread {
-            try {
-                val payload: MutableMap<String, Any>
-                when (rhs) {
-                    is OnionRequestAPI.Destination.Snode -> {
-                        payload = mutableMapOf( "destination" to rhs.snode.publicKeySet!!.ed25519Key )
-                    }
-                    is OnionRequestAPI.Destination.Server -> {
-                        payload = mutableMapOf( "host" to rhs.host, "target" to rhs.target, "method" to "POST" )
-                    }
-                }
-                payload["ephemeral_key"] = previousEncryptionResult.ephemeralPublicKey.toHexString()
-                val x25519PublicKey: String
-                when (lhs) {
-                    is OnionRequestAPI.Destination.Snode -> {
-                        x25519PublicKey = lhs.snode.publicKeySet!!.x25519Key
-                    }
-                    is OnionRequestAPI.Destination.Server -> {
-                        x25519PublicKey = lhs.x25519PublicKey
+    internal fun precomputeEphemeralKeys(paths: List<List<Snode>>, discardUnusedKeys: Boolean = false) {
+        val x25519PublicKeys = paths.flatten().mapNotNull { it.publicKeySet?.x25519Key }.toSet()
+        if (discardUnusedKeys) {
+            ephemeralKeys.keys.retainAll(x25519PublicKeys)
+            pendingEphemeralKeyCounts.keys.retainAll(x25519PublicKeys)
+        }
+        for (x25519PublicKey in x25519PublicKeys) {
+            val queue = ephemeralKeys.getOrPut(x25519PublicKey) { ConcurrentLinkedQueue() }
+            val pendingKeyCount = pendingEphemeralKeyCounts.getOrPut(x25519PublicKey) { AtomicInteger(0) }
+            // Reserve the missing keys before submitting, so that concurrent calls don't top up the same snode twice
+            var missingKeyCount: Int
+            do {
+                val currentPendingKeyCount = pendingKeyCount.get()
+                missingKeyCount = ephemeralKeyCountPerSnode - queue.size - currentPendingKeyCount
+            } while (missingKeyCount > 0 && !pendingKeyCount.compareAndSet(currentPendingKeyCount, currentPendingKeyCount + missingKeyCount))
+            if (missingKeyCount <= 0) { continue }
+            val reservedKeyCount = missingKeyCount
+            ThreadUtils.cryptoExecutor.execute {
+                var generatedKeyCount = 0
+                try {
+                    val x25519PublicKeyAsData = Hex.fromStringCondensed(x25519PublicKey)
+                    repeat(reservedKeyCount) {
+                        queue.add(generateEphemeralKey(x25519PublicKeyAsData))
+                        pendingKeyCount.decrementAndGet()
+                        generatedKeyCount += 1
                     }
+                } catch (exception: Exception) {
+                    Log.d("Loki", "Couldn't precompute ephemeral keys: $exception.")
+                } finally {
+                    pendingKeyCount.addAndGet(generatedKeyCount - reservedKeyCount)
                 }
-                val plaintext = encode(previousEncryptionResult.ciphertext, payload)
-                val result = AESGCM.encrypt(plaintext, x25519PublicKey)
-                deferred.resolve(result)
-            } catch (exception: Exception) {
-                deferred.reject(exception)
             }
-        }.start()
-        return deferred.promise
+        }
+    }
+
+    private fun generateEphemeralKey(x25519PublicKey: ByteArray): EphemeralKey {
+        val ephemeralKeyPair = CryptoPool.curve.generateKeyPair()
+        val symmetricKey = AESGCM.generateSymmetricKey(x25519PublicKey, ephemeralKeyPair.privateKey)
+        return EphemeralKey(ephemeralKeyPair.publicKey, symmetricKey)
+    }
+
+    private fun getEphemeralKey(x25519PublicKey: String): EphemeralKey {
+        return ephemeralKeys[x25519PublicKey]?.poll() ?: generateEphemeralKey(Hex.fromStringCondensed(x25519PublicKey))
+    }
+
+    /**
+     * Encrypts `payload` for `destination` and returns the result. Use this to build the core of an onion request.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    private fun encryptPayloadForDestination(payload: Map<*, *>, destination: OnionRequestAPI.Destination): EncryptionResult {
+        // Wrapping isn't needed for file server or open group onion requests
+        return when (destination) {
+            is OnionRequestAPI.Destination.Snode -> {
+                val snodeX25519PublicKey = destination.snode.publicKeySet!!.x25519Key
+                val payloadAsData = JsonUtil.toJson(payload).toByteArray()
+                val headersAsData = JsonUtil.toJson(mapOf( "headers" to "" )).toByteArray()
+                val plaintext = encodeIntoBuffer(payloadAsData, headersAsData)
+                encrypt(plaintext, Int.SIZE_BYTES + payloadAsData.size + headersAsData.size, snodeX25519PublicKey)
+            }
+            is OnionRequestAPI.Destination.Server -> {
+                val plaintext = JsonUtil.toJson(payload).toByteArray()
+                encrypt(plaintext, plaintext.size, destination.x25519PublicKey)
+            }
+        }
+    }
+
+    /**
+     * Encrypts the previous encryption result (i.e. that of the hop after this one) for this hop. Use this to build the layers of an onion request.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    private fun encryptHop(lhs: OnionRequestAPI.Destination, rhs: OnionRequestAPI.Destination, previousEncryptionResult: EncryptionResult): EncryptionResult {
+        val payload: MutableMap<String, Any>
+        when (rhs) {
+            is OnionRequestAPI.Destination.Snode -> {
+                payload = mutableMapOf( "destination" to rhs.snode.publicKeySet!!.ed25519Key )
+            }
+            is OnionRequestAPI.Destination.Server -> {
+                payload = mutableMapOf( "host" to rhs.host, "target" to rhs.target, "method" to "POST" )
+            }
+        }
+        payload["ephemeral_key"] = previousEncryptionResult.ephemeralPublicKey.toHexString()
+        val x25519PublicKey: String
+        when (lhs) {
+            is OnionRequestAPI.Destination.Snode -> {
+                x25519PublicKey = lhs.snode.publicKeySet!!.x25519Key
+            }
+            is OnionRequestAPI.Destination.Server -> {
+                x25519PublicKey = lhs.x25519PublicKey
+            }
+        }
+        val ciphertext = previousEncryptionResult.ciphertext
+        val jsonAsData = JsonUtil.toJson(payload).toByteArray()
+        val plaintext = encodeIntoBuffer(ciphertext, jsonAsData)
+        return encrypt(plaintext, Int.SIZE_BYTES + ciphertext.size + jsonAsData.size, x25519PublicKey)
+    }
+
+    private fun encrypt(plaintext: ByteArray, length: Int, x25519PublicKey: String): EncryptionResult {
+        val ephemeralKey = getEphemeralKey(x25519PublicKey)
+        val ciphertext = AESGCM.encrypt(plaintext, 0, length, ephemeralKey.symmetricKey)
+        return EncryptionResult(ciphertext, ephemeralKey.symmetricKey, ephemeralKey.publicKey)
     }
 }
@@ -0,0 +1,155 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Promise
+import nl.komponents.kovenant.deferred
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Owns the onion request paths, the guard snodes and the failure counts of both. Promise callbacks on several
+ * Kovenant contexts update this state concurrently, so every update is an atomic transition on an immutable snapshot.
+ */
+internal class OnionRequestPathManager(
+    private val targetPathCount: Int,
+    private val loadPaths: () -> List<List<Snode>>,
+    private val persistPaths: (List<List<Snode>>) -> Unit
+) {
+
+    enum class State {
+        /**
+         * New paths are being built.
+         */
+        Building,
+        /**
+         * `targetPathCount` paths are available.
+         */
+        Ready,
+        /**
+         * Fewer than `targetPathCount` paths are available and no new ones are being built.
+         */
+        Degraded
+    }
+
+    private val state = AtomicReference(State.Degraded)
+    private val paths = AtomicReference<List<List<Snode>>?>(null)
+    private val guardSnodes = AtomicReference<Set<Snode>>(setOf())
+    private val pendingBuild = AtomicReference<Promise<List<List<Snode>>, Exception>?>(null)
+    private val pathFailureCount = ConcurrentHashMap<List<Snode>, AtomicInteger>()
+    private val snodeFailureCount = ConcurrentHashMap<Snode, AtomicInteger>()
+    private val persistenceLock = Any()
+
+    val currentState: State get() {
+        getPaths() // Make sure the state reflects the persisted paths
+        return state.get()
+    }
+
+    // region Paths
+    fun getPaths(): List<List<Snode>> {
+        val paths = this.paths.get()
+        if (paths != null) { return paths }
+        this.paths.compareAndSet(null, loadPaths())
+        updateState()
+        return this.paths.get()!!
+    }
+
+    fun setPaths(newValue: List<List<Snode>>) {
+        paths.set(newValue)
+        didUpdatePaths()
+    }
+
+    /**
+     * Atomically replaces the paths with the result of `transform`. `transform` may be invoked more than once if other
+     * threads update the paths at the same time, and should return `null` if there's nothing to change.
+     */
+    fun updatePaths(transform: (List<List<Snode>>) -> List<List<Snode>>?) {
+        while (true) {
+            val oldValue = getPaths()
+            val newValue = transform(oldValue) ?: return
+            if (paths.compareAndSet(oldValue, newValue)) { break }
+        }
+        didUpdatePaths()
+    }
+
+    private fun didUpdatePaths() {
+        synchronized(persistenceLock) {
+            // Always write the latest snapshot so that concurrent updates can't be persisted out of order
+            val paths = this.paths.get()!!
+            persistPaths(paths)
+            pathFailureCount.keys.retainAll(paths)
+            snodeFailureCount.keys.retainAll(paths.flatten())
+        }
+        updateState()
+    }
+
+    /**
+     * Builds new paths using `build`, unless a build is already in progress, in which case the pending build's promise
+     * is returned. This makes sure a burst of failures triggers a single rebuild.
+     */
+    fun buildPaths(build: () -> Promise<List<List<Snode>>, Exception>): Promise<List<List<Snode>>, Exception> {
+        while (true) {
+            val pendingBuild = this.pendingBuild.get()
+            if (pendingBuild != null) { return pendingBuild }
+            val deferred = deferred<List<List<Snode>>, Exception>()
+            val promise = deferred.promise
+            if (!this.pendingBuild.compareAndSet(null, promise)) { continue }
+            state.set(State.Building)
+            promise.always {
+                state.set(getStateForPaths())
+                this.pendingBuild.set(null)
+            }
+            try {
+                build().success { deferred.resolve(it) }.fail { deferred.reject(it) }
+            } catch (exception: Exception) {
+                deferred.reject(exception)
+            }
+            return promise
+        }
+    }
+
+    private fun getStateForPaths(): State {
+        val pathCount = paths.get()?.count() ?: 0
+        return if (pathCount >= targetPathCount) State.Ready else State.Degraded
+    }
+
+    private fun updateState() {
+        while (true) {
+            val oldValue = state.get()
+            if (oldValue == State.Building) { return } // Updated once the build completes
+            val newValue = getStateForPaths()
+            if (oldValue == newValue || state.compareAndSet(oldValue, newValue)) { return }
+        }
+    }
+    // endregion
+
+    // region Guard Snodes
+    fun getGuardSnodes(): Set<Snode> { return guardSnodes.get() }
+
+    fun setGuardSnodes(newValue: Set<Snode>) { guardSnodes.set(newValue) }
+
+    fun dropGuardSnode(snode: Snode) {
+        while (true) {
+            val oldValue = guardSnodes.get()
+            if (!oldValue.contains(snode)) { return }
+            if (guardSnodes.compareAndSet(oldValue, oldValue.minus(snode))) { return }
+        }
+    }
+    // endregion
+
+    // region Failure Counts
+    /**
+     * Increments the failure count of `path` and returns whether it has reached `threshold`. The count is reset once
+     * the path is dropped, and dropping is idempotent, so concurrent failures past the threshold are harmless.
+     */
+    fun incrementFailureCount(path: List<Snode>, threshold: Int): Boolean {
+        return pathFailureCount.getOrPut(path) { AtomicInteger(0) }.incrementAndGet() >= threshold
+    }
+
+    /**
+     * See `incrementFailureCount(path:threshold:)`.
+     */
+    fun incrementFailureCount(snode: Snode, threshold: Int): Boolean {
+        return snodeFailureCount.getOrPut(snode) { AtomicInteger(0) }.incrementAndGet() >= threshold
+    }
+    // endregion
+}
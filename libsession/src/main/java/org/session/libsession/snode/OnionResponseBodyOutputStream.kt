@@ -0,0 +1,159 @@
+package org.session.libsession.snode
+
+import org.session.libsignal.utilities.Base64
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Accepts the decrypted JSON of an onion response (e.g. `{ "status": 200, "body": "<base64>" }`) while it's being
+ * written, and streams the base64 decoded `body` into `outputStream` without ever holding all of it in memory.
+ *
+ * `close()` throws if the JSON is incomplete, and throws an `HTTPRequestFailedAtDestinationException` if the status
+ * code isn't 200. It doesn't close `outputStream`.
+ */
+internal class OnionResponseBodyOutputStream(outputStream: OutputStream) : OutputStream() {
+    private val bufferedOutputStream = BufferedOutputStream(outputStream, bufferSize)
+    private val bodyOutputStream = Base64.OutputStream(bufferedOutputStream, Base64.DECODE)
+    /**
+     * The body is held back until the status code is known (error bodies are plain text rather than base64), or until
+     * it's clearly too large to be an error message.
+     */
+    private var pendingBody: ByteArrayOutputStream? = ByteArrayOutputStream()
+    private var statusCode: Int? = null
+    private var isClosed = false
+
+    // region Parsing State
+    private enum class Value { None, Status, Body }
+
+    private var depth = 0
+    private var isInString = false
+    private var isEscaped = false
+    private var unicodeEscapeDigitCount = -1
+    private var unicodeEscapeValue = 0
+    private var isExpectingKey = false
+    private val key = StringBuilder()
+    private var value = Value.None
+    private val status = StringBuilder()
+    // endregion
+
+    // region Settings
+    companion object {
+        private const val bufferSize = 8 * 1024
+        private const val maxPendingBodySize = 4 * 1024
+    }
+    // endregion
+
+    override fun write(byte: Int) {
+        val character = (byte and 0xFF).toChar()
+        if (isInString) {
+            when {
+                unicodeEscapeDigitCount >= 0 -> {
+                    unicodeEscapeValue = (unicodeEscapeValue shl 4) or Character.digit(character, 16)
+                    unicodeEscapeDigitCount += 1
+                    if (unicodeEscapeDigitCount == 4) {
+                        unicodeEscapeDigitCount = -1
+                        handleStringCharacter(unicodeEscapeValue.toChar())
+                    }
+                }
+                isEscaped -> {
+                    isEscaped = false
+                    when (character) {
+                        'u' -> { unicodeEscapeDigitCount = 0; unicodeEscapeValue = 0 }
+                        'b' -> handleStringCharacter('\b')
+                        'f' -> handleStringCharacter('\u000C')
+                        'n' -> handleStringCharacter('\n')
+                        'r' -> handleStringCharacter('\r')
+                        't' -> handleStringCharacter('\t')
+                        else -> handleStringCharacter(character) // Covers \", \\ and \/
+                    }
+                }
+                character == '\\' -> isEscaped = true
+                character == '"' -> {
+                    isInString = false
+                    if (depth == 1 && isExpectingKey) { value = getValue(key.toString()) }
+                }
+                else -> handleStringCharacter(character)
+            }
+            return
+        }
+        when (character) {
+            '"' -> {
+                isInString = true
+                if (depth == 1 && isExpectingKey) { key.setLength(0) }
+            }
+            '{', '[' -> {
+                depth += 1
+                if (depth == 1) { isExpectingKey = true }
+            }
+            '}', ']' -> {
+                if (depth == 1) { finishValue() }
+                depth -= 1
+            }
+            ':' -> if (depth == 1) { isExpectingKey = false }
+            ',' -> if (depth == 1) { finishValue(); isExpectingKey = true }
+            else -> if (depth == 1 && !isExpectingKey && value == Value.Status && !character.isWhitespace()) { status.append(character) }
+        }
+    }
+
+    override fun write(bytes: ByteArray, offset: Int, length: Int) {
+        for (i in offset until offset + length) { write(bytes[i].toInt()) }
+    }
+
+    private fun getValue(key: String): Value {
+        return when (key) {
+            "status" -> Value.Status
+            "body" -> Value.Body
+            else -> Value.None
+        }
+    }
+
+    private fun handleStringCharacter(character: Char) {
+        if (depth != 1) { return }
+        if (isExpectingKey) {
+            key.append(character)
+        } else if (value == Value.Body) {
+            writeBody(character.toInt())
+        }
+    }
+
+    private fun writeBody(byte: Int) {
+        val pendingBody = this.pendingBody
+        if (pendingBody == null) {
+            bodyOutputStream.write(byte)
+            return
+        }
+        pendingBody.write(byte)
+        if (statusCode == 200 || pendingBody.size() > maxPendingBodySize) { flushPendingBody() }
+    }
+
+    private fun flushPendingBody() {
+        val pendingBody = this.pendingBody ?: return
+        this.pendingBody = null
+        val bytes = pendingBody.toByteArray()
+        bodyOutputStream.write(bytes, 0, bytes.size)
+    }
+
+    private fun finishValue() {
+        if (value == Value.Status) {
+            statusCode = status.toString().toIntOrNull()
+            if (statusCode == 200) { flushPendingBody() }
+        }
+        value = Value.None
+    }
+
+    override fun close() {
+        if (isClosed) { return }
+        isClosed = true
+        if (depth != 0 || isInString) { throw IOException("Invalid JSON.") }
+        val statusCode = this.statusCode ?: throw IOException("Missing status code.")
+        if (statusCode != 200) {
+            val body = pendingBody?.toByteArray()?.toString(Charsets.UTF_8) ?: ""
+            throw OnionRequestAPI.HTTPRequestFailedAtDestinationException(statusCode, mapOf( "result" to body ))
+        }
+        flushPendingBody()
+        bodyOutputStream.flushBase64()
+        bufferedOutputStream.flush()
+    }
+}
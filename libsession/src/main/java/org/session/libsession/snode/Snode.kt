@@ -13,7 +13,11 @@ public class Snode(val address: String, val port: Int, val publicKeySet: KeySet?
          * Only supported by snode targets.
          */
         GetMessages("retrieve"),
-        SendMessage("store")
+        SendMessage("store"),
+        /**
+         * Only supported by snode targets. Wraps several of the above in a single call.
+         */
+        Batch("batch")
     }
 
     data class KeySet(val ed25519Key: String, val x25519Key: String)
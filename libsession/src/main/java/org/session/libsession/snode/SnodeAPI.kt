@@ -9,12 +9,13 @@ import nl.komponents.kovenant.functional.map
 import org.session.libsession.snode.utilities.getRandomElement
 
 import org.session.libsignal.utilities.logging.Log
+import org.session.libsignal.service.loki.api.ReceivedMessageHashValueCache
 import org.session.libsignal.service.loki.api.utilities.HTTP
 import org.session.libsignal.service.loki.utilities.prettifiedDescription
 import org.session.libsignal.service.loki.utilities.retryIfNeeded
 import org.session.libsignal.utilities.*
-
-import java.security.SecureRandom
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 object SnodeAPI {
     val database = SnodeConfiguration.shared.storage
@@ -22,8 +23,9 @@ object SnodeAPI {
     val sharedContext = Kovenant.createContext()
     val messageSendingContext = Kovenant.createContext()
     val messagePollingContext = Kovenant.createContext()
+    private val receivedMessageHashValueCache by lazy { ReceivedMessageHashValueCache.getInstance(database) }
 
-    internal var snodeFailureCount: MutableMap<Snode, Int> = mutableMapOf()
+    private val snodeFailureCount = ConcurrentHashMap<Snode, AtomicInteger>()
     internal var snodePool: Set<Snode>
         get() = database.getSnodePool()
         set(newValue) { database.setSnodePool(newValue) }
@@ -37,6 +39,7 @@ object SnodeAPI {
     private val targetSwarmSnodeCount = 2
 
     private val useOnionRequests = true
+    private val useRequestBatching = true
 
     internal var powDifficulty = 1
 
@@ -50,11 +53,13 @@ object SnodeAPI {
     // Internal API
     internal fun invoke(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<String, String>): RawResponsePromise {
         val url = "${snode.address}:${snode.port}/storage_rpc/v1"
-        if (useOnionRequests) {
+        if (useOnionRequests && useRequestBatching && SnodeRequestBatcher.isBatchable(method)) {
+            return SnodeRequestBatcher.enqueue(method, snode, publicKey, parameters)
+        } else if (useOnionRequests) {
             return OnionRequestAPI.sendOnionRequest(method, parameters, snode, publicKey)
         } else {
             val deferred = deferred<Map<*, *>, Exception>()
-            ThreadUtils.queue {
+            ThreadUtils.queue(ThreadUtils.networkExecutor) {
                 val payload = mapOf( "method" to method.rawValue, "params" to parameters )
                 try {
                     val json = HTTP.execute(HTTP.Verb.POST, url, payload)
@@ -83,12 +88,12 @@ object SnodeAPI {
                     "method" to "get_n_service_nodes",
                     "params" to mapOf(
                             "active_only" to true,
-                            "fields" to mapOf( "public_ip" to true, "storage_port" to true, "pubkey_x25519" to true, "pubkey_ed25519" to true )
+                            "fields" to mapOf( "public_ip" to true, "storage_port" to true, "pubkey_x25519" to true, "pubkey_ed25519" to true, "storage_server_version" to true )
                     )
             )
             val deferred = deferred<Snode, Exception>()
             deferred<org.session.libsignal.service.loki.api.Snode, Exception>(SnodeAPI.sharedContext)
-            ThreadUtils.queue {
+            ThreadUtils.queue(ThreadUtils.networkExecutor) {
                 try {
                     val json = HTTP.execute(HTTP.Verb.POST, url, parameters, useSeedNodeConnection = true)
                     val intermediate = json["result"] as? Map<*, *>
@@ -100,8 +105,11 @@ object SnodeAPI {
                             val port = rawSnodeAsJSON?.get("storage_port") as? Int
                             val ed25519Key = rawSnodeAsJSON?.get("pubkey_ed25519") as? String
                             val x25519Key = rawSnodeAsJSON?.get("pubkey_x25519") as? String
+                            val version = rawSnodeAsJSON?.get("storage_server_version") as? List<*>
                             if (address != null && port != null && ed25519Key != null && x25519Key != null && address != "0.0.0.0") {
-                                Snode("https://$address", port, Snode.KeySet(ed25519Key, x25519Key))
+                                val snode = Snode("https://$address", port, Snode.KeySet(ed25519Key, x25519Key))
+                                if (version != null) { SnodeRequestBatcher.setVersion(snode, version.joinToString(".")) }
+                                snode
                             } else {
                                 Log.d("Loki", "Failed to parse: ${rawSnode?.prettifiedDescription()}.")
                                 null
@@ -137,15 +145,21 @@ object SnodeAPI {
         }
     }
 
+    @Synchronized
+    private fun dropSnodeFromSnodePool(snode: Snode) {
+        snodePool = snodePool.minus(snode)
+        Log.d("Loki", "Snode pool count: ${snodePool.count()}.")
+    }
+
     internal fun getSingleTargetSnode(publicKey: String): Promise<Snode, Exception> {
-        // SecureRandom() should be cryptographically secure
-        return getSwarm(publicKey).map { it.shuffled(SecureRandom()).random() }
+        // Weighted towards fast and reliable snodes, but still random
+        return getSwarm(publicKey).map { SnodeHealth.pickSnode(it) }
     }
 
     // Public API
     fun getTargetSnodes(publicKey: String): Promise<List<Snode>, Exception> {
-        // SecureRandom() should be cryptographically secure
-        return getSwarm(publicKey).map { it.shuffled(SecureRandom()).take(targetSwarmSnodeCount) }
+        // Weighted towards fast and reliable snodes, but still random
+        return getSwarm(publicKey).map { SnodeHealth.pickSnodes(it, targetSwarmSnodeCount) }
     }
 
     fun getSwarm(publicKey: String): Promise<Set<Snode>, Exception> {
@@ -260,15 +274,21 @@ object SnodeAPI {
     }
 
     private fun removeDuplicates(publicKey: String, rawMessages: List<*>): List<*> {
-        val receivedMessageHashValues = database.getReceivedMessageHashValues(publicKey)?.toMutableSet() ?: mutableSetOf()
+        val now = System.currentTimeMillis()
+        val hashValues = linkedMapOf<String, Long>()
+        for (rawMessage in rawMessages) {
+            val rawMessageAsJSON = rawMessage as? Map<*, *>
+            val hashValue = rawMessageAsJSON?.get("hash") as? String ?: continue
+            val expiration = (rawMessageAsJSON["expiration"] as? Number)?.toLong()
+            hashValues[hashValue] = expiration ?: (now + ReceivedMessageHashValueCache.defaultExpiration)
+        }
+        val newHashValues = receivedMessageHashValueCache.removeDuplicates(publicKey, hashValues).toMutableSet()
         return rawMessages.filter { rawMessage ->
             val rawMessageAsJSON = rawMessage as? Map<*, *>
             val hashValue = rawMessageAsJSON?.get("hash") as? String
             if (hashValue != null) {
-                val isDuplicate = receivedMessageHashValues.contains(hashValue)
-                receivedMessageHashValues.add(hashValue)
-                database.setReceivedMessageHashValues(publicKey, receivedMessageHashValues)
-                !isDuplicate
+                // Removing the hash value also filters out duplicates within a single response
+                newHashValues.remove(hashValue)
             } else {
                 Log.d("Loki", "Missing hash value for message: ${rawMessage?.prettifiedDescription()}.")
                 false
@@ -279,18 +299,16 @@ object SnodeAPI {
     // Error Handling
     internal fun handleSnodeError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String? = null): Exception? {
         fun handleBadSnode() {
-            val oldFailureCount = snodeFailureCount[snode] ?: 0
-            val newFailureCount = oldFailureCount + 1
-            snodeFailureCount[snode] = newFailureCount
+            SnodeHealth.recordFailure(snode)
+            val newFailureCount = snodeFailureCount.getOrPut(snode) { AtomicInteger(0) }.incrementAndGet()
             Log.d("Loki", "Couldn't reach snode at $snode; setting failure count to $newFailureCount.")
             if (newFailureCount >= snodeFailureThreshold) {
                 Log.d("Loki", "Failure threshold reached for: $snode; dropping it.")
                 if (publicKey != null) {
                     dropSnodeFromSwarmIfNeeded(snode, publicKey)
                 }
-                snodePool = snodePool.toMutableSet().minus(snode).toSet()
-                Log.d("Loki", "Snode pool count: ${snodePool.count()}.")
-                snodeFailureCount[snode] = 0
+                dropSnodeFromSnodePool(snode)
+                snodeFailureCount.remove(snode)
             }
         }
         when (statusCode) {
@@ -0,0 +1,171 @@
+package org.session.libsession.snode
+
+import java.security.SecureRandom
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Keeps track of how fast and how reliable individual snodes and onion request paths have been, and uses that to
+ * pick between candidates.
+ *
+ * Selection is a weighted random choice rather than always picking the best candidate. Always going to the same
+ * snode would make the user's traffic easier to link together, and would never give a snode that had a bad moment a
+ * chance to recover.
+ */
+internal object SnodeHealth {
+
+    /**
+     * An immutable snapshot of a snode's or path's stats. Updated through compare-and-set so no locking is needed.
+     */
+    private data class Stats(
+        /**
+         * Exponentially weighted moving average of the round trip time in milliseconds.
+         */
+        val averageRTT: Double,
+        /**
+         * Exponentially weighted moving average of the failure rate, between 0 and 1.
+         */
+        val failureRate: Double,
+        val lastUpdate: Long
+    )
+
+    // region Settings
+    /**
+     * The weight given to a new sample.
+     */
+    private const val smoothingFactor = 0.2
+    /**
+     * After this long without new samples, stats have decayed halfway back to the defaults.
+     */
+    private const val halfLife: Long = 10 * 60 * 1000
+    /**
+     * The RTT assumed for snodes we haven't talked to yet, until there are measurements to go by. Snodes we know
+     * nothing about are then assumed to be as fast as the median snode we've measured.
+     */
+    private const val defaultRTT = 1000.0
+    /**
+     * How much a failure rate of 100% inflates a candidate's expected latency.
+     */
+    private const val failurePenalty = 10.0
+    // endregion
+
+    private val snodeStats = ConcurrentHashMap<Snode, AtomicReference<Stats>>()
+    private val pathStats = ConcurrentHashMap<List<Snode>, AtomicReference<Stats>>()
+    private val random = SecureRandom()
+    /**
+     * The median RTT of the snodes we have stats for. Used for snodes without stats of their own, and as the value stats
+     * decay back to.
+     */
+    @Volatile private var baselineRTT = defaultRTT
+
+    // region Recording
+    fun recordSuccess(snode: Snode, rtt: Long) {
+        record(snodeStats, snode, rtt.toDouble(), false)
+        updateBaselineRTT()
+    }
+
+    /**
+     * Records the RTT of an onion request to `destination` through `path`. Each hop is credited with an equal share
+     * of it, since there's no way to tell how long each of them took.
+     */
+    fun recordSuccess(path: List<Snode>, destination: Snode, rtt: Long) {
+        recordSuccess(path, rtt)
+        recordSuccess(destination, rtt / (path.size + 1))
+    }
+
+    fun recordFailure(snode: Snode) { record(snodeStats, snode, null, true) }
+
+    fun recordSuccess(path: List<Snode>, rtt: Long) { record(pathStats, path, rtt.toDouble(), false) }
+
+    fun recordFailure(path: List<Snode>) { record(pathStats, path, null, true) }
+
+    /**
+     * Drops the stats of paths that are no longer in use.
+     */
+    fun retainPaths(paths: List<List<Snode>>) {
+        pathStats.keys.retainAll(paths)
+    }
+
+    private fun updateBaselineRTT() {
+        val rtts = snodeStats.values.map { it.get().averageRTT }.sorted()
+        if (rtts.isEmpty()) { return }
+        baselineRTT = rtts[rtts.size / 2]
+    }
+
+    private fun <K> record(stats: ConcurrentHashMap<K, AtomicReference<Stats>>, key: K, rtt: Double?, isFailure: Boolean) {
+        val reference = stats[key] ?: stats.putIfAbsent(key, AtomicReference(defaultStats())) ?: stats[key]!!
+        while (true) {
+            val current = reference.get()
+            val decayed = decay(current, System.currentTimeMillis())
+            val averageRTT = if (rtt != null) decayed.averageRTT + smoothingFactor * (rtt - decayed.averageRTT) else decayed.averageRTT
+            val failureRate = decayed.failureRate + smoothingFactor * ((if (isFailure) 1.0 else 0.0) - decayed.failureRate)
+            if (reference.compareAndSet(current, Stats(averageRTT, failureRate, decayed.lastUpdate))) { return }
+        }
+    }
+    // endregion
+
+    // region Scoring
+    /**
+     * The expected cost of using `snode`, roughly in milliseconds. Lower is better.
+     */
+    fun getScore(snode: Snode): Double { return getScore(snodeStats[snode]?.get()) }
+
+    fun getScore(path: List<Snode>): Double {
+        // Until a path has stats of its own, judge it by the snodes it's made up of
+        val stats = pathStats[path]?.get() ?: return path.sumByDouble { getScore(it) } / Math.max(path.size, 1)
+        return getScore(stats)
+    }
+
+    private fun getScore(stats: Stats?): Double {
+        val decayed = decay(stats ?: return baselineRTT, System.currentTimeMillis())
+        return decayed.averageRTT * (1.0 + failurePenalty * decayed.failureRate)
+    }
+
+    private fun defaultStats(): Stats { return Stats(baselineRTT, 0.0, System.currentTimeMillis()) }
+
+    private fun decay(stats: Stats, now: Long): Stats {
+        val elapsed = now - stats.lastUpdate
+        if (elapsed <= 0) { return stats }
+        val weight = Math.pow(0.5, elapsed.toDouble() / halfLife.toDouble())
+        val averageRTT = baselineRTT + weight * (stats.averageRTT - baselineRTT)
+        val failureRate = weight * stats.failureRate
+        return Stats(averageRTT, failureRate, now)
+    }
+    // endregion
+
+    // region Selection
+    /**
+     * Picks a candidate at random, with a probability inversely proportional to its score.
+     */
+    fun <T> pick(candidates: Collection<T>, getScore: (T) -> Double): T {
+        if (candidates.isEmpty()) { throw NoSuchElementException("Can't pick from an empty collection.") }
+        val weights = candidates.map { 1.0 / Math.max(getScore(it), 1.0) }
+        var target = random.nextDouble() * weights.sum()
+        for ((index, candidate) in candidates.withIndex()) {
+            target -= weights[index]
+            if (target <= 0) { return candidate }
+        }
+        return candidates.last()
+    }
+
+    /**
+     * Picks `count` distinct candidates using `pick(_:_:)`.
+     */
+    fun <T> pick(candidates: Collection<T>, count: Int, getScore: (T) -> Double): List<T> {
+        val remaining = candidates.toMutableList()
+        val result = mutableListOf<T>()
+        while (result.size < count && remaining.isNotEmpty()) {
+            val candidate = pick(remaining, getScore)
+            remaining.remove(candidate)
+            result.add(candidate)
+        }
+        return result
+    }
+
+    fun pickSnode(snodes: Collection<Snode>): Snode { return pick(snodes) { getScore(it) } }
+
+    fun pickSnodes(snodes: Collection<Snode>, count: Int): List<Snode> { return pick(snodes, count) { getScore(it) } }
+
+    fun pickPath(paths: Collection<List<Snode>>): List<Snode> { return pick(paths) { getScore(it) } }
+    // endregion
+}
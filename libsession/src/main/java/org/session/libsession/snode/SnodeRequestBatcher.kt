@@ -0,0 +1,191 @@
+package org.session.libsession.snode
+
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.deferred
+import org.session.libsignal.service.loki.utilities.prettifiedDescription
+import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Coalesces snode RPCs that are bound for the same snode within a short window into a single `batch` call, so that
+ * they share one onion request (and thus one path round trip) instead of each building their own. The responses are
+ * demultiplexed back to the individual callers in order.
+ *
+ * Only snodes known to run a storage server version that supports `batch` are batched to, and a request is only held
+ * back while another request to the same snode is in flight, so a lone request goes out right away. If a batch fails,
+ * its requests are retried individually.
+ */
+internal object SnodeRequestBatcher {
+
+    private class PendingRequest(
+        val method: Snode.Method,
+        val parameters: Map<*, *>,
+        val publicKey: String,
+        val deferred: Deferred<RawResponse, Exception>
+    )
+
+    // region Settings
+    /**
+     * How long to wait for other requests to the same snode before sending.
+     */
+    private const val batchWindow: Long = 50
+    /**
+     * The maximum number of sub-requests the storage server accepts in a single batch.
+     */
+    private const val maxBatchSize = 20
+    /**
+     * The first storage server version that understands the `batch` method.
+     */
+    private val minimumBatchVersion = listOf( 2, 2, 0 )
+    // endregion
+
+    private val pendingRequests = mutableMapOf<Snode, MutableList<PendingRequest>>()
+    /**
+     * The number of requests or batches that have been sent to each snode but haven't completed yet.
+     */
+    private val inFlightRequestCounts = mutableMapOf<Snode, Int>()
+    private val snodeVersions = ConcurrentHashMap<Snode, List<Int>>()
+    /**
+     * Snodes that rejected a batch even though their version suggested they'd support it.
+     */
+    private val unsupportedSnodes = Collections.newSetFromMap(ConcurrentHashMap<Snode, Boolean>())
+
+    fun isBatchable(method: Snode.Method): Boolean {
+        return method == Snode.Method.GetMessages || method == Snode.Method.SendMessage
+    }
+
+    /**
+     * Records the storage server version of `snode`, e.g. `2.0.7`, as reported by the seed nodes or the snode itself.
+     */
+    fun setVersion(snode: Snode, version: String) {
+        val components = version.split(".").mapNotNull { it.toIntOrNull() }
+        if (components.isEmpty()) { return }
+        snodeVersions[snode] = components
+    }
+
+    fun supportsBatching(snode: Snode): Boolean {
+        val version = snodeVersions[snode] ?: return false
+        return compareVersions(version, minimumBatchVersion) >= 0 && !unsupportedSnodes.contains(snode)
+    }
+
+    fun enqueue(method: Snode.Method, snode: Snode, publicKey: String, parameters: Map<*, *>): RawResponsePromise {
+        val deferred = deferred<RawResponse, Exception>()
+        val request = PendingRequest(method, parameters, publicKey, deferred)
+        if (!supportsBatching(snode)) {
+            sendIndividually(snode, request)
+            return deferred.promise
+        }
+        var isFirstPendingRequest = false
+        var batch: List<PendingRequest>? = null
+        synchronized(pendingRequests) {
+            val inFlightRequestCount = inFlightRequestCounts[snode] ?: 0
+            val requests = pendingRequests.getOrPut(snode) { mutableListOf() }
+            requests.add(request)
+            if (inFlightRequestCount == 0 || requests.size >= maxBatchSize) {
+                // Nothing to wait for (or no room for more)
+                batch = pendingRequests.remove(snode)
+                inFlightRequestCounts[snode] = inFlightRequestCount + 1
+            } else {
+                isFirstPendingRequest = requests.size == 1
+            }
+        }
+        val requests = batch
+        if (requests != null) {
+            send(snode, requests)
+        } else if (isFirstPendingRequest) {
+            ThreadUtils.scheduler.schedule(ThreadUtils.executorPool, batchWindow, TimeUnit.MILLISECONDS) { flush(snode) }
+        }
+        return deferred.promise
+    }
+
+    private fun flush(snode: Snode) {
+        val requests = synchronized(pendingRequests) {
+            val requests = pendingRequests.remove(snode)
+            if (requests != null && requests.isNotEmpty()) {
+                inFlightRequestCounts[snode] = (inFlightRequestCounts[snode] ?: 0) + 1
+            }
+            requests
+        } ?: return
+        if (requests.isEmpty()) { return }
+        send(snode, requests)
+    }
+
+    private fun onSent(snode: Snode) {
+        synchronized(pendingRequests) {
+            val inFlightRequestCount = (inFlightRequestCounts[snode] ?: 1) - 1
+            if (inFlightRequestCount > 0) {
+                inFlightRequestCounts[snode] = inFlightRequestCount
+            } else {
+                inFlightRequestCounts.remove(snode)
+            }
+        }
+    }
+
+    private fun sendIndividually(snode: Snode, request: PendingRequest): RawResponsePromise {
+        return OnionRequestAPI.sendOnionRequest(request.method, request.parameters, snode, request.publicKey).success {
+            request.deferred.resolve(it)
+        }.fail {
+            request.deferred.reject(it)
+        }
+    }
+
+    private fun send(snode: Snode, requests: List<PendingRequest>) {
+        if (requests.size == 1) {
+            // Nothing to coalesce; avoid the batch envelope
+            sendIndividually(snode, requests[0]).always { onSent(snode) }
+            return
+        }
+        Log.d("Loki", "Sending ${requests.size} requests to $snode in a single batch.")
+        val subRequests = requests.map { mapOf( "method" to it.method.rawValue, "params" to it.parameters ) }
+        val parameters = mapOf( "requests" to subRequests )
+        OnionRequestAPI.sendOnionRequest(Snode.Method.Batch, parameters, snode, requests[0].publicKey).success { rawResponse ->
+            onSent(snode)
+            val results = rawResponse["results"] as? List<*>
+            if (results == null || results.size != requests.size) {
+                Log.d("Loki", "Couldn't parse batch response: ${rawResponse.prettifiedDescription()}; falling back to individual requests.")
+                unsupportedSnodes.add(snode)
+                requests.forEach { sendIndividually(snode, it) }
+                return@success
+            }
+            requests.zip(results).forEach { (request, result) ->
+                val resultAsJSON = result as? Map<*, *>
+                val statusCode = resultAsJSON?.get("code") as? Int ?: 0
+                val body = parseBody(resultAsJSON?.get("body"))
+                if (statusCode == 200) {
+                    request.deferred.resolve(body)
+                } else {
+                    val error = SnodeAPI.handleSnodeError(statusCode, body, snode, request.publicKey)
+                    request.deferred.reject(error ?: OnionRequestAPI.HTTPRequestFailedAtDestinationException(statusCode, body))
+                }
+            }
+        }.fail { exception ->
+            onSent(snode)
+            Log.d("Loki", "Batch request to $snode failed due to error: $exception; falling back to individual requests.")
+            if (exception is OnionRequestAPI.HTTPRequestFailedAtDestinationException) {
+                // The snode got the batch but couldn't handle it
+                unsupportedSnodes.add(snode)
+            }
+            requests.forEach { sendIndividually(snode, it) }
+        }
+    }
+
+    private fun compareVersions(lhs: List<Int>, rhs: List<Int>): Int {
+        for (i in 0 until Math.max(lhs.size, rhs.size)) {
+            val difference = lhs.getOrElse(i) { 0 } - rhs.getOrElse(i) { 0 }
+            if (difference != 0) { return difference }
+        }
+        return 0
+    }
+
+    private fun parseBody(rawBody: Any?): Map<*, *> {
+        return when (rawBody) {
+            is Map<*, *> -> rawBody
+            is String -> try { JsonUtil.fromJson(rawBody, Map::class.java) } catch (exception: Exception) { mapOf( "result" to rawBody ) }
+            else -> mapOf<String, Any>()
+        }
+    }
+}
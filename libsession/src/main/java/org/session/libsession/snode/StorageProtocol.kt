@@ -1,6 +1,8 @@
 package org.session.libsession.snode
 
-interface SnodeStorageProtocol {
+import org.session.libsignal.service.loki.database.ReceivedMessageHashValueStorageProtocol
+
+interface SnodeStorageProtocol : ReceivedMessageHashValueStorageProtocol {
     fun getSnodePool(): Set<Snode>
     fun setSnodePool(newValue: Set<Snode>)
     fun getOnionRequestPaths(): List<List<Snode>>
@@ -10,6 +12,4 @@ interface SnodeStorageProtocol {
     fun setSwarm(publicKey: String, newValue: Set<Snode>)
     fun getLastMessageHashValue(snode: Snode, publicKey: String): String?
     fun setLastMessageHashValue(snode: Snode, publicKey: String, newValue: String)
-    fun getReceivedMessageHashValues(publicKey: String): Set<String>?
-    fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>)
 }
\ No newline at end of file
@@ -1,11 +1,7 @@
 package org.session.libsession.utilities
 
-import org.whispersystems.curve25519.Curve25519
-import org.session.libsignal.libsignal.util.ByteUtil
-import org.session.libsignal.service.internal.util.Util
 import org.session.libsignal.utilities.Hex
 import javax.crypto.Cipher
-import javax.crypto.Mac
 import javax.crypto.spec.GCMParameterSpec
 import javax.crypto.spec.SecretKeySpec
 
@@ -24,21 +20,33 @@ internal object AESGCM {
      * Sync. Don't call from the main thread.
      */
     internal fun decrypt(ivAndCiphertext: ByteArray, symmetricKey: ByteArray): ByteArray {
-        val iv = ivAndCiphertext.sliceArray(0 until ivSize)
-        val ciphertext = ivAndCiphertext.sliceArray(ivSize until ivAndCiphertext.count())
-        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
-        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-        return cipher.doFinal(ciphertext)
+        val cipher = CryptoPool.getAESGCMCipher()
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, ivAndCiphertext, 0, ivSize))
+        return cipher.doFinal(ivAndCiphertext, ivSize, ivAndCiphertext.size - ivSize)
     }
 
     /**
      * Sync. Don't call from the main thread.
      */
     internal fun encrypt(plaintext: ByteArray, symmetricKey: ByteArray): ByteArray {
-        val iv = Util.getSecretBytes(ivSize)
-        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        return encrypt(plaintext, 0, plaintext.size, symmetricKey)
+    }
+
+    /**
+     * Encrypts `length` bytes of `plaintext` starting at `offset`. The IV and ciphertext are written to a single
+     * array, so `plaintext` can be a reusable buffer.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun encrypt(plaintext: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray): ByteArray {
+        val iv = ByteArray(ivSize)
+        CryptoPool.getSecureRandom().nextBytes(iv)
+        val cipher = CryptoPool.getAESGCMCipher()
         cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-        return ByteUtil.combine(iv, cipher.doFinal(plaintext))
+        val result = ByteArray(ivSize + cipher.getOutputSize(length))
+        System.arraycopy(iv, 0, result, 0, ivSize)
+        cipher.doFinal(plaintext, offset, length, result, ivSize)
+        return result
     }
 
     /**
@@ -46,13 +54,21 @@ internal object AESGCM {
      */
     internal fun encrypt(plaintext: ByteArray, hexEncodedX25519PublicKey: String): EncryptionResult {
         val x25519PublicKey = Hex.fromStringCondensed(hexEncodedX25519PublicKey)
-        val ephemeralKeyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair()
-        val ephemeralSharedSecret = Curve25519.getInstance(Curve25519.BEST).calculateAgreement(x25519PublicKey, ephemeralKeyPair.privateKey)
-        val mac = Mac.getInstance("HmacSHA256")
-        mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
-        val symmetricKey = mac.doFinal(ephemeralSharedSecret)
+        val ephemeralKeyPair = CryptoPool.curve.generateKeyPair()
+        val symmetricKey = generateSymmetricKey(x25519PublicKey, ephemeralKeyPair.privateKey)
         val ciphertext = encrypt(plaintext, symmetricKey)
         return EncryptionResult(ciphertext, symmetricKey, ephemeralKeyPair.publicKey)
     }
 
+    /**
+     * Derives the symmetric key shared between the holder of `x25519PrivateKey` and the holder of the private key
+     * matching `x25519PublicKey`.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun generateSymmetricKey(x25519PublicKey: ByteArray, x25519PrivateKey: ByteArray): ByteArray {
+        val ephemeralSharedSecret = CryptoPool.curve.calculateAgreement(x25519PublicKey, x25519PrivateKey)
+        return CryptoPool.getSymmetricKeyMac().doFinal(ephemeralSharedSecret)
+    }
+
 }
\ No newline at end of file
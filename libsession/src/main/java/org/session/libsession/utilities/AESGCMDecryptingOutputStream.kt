@@ -0,0 +1,64 @@
+package org.session.libsession.utilities
+
+import java.io.IOException
+import java.io.OutputStream
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Decrypts data in the format produced by `AESGCM.encrypt(...)` (IV, then ciphertext, then tag) while it's being
+ * written, and writes the plaintext to `outputStream`. The ciphertext is fed to the platform GCM cipher as it arrives,
+ * so it never has to be collected in a byte array first.
+ *
+ * Depending on the provider, plaintext may be written before the tag has been checked. `close()` throws if the tag
+ * doesn't match, and everything written to `outputStream` must then be discarded, so `outputStream` should point at
+ * a temporary location. `close()` doesn't close `outputStream`.
+ */
+internal class AESGCMDecryptingOutputStream(symmetricKey: ByteArray, private val outputStream: OutputStream) : OutputStream() {
+    private val key = SecretKeySpec(symmetricKey, "AES")
+    private val iv = ByteArray(AESGCM.ivSize)
+    private var ivByteCount = 0
+    private var cipher: Cipher? = null
+    private var ciphertextByteCount: Long = 0
+    private var isClosed = false
+
+    override fun write(byte: Int) {
+        write(byteArrayOf( byte.toByte() ), 0, 1)
+    }
+
+    override fun write(bytes: ByteArray, offset: Int, length: Int) {
+        if (isClosed) { throw IOException("Stream closed.") }
+        @Suppress("NAME_SHADOWING") var offset = offset
+        @Suppress("NAME_SHADOWING") var length = length
+        if (ivByteCount < iv.size) {
+            val count = Math.min(length, iv.size - ivByteCount)
+            System.arraycopy(bytes, offset, iv, ivByteCount, count)
+            ivByteCount += count
+            offset += count
+            length -= count
+            if (ivByteCount == iv.size) {
+                val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+                cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(AESGCM.gcmTagSize, iv))
+                this.cipher = cipher
+            }
+        }
+        if (length == 0) { return }
+        val plaintext = cipher!!.update(bytes, offset, length)
+        ciphertextByteCount += length
+        if (plaintext != null && plaintext.isNotEmpty()) { outputStream.write(plaintext) }
+    }
+
+    /**
+     * Checks the tag and writes whatever plaintext is left. Throws an `AEADBadTagException` if the tag doesn't match.
+     */
+    override fun close() {
+        if (isClosed) { return }
+        isClosed = true
+        val cipher = this.cipher
+        if (cipher == null || ciphertextByteCount < AESGCM.gcmTagSize / 8) { throw IOException("Ciphertext too short.") }
+        val plaintext = cipher.doFinal()
+        if (plaintext.isNotEmpty()) { outputStream.write(plaintext) }
+        outputStream.flush()
+    }
+}
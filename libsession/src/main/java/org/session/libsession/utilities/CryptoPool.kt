@@ -0,0 +1,44 @@
+package org.session.libsession.utilities
+
+import org.whispersystems.curve25519.Curve25519
+import java.security.SecureRandom
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Per thread `Cipher`, `Mac` and `SecureRandom` instances, so that the provider lookup behind `getInstance(...)` only
+ * happens once per thread rather than once per operation. Onion requests do several of these operations per hop.
+ *
+ * Every cipher returned here must be initialized before use, and must not be held on to across calls that could
+ * themselves use the same instance (nothing in this module does that; these are all used for one-shot operations).
+ */
+internal object CryptoPool {
+
+    val curve: Curve25519 = Curve25519.getInstance(Curve25519.BEST)
+
+    private val aesGCMCipher = threadLocal { Cipher.getInstance("AES/GCM/NoPadding") }
+    private val secureRandom = threadLocal { SecureRandom() }
+    private val symmetricKeyMac = threadLocal {
+        val mac = Mac.getInstance("HmacSHA256")
+        mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
+        mac
+    }
+
+    fun getAESGCMCipher(): Cipher { return aesGCMCipher.get()!! }
+
+    fun getSecureRandom(): SecureRandom { return secureRandom.get()!! }
+
+    /**
+     * An HMAC-SHA256 instance that's already keyed with the key used to derive symmetric keys from shared secrets.
+     * `doFinal(...)` resets it, so it's ready for the next derivation afterwards.
+     */
+    fun getSymmetricKeyMac(): Mac { return symmetricKeyMac.get()!! }
+
+    private fun <T> threadLocal(initialValue: () -> T): ThreadLocal<T> {
+        return object : ThreadLocal<T>() {
+
+            override fun initialValue(): T { return initialValue() }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.session.libsession.utilities
+
+/**
+ * A thread safe set of longs (e.g. message timestamps) whose elements expire `retention` milliseconds after they were
+ * added. Elements are stored in primitive arrays using open addressing, and are spread over a number of independently
+ * locked shards so that concurrent receive threads rarely contend.
+ *
+ * The set never holds more than (roughly) `maxSize` elements. When a shard fills up, expired elements are dropped
+ * first and then the oldest ones.
+ */
+class ExpiringLongSet(
+    retention: Long,
+    maxSize: Int = 32 * 1024,
+    shardCount: Int = 16,
+    private val getCurrentTime: () -> Long = { System.currentTimeMillis() }
+) {
+    @Volatile var retention: Long = retention
+    private val shards: Array<Shard>
+    private val shardMask: Int
+
+    init {
+        require(retention > 0) { "Retention must be positive." }
+        require(shardCount > 0 && Integer.bitCount(shardCount) == 1) { "Shard count must be a power of two." }
+        shards = Array(shardCount) { Shard(Math.max(maxSize / shardCount, 1)) }
+        shardMask = shardCount - 1
+    }
+
+    /**
+     * Adds `value` and returns `true` if it wasn't already in the set (or had expired).
+     */
+    fun add(value: Long): Boolean {
+        val now = getCurrentTime()
+        return getShard(value).add(value, now, now, retention)
+    }
+
+    /**
+     * Adds `value` as if it had been added at `addedAt`. Used to restore persisted elements.
+     */
+    fun add(value: Long, addedAt: Long): Boolean {
+        return getShard(value).add(value, addedAt, getCurrentTime(), retention)
+    }
+
+    operator fun contains(value: Long): Boolean {
+        return getShard(value).contains(value, getCurrentTime(), retention)
+    }
+
+    /**
+     * The number of elements that haven't expired yet.
+     */
+    val size: Int get() {
+        val now = getCurrentTime()
+        return shards.sumBy { it.getSize(now, retention) }
+    }
+
+    /**
+     * Returns a snapshot of the elements that haven't expired yet.
+     */
+    fun toSet(): Set<Long> {
+        val now = getCurrentTime()
+        val result = mutableSetOf<Long>()
+        shards.forEach { it.addTo(result, now, retention) }
+        return result
+    }
+
+    fun clear() {
+        shards.forEach { it.clear() }
+    }
+
+    private fun getShard(value: Long): Shard {
+        return shards[(hash(value) ushr 32).toInt() and shardMask]
+    }
+
+    private class Shard(private val maxSize: Int) {
+        private var values = createValues(minCapacity)
+        private var addedAt = LongArray(minCapacity)
+        private var count = 0
+
+        companion object {
+            private const val empty = Long.MIN_VALUE
+            private const val minCapacity = 16
+
+            private fun createValues(capacity: Int): LongArray {
+                return LongArray(capacity).also { it.fill(empty) }
+            }
+        }
+
+        @Synchronized
+        fun add(value: Long, time: Long, now: Long, retention: Long): Boolean {
+            if (value == empty || now - time >= retention) { return false }
+            val index = indexOf(value)
+            if (index >= 0) {
+                if (now - addedAt[index] < retention) { return false }
+                addedAt[index] = time
+                return true
+            }
+            // Keep the load factor at or below 0.5
+            if (2 * (count + 1) > values.size || count >= maxSize) { rebuild(now, retention) }
+            insert(value, time)
+            return true
+        }
+
+        @Synchronized
+        fun contains(value: Long, now: Long, retention: Long): Boolean {
+            val index = indexOf(value)
+            return index >= 0 && now - addedAt[index] < retention
+        }
+
+        @Synchronized
+        fun getSize(now: Long, retention: Long): Int {
+            return (values.indices).count { values[it] != empty && now - addedAt[it] < retention }
+        }
+
+        @Synchronized
+        fun addTo(result: MutableSet<Long>, now: Long, retention: Long) {
+            for (i in values.indices) {
+                if (values[i] != empty && now - addedAt[i] < retention) { result.add(values[i]) }
+            }
+        }
+
+        @Synchronized
+        fun clear() {
+            values = createValues(minCapacity)
+            addedAt = LongArray(minCapacity)
+            count = 0
+        }
+
+        private fun indexOf(value: Long): Int {
+            val mask = values.size - 1
+            var index = hash(value).toInt() and mask
+            while (true) {
+                val candidate = values[index]
+                if (candidate == empty) { return -1 }
+                if (candidate == value) { return index }
+                index = (index + 1) and mask
+            }
+        }
+
+        private fun insert(value: Long, time: Long) {
+            val mask = values.size - 1
+            var index = hash(value).toInt() and mask
+            while (values[index] != empty) { index = (index + 1) and mask }
+            values[index] = value
+            addedAt[index] = time
+            count += 1
+        }
+
+        /**
+         * Drops expired elements (and the oldest ones if the shard is still full) and resizes the table to fit what's
+         * left. Rebuilding rather than deleting in place means the table never needs tombstones.
+         */
+        private fun rebuild(now: Long, retention: Long) {
+            val oldValues = values
+            val oldAddedAt = addedAt
+            var liveCount = 0
+            for (i in oldValues.indices) {
+                if (oldValues[i] != empty && now - oldAddedAt[i] < retention) { liveCount += 1 }
+            }
+            // Make room for at least a quarter of `maxSize` new elements before the next rebuild
+            val keepCount = Math.min(liveCount, maxSize - Math.max(maxSize / 4, 1))
+            var threshold = Long.MIN_VALUE
+            var tieBudget = Int.MAX_VALUE
+            if (keepCount < liveCount) {
+                val times = LongArray(liveCount)
+                var j = 0
+                for (i in oldValues.indices) {
+                    if (oldValues[i] != empty && now - oldAddedAt[i] < retention) { times[j] = oldAddedAt[i]; j += 1 }
+                }
+                times.sort()
+                threshold = if (keepCount > 0) times[liveCount - keepCount] else Long.MAX_VALUE
+                tieBudget = keepCount - times.count { it > threshold }
+            }
+            var capacity = minCapacity
+            while (capacity < 2 * (keepCount + 1)) { capacity *= 2 }
+            values = createValues(capacity)
+            addedAt = LongArray(capacity)
+            count = 0
+            for (i in oldValues.indices) {
+                val value = oldValues[i]
+                val time = oldAddedAt[i]
+                if (value == empty || now - time >= retention || time < threshold) { continue }
+                if (time == threshold) {
+                    if (tieBudget <= 0) { continue }
+                    tieBudget -= 1
+                }
+                insert(value, time)
+            }
+        }
+    }
+}
+
+private fun hash(value: Long): Long {
+    // The finalizer from MurmurHash3, which spreads sequential values (like timestamps) across all bits
+    var h = value
+    h = h xor (h ushr 33)
+    h *= -0xae502812aa7333L
+    h = h xor (h ushr 33)
+    h *= -0x3b314601e57a13adL
+    h = h xor (h ushr 33)
+    return h
+}
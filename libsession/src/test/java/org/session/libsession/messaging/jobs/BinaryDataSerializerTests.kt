@@ -0,0 +1,73 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.JsonUtil
+import java.util.Random
+
+class BinaryDataSerializerTests {
+    private val random = Random(42)
+    private val binarySerializer = BinaryDataSerializer()
+
+    @Test
+    fun roundTripsAllTypes() {
+        val data = Data.Builder()
+                .putString("s1", "s1 value ☃")
+                .putString("s2", null)
+                .putStringArray("s_array", arrayOf( "a", "", "c" ))
+                .putInt("max", Int.MAX_VALUE)
+                .putIntArray("i_array", intArrayOf( 1, Int.MIN_VALUE ))
+                .putLong("min", Long.MIN_VALUE)
+                .putLongArray("l_array", longArrayOf( 1, Long.MAX_VALUE ))
+                .putFloat("f", 1.2f)
+                .putFloatArray("f_array", floatArrayOf( 5.6f, 7.8f ))
+                .putDouble("d", 10.2)
+                .putDoubleArray("d_array", doubleArrayOf( 50.6, 70.8 ))
+                .putBoolean("b", true)
+                .putBooleanArray("b_array", booleanArrayOf( false, true ))
+                .putByteArray("bytes", byteArrayOf( 0, -1, 127 ))
+                .build()
+        val result = binarySerializer.deserialize(binarySerializer.serialize(data))
+        assertEquals("s1 value ☃", result.getString("s1"))
+        assertTrue(result.hasString("s2"))
+        assertNull(result.getString("s2"))
+        assertArrayEquals(arrayOf( "a", "", "c" ), result.getStringArray("s_array"))
+        assertEquals(Int.MAX_VALUE, result.getInt("max"))
+        assertArrayEquals(intArrayOf( 1, Int.MIN_VALUE ), result.getIntegerArray("i_array"))
+        assertEquals(Long.MIN_VALUE, result.getLong("min"))
+        assertArrayEquals(longArrayOf( 1, Long.MAX_VALUE ), result.getLongArray("l_array"))
+        assertEquals(1.2f, result.getFloat("f"), 0.0f)
+        assertArrayEquals(floatArrayOf( 5.6f, 7.8f ), result.getFloatArray("f_array"), 0.0f)
+        assertEquals(10.2, result.getDouble("d"), 0.0)
+        assertArrayEquals(doubleArrayOf( 50.6, 70.8 ), result.getDoubleArray("d_array"), 0.0)
+        assertTrue(result.getBoolean("b"))
+        assertArrayEquals(booleanArrayOf( false, true ), result.getBooleanArray("b_array"))
+        assertArrayEquals(byteArrayOf( 0, -1, 127 ), result.getByteArray("bytes"))
+        assertFalse(result.hasLong("max"))
+    }
+
+    @Test
+    fun roundTripsEmptyData() {
+        val serialized = binarySerializer.serialize(Data.EMPTY)
+        assertEquals(1, serialized.size)
+        assertFalse(binarySerializer.deserialize(serialized).hasString("s1"))
+    }
+
+    @Test
+    fun writesLessThanJSON() {
+        // Shaped like the data persisted by BatchMessageReceiveJob
+        val data = Data.Builder().apply {
+            putInt("message_count", 20)
+            (0 until 20).forEach { index -> putByteArray("message_$index", ByteArray(1500).also { random.nextBytes(it) }) }
+        }.build()
+        val serialized = binarySerializer.serialize(data)
+        assertTrue(serialized.size < JsonUtil.toJsonThrows(data).toByteArray().size)
+        val result = binarySerializer.deserialize(serialized)
+        assertEquals(20, result.getInt("message_count"))
+        (0 until 20).forEach { assertArrayEquals(data.getByteArray("message_$it"), result.getByteArray("message_$it")) }
+    }
+}
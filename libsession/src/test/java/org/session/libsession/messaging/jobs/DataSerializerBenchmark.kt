@@ -0,0 +1,55 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Ignore
+import org.junit.Test
+import org.session.libsignal.utilities.JsonUtil
+import java.util.Random
+
+/**
+ * Compares `BinaryDataSerializer` with the JSON format that jobs used to be persisted with, both in terms of the
+ * number of bytes written and the time it takes to serialize and deserialize a job.
+ */
+@Ignore("Benchmark; run manually")
+class DataSerializerBenchmark {
+    private val warmUpIterationCount = 2000
+    private val measurementIterationCount = 10000
+    private val random = Random(42)
+    private val binarySerializer = BinaryDataSerializer()
+
+    private fun createEnvelope(size: Int): ByteArray {
+        return ByteArray(size).also { random.nextBytes(it) }
+    }
+
+    // Shaped like the data persisted by MessageReceiveJob and BatchMessageReceiveJob
+    private val messageReceiveJobData = Data.Builder().putByteArray("data", createEnvelope(1500))
+            .putBoolean("is_background_poll", false)
+            .putLong("open_group_message_server_id", 12345)
+            .putString("open_group_id", "https://chat.getsession.org.1")
+            .build()
+    private val batchMessageReceiveJobData = Data.Builder().apply {
+        putInt("message_count", 20)
+        (0 until 20).forEach { putByteArray("message_$it", createEnvelope(1500)) }
+    }.build()
+
+    @Test
+    fun benchmark() {
+        fun measure(name: String, data: Data) {
+            val json = JsonUtil.toJsonThrows(data)
+            val binary = binarySerializer.serialize(data)
+            println("$name: ${json.toByteArray().size} bytes as JSON, ${binary.size} bytes as binary.")
+            fun time(format: String, body: () -> Unit) {
+                repeat(warmUpIterationCount) { body() }
+                val start = System.nanoTime()
+                repeat(measurementIterationCount) { body() }
+                val duration = System.nanoTime() - start
+                println("$name, $format: ${duration / measurementIterationCount / 1000.0} µs/op.")
+            }
+            time("JSON serialization") { JsonUtil.toJsonThrows(data) }
+            time("JSON deserialization") { JsonUtil.fromJson(json, Data::class.java) }
+            time("binary serialization") { binarySerializer.serialize(data) }
+            time("binary deserialization") { binarySerializer.deserialize(binary) }
+        }
+        measure("MessageReceiveJob", messageReceiveJobData)
+        measure("BatchMessageReceiveJob", batchMessageReceiveJobData)
+    }
+}
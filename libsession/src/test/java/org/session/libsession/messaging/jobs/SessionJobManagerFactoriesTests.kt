@@ -0,0 +1,20 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SessionJobManagerFactoriesTests {
+
+    @Test
+    fun jobKeysAreUnique() {
+        val keys = SessionJobManagerFactories.getSessionJobKeys()
+        val duplicates = keys.groupBy { it }.filterValues { it.size > 1 }.keys
+        assertEquals("Duplicate job keys: $duplicates", keys.size, keys.toSet().size)
+    }
+
+    @Test
+    fun everyJobKeyHasAFactory() {
+        val keys = SessionJobManagerFactories.getSessionJobKeys()
+        assertEquals(keys.toSet(), SessionJobManagerFactories.getSessionJobFactories().keys)
+    }
+}
@@ -0,0 +1,62 @@
+package org.session.libsession.snode
+
+import org.junit.Ignore
+import org.junit.Test
+import org.session.libsession.snode.OnionRequestEncryptionTests.Companion.legacyEncode
+import org.session.libsession.utilities.AESGCM
+import org.session.libsignal.service.loki.utilities.toHexString
+import org.session.libsignal.utilities.JsonUtil
+import org.whispersystems.curve25519.Curve25519
+import java.lang.management.ManagementFactory
+
+/**
+ * Measures onion construction for a three hop path, comparing the previous approach (a thread and a fresh key
+ * agreement per layer, layers concatenated with `plus`) with `OnionRequestEncryption.encryptOnion(...)`.
+ */
+@Ignore("Benchmark; run manually")
+class OnionRequestEncryptionBenchmark {
+    private val warmUpIterationCount = 200
+    private val measurementIterationCount = 1000
+    private val curve = Curve25519.getInstance(Curve25519.BEST)
+
+    private fun createSnode(index: Int): Snode {
+        val keyPair = curve.generateKeyPair()
+        return Snode("https://10.0.0.$index", 22021, Snode.KeySet(ByteArray(32) { index.toByte() }.toHexString(), keyPair.publicKey.toHexString()))
+    }
+
+    private val path = (1..3).map { createSnode(it) }
+    private val destination = OnionRequestAPI.Destination.Snode(createSnode(4))
+    private val payload = mapOf( "method" to "retrieve", "params" to mapOf( "pubKey" to "05".padEnd(66, 'a'), "lastHash" to "" ) )
+
+    private fun legacyEncryptOnion(): AESGCM.EncryptionResult {
+        val plaintext = legacyEncode(JsonUtil.toJson(payload).toByteArray(), mapOf( "headers" to "" ))
+        var result = AESGCM.encrypt(plaintext, destination.snode.publicKeySet!!.x25519Key)
+        var rhs: Snode = destination.snode
+        for (snode in path.asReversed()) {
+            val previousResult = result
+            val hop = mapOf( "destination" to rhs.publicKeySet!!.ed25519Key, "ephemeral_key" to previousResult.ephemeralPublicKey.toHexString() )
+            val thread = Thread { result = AESGCM.encrypt(legacyEncode(previousResult.ciphertext, hop), snode.publicKeySet!!.x25519Key) }
+            thread.start()
+            thread.join()
+            rhs = snode
+        }
+        return result
+    }
+
+    @Test
+    fun benchmark() {
+        val threads = ManagementFactory.getThreadMXBean()
+        fun measure(name: String, body: () -> Unit) {
+            repeat(warmUpIterationCount) { body() }
+            val threadCountBefore = threads.totalStartedThreadCount
+            val start = System.nanoTime()
+            repeat(measurementIterationCount) { body() }
+            val duration = System.nanoTime() - start
+            val threadCount = threads.totalStartedThreadCount - threadCountBefore
+            println("$name: ${duration / measurementIterationCount / 1000} µs/op, $threadCount threads started over $measurementIterationCount ops.")
+        }
+        measure("Legacy onion construction") { legacyEncryptOnion() }
+        OnionRequestEncryption.precomputeEphemeralKeys(listOf( path ))
+        measure("Pooled onion construction") { OnionRequestEncryption.encryptOnion(payload, destination, path).get() }
+    }
+}
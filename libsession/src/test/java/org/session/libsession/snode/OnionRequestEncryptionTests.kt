@@ -0,0 +1,74 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsession.utilities.AESGCM
+import org.session.libsignal.service.loki.utilities.toHexString
+import org.session.libsignal.utilities.Hex
+import org.session.libsignal.utilities.JsonUtil
+import org.whispersystems.curve25519.Curve25519
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class OnionRequestEncryptionTests {
+    private val curve = Curve25519.getInstance(Curve25519.BEST)
+    private val payload = mapOf( "method" to "retrieve", "params" to mapOf( "pubKey" to "05".padEnd(66, 'a'), "lastHash" to "" ) )
+
+    companion object {
+
+        /**
+         * The encoding as it was originally written, for comparison.
+         */
+        internal fun legacyEncode(ciphertext: ByteArray, json: Map<*, *>): ByteArray {
+            val jsonAsData = JsonUtil.toJson(json).toByteArray()
+            val buffer = ByteBuffer.allocate(Int.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+            buffer.putInt(ciphertext.size)
+            return buffer.array() + ciphertext + jsonAsData
+        }
+    }
+
+    @Test
+    fun encodingMatchesTheWireFormat() {
+        val ciphertext = ByteArray(300) { it.toByte() }
+        val json = mapOf( "ephemeral_key" to "ab" )
+        assertArrayEquals(legacyEncode(ciphertext, json), OnionRequestEncryption.encode(ciphertext, json))
+    }
+
+    /**
+     * Splits a decrypted layer into the ciphertext (or payload) it wraps and the JSON that follows it.
+     */
+    private fun decode(plaintext: ByteArray): Pair<ByteArray, Map<*, *>> {
+        val size = ByteBuffer.wrap(plaintext, 0, 4).order(ByteOrder.LITTLE_ENDIAN).int
+        val json = JsonUtil.fromJson(String(plaintext, 4 + size, plaintext.size - 4 - size), Map::class.java)
+        return Pair(plaintext.copyOfRange(4, 4 + size), json)
+    }
+
+    @Test
+    fun layersDecryptInOrder() {
+        val keyPairs = (1..3).map { curve.generateKeyPair() }
+        val snodes = keyPairs.mapIndexed { index, keyPair ->
+            Snode("https://10.0.0.$index", 22021, Snode.KeySet("0$index".repeat(32), keyPair.publicKey.toHexString()))
+        }
+        val path = snodes.subList(0, 2)
+        val destination = snodes[2]
+        val result = OnionRequestEncryption.encryptOnion(payload, OnionRequestAPI.Destination.Snode(destination), path).get()
+        // Each snode in the path peels off its own layer, which tells it where to forward the rest
+        var ciphertext = result.finalEncryptionResult.ciphertext
+        var ephemeralPublicKey = result.finalEncryptionResult.ephemeralPublicKey
+        for ((index, snode) in path.withIndex()) {
+            val symmetricKey = AESGCM.generateSymmetricKey(ephemeralPublicKey, keyPairs[index].privateKey)
+            val (innerCiphertext, hop) = decode(AESGCM.decrypt(ciphertext, symmetricKey))
+            val next = snodes[index + 1]
+            assertEquals("Layer for ${snode.address}", next.publicKeySet!!.ed25519Key, hop["destination"])
+            ciphertext = innerCiphertext
+            ephemeralPublicKey = Hex.fromStringCondensed(hop["ephemeral_key"] as String)
+        }
+        // The destination finds the payload
+        val symmetricKey = AESGCM.generateSymmetricKey(ephemeralPublicKey, keyPairs[2].privateKey)
+        assertArrayEquals(result.destinationSymmetricKey, symmetricKey)
+        val (payloadAsData, headers) = decode(AESGCM.decrypt(ciphertext, symmetricKey))
+        assertEquals(JsonUtil.toJson(payload), String(payloadAsData))
+        assertEquals(mapOf( "headers" to "" ), headers)
+    }
+}
@@ -0,0 +1,81 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+import org.session.libsession.utilities.AESGCM
+import org.session.libsession.utilities.AESGCMDecryptingOutputStream
+import org.session.libsignal.utilities.Base64
+import java.io.ByteArrayOutputStream
+import java.util.Random
+import javax.crypto.AEADBadTagException
+
+class OnionResponseStreamingTests {
+    private val random = Random(42)
+    private val symmetricKey = ByteArray(32).also { random.nextBytes(it) }
+
+    private fun decrypt(ivAndCiphertext: ByteArray, outputStream: ByteArrayOutputStream) {
+        val bodyOutputStream = OnionResponseBodyOutputStream(outputStream)
+        val decryptingOutputStream = AESGCMDecryptingOutputStream(symmetricKey, bodyOutputStream)
+        // Write in uneven chunks to exercise the buffering
+        var offset = 0
+        while (offset < ivAndCiphertext.size) {
+            val count = Math.min(1 + random.nextInt(5000), ivAndCiphertext.size - offset)
+            decryptingOutputStream.write(ivAndCiphertext, offset, count)
+            offset += count
+        }
+        decryptingOutputStream.close()
+        bodyOutputStream.close()
+    }
+
+    private fun encrypt(json: String): ByteArray {
+        return AESGCM.encrypt(json.toByteArray(), symmetricKey)
+    }
+
+    @Test
+    fun decryptsAndDecodesTheBody() {
+        for (size in listOf( 0, 1, 15, 16, 17, 4097, 100000 )) {
+            val file = ByteArray(size).also { random.nextBytes(it) }
+            // Escaped slashes are valid JSON and some servers produce them
+            val base64EncodedFile = Base64.encodeBytes(file).replace("/", "\\/")
+            val outputStream = ByteArrayOutputStream()
+            decrypt(encrypt("{\"body\":\"$base64EncodedFile\",\"headers\":{\"a\":[1,\"}\"]},\"status\":200}"), outputStream)
+            assertArrayEquals(file, outputStream.toByteArray())
+        }
+    }
+
+    @Test
+    fun matchesThePlatformCipher() {
+        val plaintext = ByteArray(123457).also { random.nextBytes(it) }
+        val ivAndCiphertext = AESGCM.encrypt(plaintext, symmetricKey)
+        val outputStream = ByteArrayOutputStream()
+        val decryptingOutputStream = AESGCMDecryptingOutputStream(symmetricKey, outputStream)
+        decryptingOutputStream.write(ivAndCiphertext)
+        decryptingOutputStream.close()
+        assertArrayEquals(AESGCM.decrypt(ivAndCiphertext, symmetricKey), outputStream.toByteArray())
+    }
+
+    @Test
+    fun rejectsTamperedResponses() {
+        val ivAndCiphertext = encrypt("{\"status\":200,\"body\":\"${Base64.encodeBytes(ByteArray(1000))}\"}")
+        ivAndCiphertext[ivAndCiphertext.size / 2] = (ivAndCiphertext[ivAndCiphertext.size / 2].toInt() xor 1).toByte()
+        try {
+            decrypt(ivAndCiphertext, ByteArrayOutputStream())
+            fail("Expected the tag check to fail.")
+        } catch (exception: AEADBadTagException) {
+            // Expected
+        }
+    }
+
+    @Test
+    fun surfacesErrorsFromTheDestination() {
+        try {
+            decrypt(encrypt("{\"body\":\"Not found\",\"status\":404}"), ByteArrayOutputStream())
+            fail("Expected the request to fail.")
+        } catch (exception: OnionRequestAPI.HTTPRequestFailedAtDestinationException) {
+            assertEquals(404, exception.statusCode)
+            assertEquals("Not found", exception.json["result"])
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertEquals
+import org.junit.Ignore
+import org.junit.Test
+import org.session.libsignal.service.loki.api.ReceivedMessageHashValueCache
+import org.session.libsession.snode.ReceivedMessageHashValueCacheTests.InMemoryStorage
+import java.util.*
+
+/**
+ * Compares the cost of deduplicating a poll response against a growing received message history, using the old
+ * approach (rewriting the whole `-` joined set after every message) and the indexed store with a Bloom filter in front.
+ */
+@Ignore("Benchmark; run manually")
+class ReceivedMessageHashValueBenchmark {
+    private val pollSize = 20
+    private val historySizes = listOf( 1_000, 10_000, 50_000 )
+
+    @Test
+    fun benchmark() {
+        for (historySize in historySizes) {
+            val history = (0 until historySize).map { UUID.randomUUID().toString().replace("-", "") }
+            val poll = (0 until pollSize).map { UUID.randomUUID().toString().replace("-", "") }
+            // Old approach
+            var blob = history.joinToString("-")
+            val oldStart = System.nanoTime()
+            val receivedMessageHashValues = blob.split("-").toMutableSet()
+            for (hashValue in poll) {
+                receivedMessageHashValues.add(hashValue)
+                blob = receivedMessageHashValues.joinToString("-")
+            }
+            val oldDuration = System.nanoTime() - oldStart
+            // New approach
+            val storage = InMemoryStorage()
+            val expiration = System.currentTimeMillis() + 60 * 60 * 1000
+            storage.addReceivedMessageHashValues("pk", history.associateWith { expiration })
+            val cache = ReceivedMessageHashValueCache(storage)
+            cache.removeDuplicates("pk", linkedMapOf( "warm-up" to expiration )) // Builds the Bloom filter
+            storage.lookupCount = 0
+            val newStart = System.nanoTime()
+            val newHashValues = cache.removeDuplicates("pk", poll.associateWith { expiration })
+            val newDuration = System.nanoTime() - newStart
+            assertEquals(poll.toSet(), newHashValues)
+            println("History: $historySize, poll: $pollSize; rewrite: ${oldDuration / 1000} µs, indexed: ${newDuration / 1000} µs " +
+                "(${storage.lookupCount} confirming lookups).")
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsignal.service.loki.api.ReceivedMessageHashValueCache
+import org.session.libsignal.service.loki.database.ReceivedMessageHashValueStorageProtocol
+
+class ReceivedMessageHashValueCacheTests {
+
+    /**
+     * Mirrors the per hash value table: lookups are keyed, inserts are appended.
+     */
+    internal class InMemoryStorage : ReceivedMessageHashValueStorageProtocol {
+        val table = mutableMapOf<String, MutableMap<String, Long>>()
+        var lookupCount = 0
+
+        override fun getReceivedMessageHashValues(publicKey: String): Set<String>? {
+            return table[publicKey]?.keys?.toSet()
+        }
+
+        override fun getReceivedMessageHashValues(publicKey: String, hashValues: Collection<String>): Set<String> {
+            lookupCount += 1
+            val rows = table[publicKey] ?: return setOf()
+            return hashValues.filter { rows.containsKey(it) }.toSet()
+        }
+
+        override fun addReceivedMessageHashValues(publicKey: String, newValues: Map<String, Long>) {
+            table.getOrPut(publicKey) { mutableMapOf() }.putAll(newValues)
+        }
+
+        override fun pruneReceivedMessageHashValues(now: Long) {
+            table.values.forEach { rows -> rows.values.removeAll { it <= now } }
+        }
+    }
+
+    @Test
+    fun deduplicatesWithinAndAcrossPolls() {
+        val cache = ReceivedMessageHashValueCache(InMemoryStorage())
+        val expiration = System.currentTimeMillis() + 60 * 1000
+        val first = cache.removeDuplicates("pk", linkedMapOf( "a" to expiration, "b" to expiration ))
+        assertEquals(setOf( "a", "b" ), first)
+        val second = cache.removeDuplicates("pk", linkedMapOf( "b" to expiration, "c" to expiration ))
+        assertEquals(setOf( "c" ), second)
+    }
+
+    @Test
+    fun deduplicatesAgainstStoredHistory() {
+        val storage = InMemoryStorage()
+        val expiration = System.currentTimeMillis() + 60 * 1000
+        storage.addReceivedMessageHashValues("pk", mapOf( "a" to expiration, "b" to expiration ))
+        val cache = ReceivedMessageHashValueCache(storage)
+        assertEquals(setOf( "c" ), cache.removeDuplicates("pk", linkedMapOf( "a" to expiration, "c" to expiration )))
+        assertEquals(setOf( "a", "b", "c" ), storage.table["pk"]!!.keys)
+    }
+
+    @Test
+    fun skipsTheDatabaseForNewHashValues() {
+        val storage = InMemoryStorage()
+        val expiration = System.currentTimeMillis() + 60 * 1000
+        val cache = ReceivedMessageHashValueCache(storage)
+        cache.removeDuplicates("pk", linkedMapOf( "a" to expiration ))
+        storage.lookupCount = 0
+        cache.removeDuplicates("pk", linkedMapOf( "b" to expiration, "c" to expiration ))
+        assertEquals(0, storage.lookupCount)
+    }
+}
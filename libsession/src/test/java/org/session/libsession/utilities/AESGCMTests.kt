@@ -0,0 +1,98 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.fail
+import org.junit.Ignore
+import org.junit.Test
+import org.session.libsignal.service.internal.util.Util
+import org.whispersystems.curve25519.Curve25519
+import javax.crypto.AEADBadTagException
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Checks that the pooled `AESGCM` stays compatible with the previous implementation, which looked up a new `Cipher`,
+ * `Mac` and `SecureRandom` for every operation, and that pooled objects are still usable after a failure. The ignored
+ * benchmark times both implementations for the three operations an onion request hop does.
+ */
+class AESGCMTests {
+    private val symmetricKey = Util.getSecretBytes(32)
+    private val keyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair()
+    private val otherKeyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair()
+
+    private fun legacyEncrypt(plaintext: ByteArray, symmetricKey: ByteArray): ByteArray {
+        val iv = Util.getSecretBytes(AESGCM.ivSize)
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(AESGCM.gcmTagSize, iv))
+        return iv + cipher.doFinal(plaintext)
+    }
+
+    private fun legacyDecrypt(ivAndCiphertext: ByteArray, symmetricKey: ByteArray): ByteArray {
+        val iv = ivAndCiphertext.sliceArray(0 until AESGCM.ivSize)
+        val ciphertext = ivAndCiphertext.sliceArray(AESGCM.ivSize until ivAndCiphertext.count())
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(AESGCM.gcmTagSize, iv))
+        return cipher.doFinal(ciphertext)
+    }
+
+    private fun legacyGenerateSymmetricKey(x25519PublicKey: ByteArray, x25519PrivateKey: ByteArray): ByteArray {
+        val ephemeralSharedSecret = Curve25519.getInstance(Curve25519.BEST).calculateAgreement(x25519PublicKey, x25519PrivateKey)
+        val mac = Mac.getInstance("HmacSHA256")
+        mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
+        return mac.doFinal(ephemeralSharedSecret)
+    }
+
+    @Test
+    fun matchesLegacyImplementation() {
+        for (size in listOf( 0, 1, 100, 1024, 64 * 1024 )) {
+            val plaintext = Util.getSecretBytes(size)
+            assertArrayEquals(plaintext, AESGCM.decrypt(legacyEncrypt(plaintext, symmetricKey), symmetricKey))
+            assertArrayEquals(plaintext, legacyDecrypt(AESGCM.encrypt(plaintext, symmetricKey), symmetricKey))
+        }
+        assertArrayEquals(legacyGenerateSymmetricKey(keyPair.publicKey, otherKeyPair.privateKey),
+            AESGCM.generateSymmetricKey(keyPair.publicKey, otherKeyPair.privateKey))
+        // Both sides of the agreement derive the same key, also when the Mac is reused in between
+        assertArrayEquals(AESGCM.generateSymmetricKey(otherKeyPair.publicKey, keyPair.privateKey),
+            AESGCM.generateSymmetricKey(keyPair.publicKey, otherKeyPair.privateKey))
+    }
+
+    @Test
+    fun recoversFromFailedDecryption() {
+        val plaintext = Util.getSecretBytes(100)
+        val ciphertext = AESGCM.encrypt(plaintext, symmetricKey)
+        val tamperedCiphertext = ciphertext.copyOf()
+        tamperedCiphertext[tamperedCiphertext.size - 1] = (tamperedCiphertext.last() + 1).toByte()
+        try {
+            AESGCM.decrypt(tamperedCiphertext, symmetricKey)
+            fail()
+        } catch (exception: AEADBadTagException) {
+            // Expected
+        }
+        assertArrayEquals(plaintext, AESGCM.decrypt(ciphertext, symmetricKey))
+    }
+
+    @Ignore("Benchmark; run manually")
+    @Test
+    fun benchmark() {
+        val warmUpIterationCount = 2000
+        val measurementIterationCount = 20000
+        fun measure(name: String, body: () -> Unit) {
+            repeat(warmUpIterationCount) { body() }
+            val start = System.nanoTime()
+            repeat(measurementIterationCount) { body() }
+            val duration = System.nanoTime() - start
+            println("$name: ${duration / measurementIterationCount} ns/op.")
+        }
+        // Roughly the size of the inner layer of an onion request
+        val plaintext = Util.getSecretBytes(1024)
+        val ciphertext = AESGCM.encrypt(plaintext, symmetricKey)
+        measure("Legacy encrypt") { legacyEncrypt(plaintext, symmetricKey) }
+        measure("Pooled encrypt") { AESGCM.encrypt(plaintext, symmetricKey) }
+        measure("Legacy decrypt") { legacyDecrypt(ciphertext, symmetricKey) }
+        measure("Pooled decrypt") { AESGCM.decrypt(ciphertext, symmetricKey) }
+        measure("Legacy key derivation") { legacyGenerateSymmetricKey(keyPair.publicKey, otherKeyPair.privateKey) }
+        measure("Pooled key derivation") { AESGCM.generateSymmetricKey(keyPair.publicKey, otherKeyPair.privateKey) }
+    }
+}
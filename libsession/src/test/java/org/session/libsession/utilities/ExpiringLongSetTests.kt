@@ -0,0 +1,74 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ExpiringLongSetTests {
+    private var now = 1_000_000L
+
+    @Test
+    fun detectsDuplicates() {
+        val set = ExpiringLongSet(60 * 1000, getCurrentTime = { now })
+        for (timestamp in 1_600_000_000_000L until 1_600_000_010_000L) {
+            assertTrue(set.add(timestamp))
+        }
+        for (timestamp in 1_600_000_000_000L until 1_600_000_010_000L) {
+            assertTrue(set.contains(timestamp))
+            assertFalse(set.add(timestamp))
+        }
+        assertFalse(set.contains(1_600_000_010_000L))
+        assertEquals(10_000, set.size)
+    }
+
+    @Test
+    fun forgetsExpiredValues() {
+        val set = ExpiringLongSet(60 * 1000, getCurrentTime = { now })
+        set.add(1)
+        now += 30 * 1000
+        set.add(2)
+        now += 30 * 1000
+        assertFalse(set.contains(1))
+        assertTrue(set.contains(2))
+        assertTrue(set.add(1))
+        set.retention = 10 * 1000
+        assertFalse(set.contains(2))
+        assertFalse(set.add(2, now - 20 * 1000))
+    }
+
+    @Test
+    fun staysBounded() {
+        val set = ExpiringLongSet(60 * 1000, maxSize = 1024, shardCount = 4, getCurrentTime = { now })
+        for (timestamp in 0L until 100_000L) {
+            set.add(timestamp)
+            now += 1
+        }
+        assertTrue(set.size <= 1024)
+        // The most recently added values are kept
+        for (timestamp in 100_000L - 256 until 100_000L) {
+            assertTrue(set.contains(timestamp))
+        }
+    }
+
+    @Test
+    fun supportsConcurrentAccess() {
+        val set = ExpiringLongSet(60 * 60 * 1000)
+        val executor = Executors.newFixedThreadPool(8)
+        val threadCount = 8
+        val valueCount = 2000
+        val futures = (0 until threadCount).map { thread ->
+            executor.submit<Int> {
+                // Every thread adds all values, so each value should be reported as new exactly once
+                (0 until valueCount).count { set.add((it * threadCount + thread).toLong() % valueCount) }
+            }
+        }
+        val newValueCount = futures.sumBy { it.get() }
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+        assertEquals(valueCount, newValueCount)
+        assertEquals(valueCount, set.size)
+    }
+}
@@ -61,7 +61,7 @@ internal data class LokiMessage(
     internal fun calculatePoW(): Promise<LokiMessage, Exception> {
         val deferred = deferred<LokiMessage, Exception>()
         // Run PoW in a background thread
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.cryptoExecutor) {
             val now = System.currentTimeMillis()
             val nonce = ProofOfWork.calculate(data, recipientPublicKey, now, ttl)
             if (nonce != null ) {
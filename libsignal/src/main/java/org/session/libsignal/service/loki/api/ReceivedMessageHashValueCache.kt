@@ -0,0 +1,85 @@
+package org.session.libsignal.service.loki.api
+
+import org.session.libsignal.service.loki.database.ReceivedMessageHashValueStorageProtocol
+import org.session.libsignal.utilities.BloomFilter
+import org.session.libsignal.utilities.logging.Log
+
+/**
+ * Sits in front of the received message hash value table. Each public key gets a Bloom filter that's warmed from the
+ * database the first time it's polled for, so that for the common case (a hash value we haven't seen before) no
+ * database lookup is needed at all. Possible duplicates are confirmed with a single batched query per poll.
+ *
+ * A filter only knows about the hash values that were recorded through it, so there's a single instance per process
+ * (see `getInstance`) no matter how many APIs poll the same table.
+ */
+class ReceivedMessageHashValueCache(private val storage: ReceivedMessageHashValueStorageProtocol) {
+    private val filters = mutableMapOf<String, BloomFilter>()
+    private var lastPruneDate = 0L
+
+    // region Settings
+    companion object {
+        private val minimumFilterCapacity = 1024
+        private val pruneInterval: Long = 60 * 60 * 1000
+        /**
+         * Used for messages that don't specify an expiration date. Matches the maximum TTL the storage server accepts.
+         */
+        val defaultExpiration: Long = 4 * 24 * 60 * 60 * 1000
+
+        private var shared: ReceivedMessageHashValueCache? = null
+
+        /**
+         * Returns the shared cache, creating it over `storage` the first time it's called.
+         */
+        @JvmStatic @Synchronized
+        fun getInstance(storage: ReceivedMessageHashValueStorageProtocol): ReceivedMessageHashValueCache {
+            val cache = shared ?: ReceivedMessageHashValueCache(storage)
+            shared = cache
+            return cache
+        }
+    }
+    // endregion
+
+    /**
+     * Records the given hash values as received and returns the ones that weren't received before, in their original
+     * order. `hashValues` maps hash values to the timestamp (in milliseconds) at which the associated message expires.
+     */
+    @Synchronized
+    fun removeDuplicates(publicKey: String, hashValues: Map<String, Long>): Set<String> {
+        if (hashValues.isEmpty()) { return setOf() }
+        pruneIfNeeded()
+        val filter = getFilter(publicKey)
+        val candidates = hashValues.keys.filter { filter.mightContain(it) }
+        val duplicates = if (candidates.isNotEmpty()) storage.getReceivedMessageHashValues(publicKey, candidates) else setOf()
+        val newValues = hashValues.filterKeys { !duplicates.contains(it) }
+        if (newValues.isNotEmpty()) {
+            storage.addReceivedMessageHashValues(publicKey, newValues)
+            newValues.keys.forEach { filter.put(it) }
+        }
+        return newValues.keys
+    }
+
+    @Synchronized
+    fun clear() {
+        filters.clear()
+    }
+
+    private fun getFilter(publicKey: String): BloomFilter {
+        val cachedFilter = filters[publicKey]
+        if (cachedFilter != null && !cachedFilter.isSaturated) { return cachedFilter }
+        val receivedMessageHashValues = storage.getReceivedMessageHashValues(publicKey) ?: setOf()
+        val filter = BloomFilter(Math.max(minimumFilterCapacity, 2 * receivedMessageHashValues.size))
+        receivedMessageHashValues.forEach { filter.put(it) }
+        filters[publicKey] = filter
+        return filter
+    }
+
+    private fun pruneIfNeeded() {
+        val now = System.currentTimeMillis()
+        if (now - lastPruneDate < pruneInterval) { return }
+        Log.d("Loki", "Pruning expired received message hash values.")
+        storage.pruneReceivedMessageHashValues(now)
+        // Bloom filters don't support removal, so rebuild them lazily from what's left
+        filters.clear()
+        lastPruneDate = now
+    }
+}
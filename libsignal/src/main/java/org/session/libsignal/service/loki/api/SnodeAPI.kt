@@ -18,6 +18,7 @@ import java.net.ConnectException
 import java.net.SocketTimeoutException
 
 class SnodeAPI private constructor(public var userPublicKey: String, public val database: LokiAPIDatabaseProtocol, public val broadcaster: Broadcaster) {
+    private val receivedMessageHashValueCache = ReceivedMessageHashValueCache.getInstance(database)
 
     companion object {
         val messageSendingContext = Kovenant.createContext()
@@ -73,7 +74,7 @@ class SnodeAPI private constructor(public var userPublicKey: String, public val
             return OnionRequestAPI.sendOnionRequest(method, parameters, snode, publicKey)
         } else {
             val deferred = deferred<Map<*, *>, Exception>()
-            ThreadUtils.queue {
+            ThreadUtils.queue(ThreadUtils.networkExecutor) {
                 val payload = mapOf( "method" to method.rawValue, "params" to parameters )
                 try {
                     val json = HTTP.execute(HTTP.Verb.POST, url, payload)
@@ -178,15 +179,21 @@ class SnodeAPI private constructor(public var userPublicKey: String, public val
     }
 
     private fun removeDuplicates(publicKey: String, rawMessages: List<*>): List<*> {
-        val receivedMessageHashValues = database.getReceivedMessageHashValues(publicKey)?.toMutableSet() ?: mutableSetOf()
+        val now = System.currentTimeMillis()
+        val hashValues = linkedMapOf<String, Long>()
+        for (rawMessage in rawMessages) {
+            val rawMessageAsJSON = rawMessage as? Map<*, *>
+            val hashValue = rawMessageAsJSON?.get("hash") as? String ?: continue
+            val expiration = (rawMessageAsJSON["expiration"] as? Number)?.toLong()
+            hashValues[hashValue] = expiration ?: (now + ReceivedMessageHashValueCache.defaultExpiration)
+        }
+        val newHashValues = receivedMessageHashValueCache.removeDuplicates(publicKey, hashValues).toMutableSet()
         return rawMessages.filter { rawMessage ->
             val rawMessageAsJSON = rawMessage as? Map<*, *>
             val hashValue = rawMessageAsJSON?.get("hash") as? String
             if (hashValue != null) {
-                val isDuplicate = receivedMessageHashValues.contains(hashValue)
-                receivedMessageHashValues.add(hashValue)
-                database.setReceivedMessageHashValues(publicKey, receivedMessageHashValues)
-                !isDuplicate
+                // Removing the hash value also filters out duplicates within a single response
+                newHashValues.remove(hashValue)
             } else {
                 Log.d("Loki", "Missing hash value for message: ${rawMessage?.prettifiedDescription()}.")
                 false
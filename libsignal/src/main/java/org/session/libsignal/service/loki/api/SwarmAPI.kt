@@ -68,7 +68,7 @@ class SwarmAPI private constructor(private val database: LokiAPIDatabaseProtocol
             )
             val deferred = deferred<Snode, Exception>()
             deferred<Snode, Exception>(SnodeAPI.sharedContext)
-            ThreadUtils.queue {
+            ThreadUtils.queue(ThreadUtils.networkExecutor) {
                 try {
                     val json = HTTP.execute(HTTP.Verb.POST, url, parameters, useSeedNodeConnection = true)
                     val intermediate = json["result"] as? Map<*, *>
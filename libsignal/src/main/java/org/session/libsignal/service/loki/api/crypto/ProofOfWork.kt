@@ -2,63 +2,108 @@ package org.session.libsignal.service.loki.api.crypto
 
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.ThreadUtils
 import org.session.libsignal.service.loki.api.SnodeAPI
 import java.math.BigInteger
 import java.nio.ByteBuffer
 import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Based on the desktop messenger's proof of work implementation. For more information, see libloki/proof-of-work.js.
+ *
+ * The nonce space is split across the calling thread and workers on the crypto executor (worker `i` of `n` tries nonces
+ * `i + 1`, `i + 1 + n`, ...), and all workers stop as soon as one of them finds a nonce that meets the target. Any such
+ * nonce is valid; it doesn't need to be the smallest one.
  */
 object ProofOfWork {
 
     // region Settings
     private val nonceSize = 8
+    private val hashSize = 64
+    private val workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4))
     // endregion
 
     // region Implementation
-    @kotlin.ExperimentalUnsignedTypes
-    fun calculate(data: String, hexEncodedPublicKey: String, timestamp: Long, ttl: Int): String? {
+    fun calculate(data: String, hexEncodedPublicKey: String, timestamp: Long, ttl: Int, difficulty: Int = SnodeAPI.powDifficulty): String? {
         try {
-            val sha512 = MessageDigest.getInstance("SHA-512")
             val payloadAsString = timestamp.toString() + ttl.toString() + hexEncodedPublicKey + data
             val payload = payloadAsString.toByteArray()
-            val target = determineTarget(ttl, payload.size)
-            var currentTrialValue = ULong.MAX_VALUE
-            var nonce: Long = 0
-            val initialHash = sha512.digest(payload)
-            while (currentTrialValue > target) {
-                nonce += 1
-                // This is different from bitmessage's PoW implementation
-                // newHash = hash(nonce + hash(data)) → hash(nonce + initialHash)
-                val newHash = sha512.digest(nonce.toByteArray() + initialHash)
-                currentTrialValue = newHash.sliceArray(0 until nonceSize).toULong()
+            val target = determineTarget(ttl, payload.size, difficulty)
+            val initialHash = MessageDigest.getInstance("SHA-512").digest(payload)
+            // 0 is never tried, so it can double as "no nonce found yet"
+            val result = AtomicLong(0)
+            // This thread is one of the workers, so that a nonce is found even if the other workers can't get a crypto
+            // thread (e.g. because this is one)
+            val workers = (1 until workerCount).map { index ->
+                ThreadUtils.cryptoExecutor.submit(Runnable { search(initialHash, target, index + 1L, workerCount.toLong(), result) })
             }
-            return Base64.encodeBytes(nonce.toByteArray())
+            try {
+                search(initialHash, target, 1L, workerCount.toLong(), result)
+            } finally {
+                workers.forEach { it.cancel(false) }
+            }
+            return Base64.encodeBytes(ByteBuffer.allocate(nonceSize).putLong(result.get()).array())
         } catch (e: Exception) {
             Log.d("Loki", "Couldn't calculate proof of work due to error: $e.")
             return null
         }
     }
 
-    @kotlin.ExperimentalUnsignedTypes
-    private fun determineTarget(ttl: Int, payloadSize: Int): ULong {
+    /**
+     * Tries nonces `firstNonce`, `firstNonce + step`, ... until one meets `target` or another worker has found one.
+     */
+    private fun search(initialHash: ByteArray, target: Long, firstNonce: Long, step: Long, result: AtomicLong) {
+        val sha512 = MessageDigest.getInstance("SHA-512")
+        // This is different from bitmessage's PoW implementation
+        // newHash = hash(nonce + hash(data)) → hash(nonce + initialHash)
+        val input = ByteArray(nonceSize + initialHash.size)
+        System.arraycopy(initialHash, 0, input, nonceSize, initialHash.size)
+        val hash = ByteArray(hashSize)
+        // Offsetting both sides by Long.MIN_VALUE turns unsigned comparison into signed comparison
+        val offsetTarget = target xor Long.MIN_VALUE
+        var nonce = firstNonce
+        while (result.get() == 0L) {
+            writeLong(nonce, input)
+            sha512.update(input)
+            sha512.digest(hash, 0, hashSize)
+            val trialValue = readLong(hash)
+            if ((trialValue xor Long.MIN_VALUE) <= offsetTarget) {
+                result.compareAndSet(0, nonce)
+                return
+            }
+            nonce += step
+        }
+    }
+
+    /**
+     * Returns the target as the bits of an unsigned 64 bit value.
+     */
+    private fun determineTarget(ttl: Int, payloadSize: Int, difficulty: Int): Long {
         val x1 = BigInteger.valueOf(2).pow(16) - 1.toBigInteger()
         val x2 = BigInteger.valueOf(2).pow(64) - 1.toBigInteger()
         val size = (payloadSize + nonceSize).toBigInteger()
         val ttlInSeconds = (ttl / 1000).toBigInteger()
         val x3 = (ttlInSeconds * size) / x1
         val x4 = size + x3
-        val x5 = SnodeAPI.powDifficulty.toBigInteger() * x4
-        return (x2 / x5).toULong()
+        val x5 = difficulty.toBigInteger() * x4
+        return (x2 / x5).toLong()
     }
     // endregion
 }
 
 // region Convenience
-@kotlin.ExperimentalUnsignedTypes
-private fun BigInteger.toULong() = toLong().toULong()
-private fun Long.toByteArray() = ByteBuffer.allocate(8).putLong(this).array()
-@kotlin.ExperimentalUnsignedTypes
-private fun ByteArray.toULong() = ByteBuffer.wrap(this).long.toULong()
+private fun writeLong(value: Long, destination: ByteArray) {
+    for (i in 0 until 8) {
+        destination[i] = (value ushr (56 - 8 * i)).toByte()
+    }
+}
+
+private fun readLong(source: ByteArray): Long {
+    var result = 0L
+    for (i in 0 until 8) {
+        result = (result shl 8) or (source[i].toLong() and 0xff)
+    }
+    return result
+}
 // endregion
@@ -7,7 +7,6 @@ import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 import okhttp3.Request
 import org.session.libsignal.utilities.logging.Log
-import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.JsonUtil
 import org.session.libsignal.service.loki.api.*
 import org.session.libsignal.service.loki.api.fileserver.FileServerAPI
@@ -27,6 +26,11 @@ public object OnionRequestAPI {
     private val pathFailureCount = mutableMapOf<Path, Int>()
     private val snodeFailureCount = mutableMapOf<Snode, Int>()
     public var guardSnodes = setOf<Snode>()
+        set(newValue) {
+            field = newValue
+            // Every onion request goes through a guard snode, so keep the connections to them warm
+            HTTP.setKeepAliveHosts(newValue.map { "${it.address}:${it.port}" }.toSet())
+        }
     public var paths: List<Path> // Not a set to ensure we consistently show the same path to the user
         get() = SnodeAPI.shared.database.getOnionRequestPaths()
         set(newValue) {
@@ -83,7 +87,7 @@ public object OnionRequestAPI {
      */
     private fun testSnode(snode: Snode): Promise<Unit, Exception> {
         val deferred = deferred<Unit, Exception>()
-        ThreadUtils.queue { // No need to block the shared context for this
+        ThreadUtils.queue(ThreadUtils.networkExecutor) { // No need to block the shared context for this
             val url = "${snode.address}:${snode.port}/get_stats/v1"
             try {
                 val json = HTTP.execute(HTTP.Verb.GET, url)
@@ -313,11 +317,9 @@ public object OnionRequestAPI {
                 return@success deferred.reject(exception)
             }
             val destinationSymmetricKey = result.destinationSymmetricKey
-            ThreadUtils.queue {
+            ThreadUtils.queue(ThreadUtils.networkExecutor) {
                 try {
-                    val json = HTTP.execute(HTTP.Verb.POST, url, body)
-                    val base64EncodedIVAndCiphertext = json["result"] as? String ?: return@queue deferred.reject(Exception("Invalid JSON"))
-                    val ivAndCiphertext = Base64.decode(base64EncodedIVAndCiphertext)
+                    val ivAndCiphertext = HTTP.executeAndDecodeResult(HTTP.Verb.POST, url, body)
                     try {
                         val plaintext = DecryptionUtilities.decryptUsingAESGCM(ivAndCiphertext, destinationSymmetricKey)
                         try {
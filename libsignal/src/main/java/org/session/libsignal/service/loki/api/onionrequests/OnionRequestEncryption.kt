@@ -33,7 +33,7 @@ object OnionRequestEncryption {
      */
     internal fun encryptPayloadForDestination(payload: Map<*, *>, destination: OnionRequestAPI.Destination): Promise<EncryptionResult, Exception> {
         val deferred = deferred<EncryptionResult, Exception>()
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.cryptoExecutor) {
             try {
                 // Wrapping isn't needed for file server or open group onion requests
                 when (destination) {
@@ -62,7 +62,7 @@ object OnionRequestEncryption {
      */
     internal fun encryptHop(lhs: OnionRequestAPI.Destination, rhs: OnionRequestAPI.Destination, previousEncryptionResult: EncryptionResult): Promise<EncryptionResult, Exception> {
         val deferred = deferred<EncryptionResult, Exception>()
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.cryptoExecutor) {
             try {
                 val payload: MutableMap<String, Any>
                 when (rhs) {
@@ -193,7 +193,7 @@ class PublicChatAPI(userPublicKey: String, private val userPrivateKey: ByteArray
 
     fun sendMessage(message: PublicChatMessage, channel: Long, server: String): Promise<PublicChatMessage, Exception> {
         val deferred = deferred<PublicChatMessage, Exception>()
-        ThreadUtils.queue {
+        ThreadUtils.queue(ThreadUtils.networkExecutor) {
             val signedMessage = message.sign(userPrivateKey)
             if (signedMessage == null) {
                 deferred.reject(SnodeAPI.Error.MessageSigningFailed)
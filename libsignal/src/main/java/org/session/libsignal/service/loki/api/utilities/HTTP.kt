@@ -1,11 +1,25 @@
 package org.session.libsignal.service.loki.api.utilities
 
+import com.fasterxml.jackson.core.Base64Variants
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import okhttp3.*
 import org.session.libsignal.utilities.logging.Log
 import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.ThreadUtils
+import java.io.BufferedInputStream
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.net.Proxy
 import java.security.SecureRandom
 import java.security.cert.X509Certificate
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 import javax.net.ssl.SSLContext
 import javax.net.ssl.X509TrustManager
 
@@ -16,6 +30,7 @@ object HTTP {
             .connectTimeout(timeout, TimeUnit.SECONDS)
             .readTimeout(timeout, TimeUnit.SECONDS)
             .writeTimeout(timeout, TimeUnit.SECONDS)
+            .eventListener(metricsListener)
             .build()
     }
 
@@ -37,10 +52,25 @@ object HTTP {
             .connectTimeout(timeout, TimeUnit.SECONDS)
             .readTimeout(timeout, TimeUnit.SECONDS)
             .writeTimeout(timeout, TimeUnit.SECONDS)
+            .connectionPool(ConnectionPool(maxIdleConnectionCount, keepAliveDuration, TimeUnit.SECONDS))
+            .eventListener(metricsListener)
             .build()
     }
 
     private const val timeout: Long = 20
+    /**
+     * How long idle connections are kept around in the connection pool.
+     */
+    private const val keepAliveDuration: Long = 5 * 60
+    private const val maxIdleConnectionCount = 8
+    /**
+     * How often the connections to the keep alive hosts (i.e. the guard snodes) are checked. A host that hasn't been
+     * used for this long gets a lightweight request so that its connection stays warm. This stops while the app is in
+     * the background, and once no other request has been made for `keepAliveDuration`.
+     */
+    private const val keepAliveInterval: Long = 30
+
+    private val jsonFactory = JsonFactory()
 
     class HTTPRequestFailedException(val statusCode: Int, val json: Map<*, *>?)
         : kotlin.Exception("HTTP request failed with status code $statusCode.")
@@ -49,6 +79,95 @@ object HTTP {
         GET("GET"), PUT("PUT"), POST("POST"), DELETE("DELETE")
     }
 
+    // region Metrics
+    class HostMetrics {
+        val requestCount = AtomicLong(0)
+        val failureCount = AtomicLong(0)
+        /**
+         * The number of new connections that were established, as opposed to pooled connections being reused.
+         */
+        val connectionCount = AtomicLong(0)
+        val totalLatency = AtomicLong(0)
+
+        val averageLatency: Long get() {
+            val successCount = requestCount.get() - failureCount.get()
+            return if (successCount > 0) totalLatency.get() / successCount else 0
+        }
+
+        override fun toString(): String {
+            return "requests: ${requestCount.get()}, failures: ${failureCount.get()}, connections: ${connectionCount.get()}, average latency: $averageLatency ms"
+        }
+    }
+
+    private val hostMetrics = ConcurrentHashMap<String, HostMetrics>()
+
+    /**
+     * Returns connection and latency metrics keyed by host.
+     */
+    val metrics: Map<String, HostMetrics> get() = hostMetrics
+
+    private fun getMetrics(host: String): HostMetrics {
+        return hostMetrics[host] ?: hostMetrics.putIfAbsent(host, HostMetrics()) ?: hostMetrics[host]!!
+    }
+
+    private val metricsListener = object : EventListener() {
+
+        override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+            getMetrics(call.request().url().host()).connectionCount.incrementAndGet()
+        }
+    }
+    // endregion
+
+    // region Keep Alive
+    private val keepAliveHosts = ConcurrentHashMap<String, Long>()
+    @Volatile private var lastRequestDate = 0L
+
+    /**
+     * Whether the connections to the keep alive hosts should be kept warm. Set this to `false` while the app is in the
+     * background.
+     */
+    @Volatile var isKeepAliveEnabled = true
+    private val isKeepingAlive = AtomicBoolean(false)
+    private val keepAliveTimer by lazy {
+        ThreadUtils.scheduler.scheduleWithFixedDelay(ThreadUtils.networkExecutor, keepAliveInterval, keepAliveInterval, TimeUnit.SECONDS) {
+            // Skip this round if the previous one is still waiting on slow hosts
+            if (isKeepingAlive.compareAndSet(false, true)) {
+                try { keepAlive() } finally { isKeepingAlive.set(false) }
+            }
+        }
+    }
+
+    /**
+     * Keeps warm connections to the given hosts (e.g. `https://1.2.3.4:22021`). This should be the current guard
+     * snodes, since every onion request goes through one of them.
+     */
+    fun setKeepAliveHosts(hosts: Set<String>) {
+        if (keepAliveHosts.keys == hosts) { return }
+        keepAliveHosts.keys.retainAll(hosts)
+        val now = System.currentTimeMillis()
+        hosts.forEach { keepAliveHosts.putIfAbsent(it, now) }
+        keepAliveTimer // Start the keep alive timer if needed
+    }
+
+    private fun keepAlive() {
+        val now = System.currentTimeMillis()
+        if (!isKeepAliveEnabled || now - lastRequestDate > keepAliveDuration * 1000) { return }
+        for ((host, lastUsed) in keepAliveHosts) {
+            if (now - lastUsed < keepAliveInterval * 1000) { continue }
+            try {
+                execute(Verb.GET, "$host/get_stats/v1", null, false, true) { parseJSON(it) }
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't keep connection to $host alive.")
+            }
+        }
+    }
+
+    private fun markUsed(url: HttpUrl) {
+        val host = "${url.scheme()}://${url.host()}:${url.port()}"
+        keepAliveHosts.replace(host, System.currentTimeMillis())
+    }
+    // endregion
+
     /**
      * Sync. Don't call from the main thread.
      */
@@ -72,6 +191,62 @@ object HTTP {
      * Sync. Don't call from the main thread.
      */
     fun execute(verb: Verb, url: String, body: ByteArray?, useSeedNodeConnection: Boolean = false): Map<*, *> {
+        return execute(verb, url, body, useSeedNodeConnection) { parseJSON(it) }
+    }
+
+    /**
+     * Executes the request and decodes the base64 encoded `result` field of the JSON response while it's being read,
+     * without building the intermediate JSON string or the base64 string. Use this for onion request responses.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    fun executeAndDecodeResult(verb: Verb, url: String, body: ByteArray?): ByteArray {
+        return execute(verb, url, body, false) { responseBody ->
+            responseBody.byteStream().use { readBase64EncodedResult(it) } ?: throw Exception("Invalid JSON")
+        }
+    }
+
+    /**
+     * Like `executeAndDecodeResult(...)`, but writes the decoded `result` field to `outputStream` as it arrives rather
+     * than returning it, so that large responses (e.g. file downloads) never have to be held in memory in full.
+     * `onProgress` is called with the number of response bytes received so far and the response's content length
+     * (-1 if unknown).
+     *
+     * Sync. Don't call from the main thread.
+     */
+    fun executeAndStreamResult(verb: Verb, url: String, body: ByteArray?, outputStream: OutputStream, onProgress: ((Long, Long) -> Unit)? = null) {
+        execute(verb, url, body, false) { responseBody ->
+            val contentLength = responseBody.contentLength()
+            val inputStream = object : FilterInputStream(responseBody.byteStream()) {
+                private var byteCount: Long = 0
+
+                override fun read(): Int {
+                    val result = super.read()
+                    if (result >= 0) { didRead(1) }
+                    return result
+                }
+
+                override fun read(bytes: ByteArray, offset: Int, length: Int): Int {
+                    val result = super.read(bytes, offset, length)
+                    if (result > 0) { didRead(result) }
+                    return result
+                }
+
+                private fun didRead(count: Int) {
+                    byteCount += count
+                    onProgress?.invoke(byteCount, contentLength)
+                }
+            }
+            inputStream.use {
+                jsonFactory.createParser(it).use { parser ->
+                    if (!moveToResult(parser)) { throw Exception("Invalid JSON") }
+                    parser.readBinaryValue(Base64Variants.MIME_NO_LINEFEEDS, outputStream)
+                }
+            }
+        }
+    }
+
+    private fun <T> execute(verb: Verb, url: String, body: ByteArray?, useSeedNodeConnection: Boolean, isKeepAlive: Boolean = false, parse: (ResponseBody) -> T): T {
         val request = Request.Builder().url(url)
         when (verb) {
             Verb.GET -> request.get()
@@ -83,28 +258,72 @@ object HTTP {
             }
             Verb.DELETE -> request.delete()
         }
+        val builtRequest = request.build()
+        val metrics = getMetrics(builtRequest.url().host())
+        metrics.requestCount.incrementAndGet()
+        markUsed(builtRequest.url())
+        if (!isKeepAlive) { lastRequestDate = System.currentTimeMillis() }
+        val start = System.currentTimeMillis()
         lateinit var response: Response
         try {
             val connection = if (useSeedNodeConnection) seedNodeConnection else defaultConnection
-            response = connection.newCall(request.build()).execute()
+            response = connection.newCall(builtRequest).execute()
         } catch (exception: Exception) {
+            metrics.failureCount.incrementAndGet()
             Log.d("Loki", "${verb.rawValue} request to $url failed due to error: ${exception.localizedMessage}.")
             // Override the actual error so that we can correctly catch failed requests in OnionRequestAPI
             throw HTTPRequestFailedException(0, null)
         }
-        when (val statusCode = response.code()) {
-            200 -> {
-                val bodyAsString = response.body()?.string() ?: throw Exception("An error occurred.")
-                try {
-                    return JsonUtil.fromJson(bodyAsString, Map::class.java)
-                } catch (exception: Exception) {
-                    return mapOf( "result" to bodyAsString)
+        response.use {
+            when (val statusCode = response.code()) {
+                200 -> {
+                    val responseBody = response.body() ?: throw Exception("An error occurred.")
+                    val result = parse(responseBody)
+                    metrics.totalLatency.addAndGet(System.currentTimeMillis() - start)
+                    return result
+                }
+                else -> {
+                    metrics.failureCount.incrementAndGet()
+                    Log.d("Loki", "${verb.rawValue} request to $url failed with status code: $statusCode.")
+                    throw HTTPRequestFailedException(statusCode, null)
                 }
             }
-            else -> {
-                Log.d("Loki", "${verb.rawValue} request to $url failed with status code: $statusCode.")
-                throw HTTPRequestFailedException(statusCode, null)
-            }
         }
     }
+
+    /**
+     * Parses JSON responses straight from the response stream. Anything else is returned as the `result` field.
+     */
+    private fun parseJSON(responseBody: ResponseBody): Map<*, *> {
+        val stream = BufferedInputStream(responseBody.byteStream())
+        stream.mark(1)
+        val firstByte = stream.read()
+        stream.reset()
+        if (firstByte == '{'.toInt()) {
+            return JsonUtil.fromJson(stream, Map::class.java)
+        } else {
+            return mapOf( "result" to String(stream.readBytes(), Charsets.UTF_8) )
+        }
+    }
+
+    private fun readBase64EncodedResult(stream: InputStream): ByteArray? {
+        jsonFactory.createParser(stream).use { parser ->
+            if (!moveToResult(parser)) { return null }
+            return parser.getBinaryValue(Base64Variants.MIME_NO_LINEFEEDS)
+        }
+    }
+
+    /**
+     * Advances `parser` to the value of the top level `result` field. Returns `false` if there's no such string value.
+     */
+    private fun moveToResult(parser: JsonParser): Boolean {
+        if (parser.nextToken() != JsonToken.START_OBJECT) { return false }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            val token = parser.nextToken()
+            if (name == "result" && token == JsonToken.VALUE_STRING) { return true }
+            parser.skipChildren()
+        }
+        return false
+    }
 }
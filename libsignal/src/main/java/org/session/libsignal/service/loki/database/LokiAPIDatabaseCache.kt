@@ -0,0 +1,115 @@
+package org.session.libsignal.service.loki.database
+
+import org.session.libsignal.service.loki.api.Snode
+import org.session.libsignal.utilities.ThreadUtils
+import org.session.libsignal.utilities.logging.Log
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * A write-through cache for the snode pool, onion request paths and swarms. These are read on every poll and every
+ * onion request, and reading them from the database means running one or more queries and parsing the delimited
+ * strings they're stored as.
+ *
+ * Reads are served from immutable snapshots that are swapped atomically on update. Writes update the snapshot right
+ * away and are persisted in order on a background thread. Everything else is forwarded to `database` as is.
+ */
+class LokiAPIDatabaseCache(private val database: LokiAPIDatabaseProtocol) : LokiAPIDatabaseProtocol by database {
+    private val snodePool = AtomicReference<Set<Snode>?>(null)
+    private val onionRequestPaths = AtomicReference<List<List<Snode>>?>(null)
+    private val swarms = ConcurrentHashMap<String, Set<Snode>>()
+    /**
+     * Public keys for which the database is known not to contain a swarm.
+     */
+    private val missingSwarms = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+    private val persistenceExecutor = ThreadUtils.newDynamicSingleThreadedExecutor()
+
+    private val _hitCount = AtomicLong(0)
+    private val _missCount = AtomicLong(0)
+    val hitCount: Long get() = _hitCount.get()
+    val missCount: Long get() = _missCount.get()
+
+    // region Snode Pool
+    override fun getSnodePool(): Set<Snode> {
+        val snapshot = snodePool.get()
+        if (snapshot != null) {
+            _hitCount.incrementAndGet()
+            return snapshot
+        }
+        _missCount.incrementAndGet()
+        val snodePool = database.getSnodePool().toSet()
+        this.snodePool.compareAndSet(null, snodePool)
+        return this.snodePool.get() ?: snodePool
+    }
+
+    override fun setSnodePool(newValue: Set<Snode>) {
+        val snapshot = newValue.toSet()
+        snodePool.set(snapshot)
+        persist { database.setSnodePool(snapshot) }
+    }
+    // endregion
+
+    // region Onion Request Paths
+    override fun getOnionRequestPaths(): List<List<Snode>> {
+        val snapshot = onionRequestPaths.get()
+        if (snapshot != null) {
+            _hitCount.incrementAndGet()
+            return snapshot
+        }
+        _missCount.incrementAndGet()
+        val paths = database.getOnionRequestPaths().map { it.toList() }
+        onionRequestPaths.compareAndSet(null, paths)
+        return onionRequestPaths.get() ?: paths
+    }
+
+    override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
+        val snapshot = newValue.map { it.toList() }
+        onionRequestPaths.set(snapshot)
+        persist { database.setOnionRequestPaths(snapshot) }
+    }
+
+    override fun clearOnionRequestPaths() {
+        onionRequestPaths.set(listOf())
+        persist { database.clearOnionRequestPaths() }
+    }
+    // endregion
+
+    // region Swarms
+    override fun getSwarm(publicKey: String): Set<Snode>? {
+        val snapshot = swarms[publicKey]
+        if (snapshot != null || missingSwarms.contains(publicKey)) {
+            _hitCount.incrementAndGet()
+            return snapshot
+        }
+        _missCount.incrementAndGet()
+        val swarm = database.getSwarm(publicKey)?.toSet()
+        if (swarm != null) {
+            return swarms.putIfAbsent(publicKey, swarm) ?: swarm
+        } else {
+            missingSwarms.add(publicKey)
+            return null
+        }
+    }
+
+    override fun setSwarm(publicKey: String, newValue: Set<Snode>) {
+        val snapshot = newValue.toSet()
+        swarms[publicKey] = snapshot
+        missingSwarms.remove(publicKey)
+        persist { database.setSwarm(publicKey, snapshot) }
+    }
+    // endregion
+
+    // region Convenience
+    private fun persist(write: () -> Unit) {
+        persistenceExecutor.execute {
+            try {
+                write()
+            } catch (e: Exception) {
+                Log.d("Loki", "Failed to persist cached snode data: $e.")
+            }
+        }
+    }
+    // endregion
+}
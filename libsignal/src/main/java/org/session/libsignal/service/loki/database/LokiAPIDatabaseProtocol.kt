@@ -4,7 +4,7 @@ import org.session.libsignal.libsignal.ecc.ECKeyPair
 import org.session.libsignal.service.loki.api.Snode
 import java.util.*
 
-interface LokiAPIDatabaseProtocol {
+interface LokiAPIDatabaseProtocol : ReceivedMessageHashValueStorageProtocol {
 
     fun getSnodePool(): Set<Snode>
     fun setSnodePool(newValue: Set<Snode>)
@@ -15,8 +15,6 @@ interface LokiAPIDatabaseProtocol {
     fun setSwarm(publicKey: String, newValue: Set<Snode>)
     fun getLastMessageHashValue(snode: Snode, publicKey: String): String?
     fun setLastMessageHashValue(snode: Snode, publicKey: String, newValue: String)
-    fun getReceivedMessageHashValues(publicKey: String): Set<String>?
-    fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>)
     fun getAuthToken(server: String): String?
     fun setAuthToken(server: String, newValue: String?)
     fun getLastMessageServerID(group: Long, server: String): Long?
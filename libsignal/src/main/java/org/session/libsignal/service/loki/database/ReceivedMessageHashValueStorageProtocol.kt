@@ -0,0 +1,15 @@
+package org.session.libsignal.service.loki.database
+
+interface ReceivedMessageHashValueStorageProtocol {
+
+    fun getReceivedMessageHashValues(publicKey: String): Set<String>?
+    /**
+     * Returns the subset of `hashValues` that has already been received for `publicKey`.
+     */
+    fun getReceivedMessageHashValues(publicKey: String, hashValues: Collection<String>): Set<String>
+    /**
+     * `newValues` maps hash values to the timestamp (in milliseconds) at which the associated message expires.
+     */
+    fun addReceivedMessageHashValues(publicKey: String, newValues: Map<String, Long>)
+    fun pruneReceivedMessageHashValues(now: Long)
+}
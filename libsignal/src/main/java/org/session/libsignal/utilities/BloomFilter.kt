@@ -0,0 +1,70 @@
+package org.session.libsignal.utilities
+
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.max
+import kotlin.math.roundToInt
+
+/**
+ * A simple Bloom filter over strings. A negative answer from `mightContain(_:)` is definitive; a positive answer
+ * needs to be confirmed against the backing store.
+ *
+ * Not thread safe.
+ */
+class BloomFilter(val expectedInsertionCount: Int, falsePositiveRate: Double = 0.01) {
+    private val bitCount: Int
+    private val hashFunctionCount: Int
+    private val bits: LongArray
+    var insertionCount = 0
+        private set
+
+    init {
+        val n = max(expectedInsertionCount, 1).toDouble()
+        bitCount = max(ceil(-n * ln(falsePositiveRate) / (ln(2.0) * ln(2.0))).toInt(), 64)
+        hashFunctionCount = max((bitCount / n * ln(2.0)).roundToInt(), 1)
+        bits = LongArray((bitCount + 63) / 64)
+    }
+
+    /**
+     * Whether more elements have been inserted than this filter was sized for, in which case the false positive
+     * rate is higher than requested and the filter should be rebuilt.
+     */
+    val isSaturated: Boolean get() = insertionCount > expectedInsertionCount
+
+    fun put(value: String) {
+        val (h1, h2) = hash(value)
+        for (i in 0 until hashFunctionCount) {
+            val index = index(h1, h2, i)
+            bits[index ushr 6] = bits[index ushr 6] or (1L shl (index and 63))
+        }
+        insertionCount += 1
+    }
+
+    fun mightContain(value: String): Boolean {
+        val (h1, h2) = hash(value)
+        for (i in 0 until hashFunctionCount) {
+            val index = index(h1, h2, i)
+            if (bits[index ushr 6] and (1L shl (index and 63)) == 0L) { return false }
+        }
+        return true
+    }
+
+    private fun index(h1: Int, h2: Int, i: Int): Int {
+        // Kirsch-Mitzenmacher double hashing
+        return ((h1 + i * h2) and Int.MAX_VALUE) % bitCount
+    }
+
+    private fun hash(value: String): Pair<Int, Int> {
+        // FNV-1a for the first hash and String.hashCode() mixed through a finalizer for the second
+        var h1 = -0x7ee3623b
+        for (c in value) {
+            h1 = h1 xor c.toInt()
+            h1 *= 0x01000193
+        }
+        var h2 = value.hashCode()
+        h2 = h2 xor (h2 ushr 16)
+        h2 *= -0x7a143595
+        h2 = h2 xor (h2 ushr 13)
+        return Pair(h1, h2 or 1)
+    }
+}
@@ -35,7 +35,7 @@ public class JsonUtil {
   }
 
   public static <T> T fromJson(byte[] serialized, Class<T> clazz) throws IOException {
-    return fromJson(new String(serialized), clazz);
+    return objectMapper.readValue(serialized, clazz);
   }
 
   public static <T> T fromJson(String serialized, Class<T> clazz) throws IOException {
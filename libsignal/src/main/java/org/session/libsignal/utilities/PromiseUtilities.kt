@@ -8,6 +8,7 @@ import nl.komponents.kovenant.deferred
 import nl.komponents.kovenant.jvm.asDispatcher
 import org.session.libsignal.utilities.logging.Log
 import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 
 fun Kovenant.createContext(): Context {
@@ -44,12 +45,19 @@ fun <V, E : Throwable> Promise<V, E>.recover(callback: (exception: E) -> V): Pro
 }
 
 fun <V, E> Promise<V, E>.successBackground(callback: (value: V) -> Unit): Promise<V, E> {
-    ThreadUtils.queue {
-        try {
-            callback(get())
-        } catch (e: Exception) {
-            Log.d("Loki", "Failed to execute task in background: ${e.message}.")
+    // Don't block a background thread while waiting for the promise to complete
+    success { value ->
+        ThreadUtils.queue {
+            try {
+                callback(value)
+            } catch (e: Exception) {
+                // Report the failure like any other task that throws, without taking down the thread
+                ThreadUtils.executorPool.metrics.recordFailure()
+                Log.e("Loki", "Failed to execute task in background.", e)
+            }
         }
+    }.fail {
+        Log.d("Loki", "Failed to execute task in background: $it.")
     }
     return this
 }
@@ -57,12 +65,11 @@ fun <V, E> Promise<V, E>.successBackground(callback: (value: V) -> Unit): Promis
 fun <V> Promise<V, Exception>.timeout(millis: Long): Promise<V, Exception> {
     if (this.isDone()) { return this; }
     val deferred = deferred<V, Exception>()
-    ThreadUtils.queue {
-        Thread.sleep(millis)
+    ThreadUtils.scheduler.schedule({
         if (!deferred.promise.isDone()) {
             deferred.reject(TimeoutException("Promise timed out."))
         }
-    }
+    }, millis, TimeUnit.MILLISECONDS)
     this.success {
         if (!deferred.promise.isDone()) { deferred.resolve(it) }
     }.fail {
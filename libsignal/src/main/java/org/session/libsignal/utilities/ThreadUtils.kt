@@ -1,10 +1,50 @@
 package org.session.libsignal.utilities
 
+import org.session.libsignal.utilities.concurrent.InstrumentedExecutor
+import org.session.libsignal.utilities.concurrent.InstrumentedScheduler
 import java.util.concurrent.*
 
 object ThreadUtils {
 
-    val executorPool = Executors.newCachedThreadPool()
+    // region Settings
+    private val cpuThreadCount = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4))
+    // endregion
+
+    /**
+     * CPU bound work such as encryption and proof of work. Tasks on this executor shouldn't block.
+     */
+    @JvmStatic
+    val cryptoExecutor = InstrumentedExecutor("crypto", cpuThreadCount, cpuThreadCount, 256)
+
+    /**
+     * Database and file access.
+     */
+    @JvmStatic
+    val diskExecutor = InstrumentedExecutor("disk-io", 2, 4, 256)
+
+    /**
+     * Blocking network requests and the handling of their responses. Tasks are often submitted from promise callbacks,
+     * so this never runs them on the submitting thread.
+     */
+    @JvmStatic
+    val networkExecutor = InstrumentedExecutor("network", 16, 48, 64) { false }
+
+    /**
+     * Everything else, including the worker contexts of promises. Tasks on this executor often block on other promises,
+     * so each task starts a new thread until there are 32 of them, and only then are tasks queued. It never runs tasks on
+     * the submitting thread (which may be the promise callback thread). Idle threads stop after a minute, like on the
+     * other executors.
+     */
+    @JvmStatic
+    val executorPool = InstrumentedExecutor("background", 32, 32, 64) { false }
+
+    /**
+     * Delays, timeouts and timers. Tasks should hand their work off to one of the executors above.
+     */
+    @JvmStatic
+    val scheduler = InstrumentedScheduler("scheduler")
+
+    val executors: List<InstrumentedExecutor> get() = listOf( cryptoExecutor, diskExecutor, networkExecutor, executorPool )
 
     @JvmStatic
     fun queue(target: Runnable) {
@@ -15,6 +55,15 @@ object ThreadUtils {
         executorPool.execute(target)
     }
 
+    @JvmStatic
+    fun queue(executor: Executor, target: Runnable) {
+        executor.execute(target)
+    }
+
+    fun queue(executor: Executor, target: () -> Unit) {
+        executor.execute(target)
+    }
+
     @JvmStatic
     fun newDynamicSingleThreadedExecutor(): ExecutorService {
         val executor = ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
@@ -23,4 +72,4 @@ object ThreadUtils {
         return executor
     }
 
-}
\ No newline at end of file
+}
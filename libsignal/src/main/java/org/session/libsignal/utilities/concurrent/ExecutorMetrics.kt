@@ -0,0 +1,75 @@
+package org.session.libsignal.utilities.concurrent
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps track of how long tasks wait in an executor's queue, how long they take to run, how deep the queue gets and
+ * how often tasks throw or have to be run elsewhere because the executor is saturated.
+ */
+class ExecutorMetrics {
+    private val executionCount = AtomicLong(0)
+    private val failureCount = AtomicLong(0)
+    private val saturationCount = AtomicLong(0)
+    private val totalWaitTime = AtomicLong(0)
+    private val maxWaitTime = AtomicLong(0)
+    private val totalExecutionTime = AtomicLong(0)
+    private val maxQueueDepth = AtomicLong(0)
+
+    /**
+     * The average time in milliseconds between a task being submitted and it starting to run.
+     */
+    val averageWaitTime: Long get() {
+        val executionCount = executionCount.get()
+        return if (executionCount > 0) totalWaitTime.get() / executionCount else 0
+    }
+
+    /**
+     * The average time in milliseconds it took tasks to run.
+     */
+    val averageExecutionTime: Long get() {
+        val executionCount = executionCount.get()
+        return if (executionCount > 0) totalExecutionTime.get() / executionCount else 0
+    }
+
+    /**
+     * The number of tasks that were submitted while all threads were busy and the queue was full.
+     */
+    val saturatedTaskCount: Long get() = saturationCount.get()
+
+    val failedTaskCount: Long get() = failureCount.get()
+
+    val executedTaskCount: Long get() = executionCount.get()
+
+    val peakQueueDepth: Long get() = maxQueueDepth.get()
+
+    fun recordExecution(waitTime: Long, executionTime: Long) {
+        executionCount.incrementAndGet()
+        totalWaitTime.addAndGet(waitTime)
+        totalExecutionTime.addAndGet(executionTime)
+        updateMax(maxWaitTime, waitTime)
+    }
+
+    fun recordQueueDepth(queueDepth: Int) {
+        updateMax(maxQueueDepth, queueDepth.toLong())
+    }
+
+    fun recordFailure() {
+        failureCount.incrementAndGet()
+    }
+
+    fun recordSaturation() {
+        saturationCount.incrementAndGet()
+    }
+
+    private fun updateMax(max: AtomicLong, value: Long) {
+        while (true) {
+            val current = max.get()
+            if (value <= current || max.compareAndSet(current, value)) { break }
+        }
+    }
+
+    override fun toString(): String {
+        return String.format("executions: %d, failures: %d, saturated: %d, peak queue depth: %d, average wait: %d ms, max wait: %d ms, average execution: %d ms",
+            executionCount.get(), failureCount.get(), saturationCount.get(), maxQueueDepth.get(), averageWaitTime, maxWaitTime.get(), averageExecutionTime)
+    }
+}
@@ -0,0 +1,80 @@
+package org.session.libsignal.utilities.concurrent
+
+import android.os.Looper
+import org.session.libsignal.utilities.logging.Log
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * A named thread pool with a bounded number of threads and a bounded queue, which records `metrics` and logs tasks
+ * that throw.
+ *
+ * Tasks start on one of `coreThreadCount` threads, and queue up once those are all busy. Only when the queue is full
+ * are more threads started, up to `maxThreadCount`. Past that point tasks run on the thread that submits them, which
+ * slows down whoever is producing them, if `canRunOnCaller` allows it. Otherwise (by default only on the main thread)
+ * they go to a shared overflow pool, which starts a thread per task as needed so that tasks that block on each other
+ * can't deadlock there. Idle threads stop after a minute.
+ */
+class InstrumentedExecutor(
+    val name: String,
+    coreThreadCount: Int,
+    maxThreadCount: Int,
+    queueCapacity: Int,
+    canRunOnCaller: () -> Boolean = { Looper.myLooper() != Looper.getMainLooper() }
+) : ThreadPoolExecutor(coreThreadCount, maxThreadCount, 60, TimeUnit.SECONDS, LinkedBlockingQueue(queueCapacity),
+    NamedThreadFactory(name), SaturationPolicy(canRunOnCaller)) {
+
+    val metrics = ExecutorMetrics()
+
+    init {
+        allowCoreThreadTimeOut(true)
+    }
+
+    companion object {
+        private val overflowExecutor by lazy { Executors.newCachedThreadPool(NamedThreadFactory("overflow")) }
+    }
+
+    override fun execute(command: Runnable) {
+        super.execute(InstrumentedTask(command, System.nanoTime()))
+        metrics.recordQueueDepth(queue.size)
+    }
+
+    override fun toString(): String {
+        return "$name: threads: $poolSize, active: $activeCount, queued: ${queue.size}, $metrics"
+    }
+
+    private inner class InstrumentedTask(private val command: Runnable, private val submissionTime: Long) : Runnable {
+
+        override fun run() {
+            val start = System.nanoTime()
+            try {
+                command.run()
+            } catch (throwable: Throwable) {
+                metrics.recordFailure()
+                Log.e("Loki", "Uncaught exception in $name executor on ${Thread.currentThread().name}.", throwable)
+                throw throwable
+            } finally {
+                val end = System.nanoTime()
+                metrics.recordExecution(TimeUnit.NANOSECONDS.toMillis(start - submissionTime), TimeUnit.NANOSECONDS.toMillis(end - start))
+            }
+        }
+    }
+
+    private class SaturationPolicy(private val canRunOnCaller: () -> Boolean) : RejectedExecutionHandler {
+
+        override fun rejectedExecution(task: Runnable, executor: ThreadPoolExecutor) {
+            if (executor.isShutdown) { return }
+            val instrumentedExecutor = executor as InstrumentedExecutor
+            instrumentedExecutor.metrics.recordSaturation()
+            Log.w("Loki", "${instrumentedExecutor.name} executor is saturated.")
+            if (canRunOnCaller()) {
+                task.run()
+            } else {
+                overflowExecutor.execute(task)
+            }
+        }
+    }
+}
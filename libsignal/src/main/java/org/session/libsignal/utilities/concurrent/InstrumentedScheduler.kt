@@ -0,0 +1,80 @@
+package org.session.libsignal.utilities.concurrent
+
+import org.session.libsignal.utilities.logging.Log
+import java.util.concurrent.CancellationException
+import java.util.concurrent.Delayed
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * A single named thread for delays and timers, which records `metrics` and logs tasks that throw. The wait time in
+ * `metrics` is how late a task started, rather than how long it was queued.
+ *
+ * Every task shares the one thread, so tasks should only hand work off to an executor, which is what `schedule` and
+ * `scheduleWithFixedDelay` with an `executor` do.
+ */
+class InstrumentedScheduler(val name: String) : ScheduledThreadPoolExecutor(1, NamedThreadFactory(name)) {
+
+    val metrics = ExecutorMetrics()
+    // Only accessed from the scheduler thread
+    private var startTime = 0L
+    private var lateness = 0L
+
+    init {
+        removeOnCancelPolicy = true
+    }
+
+    /**
+     * Runs `task` on `executor` after `delay`.
+     */
+    fun schedule(executor: Executor, delay: Long, unit: TimeUnit, task: () -> Unit): ScheduledFuture<*> {
+        return schedule(Runnable { executor.execute(task) }, delay, unit)
+    }
+
+    /**
+     * Runs `task` on `executor` after `initialDelay`, and then every `delay`. The delay is counted from when `task` is
+     * handed off, so a slow run doesn't push back the next one.
+     */
+    fun scheduleWithFixedDelay(executor: Executor, initialDelay: Long, delay: Long, unit: TimeUnit, task: () -> Unit): ScheduledFuture<*> {
+        return scheduleWithFixedDelay(Runnable { executor.execute(task) }, initialDelay, delay, unit)
+    }
+
+    override fun beforeExecute(thread: Thread, task: Runnable) {
+        super.beforeExecute(thread, task)
+        startTime = System.nanoTime()
+        lateness = if (task is Delayed) Math.max(-task.getDelay(TimeUnit.MILLISECONDS), 0) else 0
+    }
+
+    override fun afterExecute(task: Runnable, throwable: Throwable?) {
+        super.afterExecute(task, throwable)
+        metrics.recordExecution(lateness, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime))
+        // Scheduled tasks catch their own exceptions, which are only visible through their futures
+        val failure = throwable ?: if (task is Future<*> && task.isDone) {
+            try {
+                task.get()
+                null
+            } catch (exception: CancellationException) {
+                null
+            } catch (exception: ExecutionException) {
+                exception.cause
+            } catch (exception: InterruptedException) {
+                Thread.currentThread().interrupt()
+                null
+            }
+        } else {
+            null
+        }
+        if (failure != null) {
+            metrics.recordFailure()
+            Log.e("Loki", "Uncaught exception in $name scheduler.", failure)
+        }
+    }
+
+    override fun toString(): String {
+        return "$name: scheduled: ${queue.size}, $metrics"
+    }
+}
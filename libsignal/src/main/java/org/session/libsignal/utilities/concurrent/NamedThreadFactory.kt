@@ -0,0 +1,15 @@
+package org.session.libsignal.utilities.concurrent
+
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Names threads `name-0`, `name-1`, etc.
+ */
+internal class NamedThreadFactory(private val name: String) : ThreadFactory {
+    private val threadCount = AtomicInteger()
+
+    override fun newThread(runnable: Runnable): Thread {
+        return Thread(runnable, "$name-${threadCount.getAndIncrement()}")
+    }
+}
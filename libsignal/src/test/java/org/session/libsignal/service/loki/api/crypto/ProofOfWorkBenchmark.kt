@@ -0,0 +1,57 @@
+package org.session.libsignal.service.loki.api.crypto
+
+import org.junit.Ignore
+import org.junit.Test
+import org.session.libsignal.service.loki.api.crypto.ProofOfWorkTests.Companion.data
+import org.session.libsignal.service.loki.api.crypto.ProofOfWorkTests.Companion.determineTarget
+import org.session.libsignal.service.loki.api.crypto.ProofOfWorkTests.Companion.getPayload
+import org.session.libsignal.service.loki.api.crypto.ProofOfWorkTests.Companion.publicKey
+import org.session.libsignal.service.loki.api.crypto.ProofOfWorkTests.Companion.ttl
+import org.session.libsignal.utilities.Base64
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * Compares the previous single threaded proof of work search with `ProofOfWork.calculate(...)` in terms of hashes per
+ * second and time to solution, at a few different difficulties.
+ */
+@Ignore("Benchmark; run manually")
+class ProofOfWorkBenchmark {
+
+    private fun legacyCalculate(timestamp: Long, difficulty: Int): ByteArray {
+        val payload = getPayload(timestamp)
+        val target = determineTarget(payload.size, difficulty)
+        val sha512 = MessageDigest.getInstance("SHA-512")
+        val initialHash = sha512.digest(payload)
+        var nonce = 0L
+        var trialValue = BigInteger.ONE.shiftLeft(64)
+        while (trialValue > target) {
+            nonce += 1
+            val newHash = sha512.digest(ByteBuffer.allocate(8).putLong(nonce).array() + initialHash)
+            trialValue = BigInteger(1, newHash.sliceArray(0 until 8))
+        }
+        return ByteBuffer.allocate(8).putLong(nonce).array()
+    }
+
+    @Test
+    fun benchmark() {
+        fun measure(name: String, difficulty: Int, iterationCount: Int, calculate: (Long) -> ByteArray) {
+            var timestamp = 1_600_000_000_000L
+            repeat(Math.max(iterationCount / 10, 1)) { calculate(timestamp++) }
+            var hashCount = 0L
+            val start = System.nanoTime()
+            repeat(iterationCount) {
+                // The nonce is roughly the number of hashes it took to find it, also when the search is split up
+                hashCount += ByteBuffer.wrap(calculate(timestamp++)).long
+            }
+            val duration = System.nanoTime() - start
+            val hashRate = hashCount * 1_000_000_000L / duration
+            println("$name, difficulty $difficulty: ${duration / iterationCount / 1000} µs to solution, $hashRate hashes/s.")
+        }
+        for ((difficulty, iterationCount) in listOf( 1 to 500, 10 to 100, 100 to 20 )) {
+            measure("Single threaded", difficulty, iterationCount) { legacyCalculate(it, difficulty) }
+            measure("Parallel", difficulty, iterationCount) { Base64.decode(ProofOfWork.calculate(data, publicKey, it, ttl, difficulty)) }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.session.libsignal.service.loki.api.crypto
+
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.Base64
+import java.math.BigInteger
+import java.security.MessageDigest
+
+class ProofOfWorkTests {
+
+    companion object {
+        internal val data = Base64.encodeBytes(ByteArray(400) { it.toByte() })
+        internal val publicKey = "05".padEnd(66, 'a')
+        internal val ttl = 24 * 60 * 60 * 1000
+
+        internal fun determineTarget(payloadSize: Int, difficulty: Int): BigInteger {
+            val x1 = BigInteger.valueOf(2).pow(16) - 1.toBigInteger()
+            val x2 = BigInteger.valueOf(2).pow(64) - 1.toBigInteger()
+            val size = (payloadSize + 8).toBigInteger()
+            val x3 = ((ttl / 1000).toBigInteger() * size) / x1
+            return x2 / (difficulty.toBigInteger() * (size + x3))
+        }
+
+        internal fun getPayload(timestamp: Long): ByteArray {
+            return (timestamp.toString() + ttl.toString() + publicKey + data).toByteArray()
+        }
+    }
+
+    private fun getTrialValue(payload: ByteArray, nonce: ByteArray): BigInteger {
+        val sha512 = MessageDigest.getInstance("SHA-512")
+        val hash = sha512.digest(nonce + sha512.digest(payload))
+        return BigInteger(1, hash.sliceArray(0 until 8))
+    }
+
+    @Test
+    fun findsValidNonces() {
+        for (difficulty in listOf( 1, 10, 100 )) {
+            for (timestamp in 1_600_000_000_000L until 1_600_000_000_020L) {
+                val nonce = ProofOfWork.calculate(data, publicKey, timestamp, ttl, difficulty)
+                assertNotNull(nonce)
+                val payload = getPayload(timestamp)
+                assertTrue(getTrialValue(payload, Base64.decode(nonce)) <= determineTarget(payload.size, difficulty))
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.session.libsignal.utilities.concurrent
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.session.libsignal.utilities.logging.Log
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+class InstrumentedExecutorTests {
+    private val errors = Collections.synchronizedList(mutableListOf<String>())
+
+    private inner class TestLogger : Log.Logger() {
+        override fun v(tag: String?, message: String?, t: Throwable?) { }
+        override fun d(tag: String?, message: String?, t: Throwable?) { }
+        override fun i(tag: String?, message: String?, t: Throwable?) { }
+        override fun w(tag: String?, message: String?, t: Throwable?) { }
+        override fun e(tag: String?, message: String?, t: Throwable?) { errors.add(message ?: "") }
+        override fun wtf(tag: String?, message: String?, t: Throwable?) { }
+        override fun blockUntilAllWritesFinished() { }
+    }
+
+    @Before
+    fun setUp() {
+        Log.initialize(TestLogger())
+    }
+
+    @After
+    fun tearDown() {
+        Log.initialize()
+    }
+
+    @Test
+    fun boundsThreadCountUnderLoad() {
+        val executor = InstrumentedExecutor("test", 2, 4, 8) { true }
+        val completedTaskCount = AtomicInteger(0)
+        repeat(100) {
+            executor.execute {
+                Thread.sleep(5)
+                completedTaskCount.incrementAndGet()
+            }
+        }
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+        assertEquals(100, completedTaskCount.get())
+        assertTrue(executor.largestPoolSize <= 4)
+        assertEquals(100, executor.metrics.executedTaskCount)
+        // Whatever didn't fit in the threads and the queue ran on this thread
+        assertTrue(executor.metrics.saturatedTaskCount > 0)
+        assertTrue(executor.metrics.peakQueueDepth <= 8)
+    }
+
+    @Test
+    fun sendsOverflowElsewhereIfItCantRunOnTheCaller() {
+        val executor = InstrumentedExecutor("test", 1, 1, 1) { false }
+        val isBlocked = CountDownLatch(1)
+        val unblock = CountDownLatch(1)
+        val overflowThreadName = AtomicReference<String>()
+        executor.execute { isBlocked.countDown(); unblock.await() }
+        isBlocked.await()
+        executor.execute { } // Queued
+        executor.execute { overflowThreadName.set(Thread.currentThread().name) } // Saturated
+        unblock.countDown()
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+        // The overflow task may still be running on the overflow thread
+        val deadline = System.currentTimeMillis() + 10_000
+        while (overflowThreadName.get() == null && System.currentTimeMillis() < deadline) { Thread.sleep(10) }
+        assertTrue(overflowThreadName.get().startsWith("overflow"))
+        assertEquals(1, executor.metrics.saturatedTaskCount)
+    }
+
+    @Test
+    fun doesntSerializeOverflowTasks() {
+        val executor = InstrumentedExecutor("test", 1, 1, 1) { false }
+        val isBlocked = CountDownLatch(1)
+        val unblock = CountDownLatch(1)
+        val secondOverflowTaskStarted = CountDownLatch(1)
+        val firstOverflowTaskCompleted = CountDownLatch(1)
+        executor.execute { isBlocked.countDown(); unblock.await() }
+        isBlocked.await()
+        executor.execute { } // Queued
+        executor.execute { // Saturated; waits for the next overflow task
+            if (secondOverflowTaskStarted.await(10, TimeUnit.SECONDS)) { firstOverflowTaskCompleted.countDown() }
+        }
+        executor.execute { secondOverflowTaskStarted.countDown() } // Saturated
+        assertTrue(firstOverflowTaskCompleted.await(10, TimeUnit.SECONDS))
+        unblock.countDown()
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+        assertEquals(2, executor.metrics.saturatedTaskCount)
+    }
+
+    @Test
+    fun reportsUncaughtExceptions() {
+        val executor = InstrumentedExecutor("test", 1, 1, 1) { false }
+        executor.execute { throw IllegalStateException() }
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+        assertEquals(1, executor.metrics.failedTaskCount)
+        assertEquals(1, executor.metrics.executedTaskCount)
+        assertTrue(errors.any { it.contains("test executor") })
+    }
+}
@@ -0,0 +1,43 @@
+package org.session.libsignal.utilities.concurrent
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+class InstrumentedSchedulerTests {
+    private val scheduler = InstrumentedScheduler("test-scheduler")
+    private val executor = Executors.newSingleThreadExecutor { runnable -> Thread(runnable, "test-executor") }
+
+    @After
+    fun tearDown() {
+        scheduler.shutdownNow()
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun handsTasksOffToTheExecutor() {
+        val threadName = AtomicReference<String>()
+        val isDone = CountDownLatch(1)
+        scheduler.schedule(executor, 10, TimeUnit.MILLISECONDS) {
+            threadName.set(Thread.currentThread().name)
+            isDone.countDown()
+        }
+        assertTrue(isDone.await(10, TimeUnit.SECONDS))
+        assertEquals("test-executor", threadName.get())
+    }
+
+    @Test
+    fun recordsFailedTasks() {
+        val future = scheduler.schedule(Runnable { throw IllegalStateException() }, 0, TimeUnit.MILLISECONDS)
+        while (!future.isDone) { Thread.sleep(10) }
+        scheduler.shutdown()
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS))
+        assertEquals(1, scheduler.metrics.executedTaskCount)
+        assertEquals(1, scheduler.metrics.failedTaskCount)
+    }
+}